@@ -0,0 +1,102 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates the data that compression benchmarks run on. The data is pseudo-random but deterministic, so that results
+ * can be compared between runs.
+ */
+public enum Corpus {
+
+    /** Text made of words of a limited vocabulary, with a skewed distribution */
+    TEXT {
+        @Override
+        byte[] create(int size, Random random) {
+            String words[] = new String[2000];
+            for(int i=0; i<words.length; i++) {
+                char word[] = new char[2+random.nextInt(9)];
+                for(int j=0; j<word.length; j++)
+                    word[j] = (char)('a'+random.nextInt(26));
+                words[i] = new String(word);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+            while(out.size()<size) {
+                byte word[] = words[(int)Math.abs(random.nextGaussian()*300)%words.length].getBytes();
+                out.write(word, 0, word.length);
+                out.write(random.nextInt(12)==0?'\n':' ');
+            }
+            return Arrays.copyOf(out.toByteArray(), size);
+        }
+    },
+
+    /** Binary data: random bytes interleaved with copies of previous data, like executables or databases */
+    BINARY {
+        @Override
+        byte[] create(int size, Random random) {
+            byte data[] = new byte[size];
+            int pos = 0;
+            while(pos<size) {
+                if(pos>1024 && random.nextInt(3)==0) {
+                    int distance = 1+random.nextInt(Math.min(pos, 65536));
+                    int len = Math.min(4+random.nextInt(200), size-pos);
+                    for(int i=0; i<len; i++, pos++)
+                        data[pos] = data[pos-distance];
+                }
+                else {
+                    int len = Math.min(1+random.nextInt(64), size-pos);
+                    for(int i=0; i<len; i++)
+                        data[pos++] = (byte)random.nextInt(256);
+                }
+            }
+            return data;
+        }
+    },
+
+    /** Long runs of a same byte, like sparse files or uncompressed images */
+    RUNS {
+        @Override
+        byte[] create(int size, Random random) {
+            byte data[] = new byte[size];
+            int pos = 0;
+            while(pos<size) {
+                int len = Math.min(1+random.nextInt(4000), size-pos);
+                Arrays.fill(data, pos, pos+len, (byte)random.nextInt(4));
+                pos += len;
+            }
+            return data;
+        }
+    };
+
+    /**
+     * Returns <code>size</code> bytes of this corpus.
+     *
+     * @param size number of bytes to generate
+     * @return <code>size</code> bytes of this corpus
+     */
+    public byte[] create(int size) {
+        return create(size, new Random(ordinal()));
+    }
+
+    abstract byte[] create(int size, Random random);
+}
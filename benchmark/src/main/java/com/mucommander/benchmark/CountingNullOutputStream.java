@@ -0,0 +1,49 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * An <code>OutputStream</code> that discards the bytes written to it and counts them, so that benchmarks measure the
+ * code that produces the bytes rather than the cost of storing them.
+ */
+public class CountingNullOutputStream extends OutputStream {
+
+    private long count;
+
+    /**
+     * Returns the number of bytes written so far.
+     *
+     * @return the number of bytes written so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) {
+        count += len;
+    }
+}
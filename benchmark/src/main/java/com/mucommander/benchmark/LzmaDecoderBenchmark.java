@@ -0,0 +1,114 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.HRESULT;
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Compression.LZMA.Decoder;
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Compression.LZMA.Encoder;
+
+/**
+ * Measures the throughput of the LZMA decoder used to extract 7z archives. Each operation decodes
+ * {@link #CORPUS_SIZE} bytes: the throughput in MB/s is the number of operations per second multiplied by
+ * {@link #CORPUS_SIZE} in MB.
+ *
+ * <p>Two paths are measured: {@link #decode()} writes to an <code>OutputStream</code>, the way 7z folders are decoded,
+ * and {@link #read()} reads the decoder like an <code>InputStream</code>, the way it is chained with the BCJ
+ * filters.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LzmaDecoderBenchmark {
+
+    /** Size of the uncompressed data */
+    public final static int CORPUS_SIZE = 8 * 1024 * 1024;
+
+    @Param({"TEXT", "BINARY", "RUNS"})
+    public Corpus corpus;
+
+    @Param({"4194304"})
+    public int dictionarySize;
+
+    private byte encoded[];
+    private byte readBuffer[];
+
+    @Setup
+    public void setUp() throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.SetDictionarySize(dictionarySize);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.WriteCoderProperties(out);
+        encoder.Code(new ByteArrayInputStream(corpus.create(CORPUS_SIZE)), out, -1, -1, null);
+        encoded = out.toByteArray();
+        readBuffer = new byte[64 * 1024];
+    }
+
+    private Decoder createDecoder() throws IOException {
+        Decoder decoder = new Decoder();
+        if(!decoder.SetDecoderProperties2(Arrays.copyOf(encoded, Encoder.kPropSize)))
+            throw new IOException("Invalid LZMA properties");
+        return decoder;
+    }
+
+    private ByteArrayInputStream getCompressedStream() {
+        return new ByteArrayInputStream(encoded, Encoder.kPropSize, encoded.length-Encoder.kPropSize);
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        CountingNullOutputStream out = new CountingNullOutputStream();
+        if(createDecoder().Code(getCompressedStream(), out, CORPUS_SIZE, null)!=HRESULT.S_OK)
+            throw new IOException("Error while decoding");
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        Decoder decoder = createDecoder();
+        decoder.SetInStream(getCompressedStream());
+        decoder.SetOutStreamSize(CORPUS_SIZE);
+
+        long count = 0;
+        int nbRead;
+        while((nbRead=decoder.read(readBuffer, 0, readBuffer.length))>0)
+            count += nbRead;
+        return count;
+    }
+}
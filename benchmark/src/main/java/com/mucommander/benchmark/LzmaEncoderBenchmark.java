@@ -0,0 +1,75 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Compression.LZMA.Encoder;
+
+/**
+ * Measures the throughput of the LZMA encoder. Each operation encodes {@link #CORPUS_SIZE} bytes: the throughput in
+ * MB/s is the number of operations per second multiplied by {@link #CORPUS_SIZE} in MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LzmaEncoderBenchmark {
+
+    /** Size of the uncompressed data, smaller than for decoding as encoding is much slower */
+    public final static int CORPUS_SIZE = 2 * 1024 * 1024;
+
+    @Param({"TEXT", "BINARY", "RUNS"})
+    public Corpus corpus;
+
+    @Param({"4194304"})
+    public int dictionarySize;
+
+    private byte data[];
+
+    @Setup
+    public void setUp() {
+        data = corpus.create(CORPUS_SIZE);
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.SetDictionarySize(dictionarySize);
+        CountingNullOutputStream out = new CountingNullOutputStream();
+        encoder.Code(new ByteArrayInputStream(data), out, -1, -1, null);
+        return out.getCount();
+    }
+}
@@ -421,6 +421,27 @@ public abstract class AbstractArchiveFile extends ProxyFile {
      */
     public abstract InputStream getEntryInputStream(ArchiveEntry entry, ArchiveEntryIterator entryIterator) throws IOException, UnsupportedFileOperationException;
 
+    /**
+     * Returns an {@link ArchiveEntryExtraction} that extracts the entries of this archive that are accepted by the
+     * given filter. This method should be preferred to {@link #getEntryInputStream(ArchiveEntry, ArchiveEntryIterator)}
+     * when a large number of entries are to be read, as it lets the implementation pick the order in which entries are
+     * extracted.
+     *
+     * <p>This implementation returns a {@link SequentialArchiveEntryExtraction}, which extracts entries in the order of
+     * {@link #getEntryIterator()}. It should be overridden by formats that can do better, for example by extracting
+     * several entries from a single decompression pass.</p>
+     *
+     * @param filter selects the entries to extract
+     * @return an ArchiveEntryExtraction that extracts the entries accepted by the filter
+     * @throws IOException if an error occurred while reading the archive, either because the archive is corrupt or
+     * because of an I/O error
+     * @throws UnsupportedFileOperationException if {@link FileOperation#READ_FILE} operations are not supported by the
+     * underlying file protocol.
+     */
+    public ArchiveEntryExtraction extractEntries(ArchiveEntryFilter filter) throws IOException, UnsupportedFileOperationException {
+        return new SequentialArchiveEntryExtraction(this, filter);
+    }
+
     /**
      * Returns <code>true</code> if this archive file is writable, i.e. is capable of adding and deleting entries from
      * the underlying archive file.
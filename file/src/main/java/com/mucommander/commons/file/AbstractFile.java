@@ -30,11 +30,14 @@ import java.awt.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <code>AbstractFile</code> is the superclass of all files.
@@ -59,6 +62,9 @@ public abstract class AbstractFile implements FileAttributes, PermissionTypes, P
     // 65536, no more gain (not sure why).
     public final static int IO_BUFFER_SIZE = 65536;
 
+    /** Maximum number of files passed at once to a {@link FileListListener} */
+    public final static int LS_BATCH_SIZE = 1000;
+
 
     /**
      * Creates a new file instance with the given URL.
@@ -393,7 +399,7 @@ public abstract class AbstractFile implements FileAttributes, PermissionTypes, P
      * <p>If this file supports the {@link FileOperation#COPY_REMOTELY} file operation, an attempt to perform a
      * {@link #copyRemotelyTo(AbstractFile) remote copy} of the file to the destination is made. If the operation isn't
      * supported or wasn't successful, the file is copied manually, by transferring its contents to the destination 
-     * using {@link #copyRecursively(AbstractFile, AbstractFile)}.<br/>
+     * using {@link #copyRecursively(AbstractFile, AbstractFile)}, unless the remote copy timed out or was interrupted.<br/>
      * In that case, no clean up is performed if an error occurs in the midst of a transfer: files that have been copied
      * (even partially) are left in the destination.<br/>
      * It is also worth noting that symbolic links are not copied to the destination when encountered: neither the link
@@ -410,6 +416,10 @@ public abstract class AbstractFile implements FileAttributes, PermissionTypes, P
                 // Operation was a success, all done.
                 return;
             }
+            catch(InterruptedIOException e) {
+                // The destination may still be written to by the server, it must not be copied manually
+                throw e;
+            }
             catch(IOException e) {
                 // Fail silently
             }
@@ -537,6 +547,36 @@ public abstract class AbstractFile implements FileAttributes, PermissionTypes, P
     }
 
 
+    /**
+     * Lists the children files that this file contains and passes them to the given listener as they are listed, in
+     * batches of at most {@link #LS_BATCH_SIZE} files, filtering out files that do not match the specified FileFilter.
+     * This method returns once the whole folder has been listed, or as soon as the listener has returned
+     * <code>false</code>. For this operation to be successful, this file must be 'browsable', i.e.
+     * {@link #isBrowsable()} must return <code>true</code>.
+     *
+     * <p>This default implementation lists the whole folder with {@link #ls(FileFilter)} and only then passes the
+     * children to the listener. This method should be overridden by protocols that list folders in several round trips,
+     * so that the first files can be displayed before large folders have been entirely listed.</p>
+     *
+     * @param filter the FileFilter to be used to filter files out from the list, may be <code>null</code>
+     * @param listener the listener that receives the children files
+     * @throws IOException if this operation is not possible (file is not browsable) or if an error occurred.
+     * @throws UnsupportedFileOperationException if this method relies on a file operation that is not supported
+     * or not implemented by the underlying filesystem.
+     */
+    public void ls(FileFilter filter, FileListListener listener) throws IOException, UnsupportedFileOperationException {
+        AbstractFile children[] = ls(filter);
+
+        int nbFiles = children.length;
+        for(int i=0; i<nbFiles; i+=LS_BATCH_SIZE) {
+            AbstractFile batch[] = new AbstractFile[Math.min(LS_BATCH_SIZE, nbFiles-i)];
+            System.arraycopy(children, i, batch, 0, batch.length);
+            if(!listener.filesListed(batch))
+                return;
+        }
+    }
+
+
     /**
      * Changes this file's permissions to the specified permissions int.
      * The permissions int should be constructed using the permission types and accesses defined in
@@ -639,6 +679,43 @@ public abstract class AbstractFile implements FileAttributes, PermissionTypes, P
         deleteRecursively(this);
     }
 
+    /**
+     * Deletes the given children of this folder, as if {@link #delete()} was called on each of them, and returns the
+     * children that could not be deleted. Unlike {@link #deleteRecursively()}, directories are not deleted
+     * recursively: this method is meant to delete regular files and symbolic links, possibly in as few requests as the
+     * underlying filesystem allows.
+     *
+     * <p>This default implementation calls {@link #delete()} on each child, one after the other. This method should be
+     * overridden by protocols that can delete several files in a single round trip.</p>
+     *
+     * @param children the children of this folder to delete
+     * @return the children that could not be deleted, an empty array if all of them have been deleted
+     */
+    public AbstractFile[] deleteChildren(AbstractFile children[]) {
+        List<AbstractFile> failed = new ArrayList<AbstractFile>();
+        for(AbstractFile child : children) {
+            try {
+                child.delete();
+            }
+            catch(IOException e) {
+                failed.add(child);
+            }
+        }
+
+        return failed.toArray(new AbstractFile[failed.size()]);
+    }
+
+    /**
+     * Prepares this folder to be traversed recursively, for instance to compute its size, delete it or search its
+     * contents. This method is called once on the root of the traversal, before the root is listed.
+     *
+     * <p>This default implementation does nothing. This method should be overridden by protocols that can list a whole
+     * tree in fewer requests than folder by folder, and cache the listings for the traversal. Errors are not reported:
+     * the tree is then simply listed folder by folder.</p>
+     */
+    public void prefetchTree() {
+    }
+
 
     /**
      * Returns <code>true</code> if the specified file operation and corresponding method is supported by this
@@ -1056,6 +1133,37 @@ public abstract class AbstractFile implements FileAttributes, PermissionTypes, P
         }
     }
 
+    /**
+     * Returns the checksums of the consecutive blocks of the given size that make up this file, calculated with the
+     * given algorithm. The last block is shorter than the others if this file's size is not a multiple of the block
+     * size. The checksums are returned in order, as hexadecimal strings, and can be compared with those of another
+     * file to find out which blocks differ.
+     *
+     * <p>This implementation reads this file's contents. Filesystems that are able to calculate checksums without
+     * transferring the file's contents should override this method.</p>
+     *
+     * @param algorithm the algorithm to use for calculating the checksums
+     * @param blockSize the size of the blocks, in bytes
+     * @return the checksums of this file's blocks, as hexadecimal strings
+     * @throws IOException if an I/O error occurred while calculating the checksums
+     * @throws NoSuchAlgorithmException if the specified algorithm does not correspond to any MessageDigest registered
+     * with the Java Cryptography Extension.
+     * @throws UnsupportedFileOperationException if this method relies on a file operation that is not supported
+     * or not implemented by the underlying filesystem.
+     * @see DeltaOutputStream
+     */
+    public String[] calculateBlockChecksums(String algorithm, int blockSize) throws IOException, NoSuchAlgorithmException, UnsupportedFileOperationException {
+        MessageDigest messageDigest = MessageDigest.getInstance(algorithm);
+        InputStream in = getInputStream();
+
+        try {
+            return DeltaOutputStream.calculateBlockChecksums(in, messageDigest, blockSize);
+        }
+        finally {
+            in.close();
+        }
+    }
+
 
     /**
      * Tests if the given path contains a trailing separator, and if not, adds one to the returned path.
@@ -1270,6 +1378,31 @@ public abstract class AbstractFile implements FileAttributes, PermissionTypes, P
         file.delete();
     }
 
+    /**
+     * Passes the given batch of children to the listener, once the files that do not match the specified filter have
+     * been filtered out, and empties the batch. This method is meant to be used by implementations of
+     * {@link #ls(FileFilter, FileListListener)}.
+     *
+     * @param batch the children that have been listed since the last call
+     * @param filter the FileFilter to be used to filter files out from the batch, may be <code>null</code>
+     * @param listener the listener that receives the children files
+     * @return <code>true</code> to continue listing the folder, <code>false</code> if the listener asked to stop
+     */
+    protected final boolean fireFilesListed(List<AbstractFile> batch, FileFilter filter, FileListListener listener) {
+        if(batch.isEmpty())
+            return true;
+
+        AbstractFile files[] = batch.toArray(new AbstractFile[batch.size()]);
+        batch.clear();
+        if(filter!=null) {
+            files = filter.filter(files);
+            if(files.length==0)
+                return true;
+        }
+
+        return listener.filesListed(files);
+    }
+
     /**
      * Convenience method that calls {@link #changePermissions(int)} with the given permissions' int value.
      *
@@ -1865,7 +1998,12 @@ public abstract class AbstractFile implements FileAttributes, PermissionTypes, P
      * <p>The behavior in the case of an error occurring in the midst of the transfer is unspecified: files that have
      * been copied (even partially) may or may not be left in the destination.<p/>
      *
+     * <p>An {@link InterruptedIOException} is thrown if the copy was started but timed out or was interrupted before
+     * it completed. The server may then still be writing the destination, which must not be copied to by other means.
+     * </p>
+     *
      * @param destFile the destination file to copy this file to
+     * @throws InterruptedIOException if the copy timed out or was interrupted, the destination may still be written to
      * @throws IOException in any of the error cases listed above
      * @throws UnsupportedFileOperationException if this operation is not supported by the underlying filesystem,
      * or is not implemented.
@@ -0,0 +1,51 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An <code>ArchiveEntryExtraction</code> iterates through the entries of an archive that are to be extracted, and
+ * gives access to the contents of the current entry. It is the preferred way to extract many entries at once: unlike
+ * calling {@link AbstractArchiveFile#getEntryInputStream(ArchiveEntry, ArchiveEntryIterator)} for each entry,
+ * it lets the archive decide the order in which entries are returned, so that implementations can read the archive
+ * in a single pass, or extract several parts of it concurrently.
+ *
+ * <p>Entries are returned in no particular order. The contents of the current entry must be read, if at all, before
+ * moving to the next entry: {@link #nextEntry()} closes the stream of the previous entry.</p>
+ *
+ * @see AbstractArchiveFile#extractEntries(ArchiveEntryFilter)
+ * @see SequentialArchiveEntryExtraction
+ */
+public interface ArchiveEntryExtraction extends ArchiveEntryIterator {
+
+    /**
+     * Returns an <code>InputStream</code> to read the contents of the entry that was last returned by
+     * {@link #nextEntry()}. This method may be called more than once for the same entry, for instance to retry a
+     * failed copy, but calls after the first one may be slower.
+     *
+     * @return an <code>InputStream</code> to read the contents of the current entry
+     * @throws IOException if the entry could not be extracted, either because the archive is corrupt or because of
+     * an I/O error
+     * @throws UnsupportedFileOperationException if {@link FileOperation#READ_FILE} operations are not supported by the
+     * underlying file protocol.
+     */
+    public InputStream getEntryInputStream() throws IOException, UnsupportedFileOperationException;
+}
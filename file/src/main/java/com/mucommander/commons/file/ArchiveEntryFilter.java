@@ -0,0 +1,37 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file;
+
+/**
+ * This interface allows to select the entries of an archive that are to be extracted by an
+ * {@link ArchiveEntryExtraction}.
+ *
+ * @see AbstractArchiveFile#extractEntries(ArchiveEntryFilter)
+ */
+public interface ArchiveEntryFilter {
+
+    /**
+     * Returns <code>true</code> if the given entry is to be extracted. This method is called once for each entry of the
+     * archive, by the thread that iterates through the extraction.
+     *
+     * @param entry an entry of the archive
+     * @return <code>true</code> if the given entry is to be extracted
+     */
+    public boolean accept(ArchiveEntry entry);
+}
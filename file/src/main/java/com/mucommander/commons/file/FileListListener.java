@@ -0,0 +1,38 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file;
+
+/**
+ * This interface receives the children of a folder as they are being listed by
+ * {@link AbstractFile#ls(com.mucommander.commons.file.filter.FileFilter, FileListListener)}, in batches, instead of
+ * waiting for the whole folder to be listed.
+ *
+ * @see AbstractFile#ls(com.mucommander.commons.file.filter.FileFilter, FileListListener)
+ */
+public interface FileListListener {
+
+    /**
+     * Called each time a batch of children has been listed. This method is called by the thread that lists the folder,
+     * possibly while the connection to the server is held: it should return quickly.
+     *
+     * @param files the children that have been listed since the last call, never empty
+     * @return <code>true</code> to continue listing the folder, <code>false</code> to stop
+     */
+    public boolean filesListed(AbstractFile files[]);
+}
@@ -0,0 +1,82 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class is the default {@link ArchiveEntryExtraction} implementation: it iterates through the entries returned by
+ * {@link AbstractArchiveFile#getEntryIterator()}, skipping those that are not accepted by the filter, and reads them
+ * with {@link AbstractArchiveFile#getEntryInputStream(ArchiveEntry, ArchiveEntryIterator)}, passing the iterator
+ * along. Entries are thus returned in the archive's natural order, which for some formats (such as TAR) allows the
+ * archive to be read in a single pass.
+ */
+public class SequentialArchiveEntryExtraction implements ArchiveEntryExtraction {
+
+    /** The archive to extract entries from */
+    protected AbstractArchiveFile archiveFile;
+    /** Selects the entries to extract */
+    protected ArchiveEntryFilter filter;
+    /** Iterates through all the entries of the archive, null until the first entry is requested */
+    protected ArchiveEntryIterator iterator;
+    /** The entry that was last returned */
+    protected ArchiveEntry currentEntry;
+
+    /**
+     * Creates a new <code>SequentialArchiveEntryExtraction</code> that extracts the entries of the given archive that
+     * are accepted by the filter.
+     *
+     * @param archiveFile the archive to extract entries from
+     * @param filter selects the entries to extract
+     */
+    public SequentialArchiveEntryExtraction(AbstractArchiveFile archiveFile, ArchiveEntryFilter filter) {
+        this.archiveFile = archiveFile;
+        this.filter = filter;
+    }
+
+
+    ///////////////////////////////////////////
+    // ArchiveEntryExtraction implementation //
+    ///////////////////////////////////////////
+
+    public ArchiveEntry nextEntry() throws IOException {
+        if(iterator==null)
+            iterator = archiveFile.getEntryIterator();
+
+        while((currentEntry = iterator.nextEntry())!=null) {
+            if(filter.accept(currentEntry))
+                return currentEntry;
+        }
+
+        return null;
+    }
+
+    public InputStream getEntryInputStream() throws IOException, UnsupportedFileOperationException {
+        if(currentEntry==null)
+            throw new IOException("No current entry");
+
+        return archiveFile.getEntryInputStream(currentEntry, iterator);
+    }
+
+    public void close() throws IOException {
+        if(iterator!=null)
+            iterator.close();
+    }
+}
@@ -146,7 +146,7 @@ public abstract class ConnectionHandler {
             isLocked = false;
         }
 
-        ConnectionPool.notifyConnectionHandlerLockReleased();
+        ConnectionPool.connectionHandlerReleased(this);
 
         return true;
     }
@@ -24,267 +24,741 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
+ * Pools {@link ConnectionHandler} instances so that connections to a server can be shared across
+ * {@link com.mucommander.commons.file.AbstractFile} instances.
+ *
+ * <p>Connection handlers are pooled per realm and credentials. The number of connection handlers of a realm that can
+ * be locked at the same time is bounded by a fair semaphore: threads that request a locked connection handler while
+ * the maximum is reached wait for one to be released, in the order of their requests, without preventing other
+ * realms from being accessed. Released connection handlers are kept idle until they are requested again, most
+ * recently used first.</p>
+ *
+ * <p>The maximum number of connections per realm and the minimum and maximum number of idle connections are set per
+ * protocol, see {@link #setMaxConnections(String, int)}, {@link #setMinIdleConnections(String, int)} and
+ * {@link #setMaxIdleConnections(String, int)}. Idle connections are maintained periodically by a single scheduled
+ * executor, which:
+ * <ul>
+ *   <li>removes the connections that are no longer connected (health check)
+ *   <li>closes the connections that have been inactive for longer than their
+ * {@link ConnectionHandler#getCloseOnInactivityPeriod() close on inactivity period}, as long as more than the minimum
+ * number of idle connections remain
+ *   <li>keeps alive the connections whose {@link ConnectionHandler#getKeepAlivePeriod() keep alive period} has
+ * elapsed
+ * </ul>
+ * The executor's thread is released when the pool is empty.</p>
+ *
  * @see com.mucommander.commons.file.connection.ConnectionHandler
  * @author Maxence Bernard
  */
-public class ConnectionPool implements Runnable {
+public class ConnectionPool {
     private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
 
-    /** Singleton instance */
-    private static ConnectionPool instance = new ConnectionPool();
+    /** Default maximum number of simultaneous connections per realm/credentials combo */
+    public final static int DEFAULT_MAX_CONNECTIONS = 4;
+
+    /** Default minimum number of idle connections per realm that are not closed on inactivity */
+    public final static int DEFAULT_MIN_IDLE_CONNECTIONS = 0;
+
+    /** Default maximum number of idle connections per realm */
+    public final static int DEFAULT_MAX_IDLE_CONNECTIONS = DEFAULT_MAX_CONNECTIONS;
+
+    /** Controls how often idle connections are maintained, in milliseconds */
+    private final static int MAINTENANCE_PERIOD = 1000;
 
-    /** List of registered ConnectionHandler */
-    private final static Vector<ConnectionHandler> connectionHandlers = new Vector<ConnectionHandler>();
+    /** Number of threads that maintain connections */
+    private final static int NB_THREADS = 2;
 
-    /** The thread that monitors connections, null if there currently is no registered ConnectionHandler */
-    private static Thread monitorThread;
+    /** Realm/credentials -> pool of connection handlers */
+    private final static Map<RealmKey, RealmPool> realmPools = new ConcurrentHashMap<RealmKey, RealmPool>();
 
-    /** Controls how of often the thread monitor checks connections */
-    private final static int MONITOR_SLEEP_PERIOD = 1000;
+    /** Scheme -> pool settings */
+    private final static Map<String, PoolSettings> settings = new HashMap<String, PoolSettings>();
 
-    /** Maximum number of simultaneous connections per realm/credentials combo */
-    private final static int MAX_CONNECTIONS_PER_REALM = 4;
+    /** Maintains idle connections: keep alives, health checks and idle eviction */
+    private final static ScheduledThreadPoolExecutor executor;
+
+    /** The periodic maintenance task, null if there currently is no registered ConnectionHandler. Guarded by realmPools */
+    private static ScheduledFuture<?> maintenanceTask;
+
+    /** Number of requests for a locked connection handler that had to wait for one to be released */
+    private final static AtomicLong waitCount = new AtomicLong();
+
+    /** Total time spent waiting for a connection handler to be released, in milliseconds */
+    private final static AtomicLong waitTime = new AtomicLong();
+
+    static {
+        executor = new ScheduledThreadPoolExecutor(NB_THREADS, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ConnectionPool-"+threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        // Release idle threads when there are no more connections to maintain
+        executor.allowCoreThreadTimeOut(true);
+    }
 
 
+    /**
+     * Returns a ConnectionHandler for the given location, reusing an idle one if there is one, creating a new one
+     * with the given factory otherwise.
+     *
+     * <p>If <code>acquireLock</code> is <code>true</code>, the returned ConnectionHandler is locked and must be released
+     * with {@link ConnectionHandler#releaseLock()} once it is no longer used. This method waits for a ConnectionHandler
+     * to be released if the maximum number of connections of the realm are currently locked.<br>
+     * If <code>acquireLock</code> is <code>false</code>, this method never waits: the returned ConnectionHandler is an
+     * idle one if there is one, a locked one otherwise, and a new one only if the realm has none. It is not locked and
+     * may be locked by another thread at any time: it should only be used to query the connection's properties.</p>
+     *
+     * @param connectionHandlerFactory the factory used to create a new ConnectionHandler if needed
+     * @param url the location to connect to
+     * @param acquireLock <code>true</code> to lock the returned ConnectionHandler
+     * @return a ConnectionHandler for the given location
+     * @throws InterruptedIOException if the thread was interrupted while waiting for a ConnectionHandler
+     */
     public static ConnectionHandler getConnectionHandler(ConnectionHandlerFactory connectionHandlerFactory, FileURL url, boolean acquireLock) throws InterruptedIOException {
-        FileURL realm = url.getRealm();
+        RealmPool pool = getRealmPool(url.getRealm(), url.getCredentials());
 
-        while(true) {
-            synchronized(connectionHandlers) {      // Ensures that monitor thread is not currently changing the list while we access it
-                int nbConn = connectionHandlers.size();
-                ConnectionHandler connHandler;
-                Credentials urlCredentials = url.getCredentials();
-                int matchingConnHandlers = 0;
-
-                // Try and find an appropriate existing ConnectionHandler
-                for(int i=0; i<nbConn; i++) {
-                    connHandler = getConnectionHandlerAt(i);
-                        // ConnectionHandler must match the realm and credentials and must not be locked
-                        if(connHandler.equals(realm, urlCredentials)) {
-                            synchronized(connHandler) {     // Ensures that lock remains unchanged while we access/update it
-                                if(!connHandler.isLocked()) {
-                                    // Try to acquire lock if a lock was requested
-                                    if(!acquireLock || connHandler.acquireLock()) {
-                                        LOGGER.info("returning ConnectionHandler {}, realm = {}", connHandler, realm);
-
-                                        // Update last activity timestamp to now
-                                        connHandler.updateLastActivityTimestamp();
-
-                                        return connHandler;
-                                    }
-                                }
-                            }
-                        }
-
-                    matchingConnHandlers++;
-                    if(matchingConnHandlers==MAX_CONNECTIONS_PER_REALM) {
-                        LOGGER.info("Maximum number of connection per realm reached, waiting for one to be removed or released...");
-                        try {
-                            // Wait for a ConnectionHandler to be released or removed from the pool
-                            connectionHandlers.wait();      // relinquishes the lock on connectionHandlers
-                            break;
-                        }
-                        catch(InterruptedException e) {
-                            LOGGER.info("Interrupted while waiting on a connection for {}", url, e);
-                            throw new InterruptedIOException();
-                        }
+        // Unlocked connection handlers don't hold a permit
+        if(!acquireLock) {
+            ConnectionHandler connHandler = pool.getConnectionHandler(connectionHandlerFactory, url, false);
+            connHandler.updateLastActivityTimestamp();
+            startMaintenance();
+
+            return connHandler;
+        }
+
+        // Wait for a connection to be available
+        if(!pool.permits.tryAcquireInOrder()) {
+            LOGGER.info("Maximum number of connection per realm reached, waiting for one to be released...");
+
+            long waitStart = System.currentTimeMillis();
+            try {
+                pool.permits.acquire();
+            }
+            catch(InterruptedException e) {
+                LOGGER.info("Interrupted while waiting on a connection for {}", url, e);
+                throw new InterruptedIOException();
+            }
+            finally {
+                waitCount.incrementAndGet();
+                waitTime.addAndGet(System.currentTimeMillis()-waitStart);
+            }
+        }
+
+        ConnectionHandler connHandler = pool.getConnectionHandler(connectionHandlerFactory, url, true);
+
+        // Update last activity timestamp to now
+        connHandler.updateLastActivityTimestamp();
+
+        startMaintenance();
+
+        return connHandler;
+    }
+
+    /**
+     * Returns a locked ConnectionHandler for the given location if one can be obtained without waiting, i.e. if the
+     * maximum number of connections of the realm are not currently locked, <code>null</code> otherwise.
+     * This method is meant for operations that need a second connection while holding one already, and that would
+     * otherwise deadlock if both connections belong to the same realm.
+     *
+     * @param connectionHandlerFactory the factory used to create a new ConnectionHandler if needed
+     * @param url the location to connect to
+     * @return a locked ConnectionHandler for the given location, <code>null</code> if none is available
+     */
+    public static ConnectionHandler tryGetConnectionHandler(ConnectionHandlerFactory connectionHandlerFactory, FileURL url) {
+        RealmPool pool = getRealmPool(url.getRealm(), url.getCredentials());
+        if(!pool.permits.tryAcquireInOrder())
+            return null;
+
+        ConnectionHandler connHandler = pool.getConnectionHandler(connectionHandlerFactory, url, true);
+
+        // Update last activity timestamp to now
+        connHandler.updateLastActivityTimestamp();
+
+        startMaintenance();
+
+        return connHandler;
+    }
+
+    /**
+     * Returns the pool of the given realm and credentials, creating it if necessary. Pools are never removed: they
+     * are lightweight and their semaphore must outlive the connection handlers that hold its permits.
+     */
+    private static RealmPool getRealmPool(FileURL realm, Credentials credentials) {
+        RealmKey key = new RealmKey(realm, credentials);
+        RealmPool pool = realmPools.get(key);
+        if(pool!=null)
+            return pool;
+
+        synchronized(realmPools) {
+            pool = realmPools.get(key);
+            if(pool==null) {
+                pool = new RealmPool(realm.getScheme());
+                realmPools.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Starts the maintenance task if it is not currently running.
+     */
+    private static void startMaintenance() {
+        synchronized(realmPools) {
+            if(maintenanceTask==null) {
+                LOGGER.info("starting connection maintenance");
+                maintenanceTask = executor.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        maintainConnections();
                     }
-                }
+                }, MAINTENANCE_PERIOD, MAINTENANCE_PERIOD, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
 
-                if(matchingConnHandlers==MAX_CONNECTIONS_PER_REALM)
-                    continue;
+    /**
+     * Called by {@link ConnectionHandler#releaseLock()} to notify the <code>ConnectionPool</code> that a
+     * <code>ConnectionHandler</code> has been released: it becomes idle, or is closed if the realm has enough idle
+     * connections, and the next thread waiting for a connection of the realm, if any, is given one.
+     *
+     * @param connHandler the ConnectionHandler that has been released
+     */
+    static void connectionHandlerReleased(ConnectionHandler connHandler) {
+        RealmPool pool = getRealmPool(connHandler.getRealm(), connHandler.getCredentials());
 
-                // No suitable ConnectionHandler found, create a new one
-                connHandler = connectionHandlerFactory.createConnectionHandler(url);
+        ConnectionHandler evicted = pool.release(connHandler);
+        pool.permits.release();
 
-                // Acquire lock if a lock was requested
-                if(acquireLock)
-                    connHandler.acquireLock();
+        if(evicted!=null)
+            closeConnection(evicted);
+    }
 
-                LOGGER.info("adding new ConnectionHandler {}, realm = {}", connHandler, connHandler.getRealm());
+    /**
+     * Maintains the idle connections of all realms, and stops the maintenance task if the pool is empty.
+     */
+    private static void maintainConnections() {
+        long now = System.currentTimeMillis();
+        boolean empty = true;
 
-                // Insert new ConnectionHandler at first position as if it has more chances to be accessed again soon
-                connectionHandlers.insertElementAt(connHandler, 0);
+        for(RealmPool pool : realmPools.values()) {
+            List<ConnectionHandler> toClose = new ArrayList<ConnectionHandler>();
+            List<ConnectionHandler> toKeepAlive = new ArrayList<ConnectionHandler>();
+            if(!pool.maintain(now, toClose, toKeepAlive))
+                empty = false;
 
-                // Start monitor thread if it is not currently running (if there previously was no registered ConnectionHandler)
-                if(monitorThread==null) {
-                    LOGGER.info("starting monitor thread");
-                    monitorThread = new Thread(instance);
-                    monitorThread.start();
-                }
+            for(ConnectionHandler connHandler : toClose)
+                closeConnection(connHandler);
 
-                // Update last activity timestamp to now
-                connHandler.updateLastActivityTimestamp();
+            for(ConnectionHandler connHandler : toKeepAlive)
+                keepAlive(pool, connHandler);
+        }
 
-                return connHandler;
+        if(empty) {
+            synchronized(realmPools) {
+                // Make sure no connection handler has been added in the meantime
+                for(RealmPool pool : realmPools.values()) {
+                    if(!pool.isEmpty())
+                        return;
+                }
+
+                LOGGER.info("No more ConnectionHandler, stopping connection maintenance");
+                if(maintenanceTask!=null) {
+                    maintenanceTask.cancel(false);
+                    maintenanceTask = null;
+                }
             }
         }
     }
 
+    /**
+     * Closes the given ConnectionHandler's connection on the executor, as it could block the calling thread.
+     */
+    private static void closeConnection(final ConnectionHandler connHandler) {
+        executor.execute(new Runnable() {
+            public void run() {
+                // Try to close connection, only if it is connected
+                if(connHandler.isConnected()) {
+                    LOGGER.info("Closing connection held by {}", connHandler);
+                    connHandler.closeConnection();
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps the given idle ConnectionHandler's connection alive on the executor. The ConnectionHandler is locked
+     * while it is being kept alive, so that it is not handed out in the meantime.
+     */
+    private static void keepAlive(final RealmPool pool, final ConnectionHandler connHandler) {
+        executor.execute(new Runnable() {
+            public void run() {
+                LOGGER.info("keeping connection alive: {}", connHandler);
+
+                try {
+                    // Keep alive connection, only if it is connected
+                    if(connHandler.isConnected())
+                        connHandler.keepAlive();
+                }
+                finally {
+                    connHandler.releaseLock();
+                }
+            }
+        });
+    }
+
 
     /**
      * Returns a list of registered ConnectionHandler instances. As the name of this method implies, the returned
      * list is only a snapshot and will not reflect the modifications that are made after this method has been called.
-     * The Vector is a cloned one and thus can be safely modified. 
+     * The Vector is a new one and thus can be safely modified.
      *
      * @return a list of registered ConnectionHandler instances
      */
     public static Vector<ConnectionHandler> getConnectionHandlersSnapshot() {
-        return (Vector<ConnectionHandler>)connectionHandlers.clone();
+        Vector<ConnectionHandler> snapshot = new Vector<ConnectionHandler>();
+        for(RealmPool pool : realmPools.values()) {
+            synchronized(pool) {
+                snapshot.addAll(pool.connHandlers);
+            }
+        }
+        return snapshot;
+    }
+
+
+    ////////////////////
+    // Pool settings  //
+    ////////////////////
+
+    /**
+     * Returns the settings of the given scheme, creating them with default values if necessary.
+     */
+    private static PoolSettings getSettings(String scheme) {
+        synchronized(settings) {
+            PoolSettings poolSettings = settings.get(scheme.toLowerCase());
+            if(poolSettings==null) {
+                poolSettings = new PoolSettings();
+                settings.put(scheme.toLowerCase(), poolSettings);
+            }
+            return poolSettings;
+        }
+    }
+
+    /**
+     * Returns the maximum number of simultaneous connections per realm/credentials combo for the given protocol.
+     * By default, this value is {@link #DEFAULT_MAX_CONNECTIONS}.
+     *
+     * @param scheme the protocol's scheme
+     * @return the maximum number of simultaneous connections per realm for the given protocol
+     */
+    public static int getMaxConnections(String scheme) {
+        synchronized(settings) {
+            return getSettings(scheme).maxConnections;
+        }
+    }
+
+    /**
+     * Sets the maximum number of simultaneous connections per realm/credentials combo for the given protocol.
+     * The new maximum applies immediately to the realms that are already in use: if it is lower than the number of
+     * connections currently locked, new requests wait until enough connections have been released.
+     *
+     * @param scheme the protocol's scheme
+     * @param maxConnections the maximum number of simultaneous connections per realm, at least 1
+     */
+    public static void setMaxConnections(String scheme, int maxConnections) {
+        if(maxConnections<1)
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+
+        // Realm pools read their initial size from the settings while holding the realmPools lock
+        synchronized(realmPools) {
+            int delta;
+            synchronized(settings) {
+                PoolSettings poolSettings = getSettings(scheme);
+                delta = maxConnections-poolSettings.maxConnections;
+                poolSettings.maxConnections = maxConnections;
+            }
+
+            for(RealmPool pool : realmPools.values()) {
+                if(pool.scheme.equalsIgnoreCase(scheme))
+                    pool.permits.resize(delta);
+            }
+        }
     }
-    
+
     /**
-     * Returns the ConnectionHandler instance located at the given position in the list.
+     * Returns the minimum number of idle connections per realm/credentials combo that are kept open for the given
+     * protocol, even if they have been inactive for longer than their close on inactivity period.
+     * By default, this value is {@link #DEFAULT_MIN_IDLE_CONNECTIONS}.
+     *
+     * @param scheme the protocol's scheme
+     * @return the minimum number of idle connections per realm for the given protocol
      */
-    private static ConnectionHandler getConnectionHandlerAt(int i) {
-        return connectionHandlers.elementAt(i);
+    public static int getMinIdleConnections(String scheme) {
+        synchronized(settings) {
+            return getSettings(scheme).minIdleConnections;
+        }
     }
 
     /**
-     * Called by {@link ConnectionHandler#releaseLock()} to notify the <code>ConnectionHandler</code> that a
-     * <code>ConnectionHandler</code> has been released.
+     * Sets the minimum number of idle connections per realm/credentials combo that are kept open for the given
+     * protocol, even if they have been inactive for longer than their close on inactivity period.
+     *
+     * @param scheme the protocol's scheme
+     * @param minIdleConnections the minimum number of idle connections per realm
      */
-    static void notifyConnectionHandlerLockReleased() {
-        synchronized(connectionHandlers) {
-            // Notify any thread waiting for a ConnectionHandler to be released
-            connectionHandlers.notify();
+    public static void setMinIdleConnections(String scheme, int minIdleConnections) {
+        synchronized(settings) {
+            getSettings(scheme).minIdleConnections = Math.max(0, minIdleConnections);
         }
     }
 
     /**
-     * Monitors connections and periodically:
-     * <ul>
-     *   <li>keeps connections alive
-     *   <li>closes and removes connections that have expired
-     * </ul>
+     * Returns the maximum number of idle connections per realm/credentials combo for the given protocol. Connections
+     * that are released while the maximum is reached are closed.
+     * By default, this value is {@link #DEFAULT_MAX_IDLE_CONNECTIONS}.
+     *
+     * @param scheme the protocol's scheme
+     * @return the maximum number of idle connections per realm for the given protocol
      */
-    public void run() {
+    public static int getMaxIdleConnections(String scheme) {
+        synchronized(settings) {
+            return getSettings(scheme).maxIdleConnections;
+        }
+    }
 
-        while(monitorThread!=null) {        // Thread will be interrupted by CloseConnectionThread if there are no more ConnectionHandler
-            long now = System.currentTimeMillis();
+    /**
+     * Sets the maximum number of idle connections per realm/credentials combo for the given protocol. Connections
+     * that are released while the maximum is reached are closed.
+     *
+     * @param scheme the protocol's scheme
+     * @param maxIdleConnections the maximum number of idle connections per realm
+     */
+    public static void setMaxIdleConnections(String scheme, int maxIdleConnections) {
+        synchronized(settings) {
+            getSettings(scheme).maxIdleConnections = Math.max(0, maxIdleConnections);
+        }
+    }
 
-            synchronized(connectionHandlers) {      // Ensures that getConnectionHandler is not currently changing the list while we access it
-                for(int i=0; i<connectionHandlers.size(); i++) {
-                    ConnectionHandler connHandler = getConnectionHandlerAt(i);
 
-                    synchronized(connHandler) {     // Ensures that no one is trying to acquire a lock on the connection while we access it 
-                        if(!connHandler.isLocked()) {   // Do not touch ConnectionHandler if it is currently locked
+    /////////////
+    // Metrics //
+    /////////////
 
-                            // Remove ConnectionHandler instance from the list of registered ConnectionHandler
-                            // if it is not connected
-                            if(!connHandler.isConnected()) {
-                                LOGGER.info("Removing unconnected ConnectionHandler {}", connHandler);
+    /**
+     * Returns the number of connection handlers that are currently locked, in all realms.
+     *
+     * @return the number of connection handlers that are currently locked
+     */
+    public static int getActiveConnectionCount() {
+        int count = 0;
+        for(RealmPool pool : realmPools.values()) {
+            synchronized(pool) {
+                count += pool.connHandlers.size()-pool.idleConnHandlers.size();
+            }
+        }
+        return count;
+    }
 
-                                connectionHandlers.removeElementAt(i);
-                                // Notify any thread waiting for a ConnectionHandler to be released
-                                connectionHandlers.notify();
+    /**
+     * Returns the number of connection handlers that are currently idle, in all realms.
+     *
+     * @return the number of connection handlers that are currently idle
+     */
+    public static int getIdleConnectionCount() {
+        int count = 0;
+        for(RealmPool pool : realmPools.values()) {
+            synchronized(pool) {
+                count += pool.idleConnHandlers.size();
+            }
+        }
+        return count;
+    }
 
-                                continue;       // Skips close on inactivity and keep alive checks
-                            }
+    /**
+     * Returns the number of requests for a connection handler that had to wait for one to be released, because the
+     * maximum number of connections of the realm was reached.
+     *
+     * @return the number of requests that had to wait for a connection handler
+     */
+    public static long getWaitCount() {
+        return waitCount.get();
+    }
 
-                            long lastUsed = connHandler.getLastActivityTimestamp();
+    /**
+     * Returns the total time spent by requests waiting for a connection handler to be released, in milliseconds.
+     *
+     * @return the total time spent waiting for a connection handler, in milliseconds
+     */
+    public static long getTotalWaitTime() {
+        return waitTime.get();
+    }
 
-                            // If time-to-live has been reached without any connection activity, remove ConnectionHandler
-                            // from the list of registered ConnectionHandler and close the connection in a separate thread
-                            long closePeriod = connHandler.getCloseOnInactivityPeriod();
-                            if(closePeriod!=-1 && now-lastUsed>closePeriod*1000) {
-                                LOGGER.info("Removing timed-out ConnectionHandler {}",connHandler);
 
-                                connectionHandlers.removeElementAt(i);
-                                // Notify any thread waiting for a ConnectionHandler to be released
-                                connectionHandlers.notify();
+    /**
+     * The connection handlers of a realm/credentials combo.
+     */
+    private static class RealmPool {
 
-                                // Close connection in a separate thread as it could lock this thread
-                                new CloseConnectionThread(connHandler).start();
+        /** Scheme of the realm */
+        private final String scheme;
 
-                                continue;       // Skips keep alive check
-                            }
+        /** Bounds the number of locked connection handlers */
+        private final ResizableSemaphore permits;
 
-                            // If keep-alive period has been reached without any connection activity or a keep alive,
-                            // keep connection alive in a separate thread
-                            long keepAlivePeriod = connHandler.getKeepAlivePeriod(); 
-                            if(keepAlivePeriod!=-1 && now-Math.max(lastUsed, connHandler.getLastKeepAliveTimestamp())>keepAlivePeriod*1000) {
-                                // Update last keep alive timestamp to now
-                                connHandler.updateLastKeepAliveTimestamp();
+        /** All the connection handlers of the realm, compared by identity, guarded by this */
+        private final Set<ConnectionHandler> connHandlers = Collections.newSetFromMap(new IdentityHashMap<ConnectionHandler, Boolean>());
 
-                                // Keep connection alive in a separate thread as it could lock this thread
-                                new KeepAliveConnectionThread(connHandler).start();
-                            }
-                        }
-                    }
-                }
+        /** The connection handlers that are not locked, most recently used first, guarded by this */
+        private final LinkedList<ConnectionHandler> idleConnHandlers = new LinkedList<ConnectionHandler>();
 
-                // Stop monitor thread if there are no more ConnectionHandler
-                if(connectionHandlers.size()==0) {
-                    LOGGER.info("No more ConnectionHandler, stopping monitor thread");
-                    monitorThread = null;
+        private RealmPool(String scheme) {
+            this.scheme = scheme;
+            this.permits = new ResizableSemaphore(getMaxConnections(scheme));
+        }
+
+        /**
+         * Returns an idle connection handler, or a new one if there is none. The calling thread must hold a permit
+         * to lock the connection handler. An unlocked connection handler is looked up among the locked ones if none
+         * is idle, so that its properties are those learned by the realm's connections.
+         */
+        private synchronized ConnectionHandler getConnectionHandler(ConnectionHandlerFactory connectionHandlerFactory, FileURL url, boolean acquireLock) {
+            // Reuse the most recently used idle ConnectionHandler. It may have been disconnected in the meantime,
+            // in which case the caller reconnects it.
+            if(!idleConnHandlers.isEmpty()) {
+                ConnectionHandler connHandler;
+                if(acquireLock) {
+                    connHandler = idleConnHandlers.removeFirst();
+                    connHandler.acquireLock();
                 }
+                else {
+                    connHandler = idleConnHandlers.getFirst();
+                }
+
+                LOGGER.info("returning ConnectionHandler {}, realm = {}", connHandler, connHandler.getRealm());
+                return connHandler;
             }
 
-            // Sleep for MONITOR_SLEEP_PERIOD milliseconds, minus the processing time of this loop
-            try {
-                Thread.sleep(Math.max(0, MONITOR_SLEEP_PERIOD-(System.currentTimeMillis()-now)));
+            if(!acquireLock && !connHandlers.isEmpty()) {
+                ConnectionHandler connHandler = connHandlers.iterator().next();
+                LOGGER.info("returning locked ConnectionHandler {}, realm = {}", connHandler, connHandler.getRealm());
+                return connHandler;
             }
-            catch(InterruptedException e) {
-                // Will loop again
+
+            // No suitable ConnectionHandler found, create a new one
+            ConnectionHandler connHandler = connectionHandlerFactory.createConnectionHandler(url);
+            LOGGER.info("adding new ConnectionHandler {}, realm = {}", connHandler, connHandler.getRealm());
+
+            connHandlers.add(connHandler);
+            if(acquireLock)
+                connHandler.acquireLock();
+            else
+                idleConnHandlers.addFirst(connHandler);
+
+            return connHandler;
+        }
+
+        /**
+         * Makes the given connection handler idle, and returns the least recently used idle connection handler if
+         * the realm has too many idle ones, <code>null</code> otherwise. The returned connection handler has been
+         * removed from the pool and must be closed.
+         */
+        private synchronized ConnectionHandler release(ConnectionHandler connHandler) {
+            // The connection handler may have been removed from the pool in the meantime
+            if(!connHandlers.contains(connHandler) || containsIdle(connHandler))
+                return null;
+
+            idleConnHandlers.addFirst(connHandler);
+
+            if(idleConnHandlers.size()>getMaxIdleConnections(scheme)) {
+                ConnectionHandler evicted = idleConnHandlers.removeLast();
+                connHandlers.remove(evicted);
+                LOGGER.info("Removing surplus idle ConnectionHandler {}", evicted);
+                return evicted;
             }
+
+            return null;
         }
-    }
 
+        /**
+         * Removes the idle connection handlers that are no longer connected or that have been inactive for too long,
+         * and locks those that need to be kept alive.
+         *
+         * @param now the current time
+         * @param toClose receives the removed connection handlers that need to be closed
+         * @param toKeepAlive receives the connection handlers that need to be kept alive, locked and holding a permit
+         * @return <code>true</code> if the realm has no more connection handlers
+         */
+        private synchronized boolean maintain(long now, List<ConnectionHandler> toClose, List<ConnectionHandler> toKeepAlive) {
+            int minIdle = getMinIdleConnections(scheme);
+
+            // Iterate from the least recently used connection handler
+            Iterator<ConnectionHandler> iterator = idleConnHandlers.descendingIterator();
+            while(iterator.hasNext()) {
+                ConnectionHandler connHandler = iterator.next();
+
+                // Remove ConnectionHandler instance from the list of registered ConnectionHandler
+                // if it is not connected
+                if(!connHandler.isConnected()) {
+                    LOGGER.info("Removing unconnected ConnectionHandler {}", connHandler);
+                    iterator.remove();
+                    connHandlers.remove(connHandler);
+                    continue;       // Skips close on inactivity and keep alive checks
+                }
 
-    /**
-     * Closes a specified ConnectionHandler's connection in a separate thread and removes the ConnectionHandler from
-     * the list of registered ConnectionHandler instances.
-     */
-    private static class CloseConnectionThread extends Thread {
+                long lastUsed = connHandler.getLastActivityTimestamp();
+
+                // If time-to-live has been reached without any connection activity, remove ConnectionHandler
+                // from the list of registered ConnectionHandler and close the connection
+                long closePeriod = connHandler.getCloseOnInactivityPeriod();
+                if(closePeriod!=-1 && now-lastUsed>closePeriod*1000 && idleConnHandlers.size()>minIdle) {
+                    LOGGER.info("Removing timed-out ConnectionHandler {}",connHandler);
+                    iterator.remove();
+                    connHandlers.remove(connHandler);
+                    toClose.add(connHandler);
+                    continue;       // Skips keep alive check
+                }
+
+                // If keep-alive period has been reached without any connection activity or a keep alive,
+                // keep connection alive. The connection is locked meanwhile, provided a permit is available:
+                // if not, the realm is busy and the keep alive will be performed later if still needed.
+                long keepAlivePeriod = connHandler.getKeepAlivePeriod();
+                if(keepAlivePeriod!=-1 && now-Math.max(lastUsed, connHandler.getLastKeepAliveTimestamp())>keepAlivePeriod*1000
+                        && permits.tryAcquireInOrder()) {
+                    // Update last keep alive timestamp to now
+                    connHandler.updateLastKeepAliveTimestamp();
 
-        private ConnectionHandler connHandler;
+                    iterator.remove();
+                    connHandler.acquireLock();
+                    toKeepAlive.add(connHandler);
+                }
+            }
 
-        private CloseConnectionThread(ConnectionHandler connHandler) {
-            this.connHandler = connHandler;
+            return connHandlers.isEmpty();
         }
 
-        @Override
-        public void run() {
-            // Try to close connection, only if it is connected
-            if(connHandler.isConnected()) {
-                LOGGER.info("Closing connection held by {}", connHandler);
-                connHandler.closeConnection();
+        /**
+         * Returns <code>true</code> if the given connection handler is idle. Connection handlers are compared by
+         * identity, as {@link ConnectionHandler#equals(Object)} considers all the handlers of a realm equal.
+         */
+        private boolean containsIdle(ConnectionHandler connHandler) {
+            for(ConnectionHandler idleConnHandler : idleConnHandlers) {
+                if(idleConnHandler==connHandler)
+                    return true;
             }
+            return false;
+        }
+
+        private synchronized boolean isEmpty() {
+            return connHandlers.isEmpty();
         }
     }
 
 
     /**
-     * Keeps alive a specified ConnectionHandler's connection in a separate thread. If the connection is not currently
-     * active, {@link com.mucommander.commons.file.connection.ConnectionHandler#keepAlive()} will not be called.
+     * Identifies a realm/credentials combo. Realms are compared as in
+     * {@link ConnectionHandler#equals(FileURL, Credentials)}.
      */
-    private static class KeepAliveConnectionThread extends Thread {
+    private static class RealmKey {
+        private final FileURL realm;
+        private final Credentials credentials;
 
-        private final ConnectionHandler connHandler;
+        private RealmKey(FileURL realm, Credentials credentials) {
+            this.realm = realm;
+            this.credentials = credentials;
+        }
 
-        private KeepAliveConnectionThread(ConnectionHandler connHandler) {
-            this.connHandler = connHandler;
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof RealmKey))
+                return false;
+
+            RealmKey key = (RealmKey)o;
+            if(!realm.equals(key.realm, false, true))
+                return false;
+
+            // Note: Credentials.equals() considers null as equal to empty Credentials (see Credentials#isEmpty())
+            return (credentials==null && key.credentials==null)
+                || (credentials!=null && credentials.equals(key.credentials, true))
+                || (key.credentials!=null && key.credentials.equals(credentials, true));
         }
 
         @Override
-        public void run() {
-            LOGGER.info("keeping connection alive: {}", connHandler);
+        public int hashCode() {
+            // Consistent with equals: realms that are equal have the same scheme and host, credentials may be
+            // equal while having different hash codes
+            String host = realm.getHost();
+            return 31*realm.getScheme().toLowerCase().hashCode() + (host==null?0:host.toLowerCase().hashCode());
+        }
+    }
+
+
+    /**
+     * Pool settings of a protocol, guarded by the settings map.
+     */
+    private static class PoolSettings {
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private int minIdleConnections = DEFAULT_MIN_IDLE_CONNECTIONS;
+        private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    }
 
-            synchronized(connHandler) {
-                // Ensures that lock was not grabbed in the meantime
-                if(connHandler.isLocked())
-                    return;
 
-                // Keep alive connection, only if it is connected
-                if(connHandler.isConnected())
-                    connHandler.keepAlive();
+    /**
+     * A fair semaphore whose number of permits can be changed after it has been created.
+     */
+    private static class ResizableSemaphore extends Semaphore {
+
+        private ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        /**
+         * Acquires a permit only if one is available and no thread is waiting for one. Unlike {@link #tryAcquire()},
+         * this does not barge ahead of waiting threads.
+         */
+        private boolean tryAcquireInOrder() {
+            try {
+                return tryAcquire(0, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e) {
+                // Let the caller find out
+                Thread.currentThread().interrupt();
+                return false;
             }
         }
-    }
 
+        /**
+         * Adds the given number of permits, or removes them if negative. Removed permits that are currently held
+         * are not returned to the semaphore when released.
+         */
+        private void resize(int delta) {
+            if(delta>0)
+                release(delta);
+            else if(delta<0)
+                reducePermits(-delta);
+        }
+    }
 }
@@ -20,6 +20,7 @@
 package com.mucommander.commons.file.impl;
 
 import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileListListener;
 import com.mucommander.commons.file.FilePermissions;
 import com.mucommander.commons.file.FileProtocols;
 import com.mucommander.commons.file.UnsupportedFileOperationException;
@@ -512,4 +513,19 @@ public class CachedFile extends ProxyFile {
 
         return files;
     }
+
+    @Override
+    public void ls(FileFilter filter, final FileListListener listener) throws IOException, UnsupportedFileOperationException {
+        if(!recurseInstances) {
+            file.ls(filter, listener);
+            return;
+        }
+
+        // Don't cache ls() result but create a CachedFile instance around each of the files
+        file.ls(filter, new FileListListener() {
+            public boolean filesListed(AbstractFile files[]) {
+                return listener.filesListed(createCachedFiles(files));
+            }
+        });
+    }
 }
@@ -34,6 +34,7 @@ import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * ProxyFile is an {@link AbstractFile} that acts as a proxy between the class that extends it
@@ -340,6 +341,11 @@ public abstract class ProxyFile extends AbstractFile {
         file.copyStream(in, append, length);
     }
 
+    @Override
+    public String[] calculateBlockChecksums(String algorithm, int blockSize) throws IOException, NoSuchAlgorithmException, UnsupportedFileOperationException {
+        return file.calculateBlockChecksums(algorithm, blockSize);
+    }
+
     @Override
     public AbstractFile[] ls(FileFilter filter) throws IOException, UnsupportedFileOperationException {
         return file.ls(filter);
@@ -350,6 +356,11 @@ public abstract class ProxyFile extends AbstractFile {
         return file.ls(filter);
     }
 
+    @Override
+    public void ls(FileFilter filter, FileListListener listener) throws IOException, UnsupportedFileOperationException {
+        file.ls(filter, listener);
+    }
+
     @Override
     public void mkfile() throws IOException, UnsupportedFileOperationException {
         file.mkfile();
@@ -360,6 +371,16 @@ public abstract class ProxyFile extends AbstractFile {
         file.deleteRecursively();
     }
 
+    @Override
+    public AbstractFile[] deleteChildren(AbstractFile children[]) {
+        return file.deleteChildren(children);
+    }
+
+    @Override
+    public void prefetchTree() {
+        file.prefetchTree();
+    }
+
     public boolean equals(Object f) {
         return file.equals(f);
     }
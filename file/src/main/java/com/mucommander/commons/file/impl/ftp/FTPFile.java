@@ -24,21 +24,26 @@ import com.mucommander.commons.file.*;
 import com.mucommander.commons.file.connection.ConnectionHandler;
 import com.mucommander.commons.file.connection.ConnectionHandlerFactory;
 import com.mucommander.commons.file.connection.ConnectionPool;
+import com.mucommander.commons.file.filter.FileFilter;
 import com.mucommander.commons.io.ByteUtils;
 import com.mucommander.commons.io.FilteredOutputStream;
 import com.mucommander.commons.io.RandomAccessInputStream;
 import com.mucommander.commons.io.RandomAccessOutputStream;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPConnectionClosedException;
+import org.apache.commons.net.ftp.FTPListParseEngine;
 import org.apache.commons.net.ftp.FTPReply;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 
 /**
@@ -152,10 +157,6 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
 
 
     private org.apache.commons.net.ftp.FTPFile getFTPFile(FileURL fileURL) throws IOException {
-        // Todo: this method is very ineffective as it lists the parent directory to retrieve the information about the
-        // requested file to workaround the fact that FTPClient#listFiles follows directories.
-        // => Use the MLST command if supported by the server (use FEAT command to find out if it is supported).
-        // See http://tools.ietf.org/html/draft-ietf-ftpext-mlst-16
         FileURL parentURL = fileURL.getParent();
         LOGGER.trace("fileURL={} parent={}", fileURL, parentURL);
 
@@ -170,8 +171,24 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
                 // Makes sure the connection is started, if not starts it
                 connHandler.checkConnection();
 
+                // Retrieve the file's information with a single MLST command if the server supports it.
+                // See http://tools.ietf.org/html/rfc3659
+                if(connHandler.mlstSupported) {
+                    org.apache.commons.net.ftp.FTPFile file = getFTPFileMLST(connHandler, fileURL.getPath());
+                    if(file!=null) {
+                        // The name of an MLST entry is the path that was requested
+                        file.setName(fileURL.getFilename());
+                        return file;
+                    }
+
+                    // File doesn't exist
+                    if(connHandler.ftpClient.getReplyCode()==FTPReply.FILE_UNAVAILABLE)
+                        return null;
+                }
+
                 // List files contained by this file's parent in order to retrieve the FTPFile instance corresponding
-                // to this file
+                // to this file. This is very ineffective but needed to work around the fact that FTPClient#listFiles
+                // follows directories.
                 files = listFiles(connHandler, parentURL.getPath());
             }
             finally {
@@ -196,6 +213,27 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
         }
     }
 
+    /**
+     * Retrieves the information of the given path on the server using the MLST command.
+     *
+     * @param connHandler the connection handler to use for communicating with the server
+     * @param absPath absolute path to the file
+     * @return the file's information, <code>null</code> if the server replied with an error
+     * @throws IOException if an error occurred while communicating with the server
+     */
+    private static org.apache.commons.net.ftp.FTPFile getFTPFileMLST(FTPConnectionHandler connHandler, String absPath) throws IOException {
+        try {
+            return connHandler.ftpClient.mlistFile(absPath);
+        }
+        catch(IOException e) {
+            // Checks if the IOException corresponds to a socket error and in that case, closes the connection
+            connHandler.checkSocketException(e);
+
+            // Throw back the IOException
+            throw e;
+        }
+    }
+
 
     private org.apache.commons.net.ftp.FTPFile createFTPFile(String name, boolean isDirectory) {
         org.apache.commons.net.ftp.FTPFile file = new org.apache.commons.net.ftp.FTPFile();
@@ -210,7 +248,8 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
     /**
      * Lists and returns the contents of the given path on the server using the given connection handler.
      * The directory contents is listed by issuing a CWD followed by a LIST so after this method is called, the current
-     * working directory is left to the specified path.
+     * working directory is left to the specified path. If the server supports it, MLSD is issued instead of LIST: its
+     * output has a standard format that carries exact sizes and UTC dates.
      *
      * @param connHandler the connection handler to use for communicating with the server
      * @param absPath absolute path to the directory to list
@@ -241,7 +280,7 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
             // http://issues.apache.org/jira/browse/NET-10
 
             connHandler.ftpClient.changeWorkingDirectory(absPath);
-            files = connHandler.ftpClient.listFiles();
+            files = connHandler.mlstSupported?connHandler.ftpClient.mlistDir():connHandler.ftpClient.listFiles();
 
             // Throw an IOException if server replied with an error
             connHandler.checkServerReply();
@@ -265,6 +304,70 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
         }
     }
 
+    /**
+     * Lists the contents of the given path on the server using the given connection handler, like
+     * {@link #listFiles(FTPConnectionHandler, String)} does, but returns a parse engine that creates the directory's
+     * entries as they are requested instead of creating them all at once.
+     *
+     * @param connHandler the connection handler to use for communicating with the server
+     * @param absPath absolute path to the directory to list
+     * @return a parse engine that returns the directory's contents. The returned entries may contain null individual
+     * entries as FTPListParseEngine#getNext's Javadoc mentions.
+     * @throws IOException if an error occurred while communicating with the server
+     * @throws AuthException if the user is not allowed to access this directory
+     */
+    private static FTPListParseEngine initiateListParsing(FTPConnectionHandler connHandler, String absPath) throws IOException, AuthException {
+        try {
+            // Change the current working directory and then list it, for the same reasons as in #listFiles
+            connHandler.ftpClient.changeWorkingDirectory(absPath);
+            FTPListParseEngine engine = connHandler.mlstSupported
+                    ?connHandler.ftpClient.initiateMListParsing()
+                    :connHandler.ftpClient.initiateListParsing();
+
+            // Throw an IOException if server replied with an error
+            connHandler.checkServerReply();
+
+            return engine;
+        }
+        // This exception is not an IOException and needs to be caught and thrown back as an IOException
+        catch(org.apache.commons.net.ftp.parser.ParserInitializationException e) {
+            LOGGER.info("ParserInitializationException caught", e);
+            throw new IOException();
+        }
+        catch(IOException e) {
+            // Checks if the IOException corresponds to a socket error and in that case, closes the connection
+            connHandler.checkSocketException(e);
+
+            // Throw back the IOException
+            throw e;
+        }
+    }
+
+    /**
+     * Creates and returns the child of this directory that corresponds to the given entry, <code>null</code> if the
+     * entry is <code>null</code> or is one of the '.' and '..' entries.
+     *
+     * @param file an entry of this directory, as returned by the server
+     * @param parentPath the path of this directory, ending with a separator
+     * @return the child of this directory that corresponds to the given entry
+     * @throws IOException if the child could not be created
+     */
+    private AbstractFile createChild(org.apache.commons.net.ftp.FTPFile file, String parentPath) throws IOException {
+        if(file==null)
+            return null;
+
+        // Discard '.' and '..' files
+        String childName = file.getName();
+        if(childName.equals(".") || childName.equals(".."))
+            return null;
+
+        // Note: properties and credentials are cloned for every children's url
+        FileURL childURL = (FileURL)fileURL.clone();
+        childURL.setPath(parentPath+childName);
+
+        return FileFactory.getFile(childURL, this, file);
+    }
+
 
     /////////////////////////////////////////////
     // ConnectionHandlerFactory implementation //
@@ -559,8 +662,6 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
 
         AbstractFile children[] = new AbstractFile[files.length];
         AbstractFile child;
-        FileURL childURL;
-        String childName;
         int nbFiles = files.length;
         int fileCount = 0;
         String parentPath = fileURL.getPath();
@@ -568,23 +669,9 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
             parentPath += SEPARATOR;
 
         for(int i=0; i<nbFiles; i++) {
-            if(files[i]==null)
-                continue;
-
-            childName = files[i].getName();
-            if(childName.equals(".") || childName.equals(".."))
-                continue;
-
-            // Note: properties and credentials are cloned for every children's url
-            childURL = (FileURL)fileURL.clone();
-            childURL.setPath(parentPath+childName);
-
-            // Discard '.' and '..' files
-            if(childName.equals(".") || childName.equals(".."))
-                continue;
-
-            child = FileFactory.getFile(childURL, this, files[i]);
-            children[fileCount++] = child;
+            child = createChild(files[i], parentPath);
+            if(child!=null)
+                children[fileCount++] = child;
         }
 
         // Create new array of the exact file count
@@ -597,6 +684,45 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
         return children;
     }
 
+    /**
+     * Implementation notes: the directory's entries are retrieved from the server at once, but the corresponding
+     * files are only created one batch at a time, as the listener consumes them. The connection is released before the
+     * first batch is passed to the listener.
+     */
+    @Override
+    public void ls(FileFilter filter, FileListListener listener) throws IOException {
+        // Retrieve a ConnectionHandler and lock it
+        FTPConnectionHandler connHandler = (FTPConnectionHandler)ConnectionPool.getConnectionHandler(this, fileURL, true);
+        FTPListParseEngine engine;
+        try {
+            // Makes sure the connection is started, if not starts it
+            connHandler.checkConnection();
+
+            engine = initiateListParsing(connHandler, absPath);
+        }
+        finally {
+            // Release the lock on the ConnectionHandler
+            connHandler.releaseLock();
+        }
+
+        String parentPath = fileURL.getPath();
+        if(!parentPath.endsWith(SEPARATOR))
+            parentPath += SEPARATOR;
+
+        List<AbstractFile> batch = new ArrayList<AbstractFile>(LS_BATCH_SIZE);
+        AbstractFile child;
+        while(engine.hasNext()) {
+            for(org.apache.commons.net.ftp.FTPFile file : engine.getNext(LS_BATCH_SIZE)) {
+                child = createChild(file, parentPath);
+                if(child!=null)
+                    batch.add(child);
+            }
+
+            if(!fireFilesListed(batch, filter, listener))
+                return;
+        }
+    }
+
 
     @Override
     public void mkdir() throws IOException {
@@ -719,14 +845,87 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
     }
 
     /**
-     * Implementation notes: always throws an {@link UnsupportedFileOperationException}.
-     *
-     * @throws UnsupportedFileOperationException always
+     * Implementation notes: server-to-server copy will work if this file is a regular file and the destination file
+     * also uses the 'FTP' scheme, on the same host or on another one. The file is transferred directly between both
+     * servers (FXP): the destination server is put in passive mode and the source server connects to it. Both servers
+     * must allow it, many servers refuse to connect to or accept connections from a third-party address.
      */
     @Override
-    @UnsupportedFileOperation
-    public void copyRemotelyTo(AbstractFile destFile) throws UnsupportedFileOperationException {
-        throw new UnsupportedFileOperationException(FileOperation.COPY_REMOTELY);
+    public void copyRemotelyTo(AbstractFile destFile) throws IOException {
+        // Throw an exception if the file cannot be copied to the specified destination
+        checkCopyRemotelyPrerequisites(destFile, false, true);
+
+        if(isDirectory())
+            throw new IOException();
+
+        FTPFile destFTPFile = destFile.getAncestor(FTPFile.class);
+        FTPConnectionHandler connHandler = null;
+        FTPConnectionHandler destConnHandler = null;
+        boolean transferStarted = false;
+        try {
+            // Retrieve a ConnectionHandler and lock it
+            connHandler = (FTPConnectionHandler)ConnectionPool.getConnectionHandler(this, fileURL, true);
+            // Makes sure the connection is started, if not starts it
+            connHandler.checkConnection();
+
+            // Don't wait for a destination connection while holding the source one: both may belong to the same realm
+            destConnHandler = (FTPConnectionHandler)ConnectionPool.tryGetConnectionHandler(destFTPFile, destFTPFile.fileURL);
+            if(destConnHandler==null)
+                throw new IOException("No connection available to "+destFTPFile.fileURL.getHost());
+            destConnHandler.checkConnection();
+
+            FTPClient sourceClient = connHandler.ftpClient;
+            FTPClient destClient = destConnHandler.ftpClient;
+
+            // Have the destination server listen for a data connection and the source server connect to it
+            if(!destClient.enterRemotePassiveMode())
+                throw new IOException(destClient.getReplyString());
+
+            transferStarted = true;
+
+            if(!sourceClient.enterRemoteActiveMode(InetAddress.getByName(destClient.getPassiveHost()), destClient.getPassivePort())
+            || !destClient.remoteStore(destFTPFile.absPath)
+            || !sourceClient.remoteRetrieve(absPath))
+                throw new IOException(sourceClient.getReplyString());
+
+            // Wait for both servers to complete the transfer
+            boolean sourceCompleted = sourceClient.completePendingCommand();
+            if(!destClient.completePendingCommand() || !sourceCompleted)
+                throw new IOException(destClient.getReplyString());
+
+            transferStarted = false;
+
+            connHandler.restoreDataConnectionMode();
+            destConnHandler.restoreDataConnectionMode();
+
+            // Update destination file attributes locally
+            destFTPFile.file.setSize(getSize());
+            destFTPFile.fileExists = true;
+        }
+        catch(IOException e) {
+            // Checks if the IOException corresponds to a socket error and in that case, closes the connection
+            if(connHandler!=null)
+                connHandler.checkSocketException(e);
+            if(destConnHandler!=null)
+                destConnHandler.checkSocketException(e);
+
+            throw e;
+        }
+        finally {
+            // Close connections left in the middle of a server-to-server transfer, they can't be reused reliably
+            if(transferStarted) {
+                if(connHandler!=null)
+                    connHandler.closeConnection();
+                if(destConnHandler!=null)
+                    destConnHandler.closeConnection();
+            }
+
+            // Release the locks on the ConnectionHandlers
+            if(connHandler!=null)
+                connHandler.releaseLock();
+            if(destConnHandler!=null)
+                destConnHandler.releaseLock();
+        }
     }
     
     /**
@@ -1126,6 +1325,9 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
         /** False if SITE CHMOD command is not supported by the remote server (once tried and failed) */
         private boolean chmodCommandSupported = true;
 
+        /** True if the remote server supports the MLST and MLSD commands, as advertised by the FEAT command */
+        private boolean mlstSupported;
+
         /** Controls how ofter should keepAlive() be called by ConnectionPool */
         private final static long KEEP_ALIVE_PERIOD = 60;
 
@@ -1211,6 +1413,18 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
         }
 
 
+        /**
+         * Restores the data connection mode (passive or active) of the client, after a server-to-server transfer
+         * has left it in remote mode.
+         */
+        private void restoreDataConnectionMode() {
+            if(passiveMode)
+                ftpClient.enterLocalPassiveMode();
+            else
+                ftpClient.enterLocalActiveMode();
+        }
+
+
         /**
          * Checks if the given IOException corresponds to a low-level socket exception, and if that is the case,
          * closes the connection so that {@link #isConnected()} returns false.
@@ -1247,6 +1461,12 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
 	                if(port!=-1)
 	                    ftpClient.setDefaultPort(port);
 	
+	                // Use larger socket buffers for data connections if configured to do so
+	                if(FTPProtocolProvider.getReceiveBufferSize()>0)
+	                    ftpClient.setReceiveBufferSize(FTPProtocolProvider.getReceiveBufferSize());
+	                if(FTPProtocolProvider.getSendBufferSize()>0)
+	                    ftpClient.setSendBufferSize(FTPProtocolProvider.getSendBufferSize());
+
 	                // Sets the control encoding
 	                // - most modern FTP servers seem to default to UTF-8, but not all of them do.
 	                // - commons-ftp defaults to ISO-8859-1 which is not good
@@ -1294,6 +1514,11 @@ public class FTPFile extends ProtocolFile implements ConnectionHandlerFactory {
 	                // FTP server: some servers will choose to show them, some will not. This behavior is usually a
 	                // configuration setting of the FTP server.
 	                ftpClient.setListHiddenFiles(FTPProtocolProvider.getForceHiddenFilesListing());
+
+	                // Use MLST/MLSD instead of LIST if the server advertises them: their output is machine-readable,
+	                // unlike LIST's which has to be guessed and parsed. Note that hidden files are always listed by MLSD.
+	                mlstSupported = ftpClient.hasFeature("MLST");
+	                LOGGER.info("mlstSupported={}", mlstSupported);
 	
 	                if(encoding.equalsIgnoreCase("UTF-8")) {
 	                    // This command enables UTF8 on the remote server... but only a few FTP servers currently support this command
@@ -36,6 +36,12 @@ public class FTPProtocolProvider implements ProtocolProvider {
     /** Controls whether to force the listing of hidden files */
     private static boolean forceHiddenFilesListing = false;
 
+    /** Size of the socket receive buffer of data connections, 0 to use the system's default */
+    private static int receiveBufferSize = 0;
+
+    /** Size of the socket send buffer of data connections, 0 to use the system's default */
+    private static int sendBufferSize = 0;
+
     /**
      * Controls whether to force the listing of hidden files. Enabling this option will cause 'LIST -al' commands
      * to be issued when listing files, instead of 'LIST -l'.
@@ -67,6 +73,54 @@ public class FTPProtocolProvider implements ProtocolProvider {
         return forceHiddenFilesListing;
     }
 
+    /**
+     * Sets the size of the socket receive buffer of FTP data connections, in bytes. A larger buffer improves the
+     * throughput of downloads over links with a high latency. Specifying <code>0</code> leaves the buffer size to the
+     * system's default, which is the default value.
+     *
+     * <p>The new size applies to the connections that are established after this method has been called.</p>
+     *
+     * @param size the size of the socket receive buffer in bytes, <code>0</code> for the system's default
+     */
+    public static void setReceiveBufferSize(int size) {
+        receiveBufferSize = Math.max(0, size);
+    }
+
+    /**
+     * Returns the size of the socket receive buffer of FTP data connections, in bytes, <code>0</code> if the system's
+     * default is used.
+     *
+     * @return the size of the socket receive buffer in bytes, <code>0</code> for the system's default
+     * @see #setReceiveBufferSize(int)
+     */
+    public static int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Sets the size of the socket send buffer of FTP data connections, in bytes. A larger buffer improves the
+     * throughput of uploads over links with a high latency. Specifying <code>0</code> leaves the buffer size to the
+     * system's default, which is the default value.
+     *
+     * <p>The new size applies to the connections that are established after this method has been called.</p>
+     *
+     * @param size the size of the socket send buffer in bytes, <code>0</code> for the system's default
+     */
+    public static void setSendBufferSize(int size) {
+        sendBufferSize = Math.max(0, size);
+    }
+
+    /**
+     * Returns the size of the socket send buffer of FTP data connections, in bytes, <code>0</code> if the system's
+     * default is used.
+     *
+     * @return the size of the socket send buffer in bytes, <code>0</code> for the system's default
+     * @see #setSendBufferSize(int)
+     */
+    public static int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
 
     /////////////////////////////////////
     // ProtocolProvider Implementation //
@@ -30,11 +30,18 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
 import java.util.Vector;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -69,7 +76,10 @@ import java.util.regex.Pattern;
  * <br>
  * A HEAD request is then issued only for non-HTML files, to determine their size and last modified date.
  * HTML files will thus have a size returned by {@link #getSize()} of <code>-1</code> (undetermined), and a date
- * returned by {@link #getDate()} corresponding to 'now' (current time).</p>
+ * returned by {@link #getDate()} corresponding to 'now' (current time).<br>
+ * When the listed page is a directory index generated by Apache or nginx, the size and date of each file are read from
+ * the index and no HEAD request is issued. The HEAD requests of the remaining files are issued by {@link #ls()},
+ * {@link #HEAD_REQUEST_CONCURRENCY} at a time.</p>
  *
  * <p>Access to HTTP files is provided by the <code>java.net</code> API. The {@link #getUnderlyingFileObject()} method
  * allows to retrieve a <code>java.net.URL</code> instance corresponding to this HTTPFile.</p>
@@ -92,6 +102,9 @@ public class HTTPFile extends ProtocolFile {
     /** True if file has been resolved on the remote HTTP server, either successfully or unsuccessfully */
     private boolean fileResolved;
 
+    /** True if the size was read from a directory index that rounds sizes */
+    private boolean approximateSize;
+
     private boolean parentValSet;
     protected AbstractFile parent;
 	
@@ -104,11 +117,27 @@ public class HTTPFile extends ProtocolFile {
                                             + "; " + System.getProperty("os.name") + " " +
                                             System.getProperty("os.version") + " " + System.getProperty("os.arch") + ")";
 
-    /** Matches HTML and XHTML attribute key/value pairs, where the value is surrounded by Single Quotes */
-    private final static Pattern linkAttributePatternSQ = Pattern.compile("(src|href|SRC|HREF)=\\\'.*?\\\'");
+    /** Maximum number of concurrent HEAD requests issued to resolve the children of a listed page. This matches the
+     * default number of idle connections that the JRE keeps alive per server (<code>http.maxConnections</code>). */
+    private final static int HEAD_REQUEST_CONCURRENCY = 5;
+
+    /** Issues the HEAD requests of listed files */
+    private final static ThreadPoolExecutor headExecutor;
 
-    /** Matches HTML and XHTML attribute key/value pairs, where the value is surrounded by Double Quotes */
-    private final static Pattern linkAttributePatternDQ = Pattern.compile("(src|href|SRC|HREF)=\\\".*?\\\"");
+    static {
+        headExecutor = new ThreadPoolExecutor(HEAD_REQUEST_CONCURRENCY, HEAD_REQUEST_CONCURRENCY, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "HTTPFile-HEAD-"+threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        // Release idle threads, files are only resolved while listing
+        headExecutor.allowCoreThreadTimeOut(true);
+    }
 
 
     protected HTTPFile(FileURL fileURL) throws IOException {
@@ -273,6 +302,52 @@ public class HTTPFile extends ProtocolFile {
             throw new IOException(conn.getResponseMessage());
     }
 
+    /**
+     * Sets the attributes of this file to the ones listed in a directory index, which spares a HEAD request.
+     *
+     * @param link the link to this file, as found in the directory index
+     */
+    private void setIndexAttributes(IndexPageParser.Link link) {
+        attributes.setDate(link.getDate());
+        if(link.getSize()!=-1)
+            attributes.setSize(link.getSize());
+        attributes.setExists(true);
+
+        approximateSize = link.isApproximateSize();
+        fileResolved = true;
+    }
+
+    /**
+     * Resolves the given files that need to be, issuing up to {@link #HEAD_REQUEST_CONCURRENCY} HEAD requests at a
+     * time, and returns once all of them have been resolved. If the current thread is interrupted, the files that are
+     * not resolved yet will be resolved when their attributes are requested.
+     *
+     * @param files the files to resolve
+     */
+    private static void resolveFiles(List<AbstractFile> files) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for(AbstractFile file : files) {
+            final HTTPFile httpFile = file.getAncestor(HTTPFile.class);
+            if(httpFile!=null && httpFile.resolve && !httpFile.fileResolved) {
+                tasks.add(Executors.callable(new Runnable() {
+                    public void run() {
+                        httpFile.checkResolveFile();
+                    }
+                }));
+            }
+        }
+
+        if(tasks.isEmpty())
+            return;
+
+        try {
+            headExecutor.invokeAll(tasks);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void checkResolveFile() {
         if(resolve && !fileResolved) {
             try {
@@ -601,51 +676,53 @@ public class HTTPFile extends ProtocolFile {
 
             FileURL tempChildURL = (FileURL)fileURL.clone();
 
-            Pattern pattern;
-            String line, match, link;
-            while((line=br.readLine())!=null) {
-                for(pattern=linkAttributePatternSQ;; pattern=linkAttributePatternDQ) {
-                    Matcher matcher = pattern.matcher(line);
-                    while(matcher.find()) {
-                        match = matcher.group();
-                        link = match.substring(match.indexOf(pattern==linkAttributePatternSQ?'\'':'\"')+1, match.length()-1);
-
-                        // These are not proper URLs, skip them
-                        if(link.startsWith("mailto") || link.startsWith("MAILTO")
-                        || link.startsWith("#")
-                        || link.startsWith("javascript:"))
-                            continue;
-
-                        // Don't add the same link more than once
-                        if(childrenURL.contains(link))
-                            continue;
-
-                        try {
-                            LOGGER.trace("creating child {} context={}", link, contextURL);
-                            childURL = new URL(contextURL, link);
-
-                            // Create the child FileURL instance
-                            childFileURL = FileURL.getFileURL(childURL.toExternalForm());
-                            // Keep the parent's credentials (HTTP basic authentication), only if the host is the same.
-                            // It would otherwise be unsafe.
-                            if(parentHost.equals(childFileURL.getHost()))
-                                childFileURL.setCredentials(credentials);
-
-                            // TODO: resolve file here instead of in the constructor, and multiplex requests just like a browser
-
-                            children.add(FileFactory.getFile(childFileURL, null, childURL, childURL.toString()));
-                            childrenURL.add(link);
-                        }
-                        catch(IOException e) {
-                            LOGGER.info("Cannot create child: {}", e);
-                        }
+            // Parse the page in a single pass, reading file attributes from directory indexes
+            IndexPageParser parser = new IndexPageParser(br);
+            IndexPageParser.Link parsedLink;
+            String link;
+            while((parsedLink=parser.next())!=null) {
+                link = parsedLink.getHref();
+
+                // These are not proper URLs, skip them
+                if(link.startsWith("mailto") || link.startsWith("MAILTO")
+                || link.startsWith("#")
+                || link.startsWith("javascript:"))
+                    continue;
+
+                // Don't add the same link more than once
+                if(childrenURL.contains(link))
+                    continue;
+
+                try {
+                    LOGGER.trace("creating child {} context={}", link, contextURL);
+                    childURL = new URL(contextURL, link);
+
+                    // Create the child FileURL instance
+                    childFileURL = FileURL.getFileURL(childURL.toExternalForm());
+                    // Keep the parent's credentials (HTTP basic authentication), only if the host is the same.
+                    // It would otherwise be unsafe.
+                    if(parentHost.equals(childFileURL.getHost()))
+                        childFileURL.setCredentials(credentials);
+
+                    AbstractFile child = FileFactory.getFile(childFileURL, null, childURL, childURL.toString());
+                    if(parsedLink.hasAttributes()) {
+                        HTTPFile httpChild = child.getAncestor(HTTPFile.class);
+                        if(httpChild!=null)
+                            httpChild.setIndexAttributes(parsedLink);
                     }
 
-                    if(pattern==linkAttributePatternDQ)
-                        break;
+                    children.add(child);
+                    childrenURL.add(link);
+                }
+                catch(IOException e) {
+                    LOGGER.info("Cannot create child: {}", e);
                 }
             }
 
+            // Resolve the files whose attributes could not be read from the page concurrently, rather than one at
+            // a time when their attributes are requested
+            resolveFiles(children);
+
             AbstractFile childrenArray[] = new AbstractFile[children.size()];
             children.toArray(childrenArray);
             return childrenArray;
@@ -727,8 +804,8 @@ public class HTTPFile extends ProtocolFile {
         private HTTPRandomAccessInputStream() throws IOException {
             super(CHUNK_SIZE);
 
-            // HEAD the HTTP resource to get its length
-            if(!fileResolved)
+            // HEAD the HTTP resource to get its length. Sizes read from a directory index may be rounded.
+            if(!fileResolved || approximateSize)
                 resolveFile();
 
             length = getSize();
@@ -0,0 +1,352 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file.impl.http;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the links of an HTML/XHTML page in a single pass over its contents, returning them one at a time as the
+ * page is read.
+ *
+ * <p>Any <code>href</code> or <code>src</code> attribute is considered a link. In addition, the text that follows a
+ * link on the same line is examined to recognize the directory indexes generated by Apache (both the
+ * <code>&lt;pre&gt;</code> and table formats) and nginx, which list the date and size of each file next to its link:
+ * <pre>
+ * &lt;a href="file.zip"&gt;file.zip&lt;/a&gt;      12-Mar-2010 14:02  1.2M
+ * &lt;td&gt;&lt;a href="file.zip"&gt;file.zip&lt;/a&gt;&lt;/td&gt;&lt;td align="right"&gt;2010-03-12 14:02  &lt;/td&gt;&lt;td align="right"&gt;1.2M&lt;/td&gt;
+ * </pre>
+ * Dates are interpreted in the local time zone. Sizes with a unit suffix are rounded by the server and thus
+ * approximate.</p>
+ */
+class IndexPageParser {
+
+    /** Maximum number of characters following a link that are examined */
+    private final static int MAX_TRAILING_TEXT_LENGTH = 256;
+
+    /** Matches the date and size listed after a link in a directory index */
+    private final static Pattern INDEX_ATTRIBUTES_PATTERN = Pattern.compile(
+            "(\\d{1,2}-[A-Za-z]{3}-\\d{4} \\d{2}:\\d{2}(?::\\d{2})?|\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}(?::\\d{2})?)\\s+(-|\\d+(?:\\.\\d+)?[KMGT]?)");
+
+    private final Reader reader;
+
+    private final SimpleDateFormat apacheDateFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm", Locale.US);
+    private final SimpleDateFormat isoDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+
+    /** The link whose trailing text is being read, null if there is none */
+    private Link currentLink;
+
+    /** True while reading the contents of the current link's anchor, which are not part of the trailing text */
+    private boolean inAnchor;
+
+    /** Text that follows the current link */
+    private final StringBuilder trailingText = new StringBuilder();
+
+    /** Links that have been completely read, in the order they were completed */
+    private final LinkedList<Link> readyLinks = new LinkedList<Link>();
+
+
+    /**
+     * Creates a new parser reading the given page. The reader should be buffered.
+     *
+     * @param reader the page to parse
+     */
+    IndexPageParser(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the page until the next link and the text that follows it have been read, and returns the link.
+     *
+     * @return the next link, <code>null</code> if the end of the page has been reached
+     * @throws IOException if an error occurred while reading the page
+     */
+    Link next() throws IOException {
+        int c;
+        while(readyLinks.isEmpty()) {
+            c = reader.read();
+            if(c==-1) {
+                if(currentLink!=null)
+                    finishLink();
+                break;
+            }
+
+            if(c=='<') {
+                readTag();
+
+                // Separate the text of consecutive table cells
+                if(currentLink!=null && !inAnchor)
+                    trailingText.append(' ');
+            }
+            else if(currentLink!=null && !inAnchor) {
+                // The attributes of an index entry are listed on the same line as its link
+                if(c=='\n')
+                    finishLink();
+                else if(trailingText.length()<MAX_TRAILING_TEXT_LENGTH)
+                    trailingText.append((char)c);
+            }
+        }
+
+        return readyLinks.poll();
+    }
+
+    /**
+     * Reads a tag, the opening <code>&lt;</code> having already been read.
+     */
+    private void readTag() throws IOException {
+        StringBuilder tag = new StringBuilder();
+        int c;
+        char quote = 0;
+        while((c=reader.read())!=-1) {
+            if(quote!=0) {
+                if(c==quote)
+                    quote = 0;
+            }
+            else if(c=='"' || c=='\'') {
+                quote = (char)c;
+            }
+            else if(c=='>') {
+                break;
+            }
+
+            tag.append((char)c);
+
+            // Skip comments, which may contain tags
+            if(tag.length()==3 && tag.toString().equals("!--")) {
+                skipComment();
+                return;
+            }
+        }
+
+        String name = getTagName(tag);
+        if(name.equals("/a")) {
+            inAnchor = false;
+            return;
+        }
+
+        String href = getAttribute(tag, "href");
+        if(href==null)
+            href = getAttribute(tag, "src");
+
+        // A link inside the current link's anchor, e.g. an image, has no attributes of its own
+        if(href!=null && inAnchor) {
+            readyLinks.add(new Link(href));
+            return;
+        }
+
+        // A new link or table row ends the trailing text of the current link
+        if(currentLink!=null && (href!=null || name.equals("tr") || name.equals("/tr")))
+            finishLink();
+
+        if(href!=null) {
+            currentLink = new Link(href);
+            inAnchor = name.equals("a");
+        }
+    }
+
+    /**
+     * Reads until the end of a comment.
+     */
+    private void skipComment() throws IOException {
+        int dashes = 0;
+        int c;
+        while((c=reader.read())!=-1) {
+            if(c=='>' && dashes>=2)
+                return;
+
+            dashes = c=='-'?dashes+1:0;
+        }
+    }
+
+    /**
+     * Parses the trailing text of the current link and adds the link to the ready ones.
+     */
+    private void finishLink() {
+        parseAttributes(currentLink, trailingText.toString().replace("&nbsp;", " ").trim());
+        readyLinks.add(currentLink);
+
+        currentLink = null;
+        inAnchor = false;
+        trailingText.setLength(0);
+    }
+
+    /**
+     * Sets the date and size of the given link if the given text looks like the attributes of a directory index entry.
+     */
+    private void parseAttributes(Link link, String text) {
+        Matcher matcher = INDEX_ATTRIBUTES_PATTERN.matcher(text);
+        if(!matcher.lookingAt())
+            return;
+
+        String date = matcher.group(1);
+        try {
+            link.date = (Character.isDigit(date.charAt(2))?isoDateFormat:apacheDateFormat).parse(date).getTime();
+        }
+        catch(ParseException e) {
+            return;
+        }
+
+        String size = matcher.group(2);
+        if(!size.equals("-")) {
+            char unit = size.charAt(size.length()-1);
+            if(Character.isDigit(unit)) {
+                link.size = Long.parseLong(size);
+            }
+            else {
+                double value = Double.parseDouble(size.substring(0, size.length()-1));
+                int exponent = "KMGT".indexOf(unit)+1;
+                link.size = (long)(value*Math.pow(1024, exponent));
+                link.approximateSize = true;
+            }
+        }
+
+        link.hasAttributes = true;
+    }
+
+    /**
+     * Returns the lower-cased name of the given tag, including a leading <code>/</code> for closing tags.
+     */
+    private static String getTagName(CharSequence tag) {
+        int end = 0;
+        int len = tag.length();
+        while(end<len && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end)!='>')
+            end++;
+
+        return tag.subSequence(0, end).toString().toLowerCase();
+    }
+
+    /**
+     * Returns the value of the given attribute in the given tag, <code>null</code> if the tag doesn't have it.
+     * The value may be surrounded by single quotes, double quotes or not quoted at all.
+     */
+    private static String getAttribute(StringBuilder tag, String name) {
+        String lowerCaseTag = tag.toString().toLowerCase();
+        int pos = 0;
+        while((pos=lowerCaseTag.indexOf(name, pos))!=-1) {
+            // The attribute name must be preceded by whitespace
+            if(pos==0 || !Character.isWhitespace(lowerCaseTag.charAt(pos-1))) {
+                pos += name.length();
+                continue;
+            }
+
+            int i = pos+name.length();
+            while(i<tag.length() && Character.isWhitespace(tag.charAt(i)))
+                i++;
+
+            if(i>=tag.length() || tag.charAt(i)!='=') {
+                pos = i;
+                continue;
+            }
+
+            i++;
+            while(i<tag.length() && Character.isWhitespace(tag.charAt(i)))
+                i++;
+
+            if(i>=tag.length())
+                return null;
+
+            int end;
+            char c = tag.charAt(i);
+            if(c=='"' || c=='\'') {
+                i++;
+                end = tag.indexOf(String.valueOf(c), i);
+                if(end==-1)
+                    end = tag.length();
+            }
+            else {
+                end = i;
+                while(end<tag.length() && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end)!='/')
+                    end++;
+            }
+
+            return tag.substring(i, end).replace("&amp;", "&");
+        }
+
+        return null;
+    }
+
+
+    /**
+     * A link found in the page, along with the date and size of the file it points to if they are listed next to it.
+     */
+    static class Link {
+
+        private final String href;
+
+        private boolean hasAttributes;
+        private long date;
+        private long size = -1;
+        private boolean approximateSize;
+
+        private Link(String href) {
+            this.href = href;
+        }
+
+        /**
+         * Returns the value of the link's <code>href</code> or <code>src</code> attribute.
+         *
+         * @return the value of the link's <code>href</code> or <code>src</code> attribute
+         */
+        String getHref() {
+            return href;
+        }
+
+        /**
+         * Returns <code>true</code> if the date and size of the linked file have been found next to the link.
+         *
+         * @return <code>true</code> if the date and size of the linked file are known
+         */
+        boolean hasAttributes() {
+            return hasAttributes;
+        }
+
+        /**
+         * Returns the date of the linked file, only if {@link #hasAttributes()} returns <code>true</code>.
+         *
+         * @return the date of the linked file
+         */
+        long getDate() {
+            return date;
+        }
+
+        /**
+         * Returns the size of the linked file, <code>-1</code> if not listed (e.g. for directories).
+         *
+         * @return the size of the linked file, <code>-1</code> if not listed
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns <code>true</code> if the size has been rounded by the server, e.g. <code>1.2M</code>.
+         *
+         * @return <code>true</code> if the size is approximate
+         */
+        boolean isApproximateSize() {
+            return approximateSize;
+        }
+    }
+}
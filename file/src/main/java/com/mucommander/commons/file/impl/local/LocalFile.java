@@ -20,6 +20,7 @@
 package com.mucommander.commons.file.impl.local;
 
 import com.mucommander.commons.file.*;
+import com.mucommander.commons.file.filter.FileFilter;
 import com.mucommander.commons.file.filter.FilenameFilter;
 import com.mucommander.commons.file.util.Kernel32;
 import com.mucommander.commons.file.util.Kernel32API;
@@ -36,6 +37,8 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.regex.Matcher;
@@ -980,6 +983,35 @@ public class LocalFile extends ProtocolFile {
         return children;
     }
 
+    /**
+     * Implementation notes: the names of the children are listed at once, but the corresponding files, which are
+     * more expensive to create, are only created one batch at a time, as the listener consumes them.
+     */
+    @Override
+    public void ls(FileFilter filter, FileListListener listener) throws IOException {
+        String names[] = file.list();
+
+        if (names == null)
+            throw new IOException("The file " + getPath() + " can't be listed");
+
+        List<AbstractFile> batch = new ArrayList<AbstractFile>(Math.min(names.length, LS_BATCH_SIZE));
+        FileURL childURL;
+
+        for (String name : names) {
+            // Clone the FileURL of this file and set the child's path, this is more efficient than creating a new
+            // FileURL instance from scratch.
+            childURL = (FileURL) fileURL.clone();
+            childURL.setPath(absPath + SEPARATOR + name);
+
+            batch.add(FileFactory.getFile(childURL, this, new File(file, name)));
+
+            if (batch.size() == LS_BATCH_SIZE && !fireFilesListed(batch, filter, listener))
+                return;
+        }
+
+        fireFilesListed(batch, filter, listener);
+    }
+
     @Override
     public boolean isHidden() {
         return file.isHidden();
@@ -22,12 +22,17 @@ import com.github.junrar.exception.RarException;
 import com.github.junrar.rarfile.FileHeader;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.UnsupportedFileOperationException;
-import com.mucommander.commons.util.CircularByteBuffer;
+import com.mucommander.commons.file.util.ExtractionExecutor;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 
@@ -37,62 +42,75 @@ public class RarFile {
 	
     /** Interface to junrar library */
     private Archive archive;
-    
+
+    /** The Rar file */
+    private File rarFile;
+
+    /** Entry path -> header of the entry */
+    private Map<String, FileHeader> headers;
+
+    /** Held while {@link #archive} is extracting an entry */
+    private final Lock archiveLock = new ReentrantLock();
+
 
     public RarFile(AbstractFile file) throws IOException, UnsupportedFileOperationException, RarException {
     	InputStream fileIn = file.getInputStream();
         try {
-            archive = new Archive(new File(file.getPath()));
+            rarFile = new File(file.getPath());
+            archive = new Archive(rarFile);
         }
         finally {
             fileIn.close();
         }
+
+        headers = new HashMap<String, FileHeader>();
+        for (FileHeader header : archive.getFileHeaders())
+            headers.put(header.getFileNameString(), header);
     }
 
     public Collection<FileHeader> getEntries() {
     	return archive.getFileHeaders();
     }
     
-    public InputStream getEntryInputStream(String path) throws IOException, RarException {
-//    	final FileHeader header = archive.getgetFileHeader(path);
-    	FileHeader header1 = null;
-    	for (FileHeader h : archive.getFileHeaders()) {
-    		if (h.getFileNameString().equals(path)) {
-    			header1 = h;
-    			break;
-    		}
-    	}
-
-    	final FileHeader header = header1;
+    public InputStream getEntryInputStream(final String path) throws IOException, RarException {
+    	final FileHeader header = headers.get(path);
+    	if (header == null)
+    		throw new IOException("No such entry in Rar archive " + rarFile.getPath() + ": " + path);
 
     	// If the file that is going to be extracted is divided and continued in another archive 
         // part - don't extract it and throw corresponding exception to raise an error. 
         if (header.isSplitAfter())
     		throw new RarException(RarException.RarExceptionType.notImplementedYet);
-    	
-        final CircularByteBuffer cbb = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
-        
-        new Thread(
-    		    new Runnable(){
-    		      public void run(){
-    		    	try {
-						archive.extractFile(header, cbb.getOutputStream());
-					} catch (RarException e) {
-						if (e.getType() != RarException.RarExceptionType.crcError)
-							e.printStackTrace();
-					}
-    		    	finally {
-    		    		try {
-							cbb.getOutputStream().close();
-						} catch (IOException e1) {
-							// TODO Auto-generated catch block
-							e1.printStackTrace();
-						}
-    		    	}
-    		      }
-    		    }
-    		  ).start();
-        
-        return cbb.getInputStream();
+
+        return ExtractionExecutor.extract(new ExtractionExecutor.Extraction() {
+            public void extractTo(OutputStream out) throws IOException {
+                try {
+                    // The shared archive can only extract one entry at a time: rather than waiting for it, which
+                    // could block forever if the consumer of the other entry is waiting for this one, extract from
+                    // a private one
+                    if (archiveLock.tryLock()) {
+                        try {
+                            archive.extractFile(header, out);
+                        }
+                        finally {
+                            archiveLock.unlock();
+                        }
+                    }
+                    else {
+                        Archive privateArchive = new Archive(rarFile);
+                        try {
+                            privateArchive.extractFile(privateArchive.getFileHeaders().get(archive.getFileHeaders().indexOf(header)), out);
+                        }
+                        finally {
+                            privateArchive.close();
+                        }
+                    }
+                }
+                catch (RarException e) {
+                    if (e.getType() != RarException.RarExceptionType.crcError)
+                        throw new IOException("Error while extracting Rar entry " + path + ": " + e.getType());
+                }
+            }
+        });
     }
 }
@@ -20,6 +20,7 @@
 package com.mucommander.commons.file.impl.s3;
 
 import com.mucommander.commons.file.*;
+import com.mucommander.commons.file.filter.FileFilter;
 import com.mucommander.commons.io.RandomAccessInputStream;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
@@ -91,6 +92,19 @@ public class S3Bucket extends S3File {
         return listObjects(bucketName, "", this);
     }
 
+    /**
+     * Implementation notes: objects are passed to the listener one page at a time, as they are returned by the server.
+     */
+    @Override
+    public void ls(FileFilter filter, FileListListener listener) throws IOException {
+        listObjects(bucketName, "", this, filter, listener);
+    }
+
+    @Override
+    protected void walkTree() throws IOException, InterruptedException {
+        prefetchObjects(bucketName, "");
+    }
+
     @Override
     public void delete() throws IOException {
         try {
@@ -101,6 +115,15 @@ public class S3Bucket extends S3File {
         }
     }
 
+    /**
+     * Implementation notes: regular files are deleted with 'Multi-Object Delete' requests, up to
+     * {@link S3Object#MAX_DELETED_OBJECTS} files per request.
+     */
+    @Override
+    public AbstractFile[] deleteChildren(AbstractFile children[]) {
+        return S3Object.deleteObjects(service, getListingRealm(), bucketName, children);
+    }
+
     @Override
     public void mkdir() throws IOException {
         try {
@@ -20,14 +20,29 @@
 package com.mucommander.commons.file.impl.s3;
 
 import com.mucommander.commons.file.*;
+import com.mucommander.commons.file.filter.FileFilter;
 import com.mucommander.commons.io.RandomAccessOutputStream;
 import com.mucommander.commons.runtime.JavaVersions;
 import org.jets3t.service.*;
 import org.jets3t.service.model.StorageObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Super class of {@link S3Root}, {@link S3Bucket} and {@link S3Object}.
@@ -35,6 +50,22 @@ import java.util.Date;
  * @author Maxence Bernard
  */
 public abstract class S3File extends ProtocolFile {
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3File.class);
+
+    /** Maximum number of objects under a prefix for which {@link #prefetchObjects(String, String)} caches listings */
+    public final static int MAX_PREFETCHED_OBJECTS = 100000;
+
+    /** Number of subprefixes walked at the same time */
+    private final static int NB_WALK_THREADS = 4;
+
+    /** Walks subprefixes, shared by all S3 files */
+    private final static ThreadPoolExecutor walkExecutor;
+
+    static {
+        walkExecutor = new ThreadPoolExecutor(NB_WALK_THREADS, NB_WALK_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WalkThreadFactory());
+        walkExecutor.allowCoreThreadTimeOut(true);
+    }
 
     protected org.jets3t.service.S3Service service;
 
@@ -70,63 +101,198 @@ public abstract class S3File extends ProtocolFile {
             throw new AuthException(fileURL);
     }
     
+    /**
+     * Returns the realm the listings of this file's account and endpoint are cached for in {@link S3ListingCache}.
+     *
+     * @return the realm of this file's listings
+     */
+    protected String getListingRealm() {
+        Credentials credentials = fileURL.getCredentials();
+        return (credentials==null?"":credentials.getLogin())+"@"+fileURL.getHost();
+    }
+
     protected AbstractFile[] listObjects(String bucketName, String prefix, S3File parent) throws IOException {
+        final List<AbstractFile> children = new ArrayList<AbstractFile>();
+        listObjects(bucketName, prefix, parent, null, new FileListListener() {
+            public boolean filesListed(AbstractFile[] files) {
+                children.addAll(Arrays.asList(files));
+                return true;
+            }
+        });
+
+        return children.toArray(new AbstractFile[children.size()]);
+    }
+
+    /**
+     * Lists the objects and common prefixes found under the given prefix and passes them to the listener one page
+     * at a time, as the pages are returned by the server. A complete listing is stored in {@link S3ListingCache}
+     * and the prefix is not listed again until the listing expires.
+     *
+     * @param bucketName name of the bucket
+     * @param prefix the prefix to list, with a trailing <code>/</code> or empty for the bucket's root
+     * @param parent the parent of the returned files
+     * @param filter filter to apply to the files, <code>null</code> to pass all of them
+     * @param listener the listener that receives the files, until it returns <code>false</code>
+     * @throws IOException if the prefix does not exist or could not be listed
+     */
+    protected void listObjects(String bucketName, String prefix, S3File parent, FileFilter filter, FileListListener listener) throws IOException {
+        String realm = getListingRealm();
+        List<AbstractFile> batch = new ArrayList<AbstractFile>(LS_BATCH_SIZE);
+
+        S3ListingCache.Listing listing = S3ListingCache.get(realm, bucketName, prefix);
+        if(listing!=null) {
+            for(StorageObject object : listing.objects.values()) {
+                addChild(batch, bucketName, prefix, parent, object);
+                if(batch.size()>=LS_BATCH_SIZE && !fireFilesListed(batch, filter, listener))
+                    return;
+            }
+
+            for(String commonPrefix : listing.commonPrefixes) {
+                addChild(batch, bucketName, prefix, parent, S3ListingCache.createDirectoryObject(commonPrefix));
+                if(batch.size()>=LS_BATCH_SIZE && !fireFilesListed(batch, filter, listener))
+                    return;
+            }
+
+            fireFilesListed(batch, filter, listener);
+            return;
+        }
+
+        listing = new S3ListingCache.Listing();
         try {
-            StorageObjectsChunk chunk = service.listObjectsChunked(bucketName, prefix, "/", Constants.DEFAULT_OBJECT_LIST_CHUNK_SIZE, null, true);
-            StorageObject objects[] = chunk.getObjects();
-            String[] commonPrefixes = chunk.getCommonPrefixes();
+            String priorLastKey = null;
+            do {
+                StorageObjectsChunk chunk = service.listObjectsChunked(bucketName, prefix, "/", LS_BATCH_SIZE, priorLastKey, false);
+                StorageObject objects[] = chunk.getObjects();
+                String[] commonPrefixes = chunk.getCommonPrefixes();
+
+                if(priorLastKey==null && objects.length==0 && commonPrefixes.length==0 && !prefix.equals("")) {
+                    // This happens only when the directory does not exist
+                    throw new IOException();
+                }
+
+                listing.addObjects(objects);
+                listing.addCommonPrefixes(commonPrefixes);
 
-            if(objects.length==0 && !prefix.equals("")) {
-                // This happens only when the directory does not exist
-                throw new IOException();
+                for(StorageObject object : objects)
+                    addChild(batch, bucketName, prefix, parent, object);
+
+                for(String commonPrefix : commonPrefixes)
+                    addChild(batch, bucketName, prefix, parent, S3ListingCache.createDirectoryObject(commonPrefix));
+
+                if(!fireFilesListed(batch, filter, listener))
+                    return;
+
+                priorLastKey = chunk.getPriorLastKey();
             }
+            while(priorLastKey!=null);
+
+            S3ListingCache.put(realm, bucketName, prefix, listing);
+        }
+        catch(ServiceException e) {
+            throw getIOException(e);
+        }
+    }
 
-            AbstractFile[] children = new AbstractFile[objects.length+commonPrefixes.length];
-            FileURL childURL;
-            int i=0;
-            String objectKey;
+    /**
+     * Creates the file corresponding to the given object and adds it to the batch, unless the object is the listed
+     * prefix itself.
+     */
+    private void addChild(List<AbstractFile> batch, String bucketName, String prefix, S3File parent, StorageObject object) throws IOException {
+        // Discard the object corresponding to the prefix itself
+        String objectKey = object.getKey();
+        if(objectKey.equals(prefix))
+            return;
 
-            for(StorageObject object : objects) {
-                // Discard the object corresponding to the prefix itself
-                objectKey = object.getKey();
-                if(objectKey.equals(prefix))
-                    continue;
+        FileURL childURL = (FileURL)fileURL.clone();
+        childURL.setPath(bucketName + "/" + objectKey);
 
-                childURL = (FileURL)fileURL.clone();
-                childURL.setPath(bucketName + "/" + objectKey);
+        batch.add(FileFactory.getFile(childURL, parent, service, object));
+    }
 
-                children[i] = FileFactory.getFile(childURL, parent, service, object);
-                i++;
+    /**
+     * Lists all the objects located under the given prefix, walking the subprefixes of the prefix in parallel, and
+     * caches the listing of the prefix and of each of its subprefixes in {@link S3ListingCache}. Each subprefix is
+     * walked with a flat listing (no delimiter), which costs one request per page of 1000 objects instead of one
+     * request per directory.
+     *
+     * <p>The listings are not cached if the prefix contains more than {@link #MAX_PREFETCHED_OBJECTS} objects or more
+     * than {@link S3ListingCache#CAPACITY} listings, as they would not fit in the cache: the walks are then cancelled
+     * as soon as the limit is exceeded.</p>
+     *
+     * @param bucketName name of the bucket
+     * @param prefix the prefix to walk, with a trailing <code>/</code> or empty for the bucket's root
+     * @throws IOException if the prefix could not be listed
+     * @throws InterruptedException if the current thread was interrupted while waiting for the walk to complete
+     */
+    protected void prefetchObjects(String bucketName, String prefix) throws IOException, InterruptedException {
+        String realm = getListingRealm();
+
+        // List the prefix itself (from the cache if it is there), to find out the subprefixes to walk in parallel
+        S3ListingCache.Listing listing = S3ListingCache.get(realm, bucketName, prefix);
+        if(listing==null) {
+            listing = new S3ListingCache.Listing();
+            try {
+                String priorLastKey = null;
+                do {
+                    StorageObjectsChunk chunk = service.listObjectsChunked(bucketName, prefix, "/", LS_BATCH_SIZE, priorLastKey, false);
+                    listing.addObjects(chunk.getObjects());
+                    listing.addCommonPrefixes(chunk.getCommonPrefixes());
+
+                    priorLastKey = chunk.getPriorLastKey();
+                }
+                while(priorLastKey!=null);
+            }
+            catch(ServiceException e) {
+                throw getIOException(e);
             }
 
-            org.jets3t.service.model.S3Object directoryObject;
-            for(String commonPrefix : commonPrefixes) {
-                childURL = (FileURL)fileURL.clone();
-                childURL.setPath(bucketName + "/" + commonPrefix);
-
-                directoryObject = new org.jets3t.service.model.S3Object(commonPrefix);
-                // Common prefixes are not objects per se, and therefore do not have a date, content-length nor owner.
-                directoryObject.setLastModifiedDate(new Date(System.currentTimeMillis()));
-                directoryObject.setContentLength(0);
-                children[i] = FileFactory.getFile(childURL, parent, service, directoryObject);
-                i++;
+            S3ListingCache.put(realm, bucketName, prefix, listing);
+        }
+
+        // The walks share the limits, the listing of the prefix counts as one of the cached listings
+        AtomicInteger nbObjects = new AtomicInteger(listing.size());
+        AtomicInteger nbListings = new AtomicInteger(1);
+        List<Future<Map<String, S3ListingCache.Listing>>> walks = new ArrayList<Future<Map<String, S3ListingCache.Listing>>>();
+        Map<String, S3ListingCache.Listing> listings = new HashMap<String, S3ListingCache.Listing>();
+        try {
+            for(String commonPrefix : listing.commonPrefixes) {
+                if(S3ListingCache.get(realm, bucketName, commonPrefix)==null)
+                    walks.add(walkExecutor.submit(new PrefixWalk(bucketName, commonPrefix, nbObjects, nbListings)));
             }
 
-            // Trim the array if an object was discarded.
-            // Note: Having to recreate an array sucks (puts pressure on the GC), but I haven't found a reliable way
-            // to know in advance whether the prefix will appear in the results or not.
-            if(i<children.length) {
-                AbstractFile[] childrenTrimmed = new AbstractFile[i];
-                System.arraycopy(children, 0, childrenTrimmed, 0, i);
+            for(Future<Map<String, S3ListingCache.Listing>> walk : walks) {
+                Map<String, S3ListingCache.Listing> subListings = walk.get();
+                if(subListings==null)
+                    return;
 
-                return childrenTrimmed;
+                listings.putAll(subListings);
             }
+        }
+        catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException)
+                throw (IOException)cause;
 
-            return children;
+            throw new IOException(cause.getMessage());
         }
-        catch(ServiceException e) {
-            throw getIOException(e);
+        finally {
+            // Stop the walks that are still running if one of them exceeded the limits or failed
+            for(Future<Map<String, S3ListingCache.Listing>> walk : walks)
+                walk.cancel(true);
         }
+
+        for(Map.Entry<String, S3ListingCache.Listing> entry : listings.entrySet())
+            S3ListingCache.put(realm, bucketName, entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Walks this file's tree, see {@link #prefetchTree()}. This implementation does nothing, it is overridden by
+     * buckets and objects.
+     *
+     * @throws IOException if the tree could not be listed
+     * @throws InterruptedException if the current thread was interrupted while waiting for the walk to complete
+     */
+    protected void walkTree() throws IOException, InterruptedException {
     }
 
 
@@ -252,9 +418,133 @@ public abstract class S3File extends ProtocolFile {
         throw new UnsupportedFileOperationException(FileOperation.GET_TOTAL_SPACE);
     }
 
+    /**
+     * Implementation notes: if this file is a bucket or a directory, its tree is walked with
+     * {@link #prefetchObjects(String, String)}, so that its subdirectories can then be listed without issuing any
+     * request.
+     */
+    @Override
+    public void prefetchTree() {
+        if(!isDirectory())
+            return;
+
+        try {
+            walkTree();
+        }
+        catch(IOException e) {
+            LOGGER.info("Failed to prefetch the tree of "+this, e);
+        }
+        catch(InterruptedException e) {
+            // Interrupted by the caller
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     @UnsupportedFileOperation
     public void changeDate(long lastModified) throws UnsupportedFileOperationException {
         throw new UnsupportedFileOperationException(FileOperation.CHANGE_DATE);
     }
+
+
+    /**
+     * Lists all the objects under a prefix with a flat listing, and sorts them into the listings of the prefix and
+     * of each of its subprefixes.
+     */
+    private class PrefixWalk implements Callable<Map<String, S3ListingCache.Listing>> {
+
+        private final String bucketName;
+        private final String prefix;
+        /** Number of objects listed by all the walks of the prefetch */
+        private final AtomicInteger nbObjects;
+        /** Number of listings created by all the walks of the prefetch */
+        private final AtomicInteger nbListings;
+
+        private PrefixWalk(String bucketName, String prefix, AtomicInteger nbObjects, AtomicInteger nbListings) {
+            this.bucketName = bucketName;
+            this.prefix = prefix;
+            this.nbObjects = nbObjects;
+            this.nbListings = nbListings;
+        }
+
+        /**
+         * Returns the listings of the prefix and of its subprefixes, <code>null</code> if the walks of the prefetch
+         * have listed more than {@link #MAX_PREFETCHED_OBJECTS} objects or created more than
+         * {@link S3ListingCache#CAPACITY} listings, or if the walk was cancelled.
+         */
+        public Map<String, S3ListingCache.Listing> call() throws IOException {
+            Map<String, S3ListingCache.Listing> listings = new HashMap<String, S3ListingCache.Listing>();
+            getListing(listings, prefix);
+
+            try {
+                String priorLastKey = null;
+                do {
+                    if(Thread.currentThread().isInterrupted())
+                        return null;
+
+                    StorageObjectsChunk chunk = service.listObjectsChunked(bucketName, prefix, null, LS_BATCH_SIZE, priorLastKey, false);
+                    for(StorageObject object : chunk.getObjects())
+                        addObject(listings, object);
+
+                    if(nbObjects.addAndGet(chunk.getObjects().length)>MAX_PREFETCHED_OBJECTS
+                            || nbListings.get()>S3ListingCache.CAPACITY)
+                        return null;
+
+                    priorLastKey = chunk.getPriorLastKey();
+                }
+                while(priorLastKey!=null);
+
+                return listings;
+            }
+            catch(ServiceException e) {
+                throw getIOException(e);
+            }
+        }
+
+        /**
+         * Adds the given object to the listing of its parent prefix, and registers each of its ancestor prefixes as a
+         * common prefix of its own parent, up to the walked prefix.
+         */
+        private void addObject(Map<String, S3ListingCache.Listing> listings, StorageObject object) {
+            String key = object.getKey();
+
+            // The object that marks a directory belongs to the directory's own listing, like in delimited listings
+            String listedPrefix = key.endsWith("/")?key:S3ListingCache.getParentPrefix(key);
+            getListing(listings, listedPrefix).objects.put(key, object);
+
+            String subPrefix = listedPrefix;
+            while(!subPrefix.equals(prefix) && subPrefix.length()>prefix.length()) {
+                String parentPrefix = S3ListingCache.getParentPrefix(subPrefix);
+                if(!getListing(listings, parentPrefix).commonPrefixes.add(subPrefix))
+                    break;      // The ancestors have already been registered
+
+                subPrefix = parentPrefix;
+            }
+        }
+
+        private S3ListingCache.Listing getListing(Map<String, S3ListingCache.Listing> listings, String prefix) {
+            S3ListingCache.Listing listing = listings.get(prefix);
+            if(listing==null) {
+                listing = new S3ListingCache.Listing();
+                listings.put(prefix, listing);
+                nbListings.incrementAndGet();
+            }
+
+            return listing;
+        }
+    }
+
+
+    /**
+     * Creates the daemon threads that walk prefixes.
+     */
+    private static class WalkThreadFactory implements ThreadFactory {
+        private final static AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "S3File-"+threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -0,0 +1,232 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file.impl.s3;
+
+import org.jets3t.service.model.StorageObject;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the complete listings of S3 prefixes, i.e. the objects and common prefixes found under a prefix with the
+ * <code>/</code> delimiter. Listings are cached when a prefix is listed, either by {@link S3File#ls()} or by a
+ * {@link S3File#prefetchTree() tree prefetch}, and are used to:
+ * <ul>
+ *   <li>list the prefix again without issuing any request, as recursive operations do</li>
+ *   <li>look up the attributes of the objects of a listed prefix without issuing a 'HEAD Object' request</li>
+ * </ul>
+ *
+ * <p>Listings expire after {@link #TIME_TO_LIVE} milliseconds and are invalidated when an object is created, copied
+ * or deleted under their prefix. The cache holds at most {@link #CAPACITY} listings, least recently used ones are
+ * evicted first.</p>
+ *
+ * <p>Listings are cached per realm (account and endpoint), so that the same bucket accessed with different
+ * credentials does not share listings.</p>
+ */
+class S3ListingCache {
+
+    /** Maximum number of listings held by the cache */
+    final static int CAPACITY = 1000;
+
+    /** Number of milliseconds before a cached listing expires */
+    final static int TIME_TO_LIVE = 60000;
+
+    /** Realm/bucket/prefix -> Listing map, in access order */
+    private final static Map<String, Listing> listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    /**
+     * Prevents instances of this class from being created.
+     */
+    private S3ListingCache() {
+    }
+
+    /**
+     * Returns the cached listing of the given prefix, <code>null</code> if it is not cached or has expired.
+     *
+     * @param realm the realm the bucket was accessed with
+     * @param bucketName name of the bucket
+     * @param prefix the listed prefix, with a trailing <code>/</code> or empty for the bucket's root
+     * @return the cached listing, <code>null</code> if not available
+     */
+    static Listing get(String realm, String bucketName, String prefix) {
+        String key = getKey(realm, bucketName, prefix);
+        synchronized(listings) {
+            Listing listing = listings.get(key);
+            if(listing==null)
+                return null;
+
+            if(listing.expirationDate<System.currentTimeMillis()) {
+                listings.remove(key);
+                return null;
+            }
+
+            return listing;
+        }
+    }
+
+    /**
+     * Caches the given complete listing of a prefix, replacing any previous one.
+     *
+     * @param realm the realm the bucket was accessed with
+     * @param bucketName name of the bucket
+     * @param prefix the listed prefix, with a trailing <code>/</code> or empty for the bucket's root
+     * @param listing the prefix's listing
+     */
+    static void put(String realm, String bucketName, String prefix, Listing listing) {
+        listing.expirationDate = System.currentTimeMillis()+TIME_TO_LIVE;
+        synchronized(listings) {
+            listings.put(getKey(realm, bucketName, prefix), listing);
+        }
+    }
+
+    /**
+     * Looks up the given object in the cached listing of its parent prefix. A key that is a common prefix of the
+     * parent listing is returned as a directory object, see {@link #createDirectoryObject(String)}.
+     *
+     * @param realm the realm the bucket was accessed with
+     * @param bucketName name of the bucket
+     * @param objectKey key of the object, with or without a trailing <code>/</code>
+     * @return the object, <code>null</code> if the parent listing is not cached or does not contain the object
+     */
+    static StorageObject getObject(String realm, String bucketName, String objectKey) {
+        Listing listing = get(realm, bucketName, getParentPrefix(objectKey));
+        if(listing==null)
+            return null;
+
+        String fileKey = objectKey.endsWith("/")?objectKey.substring(0, objectKey.length()-1):objectKey;
+        StorageObject object = listing.objects.get(fileKey);
+        if(object!=null)
+            return object;
+
+        String directoryKey = fileKey+"/";
+        if(listing.commonPrefixes.contains(directoryKey))
+            return createDirectoryObject(directoryKey);
+
+        return null;
+    }
+
+    /**
+     * Discards the listings that contain or may contain the given object, after it has been created, modified or
+     * deleted: the listing of its parent prefix and, if the object is a directory, its own listing.
+     *
+     * @param realm the realm the bucket was accessed with
+     * @param bucketName name of the bucket
+     * @param objectKey key of the object, with or without a trailing <code>/</code>
+     */
+    static void invalidate(String realm, String bucketName, String objectKey) {
+        String directoryKey = objectKey.endsWith("/")?objectKey:objectKey+"/";
+        synchronized(listings) {
+            listings.remove(getKey(realm, bucketName, getParentPrefix(objectKey)));
+            listings.remove(getKey(realm, bucketName, directoryKey));
+        }
+    }
+
+    /**
+     * Removes all listings from the cache.
+     */
+    static void clearAll() {
+        synchronized(listings) {
+            listings.clear();
+        }
+    }
+
+    /**
+     * Returns the prefix of the given object's parent, with a trailing <code>/</code> or empty if the object is
+     * located at the root of the bucket.
+     *
+     * @param objectKey key of the object, with or without a trailing <code>/</code>
+     * @return the object's parent prefix
+     */
+    static String getParentPrefix(String objectKey) {
+        int pos = objectKey.lastIndexOf('/', objectKey.endsWith("/")?objectKey.length()-2:objectKey.length()-1);
+        return pos==-1?"":objectKey.substring(0, pos+1);
+    }
+
+    /**
+     * Creates the object that stands for the given common prefix in listings. Common prefixes are not objects per
+     * se, and therefore do not have a date, content-length nor owner.
+     *
+     * @param commonPrefix the common prefix, with a trailing <code>/</code>
+     * @return a directory object
+     */
+    static StorageObject createDirectoryObject(String commonPrefix) {
+        org.jets3t.service.model.S3Object directoryObject = new org.jets3t.service.model.S3Object(commonPrefix);
+        directoryObject.setLastModifiedDate(new Date(System.currentTimeMillis()));
+        directoryObject.setContentLength(0);
+
+        return directoryObject;
+    }
+
+    private static String getKey(String realm, String bucketName, String prefix) {
+        return realm+"/"+bucketName+"/"+prefix;
+    }
+
+
+    /**
+     * The complete listing of a prefix.
+     */
+    static class Listing {
+
+        /** Objects found under the prefix, by key, in listing order */
+        final Map<String, StorageObject> objects = new LinkedHashMap<String, StorageObject>();
+
+        /** Common prefixes found under the prefix, in listing order */
+        final Set<String> commonPrefixes = new LinkedHashSet<String>();
+
+        /** Date after which this listing expires */
+        private long expirationDate;
+
+        /**
+         * Adds the given objects to this listing.
+         *
+         * @param objects the objects to add
+         */
+        void addObjects(StorageObject objects[]) {
+            for(StorageObject object : objects)
+                this.objects.put(object.getKey(), object);
+        }
+
+        /**
+         * Adds the given common prefixes to this listing.
+         *
+         * @param commonPrefixes the common prefixes to add
+         */
+        void addCommonPrefixes(String commonPrefixes[]) {
+            for(String commonPrefix : commonPrefixes)
+                this.commonPrefixes.add(commonPrefix);
+        }
+
+        /**
+         * Returns the number of objects and common prefixes in this listing.
+         *
+         * @return the number of entries in this listing
+         */
+        int size() {
+            return objects.size()+commonPrefixes.size();
+        }
+    }
+}
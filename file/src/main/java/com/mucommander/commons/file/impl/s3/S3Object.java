@@ -20,6 +20,7 @@
 package com.mucommander.commons.file.impl.s3;
 
 import com.mucommander.commons.file.*;
+import com.mucommander.commons.file.filter.FileFilter;
 import com.mucommander.commons.io.BufferPool;
 import com.mucommander.commons.io.FileTransferException;
 import com.mucommander.commons.io.RandomAccessInputStream;
@@ -27,6 +28,8 @@ import com.mucommander.commons.io.StreamUtils;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.MultipleDeleteResult;
+import org.jets3t.service.model.ObjectKeyAndVersion;
 import org.jets3t.service.model.S3Owner;
 import org.jets3t.service.model.StorageObject;
 import org.jets3t.service.model.StorageOwner;
@@ -36,6 +39,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * <code>S3Object</code> represents an Amazon S3 object.
@@ -51,6 +60,9 @@ public class S3Object extends S3File {
     /** Maximum size of an S3 object (5GB) */
     private final static long MAX_OBJECT_SIZE = 5368709120l;
 
+    /** Maximum number of objects deleted by a single 'Multi-Object Delete' request */
+    final static int MAX_DELETED_OBJECTS = 1000;
+
     // TODO: add support for ACL ? (would cost an extra request per object)
     /** Default permissions for S3 objects */
     private final static FilePermissions DEFAULT_PERMISSIONS = new SimpleFilePermissions(384);   // rw-------
@@ -81,6 +93,86 @@ public class S3Object extends S3File {
         return wantTrailingSeparator?addTrailingSeparator(objectKey):removeTrailingSeparator(objectKey);
     }
 
+    /**
+     * Deletes the given objects of a bucket with 'Multi-Object Delete' requests, each deleting up to
+     * {@link #MAX_DELETED_OBJECTS} objects, and returns the files that could not be deleted. Directories, and files
+     * that are not objects of the bucket, are deleted one by one with {@link #delete()}. Unlike {@link #delete()},
+     * deleting an object that does not exist anymore is not considered an error.
+     *
+     * @param service the service the bucket is accessed with
+     * @param realm the realm the bucket's listings are cached for
+     * @param bucketName name of the bucket
+     * @param files the files to delete
+     * @return the files that could not be deleted
+     */
+    static AbstractFile[] deleteObjects(S3Service service, String realm, String bucketName, AbstractFile files[]) {
+        List<AbstractFile> failed = new ArrayList<AbstractFile>();
+        Map<String, AbstractFile> batch = new LinkedHashMap<String, AbstractFile>();
+
+        for(AbstractFile file : files) {
+            S3Object object = file.getAncestor(S3Object.class);
+            if(object==null || object.service!=service || !object.bucketName.equals(bucketName) || object.isDirectory()) {
+                try {
+                    file.delete();
+                }
+                catch(IOException e) {
+                    failed.add(file);
+                }
+                continue;
+            }
+
+            batch.put(object.getObjectKey(false), file);
+            if(batch.size()==MAX_DELETED_OBJECTS) {
+                deleteObjects(service, realm, bucketName, batch, failed);
+                batch.clear();
+            }
+        }
+
+        if(!batch.isEmpty())
+            deleteObjects(service, realm, bucketName, batch, failed);
+
+        return failed.toArray(new AbstractFile[failed.size()]);
+    }
+
+    /**
+     * Deletes the given key -> file objects with a single 'Multi-Object Delete' request, adding the files that could
+     * not be deleted to the given list.
+     */
+    private static void deleteObjects(S3Service service, String realm, String bucketName, Map<String, AbstractFile> objects, List<AbstractFile> failed) {
+        ObjectKeyAndVersion keys[] = new ObjectKeyAndVersion[objects.size()];
+        int i = 0;
+        for(String key : objects.keySet())
+            keys[i++] = new ObjectKeyAndVersion(key);
+
+        Set<String> failedKeys = new HashSet<String>();
+        try {
+            // In quiet mode, the response only lists the objects that could not be deleted
+            MultipleDeleteResult result = service.deleteMultipleObjects(bucketName, keys, true);
+            for(MultipleDeleteResult.ErrorResult error : result.getErrorResults())
+                failedKeys.add(error.getKey());
+        }
+        catch(ServiceException e) {
+            LOGGER.info("Multi-Object Delete request failed", e);
+            failedKeys.addAll(objects.keySet());
+        }
+
+        for(Map.Entry<String, AbstractFile> entry : objects.entrySet()) {
+            // The listings are invalidated whether the object has been deleted or not, the request may have failed halfway
+            S3ListingCache.invalidate(realm, bucketName, entry.getKey());
+
+            if(failedKeys.contains(entry.getKey())) {
+                failed.add(entry.getValue());
+            }
+            else {
+                // Update file attributes locally
+                S3ObjectFileAttributes atts = entry.getValue().getAncestor(S3Object.class).atts;
+                atts.setExists(false);
+                atts.setDirectory(false);
+                atts.setSize(0);
+            }
+        }
+    }
+
     /**
      * Uploads the object contained in the given input stream to S3 by performing a 'PUT Object' request.
      * The input stream is always closed, whether the operation failed or succeeded.
@@ -105,6 +197,9 @@ public class S3Object extends S3File {
             throw new FileTransferException(FileTransferException.UNKNOWN_REASON);
         }
         finally {
+            // The object may have been created even if the request failed
+            S3ListingCache.invalidate(getListingRealm(), bucketName, getObjectKey(false));
+
             // Close the InputStream, no matter what
             try {
                 in.close();
@@ -145,6 +240,19 @@ public class S3Object extends S3File {
         return listObjects(bucketName, getObjectKey(true), this);
     }
 
+    /**
+     * Implementation notes: objects are passed to the listener one page at a time, as they are returned by the server.
+     */
+    @Override
+    public void ls(FileFilter filter, FileListListener listener) throws IOException {
+        listObjects(bucketName, getObjectKey(true), this, filter, listener);
+    }
+
+    @Override
+    protected void walkTree() throws IOException, InterruptedException {
+        prefetchObjects(bucketName, getObjectKey(true));
+    }
+
     @Override
     public void mkdir() throws IOException {
         if(exists())
@@ -158,6 +266,9 @@ public class S3Object extends S3File {
         catch(S3ServiceException e) {
             throw getIOException(e);
         }
+        finally {
+            S3ListingCache.invalidate(getListingRealm(), bucketName, getObjectKey(true));
+        }
     }
 
     @Override
@@ -174,6 +285,7 @@ public class S3Object extends S3File {
                 throw new IOException("Directory not empty");
 
             service.deleteObject(bucketName, getObjectKey(isDirectory));
+            S3ListingCache.invalidate(getListingRealm(), bucketName, getObjectKey(isDirectory));
 
             // Update file attributes locally
             atts.setExists(false);
@@ -185,6 +297,15 @@ public class S3Object extends S3File {
         }
     }
 
+    /**
+     * Implementation notes: regular files are deleted with 'Multi-Object Delete' requests, up to
+     * {@link #MAX_DELETED_OBJECTS} files per request.
+     */
+    @Override
+    public AbstractFile[] deleteChildren(AbstractFile children[]) {
+        return deleteObjects(service, getListingRealm(), bucketName, children);
+    }
+
     @Override
     public void renameTo(AbstractFile destFile) throws IOException {
         copyTo(destFile);
@@ -211,9 +332,14 @@ public class S3Object extends S3File {
             boolean isDirectory = isDirectory();
             org.jets3t.service.model.S3Object destObject = new org.jets3t.service.model.S3Object(destObjectFile.getObjectKey(isDirectory));
 
-            destObject.addAllMetadata(
-                    service.copyObject(bucketName, getObjectKey(isDirectory), destObjectFile.bucketName, destObject, false)
-            );
+            try {
+                destObject.addAllMetadata(
+                        service.copyObject(bucketName, getObjectKey(isDirectory), destObjectFile.bucketName, destObject, false)
+                );
+            }
+            finally {
+                S3ListingCache.invalidate(destObjectFile.getListingRealm(), destObjectFile.bucketName, destObject.getKey());
+            }
 
             // Update destination file attributes
             destObjectFile.atts.setAttributes(destObject);
@@ -586,7 +712,8 @@ public class S3Object extends S3File {
     /**
      * S3ObjectFileAttributes provides getters and setters for S3 object attributes. By extending
      * <code>SyncedFileAttributes</code>, this class caches attributes for a certain amount of time
-     * after which fresh values are retrieved from the server.
+     * after which fresh values are retrieved from the server. Fresh values are looked up in the {@link S3ListingCache}
+     * first, and revalidated with the object's ETag if the object is not there.
      *
      * @author Maxence Bernard
      */
@@ -594,6 +721,9 @@ public class S3Object extends S3File {
 
         private final static int TTL = 60000;
 
+        /** ETag of the object the attributes were last set from, null for directories and non-existing objects */
+        private String etag;
+
         private S3ObjectFileAttributes() throws AuthException {
             super(TTL, false);      // no initial update
 
@@ -618,15 +748,30 @@ public class S3Object extends S3File {
             // Note: owner is null for common prefix objects
             StorageOwner owner = object.getOwner();
             setOwner(owner==null?null:owner.getDisplayName());
+            etag = object.getETag();
         }
 
         private void fetchAttributes() throws AuthException {
+            // Look up the object in the cached listing of its parent first, which costs no request
+            StorageObject object = S3ListingCache.getObject(getListingRealm(), bucketName, getObjectKey());
+            if(object!=null) {
+                setAttributes(object);
+                setExists(true);
+                return;
+            }
+
             try {
-                setAttributes(service.getObjectDetails(bucketName, getObjectKey(), null, null, null, null));
+                // Revalidate the current attributes if they were set from an object with an ETag: if the object hasn't
+                // changed, the server replies with '304 Not Modified'
+                setAttributes(service.getObjectDetails(bucketName, getObjectKey(), null, null, null, etag==null?null:new String[]{etag}));
                 // Object does not exist on the server
                 setExists(true);
             }
             catch(ServiceException e) {
+                // The object has not changed since the attributes were set
+                if(etag!=null && e.getResponseCode()==304)
+                    return;
+
                 // Object does not exist on the server, or could not be retrieved
                 setExists(false);
 
@@ -635,6 +780,7 @@ public class S3Object extends S3File {
                 setDate(0);
                 setPermissions(FilePermissions.EMPTY_FILE_PERMISSIONS);
                 setOwner(null);
+                etag = null;
 
                 handleAuthException(e, fileURL);
             }
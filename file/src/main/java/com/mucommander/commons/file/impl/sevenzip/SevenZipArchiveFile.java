@@ -20,7 +20,12 @@ package com.mucommander.commons.file.impl.sevenzip;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,13 +33,16 @@ import org.slf4j.LoggerFactory;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.AbstractROArchiveFile;
 import com.mucommander.commons.file.ArchiveEntry;
+import com.mucommander.commons.file.ArchiveEntryExtraction;
+import com.mucommander.commons.file.ArchiveEntryFilter;
 import com.mucommander.commons.file.ArchiveEntryIterator;
 import com.mucommander.commons.file.UnsupportedFileOperationException;
 import com.mucommander.commons.file.WrapperArchiveEntryIterator;
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.HRESULT;
 import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Archive.IInArchive;
 import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Archive.SevenZipEntry;
 import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Archive.SevenZip.Handler;
-import com.mucommander.commons.util.CircularByteBuffer;
+import com.mucommander.commons.file.util.ExtractionExecutor;
 
 
 /**
@@ -46,21 +54,50 @@ public class SevenZipArchiveFile extends AbstractROArchiveFile {
     private static final Logger LOGGER = LoggerFactory.getLogger(SevenZipArchiveFile.class);
 
     private IInArchive sevenZipFile;
+
+    /** Entry path -> index of the entry in the archive */
+    private Map<String, Integer> entryIndexes;
+
+    /** Entry index -> index of the folder (solid block) holding the entry's data, -1 if it has no data */
+    private int folderIndexes[];
+
+    /** Held while {@link #sevenZipFile} is extracting entries */
+    final Lock sevenZipFileLock = new ReentrantLock();
 	
 	public SevenZipArchiveFile(AbstractFile file) throws IOException {		
 		super(file);
 	}
 	
-	private IInArchive openSevenZipFile() throws IOException {
+	synchronized IInArchive openSevenZipFile() throws IOException {
 		if (sevenZipFile == null) {
-			MuRandomAccessFile in = new MuRandomAccessFile(file);
-//			MyRandomAccessFile in = new MyRandomAccessFile(file.getAbsolutePath(), "rw");
-			sevenZipFile = new Handler();
-			if (sevenZipFile.Open(in) != 0)
-				throw new IOException("Error while opening 7zip archive " + file.getAbsolutePath());
+			Handler archive = openArchive();
+			int nbEntries = archive.size();
+			Map<String, Integer> indexes = new HashMap<String, Integer>(nbEntries);
+			int folders[] = new int[nbEntries];
+			for(int i = 0; i < nbEntries; i++) {
+				indexes.put(archive.getEntry(i).getName(), i);
+				folders[i] = archive.getFolderIndex(i);
+			}
+			entryIndexes = indexes;
+			folderIndexes = folders;
+			sevenZipFile = archive;
 		}
         return sevenZipFile;
     }
+
+    /**
+     * Opens and returns a new handler on the archive.
+     *
+     * @return a new handler on the archive
+     * @throws IOException if the archive could not be opened
+     */
+    Handler openArchive() throws IOException {
+        MuRandomAccessFile in = new MuRandomAccessFile(file);
+        Handler archive = new Handler();
+        if (archive.Open(in) != 0)
+            throw new IOException("Error while opening 7zip archive " + file.getAbsolutePath());
+        return archive;
+    }
     
     /**
      * Creates and return an {@link ArchiveEntry()} whose attributes are fetched from the given {@link SevenZipEntry}
@@ -68,7 +105,7 @@ public class SevenZipArchiveFile extends AbstractROArchiveFile {
      * @param entry the object that serves to initialize the attributes of the returned ArchiveEntry
      * @return an ArchiveEntry whose attributes are fetched from the given SevenZipEntry
      */
-    private ArchiveEntry createArchiveEntry(SevenZipEntry entry) {
+    ArchiveEntry createArchiveEntry(SevenZipEntry entry) {
 		return new ArchiveEntry(entry.getName(), entry.isDirectory(), entry.getTime(), entry.getSize(), true);
 	}
 
@@ -79,105 +116,74 @@ public class SevenZipArchiveFile extends AbstractROArchiveFile {
 
     @Override
     public InputStream getEntryInputStream(final ArchiveEntry entry, ArchiveEntryIterator entryIterator) throws IOException, UnsupportedFileOperationException {
-		final IInArchive sevenZipFile = openSevenZipFile();
-		
-/*		ByteArrayOutputStream os = new ByteArrayOutputStream(1024);
-
-//		threadPool.execute(new Runnable() {
-//			public void run() {
-//		        BufferedOutputStream bufferedOut = new BufferedOutputStream(out);
-		        try {
-		        	int arrays []  = new int[1];
-		            for(int i = 0 ; i < sevenZipFile.size() ; i++) {
-//		                	System.out.println("check " + sevenZipFile.getEntry(i).getName());
-		                if (entry.getPath().equals(sevenZipFile.getEntry(i).getName())) {
-		                	System.out.println("entry.getPath = " + entry.getPath() + ", sevenZipFile.getEntry(i).getName() " + sevenZipFile.getEntry(i).getName());
-		                    arrays[0] = i;
-		                    break;
-		                }
-		            }
-		        	
-					MuArchiveExtractCallback extractCallbackSpec = new MuArchiveExtractCallback(os);//, entry.getPath());
-			        extractCallbackSpec.Init(sevenZipFile);
-			        try {
-			        	sevenZipFile.Extract(arrays, 1, IInArchive.NExtract_NAskMode_kExtract , extractCallbackSpec);
-			        }
-			        catch (Exception e) {
-			        	e.printStackTrace();
-//			        	return;
-			        }
-//			        sevenZipFile.Extract(null, -1, IInArchive.NExtract_NAskMode_kExtract , extractCallbackSpec);
-			        try
-			        {
-			        Thread.sleep(1000); // do nothing for 1000 miliseconds (1 second)
-			        }
-			        catch(InterruptedException e)
-			        {
-			        e.printStackTrace();
-			        }
-			        
-			        System.out.println("stopped");
-					
-//			        bufferedOut.flush();
-				}
-                catch (Exception e) {
-                    LOGGER.info("Error while retrieving 7zip entry {}", e);
-                    System.out.println("Error while retrieving 7zip entry {}");
-				}
-                finally {
-//                    try { bufferedOut.close(); }
-//                    catch(IOException e) {
-//                        // Not much we can do about it
-//                    	e.printStackTrace();
-//                    }
-
-                    try { in.close(); }
-                    catch(IOException e) {
-                        // Not much we can do about it
-                    	e.printStackTrace();
-                    }
+        final IInArchive sevenZipFile = openSevenZipFile();
+
+        Integer index = entryIndexes.get(entry.getPath());
+        if(index==null)
+            throw new IOException("No such entry in 7zip archive "+file.getAbsolutePath()+": "+entry.getPath());
+        final int indices[] = new int[] {index};
 
-                    try { sevenZipFile.close(); }
-                    catch(IOException e) {
-                        // Not much we can do about it
-                    	e.printStackTrace();
+        return ExtractionExecutor.extract(new ExtractionExecutor.Extraction() {
+            public void extractTo(OutputStream out) throws IOException {
+                // The shared archive can only extract one entry at a time: rather than waiting for it, which could
+                // block forever if the consumer of the other entry is waiting for this one, extract from a private one
+                if(sevenZipFileLock.tryLock()) {
+                    try {
+                        extract(sevenZipFile, indices, entry.getPath(), out);
+                    }
+                    finally {
+                        sevenZipFileLock.unlock();
+                    }
+                }
+                else {
+                    IInArchive privateSevenZipFile = openArchive();
+                    try {
+                        extract(privateSevenZipFile, indices, entry.getPath(), out);
+                    }
+                    finally {
+                        privateSevenZipFile.close();
                     }
                 }
-//			}
-//		});
-		
-		return new ByteArrayInputStream(os.toByteArray()); */
-		
-		final int arrays []  = new int[1];
-        for(int i = 0 ; i < sevenZipFile.size() ; i++) {
-//            	System.out.println("check " + sevenZipFile.getEntry(i).getName());
-            if (entry.getPath().equals(sevenZipFile.getEntry(i).getName())) {
-            	System.out.println("entry.getPath = " + entry.getPath() + ", sevenZipFile.getEntry(i).getName() " + sevenZipFile.getEntry(i).getName());
-                arrays[0] = i;
-                break;
             }
-        }
-    	
-		final CircularByteBuffer cbb = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
-		  new Thread(
-		    new Runnable(){
-		      public void run(){
-		        
-		        MuArchiveExtractCallback extractCallbackSpec = new MuArchiveExtractCallback(cbb.getOutputStream(), entry.getPath());
-		        extractCallbackSpec.Init(sevenZipFile);
-		        try {
-		        	sevenZipFile.Extract(arrays, 1, IInArchive.NExtract_NAskMode_kExtract , extractCallbackSpec);
-		        }
-		        catch (Exception e) {
-		        	e.printStackTrace();
-//		        	return;
-		        }
-		      }
-		    }
-		  ).start();
-		  
-		  return cbb.getInputStream();
-	}
+        });
+    }
+
+    /**
+     * Returns the index of the folder (solid block) that holds the data of the entry at the given index, <code>-1</code>
+     * if the entry has no data. {@link #openSevenZipFile()} must have been called.
+     *
+     * @param index index of an entry
+     * @return the index of the folder that holds the data of the entry, -1 if it has no data
+     */
+    int getFolderIndex(int index) {
+        return folderIndexes[index];
+    }
+
+    /**
+     * Extracts the entry at the given index of the given archive.
+     *
+     * @param sevenZipFile the archive to extract the entry from
+     * @param indices an array containing the index of the entry
+     * @param path the path of the entry
+     * @param out the stream to write the entry's contents to
+     * @throws IOException if the entry could not be extracted
+     */
+    private static void extract(IInArchive sevenZipFile, int indices[], String path, OutputStream out) throws IOException {
+        MuArchiveExtractCallback extractCallbackSpec = new MuArchiveExtractCallback(out, path);
+        extractCallbackSpec.Init(sevenZipFile);
+        int result = sevenZipFile.Extract(indices, 1, IInArchive.NExtract_NAskMode_kExtract, extractCallbackSpec);
+        if(result!=HRESULT.S_OK || extractCallbackSpec.NumErrors>0)
+            throw new IOException("Error while extracting 7zip entry "+path);
+    }
+
+    /**
+     * Returns a {@link SevenZipEntryExtraction}, which decodes each folder (solid block) of the archive only once for
+     * all the selected entries it holds, and decodes several folders concurrently.
+     */
+    @Override
+    public ArchiveEntryExtraction extractEntries(ArchiveEntryFilter filter) throws IOException {
+        return new SevenZipEntryExtraction(this, filter);
+    }
 
 	@Override
     public ArchiveEntryIterator getEntryIterator() throws IOException {
@@ -0,0 +1,452 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file.impl.sevenzip;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mucommander.commons.file.ArchiveEntry;
+import com.mucommander.commons.file.ArchiveEntryExtraction;
+import com.mucommander.commons.file.ArchiveEntryFilter;
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.HRESULT;
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Archive.IArchiveExtractCallback;
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Archive.IInArchive;
+import com.mucommander.commons.file.util.ExtractionExecutor;
+import com.mucommander.commons.io.BoundedPipe;
+
+/**
+ * Extracts many entries of a 7zip archive at once.
+ *
+ * <p>The entries of a 7zip archive are usually compressed together in a few folders (solid blocks), which can only be
+ * decoded from their start: extracting entries one by one decodes each folder again for every entry it holds. This
+ * class instead decodes each folder once, handing each selected entry's bytes over to the consumer as they are
+ * decoded, and decodes up to {@link #NB_PARALLEL_FOLDERS} folders concurrently using the {@link ExtractionExecutor}.
+ * Entries are returned in the order they become available.</p>
+ *
+ * <p>Each entry is written to a {@link BoundedPipe}, and a folder is decoded at most one entry ahead of the consumer,
+ * so that memory usage stays bounded however slowly entries are read. Entries that the consumer doesn't read entirely
+ * are decoded anyway, but their remaining bytes are discarded, as the following entries of the folder depend on
+ * them.</p>
+ */
+class SevenZipEntryExtraction implements ArchiveEntryExtraction {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SevenZipEntryExtraction.class);
+
+    /** Maximum number of folders decoded at the same time */
+    private final static int NB_PARALLEL_FOLDERS = 2;
+
+    private final SevenZipArchiveFile archiveFile;
+    private final ArchiveEntryFilter filter;
+
+    /** The archive's shared handler, null until the extraction is started */
+    private IInArchive sevenZipFile;
+    /** Folders waiting to be decoded */
+    private final LinkedList<FolderExtraction> pendingFolders = new LinkedList<FolderExtraction>();
+    /** Entries ready to be returned, in the order they became ready */
+    private final LinkedList<ExtractedEntry> readyEntries = new LinkedList<ExtractedEntry>();
+    /** Number of entries that remain to be returned */
+    private int nbRemainingEntries;
+    /** The entry that was last returned */
+    private ExtractedEntry currentEntry;
+    /** True once this extraction has been closed */
+    private volatile boolean closed;
+
+    SevenZipEntryExtraction(SevenZipArchiveFile archiveFile, ArchiveEntryFilter filter) {
+        this.archiveFile = archiveFile;
+        this.filter = filter;
+    }
+
+    /**
+     * Selects the entries to extract, groups them by folder and starts decoding the folders.
+     */
+    private synchronized void start() throws IOException {
+        sevenZipFile = archiveFile.openSevenZipFile();
+
+        // Folder index -> extraction of the selected entries of that folder
+        Map<Integer, FolderExtraction> folders = new LinkedHashMap<Integer, FolderExtraction>();
+        int nbEntries = sevenZipFile.size();
+        for(int i=0; i<nbEntries; i++) {
+            ArchiveEntry entry = archiveFile.createArchiveEntry(sevenZipFile.getEntry(i));
+            if(!filter.accept(entry))
+                continue;
+
+            nbRemainingEntries++;
+            int folderIndex = archiveFile.getFolderIndex(i);
+            if(folderIndex==-1) {
+                // Directories and empty files have nothing to decode
+                readyEntries.add(new ExtractedEntry(entry, new ByteArrayInputStream(new byte[0])));
+                continue;
+            }
+
+            FolderExtraction folder = folders.get(folderIndex);
+            if(folder==null) {
+                folder = new FolderExtraction();
+                folders.put(folderIndex, folder);
+            }
+            folder.add(i, entry);
+        }
+
+        pendingFolders.addAll(folders.values());
+        int nbWorkers = Math.min(NB_PARALLEL_FOLDERS, pendingFolders.size());
+        for(int i=0; i<nbWorkers; i++)
+            ExtractionExecutor.execute(new FolderWorker());
+    }
+
+    /**
+     * Returns the next folder to decode, <code>null</code> if there are none left or if this extraction was closed.
+     */
+    private synchronized FolderExtraction nextFolder() {
+        if(closed)
+            return null;
+
+        return pendingFolders.poll();
+    }
+
+    /**
+     * Makes the given entry of the folder available to the consumer, after waiting for the consumer to have taken the
+     * folder's previous entry if <code>waitForConsumer</code> is <code>true</code>.
+     *
+     * @throws IOException if this extraction has been closed
+     */
+    private synchronized void publish(FolderExtraction folder, ExtractedEntry entry, boolean waitForConsumer) throws IOException {
+        try {
+            while(waitForConsumer && !closed && folder.lastPublished!=null && !folder.lastPublished.taken)
+                wait();
+        }
+        catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        if(closed)
+            throw new IOException("Extraction closed");
+
+        readyEntries.add(entry);
+        folder.lastPublished = entry;
+        folder.nbPublished++;
+        notifyAll();
+    }
+
+    /**
+     * Closes the stream of the current entry, discarding the bytes that haven't been read.
+     */
+    private void closeCurrentEntry() {
+        if(currentEntry!=null) {
+            currentEntry.close();
+            currentEntry = null;
+        }
+    }
+
+
+    ///////////////////////////////////////////
+    // ArchiveEntryExtraction implementation //
+    ///////////////////////////////////////////
+
+    public ArchiveEntry nextEntry() throws IOException {
+        closeCurrentEntry();
+
+        if(sevenZipFile==null)
+            start();
+
+        synchronized(this) {
+            try {
+                while(readyEntries.isEmpty() && nbRemainingEntries>0 && !closed)
+                    wait();
+            }
+            catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            if(closed || nbRemainingEntries==0)
+                return null;
+
+            currentEntry = readyEntries.removeFirst();
+            currentEntry.taken = true;
+            nbRemainingEntries--;
+            // Let the entry's folder decode its next entry
+            notifyAll();
+
+            return currentEntry.entry;
+        }
+    }
+
+    public InputStream getEntryInputStream() throws IOException {
+        if(currentEntry==null)
+            throw new IOException("No current entry");
+
+        // The entry's bytes can only be consumed once, extract it again if it is requested again
+        if(currentEntry.opened)
+            return archiveFile.getEntryInputStream(currentEntry.entry, null);
+
+        currentEntry.opened = true;
+        if(currentEntry.failure!=null)
+            throw currentEntry.failure;
+
+        return currentEntry.in;
+    }
+
+    public void close() {
+        List<ExtractedEntry> unreadEntries;
+        synchronized(this) {
+            closed = true;
+            pendingFolders.clear();
+            unreadEntries = new ArrayList<ExtractedEntry>(readyEntries);
+            readyEntries.clear();
+            notifyAll();
+        }
+
+        // Closing the streams makes the decoding of their folder fail, which stops it
+        closeCurrentEntry();
+        for(ExtractedEntry entry : unreadEntries)
+            entry.close();
+    }
+
+
+    ///////////////////
+    // Inner classes //
+    ///////////////////
+
+    /**
+     * An entry that is ready to be returned, and the stream its contents can be read from.
+     */
+    private static class ExtractedEntry {
+        private final ArchiveEntry entry;
+        private final InputStream in;
+        private final IOException failure;
+
+        /** True once the entry has been returned by nextEntry() */
+        private boolean taken;
+        /** True once the entry's stream has been returned */
+        private boolean opened;
+
+        private ExtractedEntry(ArchiveEntry entry, InputStream in) {
+            this.entry = entry;
+            this.in = in;
+            this.failure = null;
+        }
+
+        private ExtractedEntry(ArchiveEntry entry, IOException failure) {
+            this.entry = entry;
+            this.in = null;
+            this.failure = failure;
+        }
+
+        private void close() {
+            if(in!=null) {
+                try { in.close(); }
+                catch(IOException e) {
+                    // Not much we can do about it
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes pending folders until there are none left. The archive's shared handler is used if it is available,
+     * a private one otherwise.
+     */
+    private class FolderWorker implements Runnable {
+        public void run() {
+            IInArchive handler = null;
+            boolean shared = false;
+            try {
+                FolderExtraction folder;
+                while((folder = nextFolder())!=null) {
+                    try {
+                        if(handler==null) {
+                            if(archiveFile.sevenZipFileLock.tryLock()) {
+                                handler = sevenZipFile;
+                                shared = true;
+                            }
+                            else {
+                                handler = archiveFile.openArchive();
+                            }
+                        }
+                        folder.extract(handler);
+                    }
+                    catch(IOException e) {
+                        folder.fail(e);
+                    }
+                    catch(RuntimeException e) {
+                        LOGGER.info("Error while extracting 7zip archive", e);
+                        folder.fail(new IOException(e.toString()));
+                    }
+                }
+            }
+            finally {
+                if(shared) {
+                    archiveFile.sevenZipFileLock.unlock();
+                }
+                else if(handler!=null) {
+                    try { handler.close(); }
+                    catch(IOException e) {
+                        // Not much we can do about it
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes a folder, and writes each of its selected entries to a pipe that is published as soon as the entry's
+     * bytes start coming out of the decoder.
+     */
+    private class FolderExtraction implements IArchiveExtractCallback {
+        /** Indexes of the selected entries of the folder, in increasing order */
+        private final List<Integer> indices = new ArrayList<Integer>();
+        /** The selected entries of the folder */
+        private final List<ArchiveEntry> entries = new ArrayList<ArchiveEntry>();
+
+        /** Number of entries that have been published */
+        private int nbPublished;
+        /** The entry that was last published */
+        private ExtractedEntry lastPublished;
+        /** The pipe the entry being decoded is written to, null between entries */
+        private BoundedPipe currentPipe;
+
+        private void add(int index, ArchiveEntry entry) {
+            indices.add(index);
+            entries.add(entry);
+        }
+
+        private void extract(IInArchive handler) throws IOException {
+            int nbIndices = indices.size();
+            int indexArray[] = new int[nbIndices];
+            for(int i=0; i<nbIndices; i++)
+                indexArray[i] = indices.get(i);
+
+            int result = handler.Extract(indexArray, nbIndices, IInArchive.NExtract_NAskMode_kExtract, this);
+            if(result!=HRESULT.S_OK || nbPublished<nbIndices)
+                fail(new IOException("Error while extracting 7zip archive "+archiveFile.getAbsolutePath()));
+        }
+
+        /**
+         * Reports the given error for the entry being decoded and for the entries that haven't been published yet.
+         */
+        private void fail(IOException e) {
+            if(currentPipe!=null) {
+                currentPipe.fail(e);
+                currentPipe = null;
+            }
+
+            try {
+                while(nbPublished<entries.size())
+                    publish(this, new ExtractedEntry(entries.get(nbPublished), e), false);
+            }
+            catch(IOException e2) {
+                // The extraction has been closed, nobody is waiting for the entries
+            }
+        }
+
+        public int GetStream(int index, OutputStream[] outStream, int askExtractMode) throws IOException {
+            // Entries of the folder that were not selected are decoded but not written anywhere
+            if(askExtractMode!=IInArchive.NExtract_NAskMode_kExtract)
+                return HRESULT.S_OK;
+
+            if(nbPublished>=indices.size() || indices.get(nbPublished)!=index)
+                throw new IOException("Unexpected 7zip entry: "+index);
+
+            BoundedPipe pipe = new BoundedPipe(ExtractionExecutor.PIPE_CAPACITY);
+            try {
+                publish(this, new ExtractedEntry(entries.get(nbPublished), pipe.getInputStream()), true);
+            }
+            catch(IOException e) {
+                // Release the pipe's buffer
+                pipe.getOutputStream().close();
+                pipe.getInputStream().close();
+                throw e;
+            }
+
+            currentPipe = pipe;
+            outStream[0] = new EntryOutputStream(pipe);
+            return HRESULT.S_OK;
+        }
+
+        public int PrepareOperation(int askExtractMode) {
+            return HRESULT.S_OK;
+        }
+
+        public int SetOperationResult(int resultEOperationResult) {
+            // The pipe itself is closed by the decoder once this method returns
+            if(currentPipe!=null) {
+                if(resultEOperationResult!=IInArchive.NExtract_NOperationResult_kOK)
+                    currentPipe.fail(new IOException("Error while extracting 7zip entry "+entries.get(nbPublished-1).getPath()));
+                currentPipe = null;
+            }
+            return HRESULT.S_OK;
+        }
+
+        public int SetTotal(long total) {
+            return HRESULT.S_OK;
+        }
+
+        public int SetCompleted(long completeValue) {
+            return HRESULT.S_OK;
+        }
+    }
+
+    /**
+     * Writes an entry's bytes to its pipe. Once the consumer has closed the pipe, bytes are discarded rather than
+     * failing the decoding of the rest of the folder, unless the whole extraction has been closed.
+     */
+    private class EntryOutputStream extends OutputStream {
+        private final BoundedPipe pipe;
+        private final OutputStream out;
+
+        private EntryOutputStream(BoundedPipe pipe) {
+            this.pipe = pipe;
+            this.out = pipe.getOutputStream();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) throws IOException {
+            try {
+                if(!pipe.isReaderClosed())
+                    out.write(b, off, len);
+            }
+            catch(IOException e) {
+                // The consumer closed the pipe while it was being written to
+                if(!pipe.isReaderClosed())
+                    throw e;
+            }
+
+            if(closed)
+                throw new IOException("Extraction closed");
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -305,6 +305,16 @@ public class Handler implements com.mucommander.commons.file.impl.sevenzip.provi
     public int size() {
         return _database.Files.size();
     }
+
+    /**
+     * Returns the index of the folder (solid block) that holds the data of the given file, <code>-1</code> if the file
+     * has no data (directories and empty files). The files of a folder can only be decoded in a single pass, in the
+     * order of their index.
+     */
+    public int getFolderIndex(int index) {
+        int folderIndex = _database.FileIndexToFolderIndexMap.get(index);
+        return folderIndex == InArchive.kNumNoIndex ? -1 : folderIndex;
+    }
     
     long getPackSize(int index2) {
         long packSize = 0;
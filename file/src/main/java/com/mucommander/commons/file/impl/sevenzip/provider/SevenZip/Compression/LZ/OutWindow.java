@@ -70,11 +70,27 @@ public class OutWindow {
         int pos = _pos - distance - 1;
         if (pos < 0)
             pos += _windowSize;
-        for (; len != 0; len--) {
+        _processedSize += len;
+        while (len != 0) {
             if (pos >= _windowSize)
                 pos = 0;
-            _buffer[_pos++] = _buffer[pos++];
-            _processedSize++;
+            // Copy up to the end of the window, for both the source and the destination
+            int chunk = Math.min(len, Math.min(_windowSize - _pos, _windowSize - pos));
+            int gap = _pos - pos;
+            if (gap > 0 && gap < chunk) {
+                // The source overlaps the bytes being written: they repeat the last 'gap' bytes
+                if (gap == 1) {
+                    java.util.Arrays.fill(_buffer, _pos, _pos + chunk, _buffer[pos]);
+                } else {
+                    for (int i = 0; i < chunk; i++)
+                        _buffer[_pos + i] = _buffer[pos + i];
+                }
+            } else {
+                System.arraycopy(_buffer, pos, _buffer, _pos, chunk);
+            }
+            _pos += chunk;
+            pos += chunk;
+            len -= chunk;
             if (_pos >= _windowSize)
                 Flush();
         }
@@ -75,29 +75,11 @@ public class Decoder
             }
             
             public byte DecodeNormal(com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Compression.RangeCoder.Decoder rangeDecoder) throws IOException {
-                int symbol = 1;
-                do
-                    symbol = (symbol << 1) | rangeDecoder.DecodeBit(m_Decoders, symbol);
-                while (symbol < 0x100);
-                return (byte)symbol;
+                return (byte)rangeDecoder.DecodeLiteral(m_Decoders);
             }
             
             public byte DecodeWithMatchByte(com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Compression.RangeCoder.Decoder rangeDecoder, byte matchByte) throws IOException {
-                int symbol = 1;
-                do
-                {
-                    int matchBit = (matchByte >> 7) & 1;
-                    matchByte <<= 1;
-                    int bit = rangeDecoder.DecodeBit(m_Decoders, ((1 + matchBit) << 8) + symbol);
-                    symbol = (symbol << 1) | bit;
-                    if (matchBit != bit) {
-                        while (symbol < 0x100)
-                            symbol = (symbol << 1) | rangeDecoder.DecodeBit(m_Decoders, symbol);
-                        break;
-                    }
-                }
-                while (symbol < 0x100);
-                return (byte)symbol;
+                return (byte)rangeDecoder.DecodeMatchedLiteral(m_Decoders, matchByte & 0xFF);
             }
         }
         
@@ -149,6 +131,9 @@ public class Decoder
     
     LiteralDecoder m_LiteralDecoder = new LiteralDecoder();
     
+    /** Minimum size of the output window */
+    static final int kMinWindowSize = 1 << 20;
+    
     int m_DictionarySize = -1;
     int m_DictionarySizeCheck =  -1;
     
@@ -165,7 +150,9 @@ public class Decoder
         if (m_DictionarySize != dictionarySize) {
             m_DictionarySize = dictionarySize;
             m_DictionarySizeCheck = Math.max(m_DictionarySize, 1);
-            m_OutWindow.Create(Math.max(m_DictionarySizeCheck, (1 << 12)));
+            // The window is flushed to the output stream each time it is full: don't make it smaller than
+            // kMinWindowSize even for small dictionaries, so that the output is written in large blocks
+            m_OutWindow.Create(Math.max(m_DictionarySizeCheck, kMinWindowSize));
             m_RangeDecoder.Create(1 << 20);
         }
         return true;
@@ -356,11 +343,12 @@ public class Decoder
         int state = _state;
         byte prevByte;
         
-        while(_remainLen > 0 && curSize > 0) {
-            prevByte = m_OutWindow.GetByte(rep0);
-            m_OutWindow.PutByte(prevByte);
-            _remainLen--;
-            curSize--;
+        if (_remainLen > 0 && curSize > 0) {
+            // Finish the match that was interrupted by the end of the previous call
+            int locLen = Math.min(_remainLen, curSize);
+            m_OutWindow.CopyBlock(rep0, locLen);
+            _remainLen -= locLen;
+            curSize -= locLen;
         }
         long nowPos64 = m_OutWindow.GetProcessedSize();
         if (nowPos64 == 0)
@@ -21,7 +21,7 @@ public class Decoder
         
         public com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Common.InBuffer bufferedStream = new com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Common.InBuffer();
         
-        int read() throws IOException {
+        final int read() throws IOException {
             return bufferedStream.read();
         }
         
@@ -71,7 +71,7 @@ public class Decoder
 		return result;
 	}
 	
-	public int DecodeBit(short []probs, int index) throws IOException
+	public final int DecodeBit(short []probs, int index) throws IOException
 	{
 		int prob = probs[index];
 		int newBound = (Range >>> kNumBitModelTotalBits) * prob;
@@ -100,6 +100,89 @@ public class Decoder
 		}
 	}
 	
+	/*
+	 * The following methods decode several bits at once, keeping the coder's state in local variables
+	 * for the duration of the call. They decode exactly the same bits as the equivalent DecodeBit() loops.
+	 */
+	
+	public final int DecodeBitTree(short []probs, int numBitLevels) throws IOException
+	{
+		int range = Range;
+		int code = Code;
+		int m = 1;
+		for (int bitIndex = numBitLevels; bitIndex != 0; bitIndex--)
+		{
+			int prob = probs[m];
+			int newBound = (range >>> kNumBitModelTotalBits) * prob;
+			if ((code ^ 0x80000000) < (newBound ^ 0x80000000))
+			{
+				range = newBound;
+				probs[m] = (short)(prob + ((kBitModelTotal - prob) >>> kNumMoveBits));
+				m <<= 1;
+			}
+			else
+			{
+				range -= newBound;
+				code -= newBound;
+				probs[m] = (short)(prob - ((prob) >>> kNumMoveBits));
+				m = (m << 1) | 1;
+			}
+			if ((range & kTopMask) == 0)
+			{
+				code = (code << 8) | bufferedStream.read();
+				range <<= 8;
+			}
+		}
+		Range = range;
+		Code = code;
+		return m - (1 << numBitLevels);
+	}
+	
+	public final int DecodeLiteral(short []probs) throws IOException
+	{
+		return DecodeBitTree(probs, 8);
+	}
+	
+	public final int DecodeMatchedLiteral(short []probs, int matchByte) throws IOException
+	{
+		int range = Range;
+		int code = Code;
+		int symbol = 1;
+		// Bits are decoded with the probabilities of the match byte's bits, until one differs
+		int offset = 0x100;
+		do
+		{
+			matchByte <<= 1;
+			int index = offset + (matchByte & offset) + symbol;
+			int prob = probs[index];
+			int newBound = (range >>> kNumBitModelTotalBits) * prob;
+			if ((code ^ 0x80000000) < (newBound ^ 0x80000000))
+			{
+				range = newBound;
+				probs[index] = (short)(prob + ((kBitModelTotal - prob) >>> kNumMoveBits));
+				symbol <<= 1;
+				offset &= ~matchByte;
+			}
+			else
+			{
+				range -= newBound;
+				code -= newBound;
+				probs[index] = (short)(prob - ((prob) >>> kNumMoveBits));
+				symbol = (symbol << 1) | 1;
+				offset &= matchByte;
+			}
+			if ((range & kTopMask) == 0)
+			{
+				code = (code << 8) | bufferedStream.read();
+				range <<= 8;
+			}
+		}
+		while (symbol < 0x100);
+		Range = range;
+		Code = code;
+		return symbol;
+	}
+	
 	public static void InitBitModels(short []probs)
 	{
 		for (int i = 0; i < probs.length; i++)
@@ -26,6 +26,7 @@ import com.mucommander.commons.file.connection.ConnectionHandler;
 import com.sshtools.j2ssh.SftpClient;
 import com.sshtools.j2ssh.SshClient;
 import com.sshtools.j2ssh.authentication.*;
+import com.sshtools.j2ssh.session.SessionChannelClient;
 import com.sshtools.j2ssh.sftp.SftpSubsystemClient;
 import com.sshtools.j2ssh.transport.IgnoreHostKeyVerification;
 import com.sshtools.j2ssh.transport.publickey.InvalidSshKeyException;
@@ -36,7 +37,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * Handles connections to SFTP servers.
@@ -50,6 +56,24 @@ class SFTPConnectionHandler extends ConnectionHandler {
     SftpClient sftpClient;
     SftpSubsystemClient sftpSubsystem;
 
+    /** False if the server refused to execute a command (once tried and failed), typically for SFTP-only accounts,
+     * or if a command didn't report its exit status */
+    boolean execAllowed = true;
+
+    /** Number of milliseconds after which a command that hasn't completed is aborted, for commands that don't
+     * process a file's contents */
+    private final static long COMMAND_TIMEOUT = 5*60*1000;
+
+    /** Minimum throughput expected from commands that process a file's contents, in bytes per second, see
+     * {@link #getCommandTimeout(long)} */
+    private final static long MIN_COMMAND_THROUGHPUT = 1048576;
+
+    /** Controls how often running commands are checked for timeout or interruption, in milliseconds */
+    private final static long COMMAND_WATCH_PERIOD = 1000;
+
+    /** Aborts the commands that have timed out or whose thread was interrupted, shared by all connections */
+    private final static Timer COMMAND_TIMER = new Timer("SFTP command watchdog", true);
+
     /** 'Password' SSH authentication method */
     private final static String PASSWORD_AUTH_METHOD = "password";
 
@@ -65,6 +89,159 @@ class SFTPConnectionHandler extends ConnectionHandler {
     }
 
 
+    /**
+     * Returns the number of milliseconds after which a command that processes the given number of bytes is aborted:
+     * {@link #COMMAND_TIMEOUT}, plus the time it takes to process them at {@link #MIN_COMMAND_THROUGHPUT}.
+     *
+     * @param nbBytes number of bytes the command processes
+     * @return the command's timeout in milliseconds
+     */
+    static long getCommandTimeout(long nbBytes) {
+        return COMMAND_TIMEOUT + Math.max(0, nbBytes)/MIN_COMMAND_THROUGHPUT*1000;
+    }
+
+    /**
+     * Executes the given command on the server in a new session channel, waits for it to complete and returns its
+     * exit code. The command's output is discarded, and it is aborted after {@link #COMMAND_TIMEOUT} milliseconds.
+     *
+     * @param command the command to execute, interpreted by the user's shell
+     * @return the command's exit code, -1 if the server didn't report it
+     * @throws InterruptedIOException if the command timed out or the calling thread was interrupted
+     * @throws IOException if the server refused to execute the command or an I/O error occurred
+     * @see #executeCommand(String, OutputStream, long)
+     */
+    int executeCommand(String command) throws IOException {
+        return executeCommand(command, null, COMMAND_TIMEOUT);
+    }
+
+    /**
+     * Executes the given command on the server in a new session channel, waits for it to complete and returns its
+     * exit code. The command's standard output is written to the given stream, its error output is discarded.
+     *
+     * <p>The command's standard input is closed as soon as it is started. The command is aborted if it hasn't
+     * completed after the given number of milliseconds, or if the calling thread is interrupted: its session channel
+     * is closed, which does not necessarily stop the command on the server. Commands are no longer executed on this
+     * connection ({@link #execAllowed} is set to <code>false</code>) if the server refuses to execute one or doesn't
+     * report its exit status.</p>
+     *
+     * @param command the command to execute, interpreted by the user's shell
+     * @param out the stream the command's standard output is written to, <code>null</code> to discard it
+     * @param timeout number of milliseconds after which the command is aborted
+     * @return the command's exit code, -1 if the server didn't report it
+     * @throws InterruptedIOException if the command timed out or the calling thread was interrupted, in which case
+     * the command may still be running on the server
+     * @throws IOException if the server refused to execute the command or an I/O error occurred
+     */
+    int executeCommand(String command, OutputStream out, long timeout) throws IOException {
+        SessionChannelClient session = sshClient.openSessionChannel();
+        CommandWatchdog watchdog = new CommandWatchdog(session, System.currentTimeMillis()+timeout);
+        COMMAND_TIMER.schedule(watchdog, COMMAND_WATCH_PERIOD, COMMAND_WATCH_PERIOD);
+        try {
+            if(!session.executeCommand(command)) {
+                execAllowed = false;
+                throw new IOException("Server refused to execute command");
+            }
+
+            // Send EOF so that a command reading its standard input doesn't wait for it forever
+            session.getOutputStream().close();
+
+            // Wait for the command to complete: the server closes the channel's streams when it exits
+            try {
+                drain(session.getInputStream(), out);
+                drain(session.getStderrInputStream(), null);
+            }
+            catch(IOException e) {
+                // Closing the channel may cause the streams to fail rather than reach EOF
+                if(!watchdog.aborted)
+                    throw e;
+            }
+
+            // The command was accepted, so the server still allows commands to be executed
+            if(watchdog.finish())
+                throw new InterruptedIOException("Command timed out or was interrupted: "+command);
+
+            Integer exitCode = session.getExitCode();
+            if(exitCode==null) {
+                LOGGER.info("Server didn't report the exit status of {}, no longer executing commands", command);
+                execAllowed = false;
+                return -1;
+            }
+
+            return exitCode;
+        }
+        finally {
+            watchdog.finish();
+            session.close();
+        }
+    }
+
+    /**
+     * Reads the given stream until EOF is reached, writing its contents to the given stream or discarding them if it
+     * is <code>null</code>.
+     */
+    private static void drain(InputStream in, OutputStream out) throws IOException {
+        byte buffer[] = new byte[1024];
+        int nbRead;
+        while((nbRead=in.read(buffer))!=-1) {
+            if(out!=null)
+                out.write(buffer, 0, nbRead);
+        }
+    }
+
+
+
+    /**
+     * Periodically checks a running command, and closes its session channel, causing its streams to be closed, once it
+     * has timed out or the thread that waits for it has been interrupted.
+     */
+    private static class CommandWatchdog extends TimerTask {
+
+        private final SessionChannelClient session;
+
+        /** The thread waiting for the command */
+        private final Thread thread;
+
+        /** Time at which the command times out */
+        private final long deadline;
+
+        /** True once the command has completed, guarded by this */
+        private boolean finished;
+
+        /** True if the command was aborted */
+        private volatile boolean aborted;
+
+        private CommandWatchdog(SessionChannelClient session, long deadline) {
+            this.session = session;
+            this.thread = Thread.currentThread();
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops watching the command, and returns <code>true</code> if it was aborted.
+         */
+        private synchronized boolean finish() {
+            finished = true;
+            cancel();
+            return aborted;
+        }
+
+        @Override
+        public synchronized void run() {
+            if(finished || (System.currentTimeMillis()<deadline && !thread.isInterrupted()))
+                return;
+
+            aborted = true;
+            cancel();
+            try {
+                session.close();
+            }
+            catch(IOException e) {
+                LOGGER.info("Failed to close the session channel of an aborted command", e);
+            }
+        }
+    }
+
+
     //////////////////////////////////////
     // ConnectionHandler implementation //
     //////////////////////////////////////
@@ -23,16 +23,22 @@ package com.mucommander.commons.file.impl.sftp;
 import com.mucommander.commons.file.*;
 import com.mucommander.commons.file.connection.ConnectionHandler;
 import com.mucommander.commons.file.connection.ConnectionPool;
+import com.mucommander.commons.file.filter.FileFilter;
 import com.mucommander.commons.io.*;
 import com.sshtools.j2ssh.io.UnsignedInteger32;
+import com.sshtools.j2ssh.io.UnsignedInteger64;
 import com.sshtools.j2ssh.sftp.FileAttributes;
 import com.sshtools.j2ssh.sftp.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -79,6 +85,9 @@ public class SFTPFile extends ProtocolFile {
     private long canonicalPathFetchedTime;
 
 
+    /** Maximum length of the commands that remove several files at once, well below the usual ARG_MAX limits */
+    private final static int MAX_COMMAND_LENGTH = 32768;
+
     /** Period of time during which file attributes are cached, before being fetched again from the server. */
     private static long attributeCachingPeriod = 60000;
 
@@ -365,6 +374,11 @@ public class SFTPFile extends ProtocolFile {
         return new SFTPRandomAccessInputStream();
     }
 
+    @Override
+    public RandomAccessOutputStream getRandomAccessOutputStream() throws IOException {
+        return new SFTPRandomAccessOutputStream();
+    }
+
     @Override
     public void delete() throws IOException {
         // Retrieve a ConnectionHandler and lock it
@@ -421,24 +435,17 @@ public class SFTPFile extends ProtocolFile {
             return new AbstractFile[] {};
 
         AbstractFile children[] = new AbstractFile[nbFiles];
-        FileURL childURL;
-        String filename;
         int fileCount = 0;
         String parentPath = fileURL.getPath();
         if(!parentPath .endsWith(SEPARATOR))
             parentPath  += SEPARATOR;
 
         // Fill AbstractFile array and discard '.' and '..' files
+        AbstractFile child;
         for (SftpFile file : files) {
-            filename = file.getFilename();
-            // Discard '.' and '..' files, dunno why these are returned
-            if (filename.equals(".") || filename.equals(".."))
-                continue;
-
-            childURL = (FileURL) fileURL.clone();
-            childURL.setPath(parentPath + filename);
-
-            children[fileCount++] = FileFactory.getFile(childURL, this, new SFTPFileAttributes(childURL, file.getAttributes()));
+            child = createChild(file, parentPath);
+            if (child != null)
+                children[fileCount++] = child;
         }
 
         // Create new array of the exact file count
@@ -451,6 +458,74 @@ public class SFTPFile extends ProtocolFile {
         return children;
     }
 
+    /**
+     * Implementation notes: the directory is read one READDIR request at a time, each of which returns the next
+     * entries of the directory, and the corresponding files are passed to the listener as soon as a batch is complete.
+     */
+    @Override
+    public void ls(FileFilter filter, FileListListener listener) throws IOException {
+        // Retrieve a ConnectionHandler and lock it
+        SFTPConnectionHandler connHandler = (SFTPConnectionHandler)ConnectionPool.getConnectionHandler(connHandlerFactory, fileURL, true);
+        try {
+            // Makes sure the connection is started, if not starts it
+            connHandler.checkConnection();
+
+            String parentPath = fileURL.getPath();
+            if(!parentPath.endsWith(SEPARATOR))
+                parentPath += SEPARATOR;
+
+            List<SftpFile> files = new ArrayList<SftpFile>();
+            List<AbstractFile> batch = new ArrayList<AbstractFile>(LS_BATCH_SIZE);
+            AbstractFile child;
+
+            SftpFile directory = connHandler.sftpSubsystem.openDirectory(absPath);
+            try {
+                // listChildren returns -1 once all the entries of the directory have been returned
+                while(connHandler.sftpSubsystem.listChildren(directory, files)>-1) {
+                    for (SftpFile file : files) {
+                        child = createChild(file, parentPath);
+                        if (child != null)
+                            batch.add(child);
+                    }
+                    files.clear();
+
+                    if(batch.size()>=LS_BATCH_SIZE && !fireFilesListed(batch, filter, listener))
+                        return;
+                }
+
+                fireFilesListed(batch, filter, listener);
+            }
+            finally {
+                directory.close();
+            }
+        }
+        finally {
+            // Release the lock on the ConnectionHandler
+            connHandler.releaseLock();
+        }
+    }
+
+    /**
+     * Creates and returns the child of this directory that corresponds to the given entry, <code>null</code> if the
+     * entry is one of the '.' and '..' entries.
+     *
+     * @param file an entry of this directory, as returned by the server
+     * @param parentPath the path of this directory, ending with a separator
+     * @return the child of this directory that corresponds to the given entry
+     * @throws IOException if the child could not be created
+     */
+    private AbstractFile createChild(SftpFile file, String parentPath) throws IOException {
+        String filename = file.getFilename();
+        // Discard '.' and '..' files, dunno why these are returned
+        if (filename.equals(".") || filename.equals(".."))
+            return null;
+
+        FileURL childURL = (FileURL) fileURL.clone();
+        childURL.setPath(parentPath + filename);
+
+        return FileFactory.getFile(childURL, this, new SFTPFileAttributes(childURL, file.getAttributes()));
+    }
+
 	
     @Override
     public void mkdir() throws IOException {
@@ -521,36 +596,257 @@ public class SFTPFile extends ProtocolFile {
     }
 
     /**
-     * Returns a {@link com.mucommander.commons.file.impl.sftp.SFTPFile.SFTPFileAttributes} instance corresponding to this file.
+     * Implementation notes: server-to-server copy will work if this file is a regular file, if the destination file
+     * also uses the 'SFTP' scheme and is located on the same host, and if the server allows commands to be executed:
+     * the file is copied by the server's <code>cp</code> command, as J2SSH doesn't support the SFTP
+     * <code>copy-data</code> extension. Servers that refuse to execute commands are not asked again for the lifetime of
+     * the connection. The copy is aborted if it progresses slower than the minimum throughput expected from commands,
+     * or if the calling thread is interrupted: an <code>InterruptedIOException</code> is then thrown, as
+     * <code>cp</code> may still be writing the destination.
      */
     @Override
-    public Object getUnderlyingFileObject() {
-        return fileAttributes;
+    public void copyRemotelyTo(AbstractFile destFile) throws IOException {
+        // Throw an exception if the file cannot be copied to the specified destination
+        checkCopyRemotelyPrerequisites(destFile, false, false);
+
+        // cp would copy a directory inside the destination if it exists, let the caller copy directories manually
+        if(isDirectory())
+            throw new IOException();
+
+        // Retrieve a ConnectionHandler and lock it
+        SFTPConnectionHandler connHandler = null;
+        try {
+            connHandler = (SFTPConnectionHandler)ConnectionPool.getConnectionHandler(connHandlerFactory, fileURL, true);
+
+            // Makes sure the connection is started, if not starts it
+            connHandler.checkConnection();
+
+            if(!connHandler.execAllowed)
+                throw new IOException();
+
+            int exitCode = connHandler.executeCommand("cp -p -- "+quote(absPath)+" "+quote(destFile.getURL().getPath()),
+                    null, SFTPConnectionHandler.getCommandTimeout(getSize()));
+            if(exitCode!=0)
+                throw new IOException("cp failed with exit code "+exitCode);
+
+            // Update destination file attributes by fetching them from the server
+            ((SFTPFileAttributes)destFile.getUnderlyingFileObject()).fetchAttributes();
+        }
+        finally {
+            // Release the lock on the ConnectionHandler
+            if(connHandler!=null)
+                connHandler.releaseLock();
+        }
     }
 
+    /**
+     * Implementation notes: if the server allows commands to be executed and the algorithm is one of MD5, SHA-1 and
+     * SHA-256, the checksums are calculated by the server, by piping each block to the corresponding coreutils command
+     * with <code>split --filter</code>. Only the checksums are transferred, not the file's contents. The file is read
+     * over SFTP if the server refuses to execute commands or its output is not the expected one, for instance because
+     * its <code>split</code> command does not support the <code>--filter</code> option. The command is aborted if it
+     * progresses slower than the minimum throughput expected from commands, or if the calling thread is interrupted:
+     * an <code>InterruptedIOException</code> is then thrown rather than reading the file, which would be even slower.
+     */
+    @Override
+    public String[] calculateBlockChecksums(String algorithm, int blockSize) throws IOException, NoSuchAlgorithmException, UnsupportedFileOperationException {
+        String checksumCommand = getChecksumCommand(algorithm);
+        if(checksumCommand==null)
+            return super.calculateBlockChecksums(algorithm, blockSize);
 
-    // Unsupported file operations
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        // Retrieve a ConnectionHandler and lock it
+        SFTPConnectionHandler connHandler = null;
+        try {
+            connHandler = (SFTPConnectionHandler)ConnectionPool.getConnectionHandler(connHandlerFactory, fileURL, true);
+
+            // Makes sure the connection is started, if not starts it
+            connHandler.checkConnection();
+
+            if(!connHandler.execAllowed)
+                return super.calculateBlockChecksums(algorithm, blockSize);
+
+            int exitCode = connHandler.executeCommand("split -b "+blockSize+" --filter="+checksumCommand+" -- "+quote(absPath), bout,
+                    SFTPConnectionHandler.getCommandTimeout(getSize()));
+            if(exitCode!=0) {
+                LOGGER.info("split failed with exit code {}, reading the file instead", exitCode);
+                return super.calculateBlockChecksums(algorithm, blockSize);
+            }
+        }
+        catch(InterruptedIOException e) {
+            throw e;
+        }
+        catch(IOException e) {
+            LOGGER.info("Could not calculate block checksums remotely, reading the file instead", e);
+            return super.calculateBlockChecksums(algorithm, blockSize);
+        }
+        finally {
+            // Release the lock on the ConnectionHandler
+            if(connHandler!=null)
+                connHandler.releaseLock();
+        }
+
+        // Each line starts with the checksum of a block, followed by the name of the standard input
+        List<String> checksums = new ArrayList<String>();
+        for(String line : bout.toString("US-ASCII").split("\n")) {
+            String checksum = line.trim().split("\\s+")[0];
+            if(checksum.length()>0)
+                checksums.add(checksum.toLowerCase());
+        }
+
+        long nbBlocks = (getSize()+blockSize-1)/blockSize;
+        if(checksums.size()!=nbBlocks) {
+            LOGGER.info("Unexpected split output, reading the file instead");
+            return super.calculateBlockChecksums(algorithm, blockSize);
+        }
+
+        return checksums.toArray(new String[checksums.size()]);
+    }
 
     /**
-     * Always throws an {@link UnsupportedFileOperationException}: random write access is not supported.
+     * Returns the name of the coreutils command that calculates checksums with the given algorithm, <code>null</code>
+     * if there is none.
+     */
+    private static String getChecksumCommand(String algorithm) {
+        if("MD5".equalsIgnoreCase(algorithm))
+            return "md5sum";
+        if("SHA-1".equalsIgnoreCase(algorithm) || "SHA1".equalsIgnoreCase(algorithm))
+            return "sha1sum";
+        if("SHA-256".equalsIgnoreCase(algorithm))
+            return "sha256sum";
+
+        return null;
+    }
+
+    /**
+     * Implementation notes: if the server allows commands to be executed, the children are removed by the server's
+     * <code>rm</code> command, as many at once as fit in {@link #MAX_COMMAND_LENGTH} characters, instead of one
+     * REMOVE request per child: J2SSH waits for the reply to each request before sending the next one, so requests
+     * cannot be pipelined. If <code>rm</code> fails, the children it was passed are looked up again to find out which
+     * ones are left. Children are deleted one by one if the server refuses to execute commands.
      */
     @Override
-    @UnsupportedFileOperation
-    public RandomAccessOutputStream getRandomAccessOutputStream() throws UnsupportedFileOperationException {
-        throw new UnsupportedFileOperationException(FileOperation.RANDOM_WRITE_FILE);
+    public AbstractFile[] deleteChildren(AbstractFile children[]) {
+        List<AbstractFile> failed = new ArrayList<AbstractFile>();
+        List<SFTPFile> batch = new ArrayList<SFTPFile>();
+        int commandLength = 0;
+
+        for(AbstractFile child : children) {
+            SFTPFile sftpChild = child.getAncestor(SFTPFile.class);
+
+            // Files located on another server, and directories which rm does not remove, are deleted one by one
+            if(sftpChild==null || !sftpChild.fileURL.getRealm().equals(fileURL.getRealm())
+            || (sftpChild.isDirectory() && !sftpChild.isSymlink())) {
+                deleteChild(child, failed);
+                continue;
+            }
+
+            String quotedPath = quote(sftpChild.absPath);
+            if(!batch.isEmpty() && commandLength+quotedPath.length()+1>MAX_COMMAND_LENGTH) {
+                removeFiles(batch, failed);
+                batch.clear();
+                commandLength = 0;
+            }
+
+            batch.add(sftpChild);
+            commandLength += quotedPath.length()+1;
+        }
+
+        if(!batch.isEmpty())
+            removeFiles(batch, failed);
+
+        return failed.toArray(new AbstractFile[failed.size()]);
     }
 
     /**
-     * Always throws {@link UnsupportedFileOperationException} when called.
-     *
-     * @throws UnsupportedFileOperationException, always
+     * Removes the given files with a single <code>rm</code> command, or one by one if the server refuses to
+     * execute commands. Files that could not be removed are added to the given list.
+     */
+    private void removeFiles(List<SFTPFile> files, List<AbstractFile> failed) {
+        StringBuilder command = new StringBuilder("rm --");
+        for(SFTPFile file : files)
+            command.append(' ').append(quote(file.absPath));
+
+        boolean executed = false;
+        int exitCode = -1;
+        SFTPConnectionHandler connHandler = null;
+        try {
+            // Retrieve a ConnectionHandler and lock it
+            connHandler = (SFTPConnectionHandler)ConnectionPool.getConnectionHandler(connHandlerFactory, fileURL, true);
+
+            // Makes sure the connection is started, if not starts it
+            connHandler.checkConnection();
+
+            if(connHandler.execAllowed) {
+                exitCode = connHandler.executeCommand(command.toString());
+                executed = true;
+            }
+        }
+        catch(IOException e) {
+            LOGGER.info("Failed to execute rm", e);
+        }
+        finally {
+            // Release the lock on the ConnectionHandler
+            if(connHandler!=null)
+                connHandler.releaseLock();
+        }
+
+        for(SFTPFile file : files) {
+            if(exitCode==0) {
+                // Update local attributes
+                file.fileAttributes.setExists(false);
+                file.fileAttributes.setDirectory(false);
+                file.fileAttributes.setSymlink(false);
+                file.fileAttributes.setSize(0);
+            }
+            else if(executed) {
+                // rm failed on some of the files, find out which ones are left
+                try {
+                    file.fileAttributes.fetchAttributes();
+                }
+                catch(AuthException e) {
+                    // Consider the file as not deleted
+                }
+
+                if(file.fileAttributes.exists())
+                    failed.add(file);
+            }
+            else {
+                deleteChild(file, failed);
+            }
+        }
+    }
+
+    /**
+     * Deletes the given file, adding it to the given list if it could not be deleted.
+     */
+    private static void deleteChild(AbstractFile file, List<AbstractFile> failed) {
+        try {
+            file.delete();
+        }
+        catch(IOException e) {
+            failed.add(file);
+        }
+    }
+
+    /**
+     * Quotes the given path so that it is interpreted literally by a POSIX shell.
+     */
+    private static String quote(String path) {
+        return "'"+path.replace("'", "'\\''")+"'";
+    }
+
+    /**
+     * Returns a {@link com.mucommander.commons.file.impl.sftp.SFTPFile.SFTPFileAttributes} instance corresponding to this file.
      */
     @Override
-    @UnsupportedFileOperation
-    public void copyRemotelyTo(AbstractFile destFile) throws UnsupportedFileOperationException {
-        throw new UnsupportedFileOperationException(FileOperation.COPY_REMOTELY);
+    public Object getUnderlyingFileObject() {
+        return fileAttributes;
     }
 
+
+    // Unsupported file operations
+
     /**
      * Always throws {@link UnsupportedFileOperationException} when called.
      *
@@ -871,6 +1167,118 @@ public class SFTPFile extends ProtocolFile {
     }
 
 
+    /**
+     * SFTPRandomAccessOutputStream extends RandomAccessOutputStream to provide random write access to an SFTPFile.
+     * The file is created if it doesn't exist.
+     */
+    private class SFTPRandomAccessOutputStream extends RandomAccessOutputStream {
+
+        private final SFTPConnectionHandler connHandler;
+
+        private final SftpFile sftpFile;
+
+        private final SftpFileOutputStream out;
+
+        private SFTPRandomAccessOutputStream() throws IOException {
+            // Retrieve a ConnectionHandler and lock it
+            connHandler = (SFTPConnectionHandler)ConnectionPool.getConnectionHandler(connHandlerFactory, fileURL, true);
+            try {
+                // Makes sure the connection is started, if not starts it
+                connHandler.checkConnection();
+
+                if(exists()) {
+                    sftpFile = connHandler.sftpSubsystem.openFile(absPath, SftpSubsystemClient.OPEN_WRITE);
+                }
+                else {
+                    // Set new file permissions to 644 octal (420 dec): "rw-r--r--"
+                    FileAttributes atts = new FileAttributes();
+                    atts.setPermissions(new UnsignedInteger32(0644));
+                    sftpFile = connHandler.sftpSubsystem.openFile(absPath, SftpSubsystemClient.OPEN_WRITE|SftpSubsystemClient.OPEN_CREATE, atts);
+
+                    // Update local attributes
+                    fileAttributes.setExists(true);
+                    fileAttributes.setSize(0);
+                }
+
+                // Custom SftpFileOutputStream constructor, not part of the official J2SSH API
+                out = new SftpFileOutputStream(sftpFile, 0);
+            }
+            catch(IOException e) {
+                // Release the lock on the ConnectionHandler if the stream could not be created
+                connHandler.releaseLock();
+
+                // Re-throw IOException
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            updateSize();
+        }
+
+        @Override
+        public void write(byte b[]) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) throws IOException {
+            out.write(b, off, len);
+            updateSize();
+        }
+
+        public long getOffset() throws IOException {
+            // Custom method, not part of the official J2SSH API
+            return out.getPosition();
+        }
+
+        public long getLength() throws IOException {
+            return getSize();
+        }
+
+        public void seek(long offset) throws IOException {
+            // Custom method, not part of the official J2SSH API
+            out.setPosition(offset);
+        }
+
+        @Override
+        public void setLength(long newLength) throws IOException {
+            FileAttributes attributes = new FileAttributes();
+            attributes.setSize(new UnsignedInteger64(""+newLength));
+            connHandler.sftpSubsystem.setAttributes(sftpFile, attributes);
+
+            // Update local attributes
+            fileAttributes.setSize(newLength);
+            if(getOffset()>newLength)
+                seek(newLength);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // SftpFileOutputStream.close() closes the open SftpFile file handle
+                out.close();
+            }
+            finally {
+                // Release the lock on the ConnectionHandler
+                connHandler.releaseLock();
+            }
+        }
+
+        /**
+         * Updates the local attributes after bytes have been written at the current offset.
+         */
+        private void updateSize() throws IOException {
+            long offset = getOffset();
+            if(offset>getSize())
+                fileAttributes.setSize(offset);
+            fileAttributes.setDate(System.currentTimeMillis());
+        }
+    }
+
+
 //    private class SFTPProcess extends AbstractProcess {
 //
 //        private boolean success;
@@ -20,6 +20,7 @@
 package com.mucommander.commons.file.impl.smb;
 
 import com.mucommander.commons.file.*;
+import com.mucommander.commons.file.filter.FileFilter;
 import com.mucommander.commons.file.filter.FilenameFilter;
 import com.mucommander.commons.io.RandomAccessInputStream;
 import com.mucommander.commons.io.RandomAccessOutputStream;
@@ -31,6 +32,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -511,6 +514,28 @@ import java.net.MalformedURLException;
         }
     }
 
+    /**
+     * Implementation notes: the files are passed to the listener as jCIFS receives the directory's entries from the
+     * server, one batch at a time.
+     */
+    @Override
+    public void ls(FileFilter filter, FileListListener listener) throws IOException {
+        SMBFileLister lister = new SMBFileLister(filter, listener);
+        try {
+            // The lister creates the children and rejects all entries, so that jCIFS doesn't accumulate them
+            file.listFiles(lister);
+        }
+        catch(SmbAuthException e) {
+            throw new AuthException(fileURL, e.getMessage());
+        }
+
+        if(lister.exception!=null)
+            throw lister.exception;
+
+        if(!lister.stopped)
+            fireFilesListed(lister.batch, filter, listener);
+    }
+
     @Override
     public boolean isHidden() {
         try {
@@ -688,4 +713,64 @@ import java.net.MalformedURLException;
             return filter.accept(name);
         }
     }
+
+
+    /**
+     * Creates the children of this folder as jCIFS lists them and passes them to a {@link FileListListener}, in batches.
+     */
+    private class SMBFileLister implements SmbFileFilter {
+
+        private FileFilter filter;
+        private FileListListener listener;
+
+        /** Children that have not been passed to the listener yet */
+        private List<AbstractFile> batch = new ArrayList<AbstractFile>(LS_BATCH_SIZE);
+
+        /** True if the listener asked to stop listing or if an error occurred */
+        private boolean stopped;
+
+        /** Exception thrown while creating a child, if any */
+        private IOException exception;
+
+        private SMBFileLister(FileFilter filter, FileListListener listener) {
+            this.filter = filter;
+            this.listener = listener;
+        }
+
+
+        ////////////////////////////////////////////
+        // jcifs.smb.SmbFileFilter implementation //
+        ////////////////////////////////////////////
+
+        public boolean accept(SmbFile smbFile) throws SmbException {
+            // Ignore the remaining entries, jCIFS offers no way to stop listing
+            if(stopped)
+                return false;
+
+            // Exclude files that are not file share/ not browsable (Printers, named pipes, comm ports)
+            int smbFileType = smbFile.getType();
+            if(smbFileType==SmbFile.TYPE_PRINTER || smbFileType==SmbFile.TYPE_NAMED_PIPE || smbFileType==SmbFile.TYPE_COMM)
+                return false;
+
+            try {
+                // Note: properties and credentials are cloned for every children's url
+                FileURL childURL = (FileURL)fileURL.clone();
+                childURL.setHost(smbFile.getServer());
+                childURL.setPath(smbFile.getURL().getPath());
+
+                // Use SMBFile private constructor to recycle the SmbFile instance
+                batch.add(FileFactory.getFile(childURL, SMBFile.this, smbFile));
+            }
+            catch(IOException e) {
+                exception = e;
+                stopped = true;
+                return false;
+            }
+
+            if(batch.size()==LS_BATCH_SIZE && !fireFilesListed(batch, filter, listener))
+                stopped = true;
+
+            return false;
+        }
+    }
 }
@@ -0,0 +1,159 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mucommander.commons.io.BoundedPipe;
+
+/**
+ * Runs the extraction of archive entries in the background, for archive formats whose libraries can only write an
+ * entry's contents to an <code>OutputStream</code>, and exposes the extracted bytes as an <code>InputStream</code>.
+ *
+ * <p>Extractions are run by a shared pool of at most {@link #NB_THREADS} threads, and write to a {@link BoundedPipe}
+ * of {@link #PIPE_CAPACITY} bytes: a consumer that reads slowly, or not at all, makes its extraction wait instead of
+ * having the entry pile up in memory. Closing the returned <code>InputStream</code> makes the extraction's next write
+ * fail, which aborts it, and an extraction that hasn't started yet when its stream is closed is skipped altogether.
+ * Extractions beyond {@link #NB_THREADS} are queued, so streams should be read rather than held open when many
+ * entries are opened at once.</p>
+ *
+ * <p>Tasks that extract several entries, see {@link #execute(Runnable)}, are run by threads of their own: they wait
+ * for their consumer to read each entry, and would otherwise hold threads that the consumer may need to extract an
+ * entry once again.</p>
+ */
+public class ExtractionExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExtractionExecutor.class);
+
+    /** Maximum number of extractions running at the same time */
+    public final static int NB_THREADS = 4;
+
+    /** Number of extracted bytes buffered ahead of the consumer */
+    public final static int PIPE_CAPACITY = 256*1024;
+
+    /** Runs extractions */
+    private final static ExecutorService executor;
+
+    /** Runs tasks that extract several entries, with a thread per task */
+    private final static ExecutorService bulkExecutor;
+
+    static {
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(NB_THREADS, NB_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ExtractionThreadFactory("ExtractionExecutor-"));
+        // Release idle threads, archives are not extracted all the time
+        threadPool.allowCoreThreadTimeOut(true);
+        executor = threadPool;
+
+        bulkExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ExtractionThreadFactory("ExtractionExecutor-bulk-"));
+    }
+
+    /**
+     * Prevents instances of this class from being created.
+     */
+    private ExtractionExecutor() {
+    }
+
+    /**
+     * Schedules the given extraction and returns a stream on the bytes it extracts. Errors thrown by the extraction
+     * are thrown by the stream's <code>read</code> methods, after the bytes that were extracted before the error.
+     *
+     * @param extraction the extraction to run
+     * @return a stream on the extracted bytes
+     */
+    public static InputStream extract(final Extraction extraction) {
+        final BoundedPipe pipe = new BoundedPipe(PIPE_CAPACITY);
+        executor.execute(new Runnable() {
+            public void run() {
+                OutputStream out = pipe.getOutputStream();
+                try {
+                    // Skip extractions whose stream was closed while they were waiting
+                    if(!pipe.isReaderClosed())
+                        extraction.extractTo(out);
+                    out.close();
+                }
+                catch(IOException e) {
+                    pipe.fail(e);
+                }
+                catch(RuntimeException e) {
+                    LOGGER.info("Error while extracting archive entry", e);
+                    pipe.fail(new IOException(e.toString()));
+                }
+            }
+        });
+
+        return pipe.getInputStream();
+    }
+
+    /**
+     * Runs the given task in a thread of its own. This is meant for tasks that extract several entries and manage
+     * their own streams, see {@link #extract(Extraction)} for single entries. Such tasks are not run by the pool of
+     * {@link #NB_THREADS} threads, so that a task that waits for its consumer never prevents the consumer's
+     * single-entry extractions from running.
+     *
+     * @param task the task to run
+     */
+    public static void execute(Runnable task) {
+        bulkExecutor.execute(task);
+    }
+
+    /**
+     * Creates the daemon threads that run extractions.
+     */
+    private static class ExtractionThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+        private final String namePrefix;
+
+        private ExtractionThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix+threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Writes the contents of an archive entry to an <code>OutputStream</code>.
+     */
+    public interface Extraction {
+
+        /**
+         * Writes the contents of the entry to the given stream, without closing it. Writes throw an
+         * <code>IOException</code> once the consumer has closed its stream, in which case the extraction should stop.
+         *
+         * @param out the stream to write the entry's contents to
+         * @throws IOException if the entry could not be extracted
+         */
+        public void extractTo(OutputStream out) throws IOException;
+    }
+}
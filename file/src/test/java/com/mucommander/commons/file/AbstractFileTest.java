@@ -1130,6 +1130,19 @@ public abstract class AbstractFileTest {
         assert 1 == children.length;
         assert child.equals(children[0]);
         assert children[0].exists();
+
+        // Assert that ls(FileFilter, FileListListener) delivers the same child to the listener
+        final List<AbstractFile> listedFiles = new Vector<AbstractFile>();
+        tempFile.ls(null, new FileListListener() {
+            public boolean filesListed(AbstractFile files[]) {
+                assert files.length > 0;
+                listedFiles.addAll(Arrays.asList(files));
+                return true;
+            }
+        });
+
+        assert 1 == listedFiles.size();
+        assert child.equals(listedFiles.get(0));
     }
 
     /**
@@ -1767,6 +1780,33 @@ public abstract class AbstractFileTest {
             testDeleteUnsupported();
     }
 
+    /**
+     * Tests the {@link AbstractFile#deleteChildren(AbstractFile[])} method, if deleting files is supported.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testDeleteChildren() throws IOException {
+        if(!tempFile.isFileOperationSupported(FileOperation.DELETE))
+            return;
+
+        tempFile.mkdir();
+        AbstractFile children[] = new AbstractFile[3];
+        for(int i=0; i<children.length; i++) {
+            children[i] = tempFile.getDirectChild("file"+i);
+            children[i].mkfile();
+        }
+
+        // Assert that all the children are deleted, and that the folder can then be deleted
+        assert tempFile.deleteChildren(children).length == 0;
+        for(AbstractFile child : children)
+            assert !child.exists();
+
+        assert tempFile.ls().length == 0;
+        tempFile.delete();
+        assert !tempFile.exists();
+    }
+
     /**
      * Tests the {@link AbstractFile#mkdir()} method in various situations.
      *
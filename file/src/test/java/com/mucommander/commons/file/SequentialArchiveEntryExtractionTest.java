@@ -0,0 +1,191 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file;
+
+import com.mucommander.commons.file.impl.zip.ZipArchiveFile;
+import com.mucommander.commons.io.StreamUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A test case for {@link SequentialArchiveEntryExtraction}, performed on a Zip archive written by the test.
+ */
+public class SequentialArchiveEntryExtractionTest {
+
+    private final static int NB_FILES = 5;
+
+    /** The temporary archive file */
+    private AbstractFile tempFile;
+    /** The archive to extract entries from */
+    private ZipArchiveFile archiveFile;
+    /** The contents of the entries, in the order they were written */
+    private byte contents[][];
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        Random random = new Random();
+        contents = new byte[NB_FILES][];
+
+        tempFile = FileFactory.getTemporaryFile(getClass().getName(), true);
+        ZipOutputStream out = new ZipOutputStream(tempFile.getOutputStream());
+        try {
+            for(int i=0; i<NB_FILES; i++) {
+                contents[i] = new byte[random.nextInt(100000)];
+                random.nextBytes(contents[i]);
+
+                out.putNextEntry(new ZipEntry(getFileName(i)));
+                out.write(contents[i]);
+                out.closeEntry();
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        archiveFile = new ZipArchiveFile(tempFile);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        tempFile.delete();
+    }
+
+    /**
+     * Asserts that all the entries of the archive are returned in the archive's order, with their contents, and that
+     * the current entry can be read more than once.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testExtractEntries() throws IOException {
+        ArchiveEntryExtraction extraction = archiveFile.extractEntries(new ArchiveEntryFilter() {
+            public boolean accept(ArchiveEntry entry) {
+                return true;
+            }
+        });
+        assert extraction instanceof SequentialArchiveEntryExtraction;
+
+        try {
+            for(int i=0; i<NB_FILES; i++) {
+                ArchiveEntry entry = extraction.nextEntry();
+                assert entry != null;
+                assert getFileName(i).equals(entry.getPath());
+                assert Arrays.equals(contents[i], read(extraction.getEntryInputStream()));
+                assert Arrays.equals(contents[i], read(extraction.getEntryInputStream()));
+            }
+
+            assert extraction.nextEntry() == null;
+        }
+        finally {
+            extraction.close();
+        }
+    }
+
+    /**
+     * Asserts that only the entries accepted by the filter are returned.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testFilter() throws IOException {
+        ArchiveEntryExtraction extraction = archiveFile.extractEntries(new ArchiveEntryFilter() {
+            public boolean accept(ArchiveEntry entry) {
+                return entry.getPath().compareTo(getFileName(NB_FILES/2))>=0;
+            }
+        });
+
+        try {
+            for(int i=NB_FILES/2; i<NB_FILES; i++) {
+                ArchiveEntry entry = extraction.nextEntry();
+                assert entry != null;
+                assert getFileName(i).equals(entry.getPath());
+                assert Arrays.equals(contents[i], read(extraction.getEntryInputStream()));
+            }
+
+            assert extraction.nextEntry() == null;
+        }
+        finally {
+            extraction.close();
+        }
+    }
+
+    /**
+     * Asserts that {@link ArchiveEntryExtraction#getEntryInputStream()} fails when there is no current entry, before
+     * the first entry and after the last one.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testNoCurrentEntry() throws IOException {
+        ArchiveEntryExtraction extraction = archiveFile.extractEntries(new ArchiveEntryFilter() {
+            public boolean accept(ArchiveEntry entry) {
+                return false;
+            }
+        });
+
+        try {
+            assertNoCurrentEntry(extraction);
+            assert extraction.nextEntry() == null;
+            assertNoCurrentEntry(extraction);
+        }
+        finally {
+            extraction.close();
+        }
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private static String getFileName(int index) {
+        return "file"+index;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            StreamUtils.copyStream(in, bout);
+        }
+        finally {
+            in.close();
+        }
+
+        return bout.toByteArray();
+    }
+
+    private static void assertNoCurrentEntry(ArchiveEntryExtraction extraction) {
+        try {
+            extraction.getEntryInputStream();
+            assert false;
+        }
+        catch(IOException e) {
+            // Expected
+        }
+    }
+}
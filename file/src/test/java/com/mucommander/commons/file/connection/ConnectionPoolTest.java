@@ -0,0 +1,179 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file.connection;
+
+import com.mucommander.commons.file.FileURL;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+
+/**
+ * A test case for {@link ConnectionPool}. Each test uses its own host so as not to depend on the connection handlers
+ * left in the pool by other tests.
+ *
+ * @see ConnectionPool
+ */
+public class ConnectionPoolTest implements ConnectionHandlerFactory {
+
+    /** Scheme of the test locations, whose pool settings can be changed without affecting real protocols */
+    private final static String SCHEME = "pooltest";
+
+    /**
+     * Asserts that a released connection handler is reused by the next request of the same realm, and not by requests
+     * of another realm.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testReuse() throws IOException {
+        FileURL url = getURL("reuse");
+
+        ConnectionHandler connHandler = ConnectionPool.getConnectionHandler(this, url, true);
+        assert connHandler.isLocked();
+        connHandler.releaseLock();
+
+        assert connHandler == ConnectionPool.getConnectionHandler(this, url, true);
+        assert connHandler != ConnectionPool.getConnectionHandler(this, getURL("reuse2"), false);
+        connHandler.releaseLock();
+    }
+
+    /**
+     * Asserts that requesting an unlocked connection handler does not lock it.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testUnlocked() throws IOException {
+        FileURL url = getURL("unlocked");
+
+        ConnectionHandler connHandler = ConnectionPool.getConnectionHandler(this, url, false);
+        assert !connHandler.isLocked();
+        assert connHandler == ConnectionPool.getConnectionHandler(this, url, false);
+
+        // The unlocked connection handler is idle and can be locked
+        assert connHandler == ConnectionPool.getConnectionHandler(this, url, true);
+        assert connHandler.isLocked();
+        connHandler.releaseLock();
+    }
+
+    /**
+     * Asserts that no more than the maximum number of connections of a realm can be locked at once, and that a waiting
+     * request is given the first connection handler to be released.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testMaxConnections() throws Exception {
+        final FileURL url = getURL("max");
+
+        ConnectionPool.setMaxConnections(SCHEME, 2);
+        assert ConnectionPool.getMaxConnections(SCHEME) == 2;
+
+        ConnectionHandler connHandler1 = ConnectionPool.getConnectionHandler(this, url, true);
+        ConnectionHandler connHandler2 = ConnectionPool.getConnectionHandler(this, url, true);
+        assert connHandler1 != connHandler2;
+
+        final ConnectionHandler waitingConnHandler[] = new ConnectionHandler[1];
+        Thread waitingThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    waitingConnHandler[0] = ConnectionPool.getConnectionHandler(ConnectionPoolTest.this, url, true);
+                }
+                catch(InterruptedIOException e) {
+                    // Leave the result null
+                }
+            }
+        };
+        waitingThread.start();
+
+        waitingThread.join(500);
+        assert waitingThread.isAlive();
+        assert waitingConnHandler[0] == null;
+
+        connHandler2.releaseLock();
+        waitingThread.join(5000);
+        assert waitingConnHandler[0] == connHandler2;
+
+        connHandler1.releaseLock();
+        connHandler2.releaseLock();
+        ConnectionPool.setMaxConnections(SCHEME, ConnectionPool.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Asserts that requesting an unlocked connection handler does not wait when the maximum number of connections of
+     * the realm are locked, and returns one of the locked connection handlers rather than a new one.
+     *
+     * @throws IOException should not happen
+     */
+    @Test(timeOut = 5000)
+    public void testUnlockedWhileSaturated() throws IOException {
+        FileURL url = getURL("saturated");
+
+        ConnectionPool.setMaxConnections(SCHEME, 1);
+
+        ConnectionHandler connHandler = ConnectionPool.getConnectionHandler(this, url, true);
+        assert connHandler == ConnectionPool.getConnectionHandler(this, url, false);
+        assert ConnectionPool.tryGetConnectionHandler(this, url) == null;
+
+        connHandler.releaseLock();
+        ConnectionPool.setMaxConnections(SCHEME, ConnectionPool.DEFAULT_MAX_CONNECTIONS);
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private FileURL getURL(String host) throws MalformedURLException {
+        return FileURL.getFileURL(SCHEME+"://"+host+"/path");
+    }
+
+
+    //////////////////////////////////////////////
+    // ConnectionHandlerFactory implementation  //
+    //////////////////////////////////////////////
+
+    public ConnectionHandler createConnectionHandler(FileURL location) {
+        return new ConnectionHandler(location) {
+            private boolean connected = true;
+
+            @Override
+            public void startConnection() {
+                connected = true;
+            }
+
+            @Override
+            public boolean isConnected() {
+                return connected;
+            }
+
+            @Override
+            public void closeConnection() {
+                connected = false;
+            }
+
+            @Override
+            public void keepAlive() {
+            }
+        };
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file.impl.http;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * A test case for {@link IndexPageParser}, using samples of the directory indexes generated by Apache and nginx.
+ *
+ * @see IndexPageParser
+ */
+public class IndexPageParserTest {
+
+    /**
+     * Tests the <code>&lt;pre&gt;</code> format used by Apache's mod_autoindex with FancyIndexing.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testApachePreIndex() throws IOException {
+        List<IndexPageParser.Link> links = parse(
+            "<html><head><title>Index of /pub</title></head><body>\n" +
+            "<pre><img src=\"/icons/blank.gif\" alt=\"Icon \"> <a href=\"?C=N;O=D\">Name</a>                    <a href=\"?C=M;O=A\">Last modified</a>      <a href=\"?C=S;O=A\">Size</a>\n" +
+            "<hr><img src=\"/icons/back.gif\" alt=\"[DIR]\"> <a href=\"/\">Parent Directory</a>                             -   \n" +
+            "<img src=\"/icons/folder.gif\" alt=\"[DIR]\"> <a href=\"docs/\">docs/</a>                   12-Mar-2010 14:02    -   \n" +
+            "<img src=\"/icons/compressed.gif\" alt=\"[   ]\"> <a href=\"file.zip\">file.zip</a>                12-Mar-2010 14:02  1.5M  \n" +
+            "<hr></pre>\n" +
+            "</body></html>");
+
+        IndexPageParser.Link docs = getLink(links, "docs/");
+        assert docs.hasAttributes();
+        assert docs.getSize() == -1;
+        assertDate(docs.getDate(), 2010, Calendar.MARCH, 12, 14, 2);
+
+        IndexPageParser.Link file = getLink(links, "file.zip");
+        assert file.hasAttributes();
+        assert file.isApproximateSize();
+        assert file.getSize() == (long)(1.5*1024*1024);
+
+        assert !getLink(links, "/").hasAttributes();
+        assert !getLink(links, "?C=N;O=D").hasAttributes();
+        assert getLink(links, "/icons/compressed.gif") != null;
+    }
+
+    /**
+     * Tests the table format used by Apache's mod_autoindex with HTMLTable.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testApacheTableIndex() throws IOException {
+        List<IndexPageParser.Link> links = parse(
+            "<table>\n" +
+            "<tr><th valign=\"top\"><img src=\"/icons/blank.gif\" alt=\"[ICO]\"></th><th><a href=\"?C=N;O=D\">Name</a></th></tr>\n" +
+            "<tr><td valign=\"top\"><img src=\"/icons/text.gif\" alt=\"[TXT]\"></td><td><a href=\"README.txt\">README.txt</a></td><td align=\"right\">2011-07-01 09:30  </td><td align=\"right\">1234</td><td>&nbsp;</td></tr>\n" +
+            "</table>");
+
+        IndexPageParser.Link readme = getLink(links, "README.txt");
+        assert readme.hasAttributes();
+        assert !readme.isApproximateSize();
+        assert readme.getSize() == 1234;
+        assertDate(readme.getDate(), 2011, Calendar.JULY, 1, 9, 30);
+    }
+
+    /**
+     * Tests the format used by nginx's autoindex module, which lists exact sizes.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testNginxIndex() throws IOException {
+        List<IndexPageParser.Link> links = parse(
+            "<html>\r\n<head><title>Index of /files/</title></head>\r\n<body>\r\n<h1>Index of /files/</h1><hr><pre><a href=\"../\">../</a>\r\n" +
+            "<a href=\"archive.tar.gz\">archive.tar.gz</a>                                     05-Jan-2012 23:59             123456789\r\n" +
+            "<a href='it&amp;s.txt'>it&amp;s.txt</a>                                          05-Jan-2012 23:59             0\r\n" +
+            "</pre><hr></body>\r\n</html>\r\n");
+
+        IndexPageParser.Link archive = getLink(links, "archive.tar.gz");
+        assert archive.hasAttributes();
+        assert archive.getSize() == 123456789;
+        assertDate(archive.getDate(), 2012, Calendar.JANUARY, 5, 23, 59);
+
+        assert getLink(links, "it&s.txt").getSize() == 0;
+        assert !getLink(links, "../").hasAttributes();
+    }
+
+    /**
+     * Tests that links are extracted from a regular page, whatever their quoting, and that commented out links are
+     * ignored.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testRegularPage() throws IOException {
+        List<IndexPageParser.Link> links = parse(
+            "<p>See <A HREF=\"page.html\">this page</A> and <a class=x href=other.html>that one</a>, " +
+            "<a href='third.html'><img src=\"logo.png\"></a><!-- <a href=\"hidden.html\"> --></p>");
+
+        assert links.size() == 4;
+        assert !getLink(links, "page.html").hasAttributes();
+        assert getLink(links, "other.html") != null;
+        assert getLink(links, "third.html") != null;
+        assert getLink(links, "logo.png") != null;
+        assert getLink(links, "hidden.html") == null;
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private static List<IndexPageParser.Link> parse(String page) throws IOException {
+        IndexPageParser parser = new IndexPageParser(new StringReader(page));
+        List<IndexPageParser.Link> links = new ArrayList<IndexPageParser.Link>();
+        IndexPageParser.Link link;
+        while((link=parser.next())!=null)
+            links.add(link);
+
+        return links;
+    }
+
+    private static IndexPageParser.Link getLink(List<IndexPageParser.Link> links, String href) {
+        for(IndexPageParser.Link link : links) {
+            if(link.getHref().equals(href))
+                return link;
+        }
+
+        return null;
+    }
+
+    private static void assertDate(long date, int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(date);
+
+        assert calendar.get(Calendar.YEAR) == year;
+        assert calendar.get(Calendar.MONTH) == month;
+        assert calendar.get(Calendar.DAY_OF_MONTH) == day;
+        assert calendar.get(Calendar.HOUR_OF_DAY) == hour;
+        assert calendar.get(Calendar.MINUTE) == minute;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file.impl.sevenzip;
+
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.HRESULT;
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Compression.LZMA.Decoder;
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Compression.LZMA.Encoder;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class tests the LZMA {@link Decoder} by decoding data compressed by the LZMA {@link Encoder}. The test data is
+ * larger than the decoder's window, and mixes literals, distant matches and overlapping matches (runs).
+ */
+public class LzmaDecoderTest {
+
+    /** Size of the test data, larger than the decoder's window */
+    private final static int DATA_SIZE = 3 * 1024 * 1024;
+
+    /**
+     * Returns test data that mixes random bytes, copies of previous data and runs of a same byte.
+     */
+    private static byte[] createData(long seed) {
+        Random random = new Random(seed);
+        byte data[] = new byte[DATA_SIZE];
+        int pos = 0;
+        while(pos<DATA_SIZE) {
+            int len;
+            switch(pos<1024?0:random.nextInt(3)) {
+                case 0:
+                    len = Math.min(1+random.nextInt(64), DATA_SIZE-pos);
+                    for(int i=0; i<len; i++)
+                        data[pos++] = (byte)random.nextInt(256);
+                    break;
+                case 1:
+                    int distance = 1+random.nextInt(Math.min(pos, 2*1024*1024));
+                    len = Math.min(2+random.nextInt(300), DATA_SIZE-pos);
+                    for(int i=0; i<len; i++, pos++)
+                        data[pos] = data[pos-distance];
+                    break;
+                default:
+                    len = Math.min(1+random.nextInt(5000), DATA_SIZE-pos);
+                    Arrays.fill(data, pos, pos+len, (byte)random.nextInt(4));
+                    pos += len;
+            }
+        }
+        return data;
+    }
+
+    private static byte[] encode(byte data[], int dictionarySize) throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.SetDictionarySize(dictionarySize);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.WriteCoderProperties(out);
+        encoder.Code(new ByteArrayInputStream(data), out, -1, -1, null);
+        return out.toByteArray();
+    }
+
+    private static Decoder createDecoder(byte encoded[]) {
+        Decoder decoder = new Decoder();
+        boolean propertiesValid = decoder.SetDecoderProperties2(Arrays.copyOf(encoded, Encoder.kPropSize));
+        assert propertiesValid;
+        return decoder;
+    }
+
+    private static ByteArrayInputStream getCompressedStream(byte encoded[]) {
+        return new ByteArrayInputStream(encoded, Encoder.kPropSize, encoded.length-Encoder.kPropSize);
+    }
+
+    /**
+     * Decodes the data to an <code>OutputStream</code>, the way 7z folders are decoded.
+     */
+    @Test
+    public void testCode() throws IOException {
+        for(int dictionarySize : new int[]{1<<16, 1<<22}) {
+            byte data[] = createData(dictionarySize);
+            byte encoded[] = encode(data, dictionarySize);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(DATA_SIZE);
+            int result = createDecoder(encoded).Code(getCompressedStream(encoded), out, DATA_SIZE, null);
+            assert result==HRESULT.S_OK;
+            assert Arrays.equals(data, out.toByteArray());
+        }
+    }
+
+    /**
+     * Decodes the data by reading the decoder in small chunks, which interrupts matches between reads.
+     */
+    @Test
+    public void testRead() throws IOException {
+        byte data[] = createData(0);
+        byte encoded[] = encode(data, 1<<20);
+
+        Decoder decoder = createDecoder(encoded);
+        decoder.SetInStream(getCompressedStream(encoded));
+        decoder.SetOutStreamSize(DATA_SIZE);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(DATA_SIZE);
+        byte buffer[] = new byte[1000];
+        int nbRead;
+        while((nbRead=decoder.read(buffer, 0, buffer.length))>0)
+            out.write(buffer, 0, nbRead);
+
+        assert Arrays.equals(data, out.toByteArray());
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.file.impl.sevenzip;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.ArchiveEntry;
+import com.mucommander.commons.file.ArchiveEntryExtraction;
+import com.mucommander.commons.file.ArchiveEntryFilter;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.impl.sevenzip.provider.SevenZip.Compression.LZMA.Encoder;
+import com.mucommander.commons.file.util.ExtractionExecutor;
+import com.mucommander.commons.io.StreamUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * A test case for {@link SevenZipEntryExtraction}. The 7zip archive is written by the test: it holds
+ * {@link #NB_FOLDERS} LZMA folders (solid blocks) of {@link #NB_FILES_PER_FOLDER} files each, and an empty directory.
+ */
+public class SevenZipEntryExtractionTest {
+
+    private final static int NB_FOLDERS = 2;
+    private final static int NB_FILES_PER_FOLDER = 3;
+    private final static String DIRECTORY_NAME = "directory";
+
+    /** The temporary archive file */
+    private AbstractFile tempFile;
+    /** The archive to extract entries from */
+    private SevenZipArchiveFile archiveFile;
+    /** Entry name -> contents, for the entries that are files */
+    private Map<String, byte[]> contents;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        Random random = new Random();
+        byte folders[][][] = new byte[NB_FOLDERS][NB_FILES_PER_FOLDER][];
+        contents = new HashMap<String, byte[]>();
+        for(int i=0; i<NB_FOLDERS; i++) {
+            for(int j=0; j<NB_FILES_PER_FOLDER; j++) {
+                // Entries larger than the pipes between the decoder and the consumer
+                folders[i][j] = new byte[1000+random.nextInt(2*ExtractionExecutor.PIPE_CAPACITY)];
+                random.nextBytes(folders[i][j]);
+                contents.put(getFileName(i, j), folders[i][j]);
+            }
+        }
+
+        tempFile = FileFactory.getTemporaryFile(getClass().getName(), true);
+        OutputStream out = tempFile.getOutputStream();
+        try {
+            out.write(createArchive(folders));
+        }
+        finally {
+            out.close();
+        }
+
+        archiveFile = new SevenZipArchiveFile(tempFile);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        tempFile.delete();
+    }
+
+    /**
+     * Asserts that all the entries of the archive are returned once, with their contents.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testExtractEntries() throws IOException {
+        Map<String, byte[]> expected = new HashMap<String, byte[]>(contents);
+        boolean directoryFound = false;
+
+        ArchiveEntryExtraction extraction = archiveFile.extractEntries(new ArchiveEntryFilter() {
+            public boolean accept(ArchiveEntry entry) {
+                return true;
+            }
+        });
+        try {
+            ArchiveEntry entry;
+            while((entry = extraction.nextEntry())!=null) {
+                if(entry.isDirectory()) {
+                    assert entry.getPath().startsWith(DIRECTORY_NAME);
+                    assert !directoryFound;
+                    directoryFound = true;
+                    continue;
+                }
+
+                byte bytes[] = expected.remove(entry.getPath());
+                assert bytes != null;
+                assert Arrays.equals(bytes, read(extraction.getEntryInputStream()));
+            }
+        }
+        finally {
+            extraction.close();
+        }
+
+        assert directoryFound;
+        assert expected.isEmpty();
+    }
+
+    /**
+     * Asserts that only the entries accepted by the filter are returned, even when the consumer doesn't read them.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testFilter() throws IOException {
+        final String name = getFileName(NB_FOLDERS-1, NB_FILES_PER_FOLDER-1);
+        ArchiveEntryExtraction extraction = archiveFile.extractEntries(new ArchiveEntryFilter() {
+            public boolean accept(ArchiveEntry entry) {
+                return !entry.isDirectory() && !entry.getPath().equals(name);
+            }
+        });
+        try {
+            int nbEntries = 0;
+            ArchiveEntry entry;
+            while((entry = extraction.nextEntry())!=null) {
+                assert !entry.getPath().equals(name);
+                nbEntries++;
+            }
+            assert nbEntries == NB_FOLDERS*NB_FILES_PER_FOLDER-1;
+        }
+        finally {
+            extraction.close();
+        }
+    }
+
+    /**
+     * Asserts that entries can be extracted once again while several extractions are waiting for their consumer.
+     * The extractions' threads must not prevent the entries from being extracted once again.
+     *
+     * @throws IOException should not happen
+     */
+    @Test(timeOut = 60000)
+    public void testExtractAgain() throws IOException {
+        ArchiveEntryExtraction extractions[] = new ArchiveEntryExtraction[ExtractionExecutor.NB_THREADS];
+        ArchiveEntry entries[] = new ArchiveEntry[extractions.length];
+        try {
+            // Start the extractions, each of them decodes its folders up to the consumer
+            for(int i=0; i<extractions.length; i++) {
+                extractions[i] = archiveFile.extractEntries(new ArchiveEntryFilter() {
+                    public boolean accept(ArchiveEntry entry) {
+                        return !entry.isDirectory();
+                    }
+                });
+                entries[i] = extractions[i].nextEntry();
+            }
+
+            for(int i=0; i<extractions.length; i++) {
+                byte bytes[] = contents.get(entries[i].getPath());
+                assert Arrays.equals(bytes, read(extractions[i].getEntryInputStream()));
+                // The entry is extracted once again
+                assert Arrays.equals(bytes, read(extractions[i].getEntryInputStream()));
+            }
+        }
+        finally {
+            for(ArchiveEntryExtraction extraction : extractions) {
+                if(extraction!=null)
+                    extraction.close();
+            }
+        }
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private static String getFileName(int folder, int file) {
+        return "folder"+folder+"_file"+file;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StreamUtils.copyStream(in, out);
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a 7zip archive holding the given files, each group of files being compressed in a folder of its own,
+     * followed by an empty directory.
+     */
+    private static byte[] createArchive(byte folders[][][]) throws IOException {
+        ByteArrayOutputStream packedStreams = new ByteArrayOutputStream();
+        long packSizes[] = new long[folders.length];
+        byte properties[][] = new byte[folders.length][];
+        long unpackSizes[] = new long[folders.length];
+
+        for(int i=0; i<folders.length; i++) {
+            ByteArrayOutputStream folder = new ByteArrayOutputStream();
+            for(byte file[] : folders[i])
+                folder.write(file);
+            unpackSizes[i] = folder.size();
+
+            Encoder encoder = new Encoder();
+            encoder.SetDictionarySize(1<<20);
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            encoder.WriteCoderProperties(encoded);
+            encoder.Code(new ByteArrayInputStream(folder.toByteArray()), encoded, -1, -1, null);
+
+            byte bytes[] = encoded.toByteArray();
+            properties[i] = Arrays.copyOf(bytes, Encoder.kPropSize);
+            packedStreams.write(bytes, Encoder.kPropSize, bytes.length-Encoder.kPropSize);
+            packSizes[i] = bytes.length-Encoder.kPropSize;
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(0x01);                     // kHeader
+        header.write(0x04);                     // kMainStreamsInfo
+
+        header.write(0x06);                     // kPackInfo
+        writeNumber(header, 0);
+        writeNumber(header, folders.length);
+        header.write(0x09);                     // kSize
+        for(long packSize : packSizes)
+            writeNumber(header, packSize);
+        header.write(0x00);                     // kEnd
+
+        header.write(0x07);                     // kUnPackInfo
+        header.write(0x0B);                     // kFolder
+        writeNumber(header, folders.length);
+        header.write(0x00);                     // Not external
+        for(byte folderProperties[] : properties) {
+            writeNumber(header, 1);             // Number of coders
+            header.write(0x23);                 // Method ID size and properties flag
+            header.write(new byte[]{0x03, 0x01, 0x01});     // LZMA
+            writeNumber(header, folderProperties.length);
+            header.write(folderProperties);
+        }
+        header.write(0x0C);                     // kCodersUnPackSize
+        for(long unpackSize : unpackSizes)
+            writeNumber(header, unpackSize);
+        header.write(0x00);                     // kEnd
+
+        header.write(0x08);                     // kSubStreamsInfo
+        header.write(0x0D);                     // kNumUnPackStream
+        for(byte folder[][] : folders)
+            writeNumber(header, folder.length);
+        header.write(0x09);                     // kSize, all files of a folder but the last one
+        for(byte folder[][] : folders) {
+            for(int j=0; j<folder.length-1; j++)
+                writeNumber(header, folder[j].length);
+        }
+        header.write(0x00);                     // kEnd
+        header.write(0x00);                     // kEnd of kMainStreamsInfo
+
+        int nbFiles = 1;
+        for(byte folder[][] : folders)
+            nbFiles += folder.length;
+
+        header.write(0x05);                     // kFilesInfo
+        writeNumber(header, nbFiles);
+
+        header.write(0x0E);                     // kEmptyStream, only the last entry (the directory) has no stream
+        byte emptyStreams[] = new byte[(nbFiles+7)/8];
+        emptyStreams[(nbFiles-1)/8] = (byte)(0x80>>((nbFiles-1)%8));
+        writeNumber(header, emptyStreams.length);
+        header.write(emptyStreams);
+
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        names.write(0x00);                      // Not external
+        for(int i=0; i<folders.length; i++) {
+            for(int j=0; j<folders[i].length; j++)
+                writeName(names, getFileName(i, j));
+        }
+        writeName(names, DIRECTORY_NAME);
+        header.write(0x11);                     // kName
+        writeNumber(header, names.size());
+        names.writeTo(header);
+
+        header.write(0x00);                     // kEnd of kFilesInfo
+        header.write(0x00);                     // kEnd of kHeader
+
+        byte headerBytes[] = header.toByteArray();
+        ByteArrayOutputStream startHeader = new ByteArrayOutputStream();
+        writeLong(startHeader, packedStreams.size(), 8);    // Next header offset
+        writeLong(startHeader, headerBytes.length, 8);       // Next header size
+        writeLong(startHeader, crc(headerBytes), 4);         // Next header CRC
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        archive.write(new byte[]{'7', 'z', (byte)0xBC, (byte)0xAF, 0x27, 0x1C, 0x00, 0x04});
+        writeLong(archive, crc(startHeader.toByteArray()), 4);
+        startHeader.writeTo(archive);
+        packedStreams.writeTo(archive);
+        archive.write(headerBytes);
+
+        return archive.toByteArray();
+    }
+
+    /**
+     * Writes a number in the variable-length format of 7zip headers: the number of bytes that follow the first one
+     * is given by the number of leading 1 bits of the first byte, which holds the number's highest bits.
+     */
+    private static void writeNumber(ByteArrayOutputStream out, long value) {
+        int nbBytes = 0;
+        while(nbBytes<8 && value>=(1L<<(7*(nbBytes+1))))
+            nbBytes++;
+
+        int firstByte = nbBytes==8?0xFF:(0xFF00>>nbBytes)&0xFF | (int)(value>>>(8*nbBytes));
+        out.write(firstByte);
+        writeLong(out, value, nbBytes);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value, int nbBytes) {
+        for(int i=0; i<nbBytes; i++)
+            out.write((int)(value>>>(8*i)));
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        for(char c : (name+'\0').toCharArray()) {
+            out.write(c);
+            out.write(c>>8);
+        }
+    }
+
+    private static long crc(byte bytes[]) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * BoundedPipe connects a thread that produces bytes to a thread that consumes them, through a circular buffer of
+ * fixed capacity. The producer writes to the pipe's {@link #getOutputStream() OutputStream} and blocks whenever the
+ * buffer is full, so that a slow consumer throttles the producer instead of having the data accumulate in memory.
+ * The consumer reads from the pipe's {@link #getInputStream() InputStream}, which blocks until data is available and
+ * returns <code>EOF</code> once the producer has closed the <code>OutputStream</code>.
+ *
+ * <p>Either end can give up on the transfer:
+ * <ul>
+ *  <li>closing the <code>InputStream</code> before the end of the data makes any further write fail with an
+ * <code>IOException</code>, which lets the producer stop its work early</li>
+ *  <li>the producer can report an error with {@link #fail(IOException)}: the exception is thrown by subsequent reads
+ * rather than having the consumer mistake the truncated data for a complete one</li>
+ * </ul>
+ * </p>
+ *
+ * <p>The buffer is borrowed from the {@link BufferPool} and given back once both ends have been closed.</p>
+ */
+public class BoundedPipe {
+
+    /** Circular buffer, null once released */
+    private byte[] buffer;
+    /** Position of the next byte to read */
+    private int readPosition;
+    /** Number of bytes available for reading */
+    private int available;
+
+    /** True once the producer has closed the OutputStream */
+    private boolean writerClosed;
+    /** True once the consumer has closed the InputStream */
+    private boolean readerClosed;
+    /** Error reported by the producer, thrown by reads */
+    private IOException failure;
+
+    private final PipeInputStream in = new PipeInputStream();
+    private final PipeOutputStream out = new PipeOutputStream();
+
+    /**
+     * Creates a new pipe whose buffer holds up to the specified number of bytes.
+     *
+     * @param capacity size of the buffer
+     */
+    public BoundedPipe(int capacity) {
+        buffer = BufferPool.getByteArray(capacity);
+    }
+
+    /**
+     * Returns the stream that consumes the bytes written to the pipe.
+     *
+     * @return the stream that consumes the bytes written to the pipe
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Returns the stream that produces bytes into the pipe.
+     *
+     * @return the stream that produces bytes into the pipe
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Reports an error that prevented the producer from writing all of the data. The error is thrown by subsequent
+     * reads once the bytes that have already been written are consumed, and the output stream is closed.
+     *
+     * @param e the error to report to the consumer
+     */
+    public synchronized void fail(IOException e) {
+        failure = e;
+        writerClosed = true;
+        releaseIfClosed();
+        notifyAll();
+    }
+
+    /**
+     * Returns <code>true</code> if the consumer has closed the pipe, in which case the producer can stop writing.
+     *
+     * @return <code>true</code> if the consumer has closed the pipe
+     */
+    public synchronized boolean isReaderClosed() {
+        return readerClosed;
+    }
+
+    private void releaseIfClosed() {
+        if(readerClosed && writerClosed && buffer!=null) {
+            BufferPool.releaseByteArray(buffer);
+            buffer = null;
+        }
+    }
+
+    private synchronized int read(byte b[], int off, int len) throws IOException {
+        if(readerClosed)
+            throw new IOException("Pipe closed");
+        if(len==0)
+            return 0;
+
+        try {
+            while(available==0) {
+                if(writerClosed) {
+                    if(failure!=null)
+                        throw failure;
+                    return -1;
+                }
+                wait();
+            }
+        }
+        catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        // Copy up to the end of the buffer, then from its start if needed
+        int nbRead = Math.min(len, available);
+        int firstPart = Math.min(nbRead, buffer.length-readPosition);
+        System.arraycopy(buffer, readPosition, b, off, firstPart);
+        if(firstPart<nbRead)
+            System.arraycopy(buffer, 0, b, off+firstPart, nbRead-firstPart);
+        readPosition = (readPosition+nbRead)%buffer.length;
+        available -= nbRead;
+
+        notifyAll();
+        return nbRead;
+    }
+
+    private synchronized void write(byte b[], int off, int len) throws IOException {
+        try {
+            while(len>0) {
+                if(writerClosed)
+                    throw new IOException("Pipe closed");
+                if(readerClosed)
+                    throw new IOException("Pipe closed by reader");
+
+                if(available==buffer.length) {
+                    wait();
+                    continue;
+                }
+
+                int writePosition = (readPosition+available)%buffer.length;
+                int nbWritten = Math.min(len, Math.min(buffer.length-available, buffer.length-writePosition));
+                System.arraycopy(b, off, buffer, writePosition, nbWritten);
+                available += nbWritten;
+                off += nbWritten;
+                len -= nbWritten;
+
+                notifyAll();
+            }
+        }
+        catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private synchronized void closeReader() {
+        readerClosed = true;
+        available = 0;
+        releaseIfClosed();
+        notifyAll();
+    }
+
+    private synchronized void closeWriter() {
+        writerClosed = true;
+        releaseIfClosed();
+        notifyAll();
+    }
+
+    private synchronized int available() throws IOException {
+        if(readerClosed)
+            throw new IOException("Pipe closed");
+        return available;
+    }
+
+
+    ///////////////////
+    // Inner classes //
+    ///////////////////
+
+    private class PipeInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte b[] = new byte[1];
+            int ret = BoundedPipe.this.read(b, 0, 1);
+            return ret==-1?-1:(b[0]&0xFF);
+        }
+
+        @Override
+        public int read(byte b[], int off, int len) throws IOException {
+            return BoundedPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return BoundedPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            BoundedPipe.this.write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) throws IOException {
+            BoundedPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    }
+}
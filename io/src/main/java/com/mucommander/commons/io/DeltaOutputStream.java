@@ -0,0 +1,231 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DeltaOutputStream updates existing contents in place, writing to the underlying {@link RandomAccessOutputStream}
+ * only the blocks that differ from the existing ones. The bytes written to this stream are grouped in consecutive
+ * blocks of a fixed size, and the checksum of each block is compared with the checksum of the block at the same
+ * offset in the existing contents: the block is written only if the checksums differ. When the stream is closed, the
+ * underlying stream is truncated to the number of bytes written to this stream. If the bytes could not all be written,
+ * for instance because the source failed, the stream should be {@link #abort() aborted} instead, which leaves the
+ * length of the existing contents untouched.
+ *
+ * <p>The checksums of the existing contents can be calculated with {@link #calculateBlockChecksums(InputStream, MessageDigest, int)},
+ * using the same kind of <code>MessageDigest</code> and block size. Blocks are compared at the same offset only: bytes
+ * inserted or removed in the middle of the contents cause all the blocks that follow to be written.</p>
+ *
+ * @see RandomAccessOutputStream
+ */
+public class DeltaOutputStream extends OutputStream {
+
+    /** The stream that holds the existing contents */
+    private final RandomAccessOutputStream out;
+
+    /** Calculates the checksums of the blocks written to this stream */
+    private final MessageDigest messageDigest;
+
+    /** Hexadecimal checksums of the existing blocks */
+    private final String blockChecksums[];
+
+    /** Block being filled */
+    private final byte block[];
+
+    /** Number of bytes in the block being filled */
+    private int blockLength;
+
+    /** Index of the block being filled */
+    private int blockIndex;
+
+    /** Offset of the block being filled */
+    private long offset;
+
+    /** Number of bytes written to the underlying stream */
+    private long nbWritten;
+
+    /** True if the stream has been closed */
+    private boolean closed;
+
+
+    /**
+     * Creates a new DeltaOutputStream that updates the contents of the given stream.
+     *
+     * @param out the stream that holds the existing contents
+     * @param messageDigest the MessageDigest used to calculate the checksums of the existing blocks
+     * @param blockChecksums the hexadecimal checksums of the existing blocks, in order
+     * @param blockSize the size of the blocks the checksums have been calculated on
+     */
+    public DeltaOutputStream(RandomAccessOutputStream out, MessageDigest messageDigest, String blockChecksums[], int blockSize) {
+        this.out = out;
+        this.messageDigest = messageDigest;
+        this.blockChecksums = blockChecksums;
+        this.block = new byte[blockSize];
+    }
+
+    /**
+     * Returns the number of bytes that have been written to the underlying stream, that is the number of bytes of
+     * the blocks that differed from the existing ones.
+     *
+     * @return the number of bytes that have been written to the underlying stream
+     */
+    public long getWrittenByteCount() {
+        return nbWritten;
+    }
+
+    /**
+     * Compares the block being filled with the existing block at the same offset, and writes it if they differ.
+     */
+    private void writeBlock() throws IOException {
+        if(blockLength==0)
+            return;
+
+        messageDigest.update(block, 0, blockLength);
+        String checksum = ByteUtils.toHexString(messageDigest.digest());
+        if(blockIndex>=blockChecksums.length || !checksum.equals(blockChecksums[blockIndex])) {
+            out.seek(offset);
+            out.write(block, 0, blockLength);
+            nbWritten += blockLength;
+        }
+
+        offset += blockLength;
+        blockIndex++;
+        blockLength = 0;
+    }
+
+    /**
+     * Returns the hexadecimal checksums of the consecutive blocks of the given size read from the given stream, the
+     * last block being shorter if the stream's length is not a multiple of the block size. The stream is read until
+     * EOF is reached but is not closed.
+     *
+     * @param in the stream to read
+     * @param messageDigest the MessageDigest to use for calculating the checksums
+     * @param blockSize the size of the blocks
+     * @return the hexadecimal checksums of the stream's blocks
+     * @throws IOException if an I/O error occurred while reading the stream
+     */
+    public static String[] calculateBlockChecksums(InputStream in, MessageDigest messageDigest, int blockSize) throws IOException {
+        List<String> checksums = new ArrayList<String>();
+        byte buffer[] = BufferPool.getByteArray();
+        try {
+            int blockLength = 0;
+            int nbRead;
+            while((nbRead=in.read(buffer))!=-1) {
+                int off = 0;
+                while(off<nbRead) {
+                    int len = Math.min(nbRead-off, blockSize-blockLength);
+                    messageDigest.update(buffer, off, len);
+                    off += len;
+                    blockLength += len;
+
+                    if(blockLength==blockSize) {
+                        checksums.add(ByteUtils.toHexString(messageDigest.digest()));
+                        blockLength = 0;
+                    }
+                }
+            }
+
+            if(blockLength>0)
+                checksums.add(ByteUtils.toHexString(messageDigest.digest()));
+        }
+        finally {
+            BufferPool.releaseByteArray(buffer);
+        }
+
+        return checksums.toArray(new String[checksums.size()]);
+    }
+
+
+    /////////////////////////////////
+    // OutputStream implementation //
+    /////////////////////////////////
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte)b;
+        if(blockLength==block.length)
+            writeBlock();
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+        while(len>0) {
+            int nbBytes = Math.min(len, block.length-blockLength);
+            System.arraycopy(b, off, block, blockLength, nbBytes);
+            blockLength += nbBytes;
+            off += nbBytes;
+            len -= nbBytes;
+
+            if(blockLength==block.length)
+                writeBlock();
+        }
+    }
+
+    /**
+     * Flushes the underlying stream. The block being filled is not written until it is full or the stream is closed.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the last block if it differs from the existing one, truncates the underlying stream to the number of
+     * bytes written to this stream, and closes it.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+
+        closed = true;
+        try {
+            writeBlock();
+            out.setLength(offset);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Closes the underlying stream without writing the last block nor truncating the underlying stream, so that
+     * incomplete contents do not cut the existing ones short. The blocks that have already been written are left as
+     * they are. This method has no effect if the stream has already been closed.
+     *
+     * @throws IOException if an I/O error occurred while closing the underlying stream
+     */
+    public void abort() throws IOException {
+        if(closed)
+            return;
+
+        closed = true;
+        out.close();
+    }
+}
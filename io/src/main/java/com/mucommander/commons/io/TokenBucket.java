@@ -0,0 +1,174 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.io;
+
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+
+/**
+ * A token bucket that limits a rate of bytes, shared by any number of threads. Tokens are added to the bucket
+ * continuously at the bucket's rate, and the bucket holds at most {@link #BURST_PERIOD} milliseconds worth of tokens:
+ * unlike a counter that is reset every second, bytes are spread evenly over time and bursts are bounded.
+ *
+ * <p>Threads waiting for tokens are served in the order they started waiting, and each of them is granted at most
+ * {@link #GRANT_PERIOD} milliseconds worth of tokens at a time. Threads that consume tokens concurrently thus get a
+ * fair share of the rate, whatever the size of their reads.</p>
+ *
+ * <p>The rate can be changed at any time, including while threads are waiting for tokens. A rate of <code>0</code>
+ * blocks all threads until the rate is changed, a negative rate disables the limit.</p>
+ *
+ * @see TokenBucketInputStream
+ */
+public class TokenBucket {
+
+    /** Number of milliseconds worth of tokens the bucket can hold */
+    public final static int BURST_PERIOD = 100;
+
+    /** Maximum number of milliseconds worth of tokens granted to a thread at once */
+    public final static int GRANT_PERIOD = 10;
+
+    /** Number of tokens added per second, -1 for no limit, 0 to block */
+    private volatile long rate;
+
+    /** Number of tokens currently in the bucket, guarded by this */
+    private double tokens;
+
+    /** Time at which tokens were last added, in nanoseconds, guarded by this */
+    private long lastRefillTime;
+
+    /** Threads waiting for tokens, in the order they started waiting, guarded by this */
+    private final LinkedList<Thread> waiters = new LinkedList<Thread>();
+
+
+    /**
+     * Creates a new full bucket with the given rate.
+     *
+     * @param bytesPerSecond number of bytes per second, <code>-1</code> for no limit, <code>0</code> to block
+     */
+    public TokenBucket(long bytesPerSecond) {
+        this.rate = bytesPerSecond;
+        this.tokens = getTokens(bytesPerSecond, BURST_PERIOD);
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * Changes the rate of this bucket. The new rate takes effect immediately, threads waiting for tokens are woken up.
+     *
+     * @param bytesPerSecond number of bytes per second, <code>-1</code> for no limit, <code>0</code> to block
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        rate = bytesPerSecond;
+        tokens = Math.min(tokens, getTokens(bytesPerSecond, BURST_PERIOD));
+
+        notifyAll();
+    }
+
+    /**
+     * Returns the rate of this bucket.
+     *
+     * @return the number of bytes per second, <code>-1</code> for no limit, <code>0</code> if blocked
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Waits until tokens are available and takes up to the given number of them. Fewer tokens than requested are
+     * granted if more than {@link #GRANT_PERIOD} milliseconds worth are requested. This method returns immediately if
+     * this bucket has no limit.
+     *
+     * @param max maximum number of tokens to take, strictly positive
+     * @return the number of tokens that have been taken, between <code>1</code> and <code>max</code>
+     * @throws InterruptedIOException if the current thread was interrupted while waiting for tokens
+     */
+    public int acquire(int max) throws InterruptedIOException {
+        if(rate<0)
+            return max;
+
+        Thread thread = Thread.currentThread();
+        synchronized(this) {
+            waiters.add(thread);
+            try {
+                while(true) {
+                    long currentRate = rate;
+                    if(currentRate<0)
+                        return max;
+
+                    if(waiters.getFirst()!=thread) {
+                        // Wait for the threads ahead of this one to be served
+                        wait();
+                        continue;
+                    }
+
+                    int wanted = (int)Math.min(max, getTokens(currentRate, GRANT_PERIOD));
+                    refill();
+                    if(currentRate>0 && tokens>=wanted) {
+                        tokens -= wanted;
+                        return wanted;
+                    }
+
+                    if(currentRate==0)
+                        wait();
+                    else
+                        wait(Math.max(1, (long)Math.ceil((wanted-tokens)*1000/currentRate)));
+                }
+            }
+            catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            finally {
+                waiters.remove(thread);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Puts back tokens that have been taken but not used, for instance because fewer bytes than granted were read.
+     *
+     * @param nbTokens number of tokens to put back
+     */
+    public void release(int nbTokens) {
+        if(nbTokens<=0 || rate<0)
+            return;
+
+        synchronized(this) {
+            tokens = Math.min(tokens+nbTokens, getTokens(rate, BURST_PERIOD));
+            notifyAll();
+        }
+    }
+
+    /**
+     * Adds the tokens accumulated since the last refill.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        if(rate>0)
+            tokens = Math.min(tokens+(now-lastRefillTime)*rate/1000000000d, getTokens(rate, BURST_PERIOD));
+        lastRefillTime = now;
+    }
+
+    /**
+     * Returns the number of tokens added in the given period at the given rate, at least <code>1</code>.
+     */
+    private static long getTokens(long rate, int period) {
+        return Math.max(1, rate*period/1000);
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * TokenBucketInputStream limits the rate at which bytes are read from the underlying stream to the rates of one or
+ * several {@link TokenBucket} instances, which may be shared with other streams. Before each read, as many tokens
+ * as bytes are taken from every bucket, so that the most restrictive of the buckets determines the actual rate.
+ * Tokens that have not been used, for instance at the end of the stream, are put back into the buckets.
+ *
+ * <p>Rates can be changed on the buckets while the stream is being read, see {@link TokenBucket#setRate(long)}.</p>
+ *
+ * @see TokenBucket
+ */
+public class TokenBucketInputStream extends FilterInputStream {
+
+    /** Buckets to take tokens from, in order */
+    private final TokenBucket buckets[];
+
+
+    /**
+     * Creates a new TokenBucketInputStream that reads from the given stream at the rate allowed by the given buckets.
+     * Tokens are taken from the buckets in the given order: the buckets that are shared by the most streams should
+     * come last, so that tokens are not held in them while waiting for the other buckets.
+     *
+     * @param in the stream to read data from
+     * @param buckets the buckets that limit the rate
+     */
+    public TokenBucketInputStream(InputStream in, TokenBucket... buckets) {
+        super(in);
+
+        this.buckets = buckets;
+    }
+
+    /**
+     * Waits until up to the given number of bytes can be read without exceeding the rate of any of the buckets.
+     *
+     * @param max maximum number of bytes to read
+     * @return the number of bytes that can be read, between <code>1</code> and <code>max</code>
+     */
+    private int acquire(int max) throws IOException {
+        int granted = max;
+        for(int i=0; i<buckets.length; i++) {
+            int nbTokens = buckets[i].acquire(granted);
+
+            // Put back the tokens the previous buckets have granted in excess
+            for(int j=0; j<i; j++)
+                buckets[j].release(granted-nbTokens);
+
+            granted = nbTokens;
+        }
+
+        return granted;
+    }
+
+    /**
+     * Puts back into the buckets the tokens that have been granted but not used.
+     */
+    private void release(int nbTokens) {
+        for(TokenBucket bucket : buckets)
+            bucket.release(nbTokens);
+    }
+
+
+    ////////////////////////////////
+    // InputStream implementation //
+    ////////////////////////////////
+
+    @Override
+    public int read() throws IOException {
+        acquire(1);
+
+        int i = in.read();
+        if(i==-1)
+            release(1);
+
+        return i;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len==0)
+            return 0;
+
+        int granted = acquire(len);
+        int nbRead = in.read(b, off, granted);
+        release(nbRead<=0?granted:granted-nbRead);
+
+        return nbRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if(n<=0)
+            return 0;
+
+        int granted = acquire((int)Math.min(n, Integer.MAX_VALUE));
+        long nbSkipped = in.skip(granted);
+        release(nbSkipped<=0?granted:granted-(int)nbSkipped);
+
+        return nbSkipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        // Bytes read again after a reset would not be accounted for
+        return false;
+    }
+}
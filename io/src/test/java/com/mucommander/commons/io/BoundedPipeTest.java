@@ -0,0 +1,131 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.io;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A test case for {@link com.mucommander.commons.io.BoundedPipe}.
+ *
+ * @see com.mucommander.commons.io.BoundedPipe
+ */
+public class BoundedPipeTest {
+
+    /** Capacity of the tested pipes, much smaller than the data that goes through them */
+    private final static int CAPACITY = 1024;
+
+    /**
+     * Writes the given data to the pipe from a separate thread, in chunks of varying sizes, then closes the pipe or
+     * makes it fail.
+     */
+    private Thread startWriter(final BoundedPipe pipe, final byte[] data, final IOException failure) {
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                OutputStream out = pipe.getOutputStream();
+                Random random = new Random(0);
+                try {
+                    int off = 0;
+                    while(off<data.length) {
+                        int len = Math.min(data.length-off, random.nextInt(3*CAPACITY));
+                        out.write(data, off, len);
+                        off += len;
+                    }
+                    if(failure==null)
+                        out.close();
+                    else
+                        pipe.fail(failure);
+                }
+                catch(IOException e) {
+                    // Reader closed the pipe
+                }
+            }
+        };
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * Asserts that data much larger than the pipe's capacity gets through unaltered.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testTransfer() throws Exception {
+        byte[] data = new byte[100*CAPACITY+17];
+        new Random().nextBytes(data);
+
+        BoundedPipe pipe = new BoundedPipe(CAPACITY);
+        startWriter(pipe, data, null);
+
+        InputStream in = pipe.getInputStream();
+        byte[] read = new byte[data.length];
+        assert StreamUtils.readUpTo(in, read)==data.length;
+        assert in.read()==-1;
+        assert Arrays.equals(data, read);
+        in.close();
+    }
+
+    /**
+     * Asserts that closing the <code>InputStream</code> unblocks the writer and makes it fail.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testReaderClose() throws Exception {
+        BoundedPipe pipe = new BoundedPipe(CAPACITY);
+        Thread writer = startWriter(pipe, new byte[10*CAPACITY], null);
+
+        InputStream in = pipe.getInputStream();
+        assert in.read(new byte[10])==10;
+        in.close();
+        assert pipe.isReaderClosed();
+
+        writer.join(5000);
+        assert !writer.isAlive();
+    }
+
+    /**
+     * Asserts that the failure reported by the writer is thrown once the data written before it has been read.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testFailure() throws Exception {
+        byte[] data = new byte[CAPACITY/2];
+        BoundedPipe pipe = new BoundedPipe(CAPACITY);
+        IOException failure = new IOException();
+        startWriter(pipe, data, failure).join();
+
+        InputStream in = pipe.getInputStream();
+        assert StreamUtils.readUpTo(in, new byte[data.length])==data.length;
+
+        boolean exceptionThrown = false;
+        try { in.read(); }
+        catch(IOException e) { exceptionThrown = e==failure; }
+
+        assert exceptionThrown;
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.io;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A test case for {@link DeltaOutputStream}.
+ *
+ * @see DeltaOutputStream
+ */
+public class DeltaOutputStreamTest {
+
+    /** Block size used by the tests */
+    private final static int BLOCK_SIZE = 1024;
+
+    /**
+     * Asserts that the checksums of a stream's blocks are calculated on consecutive blocks, the last one being shorter.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testBlockChecksums() throws Exception {
+        byte bytes[] = getRandomBytes(3*BLOCK_SIZE+10);
+        String checksums[] = getBlockChecksums(bytes);
+        assert checksums.length == 4;
+
+        MessageDigest digest = getDigest();
+        digest.update(bytes, 3*BLOCK_SIZE, 10);
+        assert checksums[3].equals(ByteUtils.toHexString(digest.digest()));
+
+        assert getBlockChecksums(new byte[0]).length == 0;
+        assert getBlockChecksums(new byte[BLOCK_SIZE]).length == 1;
+    }
+
+    /**
+     * Asserts that only the modified blocks and the appended bytes are written, and that the resulting contents are
+     * those written to the stream.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testModifyAndAppend() throws Exception {
+        byte oldBytes[] = getRandomBytes(4*BLOCK_SIZE);
+        byte newBytes[] = new byte[5*BLOCK_SIZE+100];
+        System.arraycopy(oldBytes, 0, newBytes, 0, oldBytes.length);
+        System.arraycopy(getRandomBytes(newBytes.length-oldBytes.length), 0, newBytes, oldBytes.length, newBytes.length-oldBytes.length);
+        newBytes[2*BLOCK_SIZE+5] ^= 1;
+
+        ByteArrayRandomAccessOutputStream out = new ByteArrayRandomAccessOutputStream(oldBytes);
+        assert write(out, oldBytes, newBytes) == BLOCK_SIZE + BLOCK_SIZE+100;
+        assert Arrays.equals(out.toByteArray(), newBytes);
+    }
+
+    /**
+     * Asserts that nothing is written if the contents are unchanged, and that the existing contents are truncated to
+     * the length of the new ones.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testUnchangedAndTruncate() throws Exception {
+        byte oldBytes[] = getRandomBytes(3*BLOCK_SIZE+10);
+
+        ByteArrayRandomAccessOutputStream out = new ByteArrayRandomAccessOutputStream(oldBytes);
+        assert write(out, oldBytes, oldBytes) == 0;
+        assert Arrays.equals(out.toByteArray(), oldBytes);
+
+        byte newBytes[] = new byte[BLOCK_SIZE+10];
+        System.arraycopy(oldBytes, 0, newBytes, 0, newBytes.length);
+
+        out = new ByteArrayRandomAccessOutputStream(oldBytes);
+        assert write(out, oldBytes, newBytes) == 10;
+        assert Arrays.equals(out.toByteArray(), newBytes);
+    }
+
+
+    /**
+     * Asserts that aborting the stream neither writes the last block nor truncates the existing contents, and that
+     * closing an aborted stream has no effect.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testAbort() throws Exception {
+        byte oldBytes[] = getRandomBytes(4*BLOCK_SIZE);
+        byte newBytes[] = getRandomBytes(BLOCK_SIZE+10);
+
+        ByteArrayRandomAccessOutputStream out = new ByteArrayRandomAccessOutputStream(oldBytes);
+        DeltaOutputStream deltaOut = new DeltaOutputStream(out, getDigest(), getBlockChecksums(oldBytes), BLOCK_SIZE);
+        deltaOut.write(newBytes);
+        deltaOut.abort();
+        deltaOut.close();
+        assert deltaOut.getWrittenByteCount() == BLOCK_SIZE;
+
+        byte expectedBytes[] = oldBytes.clone();
+        System.arraycopy(newBytes, 0, expectedBytes, 0, BLOCK_SIZE);
+        assert Arrays.equals(out.toByteArray(), expectedBytes);
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    /**
+     * Writes the new bytes in small chunks to a DeltaOutputStream over the given stream that holds the old bytes,
+     * and returns the number of bytes written to the stream.
+     */
+    private static long write(ByteArrayRandomAccessOutputStream out, byte oldBytes[], byte newBytes[]) throws Exception {
+        DeltaOutputStream deltaOut = new DeltaOutputStream(out, getDigest(), getBlockChecksums(oldBytes), BLOCK_SIZE);
+        for(int off=0; off<newBytes.length; off+=300)
+            deltaOut.write(newBytes, off, Math.min(300, newBytes.length-off));
+        deltaOut.close();
+
+        return deltaOut.getWrittenByteCount();
+    }
+
+    private static String[] getBlockChecksums(byte bytes[]) throws Exception {
+        return DeltaOutputStream.calculateBlockChecksums(new ByteArrayInputStream(bytes), getDigest(), BLOCK_SIZE);
+    }
+
+    private static MessageDigest getDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("MD5");
+    }
+
+    private static byte[] getRandomBytes(int length) {
+        byte bytes[] = new byte[length];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * A RandomAccessOutputStream backed by a byte array that grows as needed.
+     */
+    private static class ByteArrayRandomAccessOutputStream extends RandomAccessOutputStream {
+
+        private byte bytes[];
+        private int length;
+        private int offset;
+
+        private ByteArrayRandomAccessOutputStream(byte bytes[]) {
+            this.bytes = bytes.clone();
+            this.length = bytes.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte b[]) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) throws IOException {
+            if(offset+len>bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(offset+len, 2*bytes.length));
+
+            System.arraycopy(b, off, bytes, offset, len);
+            offset += len;
+            length = Math.max(length, offset);
+        }
+
+        @Override
+        public void setLength(long newLength) throws IOException {
+            if(newLength>bytes.length)
+                bytes = Arrays.copyOf(bytes, (int)newLength);
+
+            length = (int)newLength;
+            offset = Math.min(offset, length);
+        }
+
+        @Override
+        public long getOffset() throws IOException {
+            return offset;
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            return length;
+        }
+
+        @Override
+        public void seek(long offset) throws IOException {
+            this.offset = (int)offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
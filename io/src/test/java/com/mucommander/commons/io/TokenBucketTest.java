@@ -0,0 +1,170 @@
+/**
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.io;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A test case for {@link TokenBucket} and {@link TokenBucketInputStream}.
+ *
+ * @see TokenBucket
+ * @see TokenBucketInputStream
+ */
+public class TokenBucketTest {
+
+    /** Rate used by the tests, in bytes per second */
+    private final static int RATE = 100000;
+
+    /**
+     * Asserts that a bucket without limit grants all the requested tokens immediately.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testNoLimit() throws IOException {
+        TokenBucket bucket = new TokenBucket(-1);
+        assert bucket.acquire(Integer.MAX_VALUE) == Integer.MAX_VALUE;
+
+        long start = System.currentTimeMillis();
+        readFully(new TokenBucketInputStream(new ByteArrayInputStream(new byte[RATE*10]), bucket));
+        assert System.currentTimeMillis()-start < 1000;
+    }
+
+    /**
+     * Asserts that no more than {@link TokenBucket#GRANT_PERIOD} milliseconds worth of tokens are granted at once, and
+     * that reads are spread over time according to the bucket's rate.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testRate() throws IOException {
+        TokenBucket bucket = new TokenBucket(RATE);
+        assert bucket.acquire(Integer.MAX_VALUE) == RATE*TokenBucket.GRANT_PERIOD/1000;
+
+        // Reading half a second worth of bytes takes about half a second
+        long start = System.currentTimeMillis();
+        assert readFully(new TokenBucketInputStream(new ByteArrayInputStream(new byte[RATE/2]), bucket)) == RATE/2;
+        long time = System.currentTimeMillis()-start;
+        assert time >= 400 && time < 2000;
+    }
+
+    /**
+     * Asserts that the most restrictive bucket of a stream determines its rate.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testSeveralBuckets() throws IOException {
+        TokenBucket fastBucket = new TokenBucket(RATE*10);
+        TokenBucket slowBucket = new TokenBucket(RATE);
+
+        long start = System.currentTimeMillis();
+        readFully(new TokenBucketInputStream(new ByteArrayInputStream(new byte[RATE/2]), fastBucket, slowBucket));
+        assert System.currentTimeMillis()-start >= 400;
+    }
+
+    /**
+     * Asserts that a rate of 0 blocks reads until the rate is changed from another thread.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testBlock() throws Exception {
+        final TokenBucket bucket = new TokenBucket(0);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(300);
+                }
+                catch(InterruptedException e) {
+                    // Change the rate right away
+                }
+                bucket.setRate(-1);
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        thread.start();
+        assert bucket.acquire(10) == 10;
+        assert System.currentTimeMillis()-start >= 250;
+
+        thread.join();
+    }
+
+    /**
+     * Asserts that threads that share a bucket get an equal share of its rate.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testFairSharing() throws Exception {
+        final TokenBucket bucket = new TokenBucket(RATE);
+        final long nbRead[] = new long[2];
+        final long deadline = System.currentTimeMillis()+1000;
+
+        Thread threads[] = new Thread[2];
+        for(int i=0; i<threads.length; i++) {
+            final int index = i;
+            // The first thread reads with a much larger buffer than the second one
+            final int bufferSize = i==0?65536:1024;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        InputStream in = new TokenBucketInputStream(new RandomGeneratorInputStream(), bucket);
+                        byte buffer[] = new byte[bufferSize];
+                        while(System.currentTimeMillis()<deadline)
+                            nbRead[index] += in.read(buffer);
+                    }
+                    catch(IOException e) {
+                        nbRead[index] = -1;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for(Thread thread : threads)
+            thread.join();
+
+        assert nbRead[0] > 0 && nbRead[1] > 0;
+        assert nbRead[0] < nbRead[1]*2 && nbRead[1] < nbRead[0]*2;
+        assert nbRead[0]+nbRead[1] < RATE*2;
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private static long readFully(InputStream in) throws IOException {
+        byte buffer[] = new byte[65536];
+        long total = 0;
+        int nbRead;
+        while((nbRead=in.read(buffer))!=-1)
+            total += nbRead;
+
+        return total;
+    }
+}
@@ -31,6 +31,8 @@ import com.mucommander.command.Command;
 import com.mucommander.command.CommandException;
 import com.mucommander.command.CommandManager;
 import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.FileProtocols;
+import com.mucommander.commons.file.connection.ConnectionPool;
 import com.mucommander.commons.file.icon.impl.SwingFileIconProvider;
 import com.mucommander.commons.file.impl.ftp.FTPProtocolProvider;
 import com.mucommander.commons.file.impl.smb.SMBProtocolProvider;
@@ -633,6 +635,15 @@ public class Launcher {
         // Use the FTP configuration option that controls whether to force the display of hidden files, or leave it for
         // the servers to decide whether to show them.
         FTPProtocolProvider.setForceHiddenFilesListing(MuConfigurations.getPreferences().getVariable(MuPreference.LIST_HIDDEN_FILES, MuPreferences.DEFAULT_LIST_HIDDEN_FILES));        
+
+        // Bound the number of simultaneous connections to a same FTP/SFTP server. Parallel jobs against a server
+        // can use more connections than the default if the server allows it.
+        ConnectionPool.setMaxConnections(FileProtocols.FTP, MuConfigurations.getPreferences().getVariable(MuPreference.FTP_MAX_CONNECTIONS, MuPreferences.DEFAULT_FTP_MAX_CONNECTIONS));
+        ConnectionPool.setMaxConnections(FileProtocols.SFTP, MuConfigurations.getPreferences().getVariable(MuPreference.SFTP_MAX_CONNECTIONS, MuPreferences.DEFAULT_SFTP_MAX_CONNECTIONS));
+
+        // Socket buffer sizes of FTP data connections, larger buffers help on links with a high latency
+        FTPProtocolProvider.setReceiveBufferSize(MuConfigurations.getPreferences().getVariable(MuPreference.FTP_RECEIVE_BUFFER_SIZE, MuPreferences.DEFAULT_FTP_RECEIVE_BUFFER_SIZE));
+        FTPProtocolProvider.setSendBufferSize(MuConfigurations.getPreferences().getVariable(MuPreference.FTP_SEND_BUFFER_SIZE, MuPreferences.DEFAULT_FTP_SEND_BUFFER_SIZE));
         
         // Use CredentialsManager for file URL authentication
         FileFactory.setDefaultAuthenticator(CredentialsManager.getAuthenticator());
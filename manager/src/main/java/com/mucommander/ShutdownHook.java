@@ -25,6 +25,7 @@ import com.mucommander.auth.CredentialsManager;
 import com.mucommander.bookmark.BookmarkManager;
 import com.mucommander.command.CommandManager;
 import com.mucommander.conf.MuConfigurations;
+import com.mucommander.search.SearchIndexer;
 import com.mucommander.shell.ShellHistoryManager;
 import com.mucommander.ui.action.ActionKeymapIO;
 import com.mucommander.ui.main.commandbar.CommandBarIO;
@@ -86,7 +87,10 @@ public class ShutdownHook extends Thread {
         if(shutdownTasksPerformed)
             return;
         
-        TreeIOThreadManager.getInstance().interrupt();
+        TreeIOThreadManager.getInstance().shutdown();
+
+        // Close the search index, committing pending changes
+        SearchIndexer.shutdown();
 
         // Save snapshot
         try{MuConfigurations.saveSnapshot();}
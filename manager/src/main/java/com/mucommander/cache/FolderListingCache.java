@@ -0,0 +1,476 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileProtocols;
+import com.mucommander.commons.file.FileURL;
+
+/**
+ * Application-wide cache of folder listings for remote protocols, which allows folders that have been visited
+ * recently, for instance when going back and forward in the location history, to be displayed without waiting for
+ * them to be listed again.
+ *
+ * <p>Listings are keyed by the folder's {@link FileURL} and hold the unfiltered children returned by
+ * {@link AbstractFile#ls()}. A listing is returned by {@link #get(AbstractFile)} until its time-to-live expires,
+ * which depends on the folder's scheme (see {@link #getTimeToLive(String)}). Folders whose scheme has no
+ * time-to-live, local folders in particular, and folders located inside archives are not cached.
+ * As a listing may be outdated even before it expires, it should be revalidated in the background once it has been
+ * used, see {@link #revalidate(AbstractFile, AbstractFile[], FolderListingListener)}. Listings of the folders modified
+ * by file jobs are discarded by {@link #invalidate(AbstractFile)}.</p>
+ *
+ * <p>The cache is bounded both by the number of listings it holds, {@link #CAPACITY}, and by the total number of
+ * files they contain, {@link #MAX_WEIGHT}, which accounts for most of the memory used by the cache. Least recently
+ * used listings are evicted first.</p>
+ */
+public class FolderListingCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FolderListingCache.class);
+
+    /** Maximum number of listings held by the cache */
+    public final static int CAPACITY = 200;
+
+    /** Maximum number of files held by the cache, each listing weighs 1 plus the number of its children */
+    public final static int MAX_WEIGHT = 100000;
+
+    /** Minimum time in milliseconds between the moment a listing is stored and its revalidation */
+    private final static int REVALIDATION_DELAY = 2000;
+
+    /** Number of threads used to revalidate listings */
+    private final static int NB_THREADS = 2;
+
+    /** Scheme -> time-to-live of listings in milliseconds */
+    private final static Map<String, Long> timesToLive = new HashMap<String, Long>();
+
+    /** Folder URL -> Listing map, in access order */
+    private final static LinkedHashMap<FileURL, Listing> listings = new LinkedHashMap<FileURL, Listing>(16, 0.75f, true);
+
+    /** URLs of the folders that are being revalidated, guarded by listings */
+    private final static Set<FileURL> revalidating = new HashSet<FileURL>();
+
+    /** Total weight of the listings, guarded by listings */
+    private static long weight;
+
+    /** Statistics, guarded by listings */
+    private static long hitCount;
+    private static long missCount;
+    private static long evictionCount;
+    private static long revalidationCount;
+    private static long outdatedCount;
+
+    /** Executes revalidation tasks */
+    private final static ExecutorService executor;
+
+    static {
+        timesToLive.put(FileProtocols.FTP, 60000L);
+        timesToLive.put(FileProtocols.SFTP, 60000L);
+        timesToLive.put(FileProtocols.SMB, 30000L);
+        timesToLive.put(FileProtocols.NFS, 30000L);
+        timesToLive.put(FileProtocols.HDFS, 60000L);
+        timesToLive.put(FileProtocols.WEBDAV, 60000L);
+        timesToLive.put(FileProtocols.WEBDAVS, 60000L);
+        timesToLive.put(FileProtocols.S3, 120000L);
+        timesToLive.put(FileProtocols.HTTP, 120000L);
+        timesToLive.put(FileProtocols.HTTPS, 120000L);
+
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(NB_THREADS, NB_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "FolderListingCache-"+threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        // Release idle threads, listings are revalidated only when they are used
+        threadPool.allowCoreThreadTimeOut(true);
+        executor = threadPool;
+    }
+
+    /**
+     * Prevents instances of this class from being created.
+     */
+    private FolderListingCache() {
+    }
+
+    /**
+     * Returns the time-to-live of the listings of folders of the given scheme, in milliseconds. <code>0</code> is
+     * returned if the listings of this scheme are not cached.
+     *
+     * @param scheme a file protocol, see {@link FileProtocols}
+     * @return the time-to-live of the listings of the given scheme, <code>0</code> if they are not cached
+     */
+    public static long getTimeToLive(String scheme) {
+        synchronized(timesToLive) {
+            Long timeToLive = timesToLive.get(scheme.toLowerCase());
+            return timeToLive==null?0:timeToLive;
+        }
+    }
+
+    /**
+     * Sets the time-to-live of the listings of folders of the given scheme, <code>0</code> to not cache them.
+     * Listings that are already cached keep their time-to-live.
+     *
+     * @param scheme a file protocol, see {@link FileProtocols}
+     * @param timeToLive the time-to-live of the listings in milliseconds, <code>0</code> to not cache them
+     */
+    public static void setTimeToLive(String scheme, long timeToLive) {
+        synchronized(timesToLive) {
+            if(timeToLive<=0)
+                timesToLive.remove(scheme.toLowerCase());
+            else
+                timesToLive.put(scheme.toLowerCase(), timeToLive);
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the listing of the given folder can be cached, i.e. if its scheme has a
+     * time-to-live and if it is not located inside an archive.
+     *
+     * @param folder a folder
+     * @return <code>true</code> if the listing of the given folder can be cached
+     */
+    public static boolean isCacheable(AbstractFile folder) {
+        return getTimeToLive(folder.getURL().getScheme())>0 && folder.getParentArchive()==null;
+    }
+
+    /**
+     * Returns the cached children of the given folder, <code>null</code> if the cache does not contain a listing of
+     * the folder or if it has expired. The returned array may be modified by the caller.
+     *
+     * @param folder the folder whose children to return
+     * @return the unfiltered children of the folder, <code>null</code> if not available or expired
+     */
+    public static AbstractFile[] get(AbstractFile folder) {
+        if(!isCacheable(folder))
+            return null;
+
+        FileURL url = folder.getURL();
+        synchronized(listings) {
+            Listing listing = listings.get(url);
+            if(listing!=null && listing.expirationDate<System.currentTimeMillis()) {
+                remove(url);
+                listing = null;
+            }
+
+            if(listing==null) {
+                missCount++;
+                return null;
+            }
+
+            hitCount++;
+            return listing.children.clone();
+        }
+    }
+
+    /**
+     * Stores the listing of the given folder, if its scheme is cached, evicting the least recently used listings if
+     * the cache is full.
+     *
+     * @param folder the folder that has been listed
+     * @param children the unfiltered children of the folder
+     */
+    public static void put(AbstractFile folder, AbstractFile children[]) {
+        if(!isCacheable(folder))
+            return;
+
+        long now = System.currentTimeMillis();
+        Listing listing = new Listing(children.clone(), now, now+getTimeToLive(folder.getURL().getScheme()));
+        // Don't let a single listing flush the whole cache
+        if(listing.weight>MAX_WEIGHT)
+            return;
+
+        synchronized(listings) {
+            remove(folder.getURL());
+            listings.put(folder.getURL(), listing);
+            weight += listing.weight;
+
+            Iterator<Listing> iterator = listings.values().iterator();
+            while((listings.size()>CAPACITY || weight>MAX_WEIGHT) && iterator.hasNext()) {
+                weight -= iterator.next().weight;
+                iterator.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Removes the listing of the given URL, must be called with the lock on listings held.
+     */
+    private static void remove(FileURL url) {
+        Listing listing = listings.remove(url);
+        if(listing!=null)
+            weight -= listing.weight;
+    }
+
+    /**
+     * Discards the listings of the given file or folder, of its ancestors whose listings include it, and of the
+     * folders it contains. This method should be called whenever a file or the contents of a folder have been
+     * modified.
+     *
+     * @param file the file or folder that has been modified
+     */
+    public static void invalidate(AbstractFile file) {
+        String path = getComparablePath(file.getURL());
+
+        synchronized(listings) {
+            Iterator<Map.Entry<FileURL, Listing>> iterator = listings.entrySet().iterator();
+            while(iterator.hasNext()) {
+                Map.Entry<FileURL, Listing> entry = iterator.next();
+                String cachedPath = getComparablePath(entry.getKey());
+                if(cachedPath.equals(path) || cachedPath.startsWith(path+"/") || path.startsWith(cachedPath+"/")) {
+                    weight -= entry.getValue().weight;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the given URL's string representation without credentials or trailing separator.
+     */
+    private static String getComparablePath(FileURL url) {
+        String path = url.toString(false);
+        return path.endsWith("/")?path.substring(0, path.length()-1):path;
+    }
+
+    /**
+     * Lists the given folder again in the background and notifies the listener if its contents differ from the given
+     * cached children, as returned by {@link #get(AbstractFile)}. The cached listing is replaced by the new one in any
+     * case, or discarded if the folder could not be listed.
+     *
+     * <p>This method returns immediately. The folder is not listed if it is already being revalidated, or if its
+     * listing was stored too recently to be worth revalidating.</p>
+     *
+     * @param folder the folder to revalidate
+     * @param children the children of the folder that were returned by the cache
+     * @param listener notified if the folder's contents have changed
+     */
+    public static void revalidate(final AbstractFile folder, final AbstractFile children[], final FolderListingListener listener) {
+        if(!isCacheable(folder))
+            return;
+
+        final FileURL url = folder.getURL();
+        synchronized(listings) {
+            Listing listing = listings.get(url);
+            if(listing!=null && System.currentTimeMillis()-listing.date<REVALIDATION_DELAY)
+                return;
+
+            if(!revalidating.add(url))
+                return;
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    AbstractFile newChildren[] = folder.ls();
+                    put(folder, newChildren);
+
+                    boolean outdated = !isSameListing(children, newChildren);
+                    synchronized(listings) {
+                        revalidationCount++;
+                        if(outdated)
+                            outdatedCount++;
+                    }
+
+                    if(outdated) {
+                        LOGGER.debug("listing of "+url+" was outdated");
+                        listener.folderListingChanged(folder, newChildren);
+                    }
+                }
+                catch(IOException e) {
+                    LOGGER.debug("Could not revalidate the listing of "+url, e);
+
+                    synchronized(listings) {
+                        remove(url);
+                    }
+                }
+                finally {
+                    synchronized(listings) {
+                        revalidating.remove(url);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns <code>true</code> if both listings contain the same files, with the same type, size and date.
+     *
+     * @param children a listing of a folder
+     * @param newChildren another listing of the same folder
+     * @return <code>true</code> if both listings contain the same files
+     */
+    static boolean isSameListing(AbstractFile children[], AbstractFile newChildren[]) {
+        if(children.length!=newChildren.length)
+            return false;
+
+        Map<String, AbstractFile> filesByName = new HashMap<String, AbstractFile>(children.length*2);
+        for(AbstractFile child : children)
+            filesByName.put(child.getName(), child);
+
+        for(AbstractFile newChild : newChildren) {
+            AbstractFile child = filesByName.get(newChild.getName());
+            if(child==null
+                    || child.isDirectory()!=newChild.isDirectory()
+                    || child.getSize()!=newChild.getSize()
+                    || child.getDate()!=newChild.getDate())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Discards all cached listings.
+     */
+    public static void clearAll() {
+        synchronized(listings) {
+            listings.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Returns the number of listings currently held by the cache.
+     *
+     * @return the number of listings currently held by the cache
+     */
+    public static int size() {
+        synchronized(listings) {
+            return listings.size();
+        }
+    }
+
+    /**
+     * Returns the number of files currently held by the cache, each listing weighing 1 plus the number of its
+     * children.
+     *
+     * @return the total weight of the listings held by the cache
+     */
+    public static long getWeight() {
+        synchronized(listings) {
+            return weight;
+        }
+    }
+
+    /**
+     * Returns the number of lookups of a cacheable folder that returned a listing.
+     *
+     * @return the number of cache hits
+     */
+    public static long getHitCount() {
+        synchronized(listings) {
+            return hitCount;
+        }
+    }
+
+    /**
+     * Returns the number of lookups of a cacheable folder that did not return a listing.
+     *
+     * @return the number of cache misses
+     */
+    public static long getMissCount() {
+        synchronized(listings) {
+            return missCount;
+        }
+    }
+
+    /**
+     * Returns the ratio of lookups that returned a listing, <code>0</code> if no lookup has been made.
+     *
+     * @return the cache hit ratio, between 0 and 1
+     */
+    public static float getHitRatio() {
+        synchronized(listings) {
+            long lookups = hitCount+missCount;
+            return lookups==0?0:hitCount/(float)lookups;
+        }
+    }
+
+    /**
+     * Returns the number of listings that have been evicted because the cache was full.
+     *
+     * @return the number of evicted listings
+     */
+    public static long getEvictionCount() {
+        synchronized(listings) {
+            return evictionCount;
+        }
+    }
+
+    /**
+     * Returns the number of listings that have been revalidated.
+     *
+     * @return the number of revalidated listings
+     */
+    public static long getRevalidationCount() {
+        synchronized(listings) {
+            return revalidationCount;
+        }
+    }
+
+    /**
+     * Returns the number of revalidated listings that turned out to be outdated.
+     *
+     * @return the number of outdated listings
+     */
+    public static long getOutdatedCount() {
+        synchronized(listings) {
+            return outdatedCount;
+        }
+    }
+
+
+    /**
+     * A cached folder listing.
+     */
+    private static class Listing {
+        private final AbstractFile children[];
+        /** Time at which the listing was stored */
+        private final long date;
+        private final long expirationDate;
+        private final int weight;
+
+        private Listing(AbstractFile children[], long date, long expirationDate) {
+            this.children = children;
+            this.date = date;
+            this.expirationDate = expirationDate;
+            this.weight = children.length+1;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+import com.mucommander.commons.file.AbstractFile;
+
+/**
+ * Interface to be implemented by classes that wish to be notified when the revalidation of a folder listing held by
+ * the {@link FolderListingCache} has found that the folder's contents have changed.
+ *
+ * <p>Listeners are notified from the thread that revalidated the listing, which is never the event dispatch
+ * thread.</p>
+ */
+public interface FolderListingListener {
+
+    /**
+     * Called when the given folder has been listed again and its contents differ from the cached listing that was
+     * returned before. The new listing has already replaced the previous one in the {@link FolderListingCache}.
+     *
+     * @param folder the folder whose listing has changed
+     * @param children the children of the folder, unfiltered
+     */
+    public void folderListingChanged(AbstractFile folder, AbstractFile children[]);
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+/**
+ * Immutable value holding the recursive size of a folder, as computed by {@link FolderSizeCalculator} and
+ * stored in {@link FolderSizeCache}.
+ *
+ * <p>The folder's date is recorded at the time the size was computed: it is used by the cache to tell whether
+ * the value is still current.</p>
+ */
+public class FolderSize {
+
+    /** Combined size of all the regular files contained by the folder, recursively */
+    private final long bytes;
+
+    /** Number of regular files contained by the folder, recursively */
+    private final int nbFiles;
+
+    /** Number of folders contained by the folder, recursively, the folder itself excluded */
+    private final int nbFolders;
+
+    /** Date of the folder at the time the size was computed */
+    private final long date;
+
+    public FolderSize(long bytes, int nbFiles, int nbFolders, long date) {
+        this.bytes = bytes;
+        this.nbFiles = nbFiles;
+        this.nbFolders = nbFolders;
+        this.date = date;
+    }
+
+    /**
+     * Returns the combined size in bytes of all the files contained by the folder, recursively.
+     *
+     * @return the combined size in bytes of all the files contained by the folder
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of regular files contained by the folder, recursively.
+     *
+     * @return the number of regular files contained by the folder
+     */
+    public int getNbFiles() {
+        return nbFiles;
+    }
+
+    /**
+     * Returns the number of folders contained by the folder, recursively, not counting the folder itself.
+     *
+     * @return the number of folders contained by the folder
+     */
+    public int getNbFolders() {
+        return nbFolders;
+    }
+
+    /**
+     * Returns the date of the folder at the time its size was computed.
+     *
+     * @return the date of the folder at the time its size was computed
+     */
+    public long getDate() {
+        return date;
+    }
+
+    @Override
+    public String toString() {
+        return "bytes="+bytes+" nbFiles="+nbFiles+" nbFolders="+nbFolders+" date="+date;
+    }
+}
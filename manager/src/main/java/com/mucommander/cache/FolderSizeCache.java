@@ -0,0 +1,178 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.mucommander.commons.file.AbstractFile;
+
+/**
+ * Application-wide cache of recursive folder sizes, shared by the properties dialog, the status bar and the
+ * file tables so that a size computed once by {@link FolderSizeCalculator} can be reused everywhere.
+ *
+ * <p>Sizes are keyed by the folder's URL (without credentials) and are only returned as long as the folder's date
+ * matches the date recorded when the size was computed. Note that a folder's date only reflects changes made to its
+ * direct children: changes made deeper in the tree are handled by {@link #invalidate(AbstractFile)}, which is called
+ * for the folders modified by file jobs and which also discards the sizes of all the folder's ancestors.</p>
+ *
+ * <p>The cache holds at most {@link #CAPACITY} entries, least recently used ones are evicted first.</p>
+ */
+public class FolderSizeCache {
+
+    /** Maximum number of folder sizes held by the cache */
+    public final static int CAPACITY = 10000;
+
+    /** Folder URL -> FolderSize map, in access order */
+    private final static Map<String, FolderSize> sizes = new LinkedHashMap<String, FolderSize>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FolderSize> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    /** Registered listeners, stored as weak references */
+    private final static WeakHashMap<FolderSizeListener, ?> listeners = new WeakHashMap<FolderSizeListener, Object>();
+
+    /**
+     * Prevents instances of this class from being created.
+     */
+    private FolderSizeCache() {
+    }
+
+    /**
+     * Returns the key used to store the given folder's size.
+     */
+    private static String getKey(AbstractFile folder) {
+        return folder.getURL().toString(false);
+    }
+
+    /**
+     * Returns the cached size of the given folder, <code>null</code> if the cache does not contain a size for it, or
+     * if the folder's date has changed since the size was computed.
+     *
+     * @param folder the folder whose size to return
+     * @return the cached size of the folder, <code>null</code> if not available or outdated
+     */
+    public static FolderSize get(AbstractFile folder) {
+        String key = getKey(folder);
+        FolderSize size;
+        synchronized(sizes) {
+            size = sizes.get(key);
+        }
+
+        if(size==null)
+            return null;
+
+        if(size.getDate()!=folder.getDate()) {
+            synchronized(sizes) {
+                // Make sure the value has not been replaced in the meantime
+                if(sizes.get(key)==size)
+                    sizes.remove(key);
+            }
+            return null;
+        }
+
+        return size;
+    }
+
+    /**
+     * Stores the size of the given folder and notifies registered listeners.
+     *
+     * @param folder the folder whose size has been computed
+     * @param size the folder's size
+     */
+    public static void put(AbstractFile folder, FolderSize size) {
+        synchronized(sizes) {
+            sizes.put(getKey(folder), size);
+        }
+
+        FolderSizeListener[] listenersCopy;
+        synchronized(listeners) {
+            listenersCopy = listeners.keySet().toArray(new FolderSizeListener[listeners.size()]);
+        }
+
+        for(FolderSizeListener listener : listenersCopy)
+            listener.folderSizeComputed(folder, size);
+    }
+
+    /**
+     * Discards the size of the given file, and of all its ancestors whose size includes it.
+     * This method should be called whenever the contents of a folder have been modified.
+     *
+     * @param file the file or folder that has been modified
+     */
+    public static void invalidate(AbstractFile file) {
+        synchronized(sizes) {
+            if(sizes.isEmpty())
+                return;
+        }
+
+        for(AbstractFile f = file; f!=null; f = f.getParent()) {
+            synchronized(sizes) {
+                sizes.remove(getKey(f));
+            }
+        }
+    }
+
+    /**
+     * Discards all cached sizes.
+     */
+    public static void clearAll() {
+        synchronized(sizes) {
+            sizes.clear();
+        }
+    }
+
+    /**
+     * Returns the number of folder sizes currently held by the cache.
+     *
+     * @return the number of folder sizes currently held by the cache
+     */
+    public static int size() {
+        synchronized(sizes) {
+            return sizes.size();
+        }
+    }
+
+    /**
+     * Registers the given listener to receive notifications when a folder size has been added to the cache.
+     * Listeners are stored as weak references: a reference to the listener must be kept elsewhere for it not to be
+     * garbage-collected.
+     *
+     * @param listener the listener to register
+     */
+    public static void addFolderSizeListener(FolderSizeListener listener) {
+        synchronized(listeners) {
+            listeners.put(listener, null);
+        }
+    }
+
+    /**
+     * Unregisters the given listener.
+     *
+     * @param listener the listener to unregister
+     */
+    public static void removeFolderSizeListener(FolderSizeListener listener) {
+        synchronized(listeners) {
+            listeners.remove(listener);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileProtocols;
+
+/**
+ * Computes the recursive size of folders in the background, listing independent subtrees concurrently.
+ *
+ * <p>Each folder of the tree is listed by a separate task run on a shared thread pool. A folder's size is
+ * aggregated bottom-up: once all of its subfolders have been sized, its total is stored in the
+ * {@link FolderSizeCache} and added to its parent's. This means that computing the size of a folder also caches
+ * the size of each of its subfolders, and that subfolders whose size is already cached are not listed again.
+ * Tasks never wait for each other, so the pool can't starve itself no matter how deep the tree is.</p>
+ *
+ * <p>The number of concurrent listings is bounded per protocol: {@link #LOCAL_CONCURRENCY} for local files,
+ * {@link #REMOTE_CONCURRENCY} for any other protocol, so as not to flood remote servers with requests.</p>
+ */
+public class FolderSizeCalculator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FolderSizeCalculator.class);
+
+    /** Number of threads used to list folders */
+    private final static int NB_THREADS = 8;
+
+    /** Maximum number of concurrent listings on the local filesystem */
+    private final static int LOCAL_CONCURRENCY = 4;
+
+    /** Maximum number of concurrent listings on a remote protocol */
+    private final static int REMOTE_CONCURRENCY = 2;
+
+    /** Executes folder listing tasks */
+    private final static ExecutorService executor;
+
+    /** Scheme -> permits bounding the number of concurrent listings */
+    private final static Map<String, Semaphore> protocolPermits = new HashMap<String, Semaphore>();
+
+    static {
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(NB_THREADS, NB_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "FolderSizeCalculator-"+threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        // Release idle threads, sizes are not computed all the time
+        threadPool.allowCoreThreadTimeOut(true);
+        executor = threadPool;
+    }
+
+    /**
+     * Prevents instances of this class from being created.
+     */
+    private FolderSizeCalculator() {
+    }
+
+    /**
+     * Starts computing the size of the given folder in the background and returns immediately.
+     * If the folder's size is already in the {@link FolderSizeCache}, the returned computation is already complete.
+     *
+     * @param folder the folder whose size to compute
+     * @return a handle on the computation, which allows to follow its progress, wait for it or cancel it
+     */
+    public static Computation calculate(AbstractFile folder) {
+        Computation computation = new Computation();
+        computation.submit(new Node(computation, folder, null));
+
+        return computation;
+    }
+
+    /**
+     * Returns the permits that bound the number of concurrent listings for the given folder's protocol.
+     */
+    private static Semaphore getPermits(AbstractFile folder) {
+        String scheme = folder.getURL().getScheme();
+        synchronized(protocolPermits) {
+            Semaphore permits = protocolPermits.get(scheme);
+            if(permits==null) {
+                permits = new Semaphore(FileProtocols.FILE.equals(scheme)?LOCAL_CONCURRENCY:REMOTE_CONCURRENCY, true);
+                protocolPermits.put(scheme, permits);
+            }
+            return permits;
+        }
+    }
+
+
+    /**
+     * Handle on a folder size computation, returned by {@link FolderSizeCalculator#calculate(AbstractFile)}.
+     * The running totals can be read at any time to report progress.
+     */
+    public static class Computation {
+
+        /** Combined size of the files encountered so far */
+        private final AtomicLong bytes = new AtomicLong();
+
+        /** Number of files encountered so far */
+        private final AtomicInteger nbFiles = new AtomicInteger();
+
+        /** Number of folders encountered so far, the root folder excluded */
+        private final AtomicInteger nbFolders = new AtomicInteger();
+
+        /** Released when the computation is complete or cancelled */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** Size of the root folder, set when the computation is complete */
+        private volatile FolderSize result;
+
+        /** True if the computation has been cancelled */
+        private volatile boolean cancelled;
+
+        private Computation() {
+        }
+
+        private void submit(Node node) {
+            if(!cancelled)
+                executor.execute(node);
+        }
+
+        private void progress(long bytes, int nbFiles, int nbFolders) {
+            this.bytes.addAndGet(bytes);
+            this.nbFiles.addAndGet(nbFiles);
+            this.nbFolders.addAndGet(nbFolders);
+        }
+
+        private void complete(FolderSize result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        /**
+         * Returns the combined size of the files encountered so far.
+         *
+         * @return the combined size of the files encountered so far
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Returns the number of files encountered so far.
+         *
+         * @return the number of files encountered so far
+         */
+        public int getNbFiles() {
+            return nbFiles.get();
+        }
+
+        /**
+         * Returns the number of folders encountered so far, not counting the folder whose size is being computed.
+         *
+         * @return the number of folders encountered so far
+         */
+        public int getNbFolders() {
+            return nbFolders.get();
+        }
+
+        /**
+         * Returns the size of the folder, <code>null</code> if the computation is not complete yet or has been
+         * cancelled.
+         *
+         * @return the size of the folder, <code>null</code> if not available
+         */
+        public FolderSize getResult() {
+            return result;
+        }
+
+        /**
+         * Returns <code>true</code> if the computation is complete or has been cancelled.
+         *
+         * @return <code>true</code> if the computation is complete or has been cancelled
+         */
+        public boolean isDone() {
+            return done.getCount()==0;
+        }
+
+        /**
+         * Waits at most the given number of milliseconds for the computation to be complete or cancelled.
+         *
+         * @param timeout maximum time to wait, in milliseconds
+         * @return <code>true</code> if the computation is complete or has been cancelled
+         * @throws InterruptedException if the current thread was interrupted while waiting
+         */
+        public boolean waitFor(long timeout) throws InterruptedException {
+            return done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Cancels the computation: pending folders won't be listed and no more sizes will be cached.
+         */
+        public void cancel() {
+            cancelled = true;
+            done.countDown();
+        }
+
+        /**
+         * Returns <code>true</code> if the computation has been cancelled.
+         *
+         * @return <code>true</code> if the computation has been cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+
+    /**
+     * A folder of the tree being sized. Lists the folder when run, and completes once its own files and all its
+     * subfolders have been accounted for.
+     */
+    private static class Node implements Runnable {
+
+        private final Computation computation;
+        private final AbstractFile folder;
+        private final Node parent;
+
+        /** Number of subfolders yet to complete, plus one for this folder's own listing */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private long bytes;
+        private int nbFiles;
+        private int nbFolders;
+
+        /** False if this folder or one of its subfolders could not be listed, in which case the size is not cached */
+        private boolean complete = true;
+
+        private Node(Computation computation, AbstractFile folder, Node parent) {
+            this.computation = computation;
+            this.folder = folder;
+            this.parent = parent;
+        }
+
+        public void run() {
+            if(computation.isCancelled())
+                return;
+
+            try {
+                list();
+            }
+            catch(RuntimeException e) {
+                // The folder is accounted for as incomplete, so that the computation still completes
+                LOGGER.info("Could not size "+folder, e);
+                add(0, 0, 0, false);
+            }
+
+            childCompleted();
+        }
+
+        /**
+         * Lists this folder, accounting for its files and submitting its subfolders.
+         */
+        private void list() {
+            FolderSize cachedSize = FolderSizeCache.get(folder);
+            if(cachedSize!=null) {
+                computation.progress(cachedSize.getBytes(), cachedSize.getNbFiles(), cachedSize.getNbFolders());
+                add(cachedSize.getBytes(), cachedSize.getNbFiles(), cachedSize.getNbFolders(), true);
+                return;
+            }
+
+            if(parent==null)
+                folder.prefetchTree();
+
+            AbstractFile children[];
+            Semaphore permits = getPermits(folder);
+            try {
+                permits.acquire();
+                try {
+                    children = folder.ls();
+                }
+                finally {
+                    permits.release();
+                }
+            }
+            catch(InterruptedException e) {
+                // childCompleted() does nothing once the computation has been cancelled
+                computation.cancel();
+                return;
+            }
+            catch(IOException e) {
+                LOGGER.debug("Could not list "+folder, e);
+                children = null;
+            }
+
+            if(children==null) {
+                add(0, 0, 0, false);
+            }
+            else {
+                long childrenBytes = 0;
+                int childrenFiles = 0;
+                int childrenFolders = 0;
+                for(AbstractFile child : children) {
+                    if(child.isDirectory() && !child.isSymlink()) {
+                        childrenFolders++;
+                        pending.incrementAndGet();
+                        computation.submit(new Node(computation, child, this));
+                    }
+                    else {
+                        childrenFiles++;
+                        long size = child.getSize();
+                        if(size>0)      // Can be equal to -1 if size not available
+                            childrenBytes += size;
+                    }
+                }
+
+                computation.progress(childrenBytes, childrenFiles, childrenFolders);
+                add(childrenBytes, childrenFiles, childrenFolders, true);
+            }
+        }
+
+        private synchronized void add(long bytes, int nbFiles, int nbFolders, boolean complete) {
+            this.bytes += bytes;
+            this.nbFiles += nbFiles;
+            this.nbFolders += nbFolders;
+            this.complete &= complete;
+        }
+
+        /**
+         * Called once this folder has been listed and once for each of its subfolders that has completed.
+         */
+        private void childCompleted() {
+            if(pending.decrementAndGet()>0 || computation.isCancelled())
+                return;
+
+            FolderSize size;
+            boolean sizeComplete;
+            synchronized(this) {
+                size = new FolderSize(bytes, nbFiles, nbFolders, folder.getDate());
+                sizeComplete = complete;
+            }
+
+            if(sizeComplete) {
+                try {
+                    FolderSizeCache.put(folder, size);
+                }
+                catch(RuntimeException e) {
+                    LOGGER.info("Could not cache the size of "+folder, e);
+                }
+            }
+
+            if(parent==null) {
+                computation.complete(size);
+            }
+            else {
+                parent.add(size.getBytes(), size.getNbFiles(), size.getNbFolders(), sizeComplete);
+                parent.childCompleted();
+            }
+        }
+    }
+}
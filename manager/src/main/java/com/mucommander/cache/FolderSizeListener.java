@@ -0,0 +1,38 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+import com.mucommander.commons.file.AbstractFile;
+
+/**
+ * Interface to be implemented by classes that wish to be notified when the size of a folder has been added to the
+ * {@link FolderSizeCache}.
+ *
+ * <p>Listeners are notified from the thread that computed the size, which is never the event dispatch thread.</p>
+ */
+public interface FolderSizeListener {
+
+    /**
+     * Called when the size of the given folder has been computed and stored in the {@link FolderSizeCache}.
+     *
+     * @param folder the folder whose size has been computed
+     * @param size the folder's size
+     */
+    public void folderSizeComputed(AbstractFile folder, FolderSize size);
+}
@@ -0,0 +1,325 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileProtocols;
+import com.mucommander.commons.file.impl.local.LocalFile;
+import com.mucommander.commons.runtime.JavaVersions;
+
+/**
+ * Application-wide cache of volumes' free and total space, shared by the status bars of all main frames.
+ *
+ * <p>Volume information is expensive to retrieve (I/O bound) and can block for a long time on slow or hung mounts,
+ * so it is retrieved in the background by a shared pool of threads. Requests for a volume whose information is
+ * already being retrieved are coalesced: all the requesters are notified when the single retrieval completes.
+ * If a retrieval takes longer than the volume's timeout ({@link #LOCAL_TIMEOUT} for local volumes,
+ * {@link #REMOTE_TIMEOUT} for any other), requesters are notified that the information is not available and the
+ * volume is not queried again until the pending retrieval has returned.</p>
+ *
+ * <p>Retrieved information is kept for {@link #TIME_TO_LIVE} milliseconds. The cache holds at most
+ * {@link #CAPACITY} volumes, least recently used ones are evicted first. Expired entries are discarded when they are
+ * looked up.</p>
+ *
+ * <p>This class also provides a shared scheduler for the periodic updates of volume information, see
+ * {@link #scheduleAutoUpdate(Runnable, long)}.</p>
+ */
+public class VolumeInfoCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VolumeInfoCache.class);
+
+    /** Maximum number of volumes held by the cache */
+    public final static int CAPACITY = 50;
+
+    /** Number of milliseconds before cached volume information expires */
+    public final static int TIME_TO_LIVE = 60000;
+
+    /** Number of milliseconds after which the retrieval of a local volume's information is given up */
+    public final static int LOCAL_TIMEOUT = 5000;
+
+    /** Number of milliseconds after which the retrieval of a remote volume's information is given up */
+    public final static int REMOTE_TIMEOUT = 20000;
+
+    /** Number of threads used to retrieve volume information */
+    private final static int NB_THREADS = 4;
+
+    /** Volume path -> VolumeInfo map, in access order */
+    private final static Map<String, VolumeInfo> volumes = new LinkedHashMap<String, VolumeInfo>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, VolumeInfo> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    /** Volume path -> pending retrieval */
+    private final static Map<String, Retrieval> retrievals = new HashMap<String, Retrieval>();
+
+    /** Retrieves volume information */
+    private final static ThreadPoolExecutor executor;
+
+    /** Times out retrievals and runs periodic updates */
+    private final static ScheduledThreadPoolExecutor scheduler;
+
+    static {
+        executor = new ThreadPoolExecutor(NB_THREADS, NB_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("VolumeInfoCache"));
+        // Release idle threads, volume information is only retrieved every once in a while
+        executor.allowCoreThreadTimeOut(true);
+
+        scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("VolumeInfoCache-scheduler"));
+    }
+
+    /**
+     * Prevents instances of this class from being created.
+     */
+    private VolumeInfoCache() {
+    }
+
+    /**
+     * Returns the cached total and free space of the given volume, <code>null</code> if the cache does not contain
+     * them or if they have expired.
+     *
+     * @param volumePath the absolute path of the volume
+     * @return a <code>{totalSpace, freeSpace}</code> array, <code>null</code> if not available or expired
+     */
+    public static long[] get(String volumePath) {
+        synchronized(volumes) {
+            VolumeInfo info = volumes.get(volumePath);
+            if(info==null)
+                return null;
+
+            if(info.expirationDate<System.currentTimeMillis()) {
+                volumes.remove(volumePath);
+                return null;
+            }
+
+            return new long[]{info.totalSpace, info.freeSpace};
+        }
+    }
+
+    /**
+     * Retrieves the total and free space of the given folder's volume in the background, stores them in the cache
+     * and notifies the given listener. This method returns immediately. If the volume's information is already being
+     * retrieved, the listener is notified when the pending retrieval completes.
+     *
+     * @param folder a folder located on the volume
+     * @param volumePath the absolute path of the folder's volume, used as the cache key
+     * @param listener the listener to notify when the information has been retrieved
+     */
+    public static void retrieve(AbstractFile folder, String volumePath, VolumeInfoListener listener) {
+        synchronized(retrievals) {
+            Retrieval retrieval = retrievals.get(volumePath);
+            if(retrieval==null) {
+                retrieval = new Retrieval(folder, volumePath);
+                retrieval.listeners.add(listener);
+                retrievals.put(volumePath, retrieval);
+
+                executor.execute(retrieval);
+                retrieval.timeoutTask = scheduler.schedule(retrieval.new Timeout(), getTimeout(folder), TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            if(!retrieval.timedOut) {
+                retrieval.listeners.add(listener);
+                return;
+            }
+        }
+
+        // The pending retrieval has timed out, the volume is likely hung: don't wait for it
+        listener.volumeInfoRetrieved(volumePath, -1, -1);
+    }
+
+    /**
+     * Runs the given task periodically on a shared scheduler, until the returned <code>ScheduledFuture</code> is
+     * cancelled. The task should return quickly, as it shares the scheduler's thread with other tasks.
+     *
+     * @param task the task to run
+     * @param period number of milliseconds between two runs of the task, and before its first run
+     * @return a <code>ScheduledFuture</code> that can be used to cancel the task
+     */
+    public static ScheduledFuture<?> scheduleAutoUpdate(Runnable task, long period) {
+        return scheduler.scheduleWithFixedDelay(task, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of milliseconds after which the retrieval of the given folder's volume information is
+     * given up.
+     */
+    private static long getTimeout(AbstractFile folder) {
+        return FileProtocols.FILE.equals(folder.getURL().getScheme())?LOCAL_TIMEOUT:REMOTE_TIMEOUT;
+    }
+
+    /**
+     * Removes all volumes from the cache.
+     */
+    public static void clearAll() {
+        synchronized(volumes) {
+            volumes.clear();
+        }
+    }
+
+
+    /**
+     * Free and total space of a volume, and the date after which they expire.
+     */
+    private static class VolumeInfo {
+        private final long totalSpace;
+        private final long freeSpace;
+        private final long expirationDate;
+
+        private VolumeInfo(long totalSpace, long freeSpace) {
+            this.totalSpace = totalSpace;
+            this.freeSpace = freeSpace;
+            this.expirationDate = System.currentTimeMillis()+TIME_TO_LIVE;
+        }
+    }
+
+
+    /**
+     * Retrieves the information of a volume and notifies the listeners that requested it.
+     */
+    private static class Retrieval implements Runnable {
+
+        private final AbstractFile folder;
+        private final String volumePath;
+
+        /** Listeners to notify, guarded by retrievals */
+        private final List<VolumeInfoListener> listeners = new ArrayList<VolumeInfoListener>();
+
+        /** True if the listeners have been notified that the retrieval has timed out, guarded by retrievals */
+        private boolean timedOut;
+
+        /** Task that times out this retrieval, guarded by retrievals */
+        private ScheduledFuture<?> timeoutTask;
+
+        private Retrieval(AbstractFile folder, String volumePath) {
+            this.folder = folder;
+            this.volumePath = volumePath;
+        }
+
+        public void run() {
+            // Free space on the volume, -1 if this information is not available
+            long volumeFree = -1;
+            // Total space on the volume, -1 if this information is not available
+            long volumeTotal = -1;
+
+            try {
+                // Folder is a local file and Java version is 1.5: call getVolumeInfo() instead of
+                // separate calls to getFreeSpace() and getTotalSpace() as it is twice as fast.
+                if(folder instanceof LocalFile && JavaVersions.JAVA_1_5.isCurrentOrLower()) {
+                    try {
+                        long volumeInfo[] = ((LocalFile)folder).getVolumeInfo();
+                        volumeTotal = volumeInfo[0];
+                        volumeFree = volumeInfo[1];
+                    }
+                    catch(IOException e) {
+                        volumeTotal = -1;
+                        volumeFree = -1;
+                    }
+                }
+                // Java 1.6 and up or any other file type
+                else {
+                    try { volumeFree = folder.getFreeSpace(); }
+                    catch(IOException e) { volumeFree = -1; }
+
+                    try { volumeTotal = folder.getTotalSpace(); }
+                    catch(IOException e) { volumeTotal = -1; }
+                }
+
+                synchronized(volumes) {
+                    volumes.put(volumePath, new VolumeInfo(volumeTotal, volumeFree));
+                }
+            }
+            finally {
+                // The retrieval is no longer pending even if it failed unexpectedly, otherwise the volume would
+                // never be queried again
+                List<VolumeInfoListener> toNotify;
+                synchronized(retrievals) {
+                    retrievals.remove(volumePath);
+                    timeoutTask.cancel(false);
+
+                    // Listeners have already been notified if the retrieval timed out
+                    toNotify = timedOut?new ArrayList<VolumeInfoListener>():new ArrayList<VolumeInfoListener>(listeners);
+                    listeners.clear();
+                }
+
+                for(VolumeInfoListener listener : toNotify)
+                    listener.volumeInfoRetrieved(volumePath, volumeTotal, volumeFree);
+            }
+        }
+
+        /**
+         * Notifies the listeners that the information is not available, if the retrieval has not completed yet.
+         */
+        private class Timeout implements Runnable {
+            public void run() {
+                List<VolumeInfoListener> toNotify;
+                synchronized(retrievals) {
+                    if(retrievals.get(volumePath)!=Retrieval.this)
+                        return;
+
+                    LOGGER.info("Timed out retrieving volume information of {}", volumePath);
+
+                    timedOut = true;
+                    toNotify = new ArrayList<VolumeInfoListener>(listeners);
+                    listeners.clear();
+                }
+
+                for(VolumeInfoListener listener : toNotify)
+                    listener.volumeInfoRetrieved(volumePath, -1, -1);
+            }
+        }
+    }
+
+
+    /**
+     * Creates the daemon threads of the executors.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        private NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name+"-"+threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+/**
+ * Interface to be implemented by classes that wish to be notified when the free and total space of a volume
+ * requested from the {@link VolumeInfoCache} has been retrieved.
+ *
+ * <p>Listeners are notified from the thread that retrieved the information, which is never the event dispatch
+ * thread.</p>
+ */
+public interface VolumeInfoListener {
+
+    /**
+     * Called when the free and total space of the given volume have been retrieved, or when their retrieval has
+     * timed out, in which case both values are <code>-1</code>.
+     *
+     * @param volumePath the absolute path of the volume
+     * @param totalSpace total volume space, -1 if not available
+     * @param freeSpace free volume space, -1 if not available
+     */
+    public void volumeInfoRetrieved(String volumePath, long totalSpace, long freeSpace);
+}
@@ -76,6 +76,13 @@ public enum MuPreference {
 	THEME_NAME(MuPreferences.THEME_NAME),
 	ENABLE_BONJOUR_DISCOVERY(MuPreferences.ENABLE_BONJOUR_DISCOVERY),
 	LIST_HIDDEN_FILES(MuPreferences.LIST_HIDDEN_FILES),
+	FTP_MAX_CONNECTIONS(MuPreferences.FTP_MAX_CONNECTIONS),
+	FTP_RECEIVE_BUFFER_SIZE(MuPreferences.FTP_RECEIVE_BUFFER_SIZE),
+	FTP_SEND_BUFFER_SIZE(MuPreferences.FTP_SEND_BUFFER_SIZE),
+	SFTP_MAX_CONNECTIONS(MuPreferences.SFTP_MAX_CONNECTIONS),
+	GLOBAL_THROUGHPUT_LIMIT(MuPreferences.GLOBAL_THROUGHPUT_LIMIT),
+	HOST_THROUGHPUT_LIMITS(MuPreferences.HOST_THROUGHPUT_LIMITS),
+	DELTA_TRANSFER(MuPreferences.DELTA_TRANSFER),
 	SMB_LM_COMPATIBILITY(MuPreferences.SMB_LM_COMPATIBILITY),
 	SMB_USE_EXTENDED_SECURITY(MuPreferences.SMB_USE_EXTENDED_SECURITY),
 	SHOW_TAB_HEADER(MuPreferences.SHOW_SINGLE_TAB_HEADER);
@@ -370,6 +370,46 @@ public class MuPreferences implements MuPreferencesAPI {
 	public static final String LIST_HIDDEN_FILES                  = FTP_SECTION + '.' + "list_hidden_files";
 	/** Default value for {@link #LIST_HIDDEN_FILES}. */
 	public static final boolean DEFAULT_LIST_HIDDEN_FILES         = false;
+	/** Maximum number of simultaneous connections to a same FTP server. */
+	public static final String FTP_MAX_CONNECTIONS                = FTP_SECTION + '.' + "max_connections";
+	/** Default value for {@link #FTP_MAX_CONNECTIONS}. */
+	public static final int DEFAULT_FTP_MAX_CONNECTIONS           = 4;
+	/** Size in bytes of the socket receive buffer of FTP data connections, 0 for the system's default. */
+	public static final String FTP_RECEIVE_BUFFER_SIZE            = FTP_SECTION + '.' + "receive_buffer_size";
+	/** Default value for {@link #FTP_RECEIVE_BUFFER_SIZE}. */
+	public static final int DEFAULT_FTP_RECEIVE_BUFFER_SIZE       = 0;
+	/** Size in bytes of the socket send buffer of FTP data connections, 0 for the system's default. */
+	public static final String FTP_SEND_BUFFER_SIZE               = FTP_SECTION + '.' + "send_buffer_size";
+	/** Default value for {@link #FTP_SEND_BUFFER_SIZE}. */
+	public static final int DEFAULT_FTP_SEND_BUFFER_SIZE          = 0;
+
+
+	// - Variables used for SFTP ---------------------------------------------
+	// -----------------------------------------------------------------------
+	/** Section containing all SFTP variables. */
+	public static final String SFTP_SECTION                       = "sftp";
+	/** Maximum number of simultaneous connections to a same SFTP server. */
+	public static final String SFTP_MAX_CONNECTIONS               = SFTP_SECTION + '.' + "max_connections";
+	/** Default value for {@link #SFTP_MAX_CONNECTIONS}. */
+	public static final int DEFAULT_SFTP_MAX_CONNECTIONS          = 4;
+
+
+	// - Variables used for transfers ----------------------------------------
+	// -----------------------------------------------------------------------
+	/** Section containing all transfer variables. */
+	public static final String TRANSFER_SECTION                   = "transfer";
+	/** Throughput limit in bytes per second shared by all transfers from or to a remote host, 0 or -1 for no limit. */
+	public static final String GLOBAL_THROUGHPUT_LIMIT            = TRANSFER_SECTION + '.' + "global_throughput_limit";
+	/** Default value for {@link #GLOBAL_THROUGHPUT_LIMIT}. */
+	public static final long DEFAULT_GLOBAL_THROUGHPUT_LIMIT      = -1;
+	/** Comma-separated list of host=bytesPerSecond throughput limits shared by all transfers from or to a host. */
+	public static final String HOST_THROUGHPUT_LIMITS             = TRANSFER_SECTION + '.' + "host_throughput_limits";
+	/** Default value for {@link #HOST_THROUGHPUT_LIMITS}. */
+	public static final String DEFAULT_HOST_THROUGHPUT_LIMITS     = "";
+	/** Whether existing destination files are updated in place by writing only the blocks that differ. */
+	public static final String DELTA_TRANSFER                     = TRANSFER_SECTION + '.' + "delta_transfer";
+	/** Default value for {@link #DELTA_TRANSFER}. */
+	public static final boolean DEFAULT_DELTA_TRANSFER            = false;
 
 
 	// - Variables used for SMB ----------------------------------------------
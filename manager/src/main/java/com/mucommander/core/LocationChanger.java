@@ -22,16 +22,24 @@ import java.awt.Cursor;
 import java.awt.EventQueue;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mucommander.auth.CredentialsManager;
 import com.mucommander.auth.CredentialsMapping;
+import com.mucommander.cache.FolderListingCache;
+import com.mucommander.cache.FolderListingListener;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.AuthException;
 import com.mucommander.commons.file.AuthenticationType;
 import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.FileListListener;
 import com.mucommander.commons.file.FileProtocols;
 import com.mucommander.commons.file.FileURL;
 import com.mucommander.commons.file.UnsupportedFileOperationException;
@@ -63,6 +71,9 @@ public class LocationChanger {
 
 	private ChangeFolderThread changeFolderThread;
 
+	/** The listing of the current folder that is still in progress after the folder has been changed, null if none */
+	private FolderListing folderListing;
+
 	private GlobalLocationHistory globalHistory = GlobalLocationHistory.Instance();
 
 	/** The lock object used to prevent simultaneous folder change operations */
@@ -72,6 +83,11 @@ public class LocationChanger {
 	private final static int BROWSE_ACTION = 1;
 	private final static int DOWNLOAD_ACTION = 2;
 
+	/** Delay in ms after which the first files of a folder are displayed while the rest of the folder is being listed */
+	private final static int FIRST_DISPLAY_DELAY = 300;
+	/** Minimum delay in ms between two additions of listed files to the table */
+	private final static int DISPLAY_UPDATE_PERIOD = 500;
+
 	private final static String CANCEL_TEXT = Translator.get("cancel");
 	private final static String BROWSE_TEXT = Translator.get("browse");
 	private final static String DOWNLOAD_TEXT = Translator.get("download");
@@ -94,6 +110,8 @@ public class LocationChanger {
 	 * @param callback the {@link Callback#call()} method will be called when folder has changed
 	 */
 	public void tryChangeCurrentFolderInternal(final FileURL folderURL, final Callback callback) {
+		cancelFolderListing();
+
 		mainFrame.setNoEventsMode(true);
 		// Set cursor to hourglass/wait
 		mainFrame.setCursor(new Cursor(Cursor.WAIT_CURSOR));
@@ -167,6 +185,21 @@ public class LocationChanger {
 	 * @return the thread that performs the actual folder change, null if another folder change is already underway  
 	 */
 	public ChangeFolderThread tryChangeCurrentFolder(AbstractFile folder, AbstractFile selectThisFileAfter, boolean findWorkableFolder, boolean changeLockedTab) {
+		return tryChangeCurrentFolder(folder, selectThisFileAfter, findWorkableFolder, changeLockedTab, null);
+	}
+
+	/**
+	 * Tries to change current folder to the new specified one, using the given children if the folder has already
+	 * been listed. See {@link #tryChangeCurrentFolder(AbstractFile, AbstractFile, boolean, boolean)} for details.
+	 *
+	 * @param folder the folder to be made current folder
+	 * @param selectThisFileAfter the file to be selected after the folder has been changed (if it exists in the folder), can be null in which case FileTable rules will be used to select current file
+	 * @param changeLockedTab - flag that indicates whether to change the presented folder in the currently selected tab although it's locked
+	 * @param children the unfiltered children of the folder if it is the current folder and has already been listed,
+	 * <code>null</code> to list it
+	 * @return the thread that performs the actual folder change, null if another folder change is already underway
+	 */
+	private ChangeFolderThread tryChangeCurrentFolder(AbstractFile folder, AbstractFile selectThisFileAfter, boolean findWorkableFolder, boolean changeLockedTab, AbstractFile children[]) {
 		LOGGER.debug("folder="+folder+" selectThisFileAfter="+selectThisFileAfter);
 
 		synchronized(FOLDER_CHANGE_LOCK) {
@@ -178,6 +211,9 @@ public class LocationChanger {
 				return null;
 			}
 
+			// Stop listing the current folder, if it is still being listed
+			cancelFolderListing();
+
 			// Important: the ChangeFolderThread instance must be kept in a local variable (as opposed to the
 			// changeFolderThread field only) before being returned. The reason for this is that ChangeFolderThread
 			// changes the changeFolderThread field to null when finished, and it may do so before this method has
@@ -187,6 +223,8 @@ public class LocationChanger {
 
 			if(selectThisFileAfter!=null)
 				thread.selectThisFileAfter(selectThisFileAfter);
+			if(children!=null)
+				thread.setChildren(children);
 			thread.start();
 
 			changeFolderThread = thread;
@@ -269,6 +307,9 @@ public class LocationChanger {
 				return null;
 			}
 
+			// Stop listing the current folder, if it is still being listed
+			cancelFolderListing();
+
 			// Important: the ChangeFolderThread instance must be kept in a local variable (as opposed to the
 			// changeFolderThread field only) before being returned. The reason for this is that ChangeFolderThread
 			// changes the changeFolderThread field to null when finished, and it may do so before this method has
@@ -312,26 +353,96 @@ public class LocationChanger {
 	}
 	
 	 /**
-     * Changes current folder using the given folder and children files.
+     * Changes current folder using the given folder and its files.
      *
      * <p>
-     * This method <b>is</b> I/O-bound and locks the calling thread until the folder has been changed. It may under
+     * This method <b>is</b> I/O-bound and locks the calling thread until the folder has been listed. It may under
      * certain circumstances lock indefinitely, for example when accessing network-based filesystems.
      * </p>
      *
+     * <p>
+     * When the current folder is refreshed, the folder is listed entirely before it is set, so that the selected and
+     * marked files are preserved. Otherwise, if the {@link FolderListingCache} holds a listing of the folder, the
+     * folder is set with the cached files right away and revalidated in the background: it is refreshed if its
+     * contents have changed. If not, the folder is set as soon as its first files have been listed, once
+     * {@link #FIRST_DISPLAY_DELAY} has elapsed, and the files that are listed afterwards are added to the table as they
+     * come, until the folder has been entirely listed or the listing is cancelled by another folder change.
+     * </p>
+     *
      * @param folder folder to be made current folder
-     * @param children current folder's files (value of folder.ls())
      * @param fileToSelect file to be selected after the folder has been refreshed (if it exists in the folder), can be null in which case FileTable rules will be used to select current file
      * @param changeLockedTab - flag that indicates whether to change the presented folder in the currently selected tab although it's locked
+     * @param thread the thread that changes the folder
+     * @return <code>true</code> if the folder has been set, <code>false</code> if the thread was killed before
 	 * @throws IOException 
 	 * @throws UnsupportedFileOperationException 
      */
-    private void setCurrentFolder(AbstractFile folder, AbstractFile fileToSelect, boolean changeLockedTab) throws UnsupportedFileOperationException, IOException {
-    	// Update the timestamp right before the folder is set in case FolderChangeMonitor checks the timestamp
-        // while FileTable#setCurrentFolder is being called. 
-        lastFolderChangeTime = System.currentTimeMillis();
-        
-    	locationManager.setCurrentFolder(folder, fileToSelect, changeLockedTab);
+    private boolean setCurrentFolder(AbstractFile folder, AbstractFile fileToSelect, boolean changeLockedTab, ChangeFolderThread thread) throws UnsupportedFileOperationException, IOException {
+    	AbstractFile currentFolder = locationManager.getCurrentFolder();
+    	if(currentFolder!=null && folder.equalsCanonical(currentFolder)) {
+    		if(!thread.preventKill())
+    			return false;
+
+    		// Update the timestamp right before the folder is set in case FolderChangeMonitor checks the timestamp
+    		// while FileTable#setCurrentFolder is being called.
+    		lastFolderChangeTime = System.currentTimeMillis();
+
+    		if(thread.children!=null)
+    			locationManager.setCurrentFolder(folder, locationManager.filterChildren(thread.children), fileToSelect, changeLockedTab);
+    		else
+    			locationManager.setCurrentFolder(folder, fileToSelect, changeLockedTab);
+    		thread.folderSet();
+    		return true;
+    	}
+
+    	final AbstractFile cachedChildren[] = FolderListingCache.get(folder);
+    	if(cachedChildren!=null) {
+    		if(!thread.preventKill())
+    			return false;
+
+    		lastFolderChangeTime = System.currentTimeMillis();
+
+    		locationManager.setCurrentFolder(folder, locationManager.filterChildren(cachedChildren), fileToSelect, changeLockedTab);
+    		thread.folderSet();
+
+    		FolderListingCache.revalidate(folder, cachedChildren, new FolderListingListener() {
+    			public void folderListingChanged(AbstractFile folder, AbstractFile children[]) {
+    				// Refresh the folder with the new listing, unless another folder has been set in the meantime
+    				if(folder.equals(locationManager.getCurrentFolder()))
+    					tryChangeCurrentFolder(folder, null, true, true, children);
+    			}
+    		});
+    		return true;
+    	}
+
+    	return new FolderListing(folder, fileToSelect, changeLockedTab, thread).list();
+    }
+
+    /**
+     * Stops listing the current folder if it is still being listed, the files that haven't been listed yet are not
+     * added to the table.
+     */
+    private void cancelFolderListing() {
+    	FolderListing listing;
+    	synchronized(FOLDER_CHANGE_LOCK) {
+    		listing = folderListing;
+    		folderListing = null;
+    	}
+
+    	if(listing!=null)
+    		listing.cancel();
+    }
+
+    /**
+     * Returns <code>true</code> if the current folder has been set and is still being listed, in which case the table
+     * doesn't display all of its files yet.
+     *
+     * @return <code>true</code> if the current folder is still being listed
+     */
+    public boolean isFolderListing() {
+    	synchronized(FOLDER_CHANGE_LOCK) {
+    		return folderListing!=null;
+    	}
     }
 
     /**
@@ -437,7 +548,7 @@ public class LocationChanger {
 		private CredentialsMapping credentialsMapping;
 
 		/** True if this thread has been interrupted by the user using #tryKill */
-		private boolean killed;
+		private volatile boolean killed;
 		/** True if an attempt to kill this thread using Thread#interrupt() has already been made */
 		private boolean killedByInterrupt;
 		/** True if an attempt to kill this thread using Thread#stop() has already been made */
@@ -446,6 +557,17 @@ public class LocationChanger {
 		private boolean doNotKill;
 
 		private boolean disposed;
+		/** True once the folder has been set, while the rest of the folder may still be being listed */
+		private boolean folderSet;
+
+		/** Credentials entered by the user, added to CredentialsManager once the folder has been set */
+		private CredentialsMapping newCredentialsMapping;
+		/** True if Guest authentication was selected in the authentication dialog (guest credentials must not be
+		 * added to CredentialsManager) */
+		private boolean guestCredentialsSelected;
+
+		/** Unfiltered children of the folder if it has already been listed, null otherwise */
+		private AbstractFile children[];
 
 		/** Lock object used to ensure consistency and thread safeness when killing the thread */
 		private final Object KILL_LOCK = new Object();
@@ -486,6 +608,16 @@ public class LocationChanger {
 			this.fileToSelect = fileToSelect;
 		}
 
+		/**
+		 * Sets the unfiltered children of the folder, which has already been listed and is not listed again.
+		 * The children are only used if the folder is the current folder, i.e. when it is refreshed.
+		 *
+		 * @param children the unfiltered children of the folder
+		 */
+		private void setChildren(AbstractFile children[]) {
+			this.children = children;
+		}
+
 		/**
 		 * Returns a 'workable' folder as a substitute for the given non-existing folder. This method will return the
 		 * first existing parent if there is one, to the first existing local volume otherwise. In the unlikely event
@@ -612,10 +744,6 @@ public class LocationChanger {
 			folderPanel.setProgressValue(10);
 
 			boolean userCancelled = false;
-			CredentialsMapping newCredentialsMapping = null;
-			// True if Guest authentication was selected in the authentication dialog (guest credentials must not be
-			// added to CredentialsManager)
-			boolean guestCredentialsSelected = false;
 
 			AuthenticationType authenticationType = folderURL.getAuthenticationType();
 			if(credentialsMapping!=null) {
@@ -803,40 +931,26 @@ public class LocationChanger {
 							children = folder.ls(chainedFileFilter);                            
 						}*/ 
 
-						synchronized(KILL_LOCK) {
-							if(killed) {
-								LOGGER.debug("this thread has been killed, returning");
-								break;
-							}
-							// From now on, thread cannot be killed (would comprise table integrity)
-							doNotKill = true;
-						}
-
-						// files listed -> 75% complete
-						folderPanel.setProgressValue(75);
-
 						LOGGER.trace("calling setCurrentFolder");
 
-						// Change the file table's current folder and select the specified file (if any)
-						setCurrentFolder(folder, fileToSelect, changeLockedTab);
-
-						// folder set -> 95% complete
-						folderPanel.setProgressValue(95);
-
-						// If new credentials were entered by the user, these can now be considered valid
-						// (folder was changed successfully), so we add them to the CredentialsManager.
-						// Do not add the credentials if guest credentials were selected by the user.
-						if(newCredentialsMapping!=null && !guestCredentialsSelected)
-							CredentialsManager.addCredentials(newCredentialsMapping);
-
-						// All good !
-						folderChangedSuccessfully = true;
+						// Change the file table's current folder and select the specified file (if any).
+						// The folder change is complete once the folder has been set (see #folderSet()), which may
+						// happen before the folder has been entirely listed.
+						folderChangedSuccessfully = setCurrentFolder(folder, fileToSelect, changeLockedTab, this);
 
 						break;
 					}
 					catch(Exception e) {
 						LOGGER.debug("Caught exception", e);
 
+						if(folderSet) {
+							// The folder change is complete, the exception was thrown while listing the rest of the
+							// folder: the files that have been listed so far remain displayed.
+							LOGGER.info("Could not list all the files of "+folder, e);
+							folderChangedSuccessfully = true;
+							break;
+						}
+
 						if(killed) {
 							// If #tryKill() called #interrupt(), the exception we just caught was most likely
 							// thrown as a result of the thread being interrupted.
@@ -903,6 +1017,42 @@ public class LocationChanger {
 			}
 		}
 
+		/**
+		 * Prevents this thread from being killed, as the folder is about to be set.
+		 *
+		 * @return <code>false</code> if this thread has already been killed, in which case the folder must not be set
+		 */
+		private boolean preventKill() {
+			synchronized(KILL_LOCK) {
+				if(killed) {
+					LOGGER.debug("this thread has been killed, returning");
+					return false;
+				}
+				// From now on, thread cannot be killed (would comprise table integrity)
+				doNotKill = true;
+				return true;
+			}
+		}
+
+		/**
+		 * Completes the folder change once the folder has been set: the folder may still be being listed by this
+		 * thread, but new folder changes can take place and the actions are active again.
+		 */
+		private void folderSet() {
+			folderSet = true;
+
+			// folder set -> 95% complete
+			folderPanel.setProgressValue(95);
+
+			// If new credentials were entered by the user, these can now be considered valid
+			// (folder was changed successfully), so we add them to the CredentialsManager.
+			// Do not add the credentials if guest credentials were selected by the user.
+			if(newCredentialsMapping!=null && !guestCredentialsSelected)
+				CredentialsManager.addCredentials(newCredentialsMapping);
+
+			cleanup(true);
+		}
+
 		public void cleanup(boolean folderChangedSuccessfully) {
 			// Ensures that this method is called only once
 			synchronized(KILL_LOCK) {
@@ -949,6 +1099,167 @@ public class LocationChanger {
 			return super.toString()+" folderURL="+folderURL+" folder="+folder;
 		}
 	}
+
+	/**
+	 * Lists a folder on behalf of a {@link ChangeFolderThread}, in the thread, and sets it as the current folder as soon
+	 * as its first files have been listed. The files that are listed afterwards are added to the table periodically,
+	 * at most every {@link #DISPLAY_UPDATE_PERIOD} ms, so that the table is not re-sorted for each batch of files.
+	 *
+	 * <p>The listing is stopped when the thread is killed before the folder is set, or when it is cancelled by another
+	 * folder change after the folder has been set.</p>
+	 */
+	private class FolderListing implements FileListListener {
+
+		private final AbstractFile folder;
+		private final AbstractFile fileToSelect;
+		private final boolean changeLockedTab;
+		private final ChangeFolderThread thread;
+
+		/** Files that have been listed but not displayed yet */
+		private final List<AbstractFile> pendingFiles = new ArrayList<AbstractFile>();
+
+		/** Time at which the listing started */
+		private final long startTime = System.currentTimeMillis();
+		/** Time at which files were last added to the table */
+		private long lastUpdateTime;
+
+		/** True once the folder has been set */
+		private boolean folderSet;
+		/** True once the listing has been cancelled by another folder change, guarded by this object */
+		private boolean cancelled;
+		/** True while files are waiting to be added to the table by the event dispatch thread */
+		private volatile boolean updatePending;
+
+		private FolderListing(AbstractFile folder, AbstractFile fileToSelect, boolean changeLockedTab, ChangeFolderThread thread) {
+			this.folder = folder;
+			this.fileToSelect = fileToSelect;
+			this.changeLockedTab = changeLockedTab;
+			this.thread = thread;
+		}
+
+		/**
+		 * Lists the folder and sets it as the current folder. This method returns once the folder has been entirely
+		 * listed, or once the listing has been stopped.
+		 *
+		 * @return <code>true</code> if the folder has been set, <code>false</code> if the thread was killed before
+		 * @throws IOException if the folder could not be listed
+		 * @throws UnsupportedFileOperationException if the folder cannot be listed
+		 */
+		private boolean list() throws UnsupportedFileOperationException, IOException {
+			try {
+				locationManager.listFolder(folder, this);
+
+				if(!folderSet)
+					return !isStopped() && setFolder();
+
+				addFiles();
+				return true;
+			}
+			finally {
+				synchronized(FOLDER_CHANGE_LOCK) {
+					if(folderListing==this)
+						folderListing = null;
+				}
+			}
+		}
+
+		/**
+		 * Cancels the listing: the files that haven't been added to the table yet are dropped and the listing stops
+		 * when the next batch of files is listed.
+		 */
+		private synchronized void cancel() {
+			cancelled = true;
+		}
+
+		private synchronized boolean isStopped() {
+			return cancelled || thread.killed;
+		}
+
+		/**
+		 * Sets the folder as the current folder, with the files listed so far.
+		 *
+		 * @return <code>true</code> to continue listing the folder
+		 */
+		private boolean setFolder() {
+			if(!thread.preventKill())
+				return false;
+
+			// files listed -> 75% complete
+			folderPanel.setProgressValue(75);
+
+			// Update the timestamp right before the folder is set in case FolderChangeMonitor checks the timestamp
+			// while FileTable#setCurrentFolder is being called.
+			lastFolderChangeTime = System.currentTimeMillis();
+
+			AbstractFile children[] = pendingFiles.toArray(new AbstractFile[pendingFiles.size()]);
+			pendingFiles.clear();
+			locationManager.setCurrentFolder(folder, children, fileToSelect, changeLockedTab);
+
+			folderSet = true;
+			lastUpdateTime = System.currentTimeMillis();
+
+			// The listing can be cancelled by folder changes from now on
+			synchronized(FOLDER_CHANGE_LOCK) {
+				folderListing = this;
+			}
+			thread.folderSet();
+
+			return !isStopped();
+		}
+
+		/**
+		 * Adds the files listed since the last update to the table, unless the listing has been cancelled.
+		 *
+		 * @return <code>true</code> to continue listing the folder
+		 */
+		private boolean addFiles() {
+			lastUpdateTime = System.currentTimeMillis();
+			if(pendingFiles.isEmpty())
+				return !isStopped();
+
+			final AbstractFile files[] = pendingFiles.toArray(new AbstractFile[pendingFiles.size()]);
+			pendingFiles.clear();
+
+			// The files are queued while holding the lock, so that they are added before the folder that is set by
+			// the folder change that cancels this listing
+			synchronized(this) {
+				if(cancelled)
+					return false;
+
+				updatePending = true;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						updatePending = false;
+						folderPanel.getFileTable().addFiles(files);
+					}
+				});
+			}
+
+			return true;
+		}
+
+
+		/////////////////////////////////////
+		// FileListListener implementation //
+		/////////////////////////////////////
+
+		public boolean filesListed(AbstractFile files[]) {
+			if(isStopped())
+				return false;
+
+			pendingFiles.addAll(Arrays.asList(files));
+
+			long now = System.currentTimeMillis();
+			if(!folderSet)
+				return now-startTime<FIRST_DISPLAY_DELAY || setFolder();
+
+			// Don't queue more files while the table is still busy with the previous ones
+			if(now-lastUpdateTime>=DISPLAY_UPDATE_PERIOD && !updatePending)
+				return addFiles();
+
+			return true;
+		}
+	}
 	
 	/* TODO branch         
 	*//**
@@ -25,4 +25,6 @@ package com.mucommander.io.backup;
 interface BackupConstants {
     /** Character to add suffix file names with in order to mark them as backup. */
     static final char BACKUP_SUFFIX = '~';
+    /** Suffix added to file names to mark them as temporary, see {@link BackupOutputStream}. */
+    static final String TEMPORARY_SUFFIX = ".tmp";
 }
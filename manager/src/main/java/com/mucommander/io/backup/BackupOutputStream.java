@@ -20,8 +20,13 @@ package com.mucommander.io.backup;
 
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.FileOperation;
+import com.mucommander.commons.file.impl.local.LocalFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -29,7 +34,20 @@ import java.io.OutputStream;
  * Saves file in as crash-safe a manner as possible.
  * <p>
  * In order to prevent system or muCommander failures to corrupt configuration files,
- * the BackupOutputStream implements the following algorithm:
+ * the BackupOutputStream implements the following algorithm for local files:
+ * <ul>
+ *   <li>Write its content to a temporary file in the same folder as the requested file</li>
+ *   <li>When close is called, force the content of the temporary file to the storage device</li>
+ *   <li>Rename the temporary file over the original file, which atomically replaces it</li>
+ * </ul>
+ * This way, the original file always holds either its previous content or its new content, never a
+ * partial one, and the content is written only once. If a crash was to happen while the temporary
+ * file is being written, it is simply ignored and overwritten the next time the file is saved.
+ * </p>
+ * <p>
+ * Files that are not local cannot be atomically renamed over an existing file. For those, and for local
+ * files whose temporary file could not be renamed, the BackupOutputStream falls back to the following
+ * algorithm (the temporary file then becomes the backup file):
  * <ul>
  *   <li>Write its content to a backup file instead of the requested file</li>
  *   <li>When close is called, copy the content of the backup file over the original file</li>
@@ -61,14 +79,18 @@ import java.io.OutputStream;
  * @author Nicolas Rinaudo
  */
 public class BackupOutputStream extends OutputStream implements BackupConstants {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackupOutputStream.class);
+
     // - Instance fields --------------------------------------------------------
     // --------------------------------------------------------------------------
     /** The underlying OutputStream */
     private OutputStream out;
     /** Path of the original file. */
     private AbstractFile     target;
-    /** Path to the backup file. */
+    /** Path to the backup file, or to the temporary file if {@link #atomic} is <code>true</code>. */
     private AbstractFile     backup;
+    /** Whether or not the backup file is renamed over the target file, rather than copied. */
+    private boolean          atomic;
     /** Whether or not an error occured while writing to the backup file. */
     private boolean          error;
 
@@ -95,18 +117,41 @@ public class BackupOutputStream extends OutputStream implements BackupConstants
      * @param     file        file on which to open a backup output stream.
      * @exception IOException thrown if any IO error occurs.
      */
-    public BackupOutputStream(AbstractFile file) throws IOException {this(file, FileFactory.getFile(file.getAbsolutePath() + BACKUP_SUFFIX));}
+    public BackupOutputStream(AbstractFile file) throws IOException {this(file, isAtomicRenameSupported(file));}
 
     /**
-     * Opens an output stream on the specified file using the specified backup file.
+     * Opens an output stream on the specified file, writing to a temporary file if it can be
+     * atomically renamed over the specified file, to a backup file otherwise.
      * @param     file        file on which to open the backup output stream.
-     * @param     save        file that will be used for backup.
+     * @param     atomic      whether or not the specified file can be atomically replaced by renaming.
      * @exception IOException thrown if any IO error occurs.
      */
-    private BackupOutputStream(AbstractFile file, AbstractFile save) throws IOException {
-        out = save.getOutputStream();
-        target = file;
-        backup = save;
+    private BackupOutputStream(AbstractFile file, boolean atomic) throws IOException {
+        target      = file;
+        this.atomic = atomic;
+
+        if(atomic) {
+            backup = FileFactory.getFile(file.getAbsolutePath() + TEMPORARY_SUFFIX);
+            // Local files are opened directly so that their content can be forced to the storage device.
+            out    = new FileOutputStream(new File(backup.getAbsolutePath()));
+        }
+        else {
+            backup = FileFactory.getFile(file.getAbsolutePath() + BACKUP_SUFFIX);
+            out    = backup.getOutputStream();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if a file can be renamed over the specified one, atomically replacing it.
+     * <p>
+     * This is only the case of local files: other protocols either fail to rename a file over an existing one,
+     * or do not guarantee the operation to be atomic. Entries of local archives are not local files.
+     * </p>
+     * @param  file file to check.
+     * @return      <code>true</code> if a file can be atomically renamed over the specified one.
+     */
+    private static boolean isAtomicRenameSupported(AbstractFile file) {
+        return file.getTopAncestor() instanceof LocalFile && file.isFileOperationSupported(FileOperation.RENAME);
     }
 
 
@@ -223,6 +268,24 @@ public class BackupOutputStream extends OutputStream implements BackupConstants
      * @exception IOException thrown if any IO related error occurs.
      */
     private void backup() throws IOException {
+        if(atomic) {
+            try {
+                backup.renameTo(target);
+
+                // Deletes any backup file left by a previous save, which BackupInputStream would otherwise
+                // prefer to the target file if it is bigger.
+                AbstractFile oldBackup = FileFactory.getFile(target.getAbsolutePath() + BACKUP_SUFFIX);
+                if(oldBackup != null && oldBackup.exists())
+                    oldBackup.delete();
+                return;
+            }
+            catch(IOException e) {
+                // Renaming might fail on some platforms if the target file exists, copy the file instead.
+                LOGGER.info("Failed to rename " + backup + " over " + target + ", copying it instead", e);
+                useAsBackup();
+            }
+        }
+
         // Deletes the destination file (AbstractFile.copyTo now fails when the destination exists).
         if(target.exists())
             target.delete();
@@ -234,6 +297,33 @@ public class BackupOutputStream extends OutputStream implements BackupConstants
         backup.delete();
     }
 
+    /**
+     * Turns the temporary file into the backup file, so that {@link BackupInputStream} can recover from it if an
+     * error occurs while the target file is being replaced.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private void useAsBackup() throws IOException {
+        AbstractFile temporary = backup;
+        backup = FileFactory.getFile(target.getAbsolutePath() + BACKUP_SUFFIX);
+        if(backup.exists())
+            backup.delete();
+
+        try {
+            temporary.renameTo(backup);
+        }
+        catch(IOException e) {
+            // Copies the temporary file instead, making sure that BackupInputStream doesn't pick up an
+            // incomplete backup file.
+            try {temporary.copyTo(backup);}
+            catch(IOException e2) {
+                if(backup.exists())
+                    backup.delete();
+                throw e2;
+            }
+            temporary.delete();
+        }
+    }
+
     /**
      * Finishes the backup operation.
      * @exception IOException thrown if any IO related error occurs.
@@ -252,11 +342,21 @@ public class BackupOutputStream extends OutputStream implements BackupConstants
      * @exception IOException thrown if any IO related error occurs.
      */
     public void close(boolean backup) throws IOException {
-        // Closes the underlying output stream.
-        out.flush();
-        out.close();
+        // Closes the underlying output stream, making sure that the temporary file's content has reached the
+        // storage device before it replaces the target file.
+        try {
+            out.flush();
+            if(atomic && backup)
+                ((FileOutputStream)out).getFD().sync();
+        }
+        finally {
+            out.close();
+        }
 
         if(backup)
             backup();
+        // The temporary file is of no use if it doesn't replace the target file.
+        else if(atomic)
+            this.backup.delete();
     }
 }
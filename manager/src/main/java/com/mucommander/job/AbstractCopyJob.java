@@ -18,6 +18,7 @@
 
 package com.mucommander.job;
 
+import com.mucommander.cache.FolderSizeCache;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.AbstractRWArchiveFile;
 import com.mucommander.commons.file.util.FileSet;
@@ -78,6 +79,28 @@ public abstract class AbstractCopyJob extends TransferFileJob {
         this.defaultFileExistsAction = fileExistsAction;
     }
 
+    /**
+     * Returns the number of files that can be copied at the same time between the given folders. Small files are
+     * copied in parallel only from or to FTP and SFTP servers, each transfer using its own pooled connection.
+     *
+     * @param sourceFolder the folder files are copied from, may be <code>null</code>
+     * @param destFolder the folder files are copied to
+     * @return the number of files that can be copied at the same time, at least 1
+     */
+    protected static int getNbParallelTransfers(AbstractFile sourceFolder, AbstractFile destFolder) {
+        int sourceConnections = getMaxConnections(sourceFolder);
+        int destConnections = getMaxConnections(destFolder);
+
+        if(destConnections==0)
+            return Math.max(1, sourceConnections);
+
+        if(sourceConnections==0)
+            return destConnections;
+
+        // Each transfer holds a connection on both sides, possibly to the same server
+        return Math.max(1, Math.min(sourceConnections, destConnections)/2);
+    }
+
     /**
      * Creates a destination file given a destination folder and a new file name.
      * @param destFolder a destination folder
@@ -225,4 +248,27 @@ public abstract class AbstractCopyJob extends TransferFileJob {
         isOptimizingArchive = false;
     }
 
+
+    ////////////////////////
+    // Overridden methods //
+    ////////////////////////
+
+    /**
+     * Waits for the files that are being copied in the background, see
+     * {@link #copyFileInBackground(AbstractFile, AbstractFile)}.
+     */
+    @Override
+    protected void allFilesProcessed() {
+        super.allFilesProcessed();
+
+        awaitBackgroundTransfers(errorDialogTitle);
+    }
+
+    @Override
+    protected void jobStopped() {
+        super.jobStopped();
+
+        // Sizes computed for the destination folder and its ancestors are no longer accurate
+        FolderSizeCache.invalidate(baseDestFolder);
+    }
 }
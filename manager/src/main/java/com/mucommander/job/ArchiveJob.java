@@ -25,6 +25,7 @@ import java.io.InputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mucommander.cache.FolderSizeCache;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.archiver.Archiver;
 import com.mucommander.commons.file.util.FileSet;
@@ -221,6 +222,9 @@ public class ArchiveJob extends TransferFileJob {
                 catch(IOException e) {}
             }
         }
+
+        // Sizes computed for the archive's folder and its ancestors are no longer accurate
+        FolderSizeCache.invalidate(destFile);
     }
 
     @Override
@@ -0,0 +1,241 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.job;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mucommander.commons.conf.ConfigurationEvent;
+import com.mucommander.commons.conf.ConfigurationListener;
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileProtocols;
+import com.mucommander.commons.io.TokenBucket;
+import com.mucommander.commons.io.TokenBucketInputStream;
+import com.mucommander.conf.MuConfigurations;
+import com.mucommander.conf.MuPreference;
+import com.mucommander.conf.MuPreferences;
+
+/**
+ * BandwidthScheduler shares the bandwidth between all the transfers that are carried out at the same time, by all
+ * jobs. Three kinds of limits apply to a transfer, each of them backed by a {@link TokenBucket}:
+ * <ul>
+ *   <li>the job's own limit, see {@link TransferFileJob#setThroughputLimit(long)}</li>
+ *   <li>the limit of the hosts the file is read from and written to, shared by all transfers to and from that host</li>
+ *   <li>the global limit, shared by all transfers from or to a remote host</li>
+ * </ul>
+ *
+ * <p>Transfers that share a limit get an equal share of it, and limits can be changed at any time, including while
+ * transfers are in progress. The global limit and host limits are read from the preferences, see
+ * {@link MuPreferences#GLOBAL_THROUGHPUT_LIMIT} and {@link MuPreferences#HOST_THROUGHPUT_LIMITS}, and follow changes
+ * to them.</p>
+ */
+public class BandwidthScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BandwidthScheduler.class);
+
+    /** Bucket shared by all transfers from or to a remote host */
+    private final static TokenBucket globalBucket = new TokenBucket(-1);
+
+    /** Buckets of the hosts that have been limited or transferred from or to, by lower-cased host name */
+    private final static Map<String, TokenBucket> hostBuckets = new HashMap<String, TokenBucket>();
+
+    /** Listens to configuration changes and updates the limits accordingly */
+    public final static ConfigurationListener CONFIGURATION_ADAPTER;
+
+
+    static {
+        setGlobalLimit(MuConfigurations.getPreferences().getVariable(MuPreference.GLOBAL_THROUGHPUT_LIMIT,
+                                                                     MuPreferences.DEFAULT_GLOBAL_THROUGHPUT_LIMIT));
+        setHostLimits(MuConfigurations.getPreferences().getVariable(MuPreference.HOST_THROUGHPUT_LIMITS,
+                                                                    MuPreferences.DEFAULT_HOST_THROUGHPUT_LIMITS));
+
+        // Note: a reference to the listener must be kept to prevent it from being garbage-collected.
+        CONFIGURATION_ADAPTER = new ConfigurationListener() {
+            public void configurationChanged(ConfigurationEvent event) {
+                String var = event.getVariable();
+
+                if(var.equals(MuPreferences.GLOBAL_THROUGHPUT_LIMIT)) {
+                    try {
+                        setGlobalLimit(event.getLongValue());
+                    }
+                    catch(NumberFormatException e) {
+                        // The variable has been removed or is malformed
+                        setGlobalLimit(MuPreferences.DEFAULT_GLOBAL_THROUGHPUT_LIMIT);
+                    }
+                }
+                else if(var.equals(MuPreferences.HOST_THROUGHPUT_LIMITS))
+                    setHostLimits(event.getValue());
+            }
+        };
+        MuConfigurations.addPreferencesListener(CONFIGURATION_ADAPTER);
+    }
+
+    /**
+     * Prevents instantiation of this class.
+     */
+    private BandwidthScheduler() {
+    }
+
+
+    /**
+     * Sets the limit shared by all transfers from or to a remote host. The new limit is effective immediately.
+     *
+     * @param bytesPerSecond the limit in bytes per second, 0 or -1 to disable the limit
+     */
+    public static void setGlobalLimit(long bytesPerSecond) {
+        globalBucket.setRate(bytesPerSecond<=0?-1:bytesPerSecond);
+    }
+
+    /**
+     * Returns the limit shared by all transfers from or to a remote host, <code>-1</code> if there is none.
+     *
+     * @return the global limit in bytes per second, -1 if there is none
+     */
+    public static long getGlobalLimit() {
+        return globalBucket.getRate();
+    }
+
+    /**
+     * Sets the limit shared by all transfers from or to the given host. The new limit is effective immediately.
+     *
+     * @param host the host name, as it appears in file URLs
+     * @param bytesPerSecond the limit in bytes per second, 0 or -1 to disable the limit
+     */
+    public static void setHostLimit(String host, long bytesPerSecond) {
+        getHostBucket(host).setRate(bytesPerSecond<=0?-1:bytesPerSecond);
+    }
+
+    /**
+     * Returns the limit shared by all transfers from or to the given host, <code>-1</code> if there is none.
+     *
+     * @param host the host name, as it appears in file URLs
+     * @return the host's limit in bytes per second, -1 if there is none
+     */
+    public static long getHostLimit(String host) {
+        synchronized(hostBuckets) {
+            TokenBucket bucket = hostBuckets.get(host.toLowerCase());
+            return bucket==null?-1:bucket.getRate();
+        }
+    }
+
+    /**
+     * Sets the limits of hosts from a comma-separated list of <code>host=bytesPerSecond</code> pairs, for instance
+     * <code>ftp.example.com=1048576,backup=524288</code>. Hosts that are not listed have their limit disabled.
+     * Malformed pairs are ignored.
+     *
+     * @param limits the comma-separated list of host limits, may be <code>null</code>
+     */
+    public static void setHostLimits(String limits) {
+        Set<String> limitedHosts = new HashSet<String>();
+
+        if(limits!=null) {
+            for(String limit : limits.split(",")) {
+                limit = limit.trim();
+                if(limit.length()==0)
+                    continue;
+
+                int pos = limit.indexOf('=');
+                try {
+                    if(pos<=0)
+                        throw new NumberFormatException();
+
+                    String host = limit.substring(0, pos).trim().toLowerCase();
+                    setHostLimit(host, Long.parseLong(limit.substring(pos+1).trim()));
+                    limitedHosts.add(host);
+                }
+                catch(NumberFormatException e) {
+                    LOGGER.info("Ignoring malformed host throughput limit: "+limit);
+                }
+            }
+        }
+
+        // Disable the limit of the hosts that are no longer listed
+        synchronized(hostBuckets) {
+            for(Map.Entry<String, TokenBucket> entry : hostBuckets.entrySet()) {
+                if(!limitedHosts.contains(entry.getKey()))
+                    entry.getValue().setRate(-1);
+            }
+        }
+    }
+
+    /**
+     * Returns a stream that reads the given stream at the rate allowed by the given job bucket, the limits of the
+     * source and destination hosts, and the global limit if either file is remote.
+     *
+     * @param in the stream to limit
+     * @param jobBucket the bucket of the job reading the stream, <code>null</code> if the job has no limit
+     * @param sourceFile the file that is read, <code>null</code> if unknown
+     * @param destFile the file that is written, <code>null</code> if unknown
+     * @return a stream that reads from the given stream, at the rate allowed by the limits
+     */
+    public static InputStream getInputStream(InputStream in, TokenBucket jobBucket, AbstractFile sourceFile, AbstractFile destFile) {
+        // Buckets that are shared by the most streams come last
+        List<TokenBucket> buckets = new ArrayList<TokenBucket>();
+        if(jobBucket!=null)
+            buckets.add(jobBucket);
+
+        String sourceHost = getRemoteHost(sourceFile);
+        if(sourceHost!=null)
+            buckets.add(getHostBucket(sourceHost));
+
+        String destHost = getRemoteHost(destFile);
+        if(destHost!=null && !destHost.equalsIgnoreCase(sourceHost))
+            buckets.add(getHostBucket(destHost));
+
+        if(sourceHost!=null || destHost!=null)
+            buckets.add(globalBucket);
+
+        return new TokenBucketInputStream(in, buckets.toArray(new TokenBucket[buckets.size()]));
+    }
+
+    /**
+     * Returns the host of the given file, <code>null</code> if the file is local or has no host.
+     */
+    private static String getRemoteHost(AbstractFile file) {
+        if(file==null || FileProtocols.FILE.equals(file.getURL().getScheme()))
+            return null;
+
+        String host = file.getURL().getHost();
+        return host==null || host.length()==0?null:host;
+    }
+
+    /**
+     * Returns the bucket of the given host, creating one without limit if the host has not been seen before, so that
+     * a limit can be set on transfers that are already in progress.
+     */
+    private static TokenBucket getHostBucket(String host) {
+        host = host.toLowerCase();
+        synchronized(hostBuckets) {
+            TokenBucket bucket = hostBuckets.get(host);
+            if(bucket==null) {
+                bucket = new TokenBucket(-1);
+                hostBuckets.put(host, bucket);
+            }
+
+            return bucket;
+        }
+    }
+}
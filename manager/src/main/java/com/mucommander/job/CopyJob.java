@@ -24,6 +24,7 @@ import java.io.IOException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mucommander.cache.FolderListingCache;
 import com.mucommander.commons.file.AbstractArchiveFile;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.AbstractRWArchiveFile;
@@ -53,6 +54,9 @@ public class CopyJob extends AbstractCopyJob {
     public final static int COPY_MODE = 0;
     public final static int DOWNLOAD_MODE = 1;
 
+    /** True if the job's progress is checkpointed in a journal, see {@link #setResumable(boolean)} */
+    private boolean resumable = true;
+
 	
 	
     /**
@@ -71,10 +75,24 @@ public class CopyJob extends AbstractCopyJob {
 
         this.mode = mode;
         this.errorDialogTitle = Translator.get(mode==DOWNLOAD_MODE?"download_dialog.error_title":"copy_dialog.error_title");
+
+        setNbParallelTransfers(getNbParallelTransfers(files.getBaseFolder(), destFolder));
     }
 
 
 
+    /**
+     * Specifies whether the job's progress is checkpointed in a {@link TransferJournal}, so that an interrupted job
+     * is resumed where it stopped when the same files are copied to the same destination again. Jobs are resumable
+     * by default. This method must be called before the job is started.
+     *
+     * @param resumable true if the job's progress is to be checkpointed
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+
     ////////////////////////////////////
     // TransferFileJob implementation //
     ////////////////////////////////////
@@ -89,6 +107,54 @@ public class CopyJob extends AbstractCopyJob {
      */
     @Override
     protected boolean processFile(AbstractFile file, Object recurseParams) {
+        if(recurseParams!=null)
+            return copyFileOrFolder(file, recurseParams);
+
+        // Skip the top-level files that were copied before the job was interrupted, provided they haven't changed
+        // since and their destination is still there. Other files go through the regular copy, collision check
+        // included.
+        TransferJournal journal = getJournal();
+        int index = getCurrentFileIndex();
+        if(journal!=null && journal.isProcessed(index, file) && isCopied(file)) {
+            LOGGER.debug("Skipping "+file+", copied before the job was interrupted");
+            return true;
+        }
+
+        boolean copied = copyFileOrFolder(file, recurseParams);
+
+        // The position advances past the files that have all been copied: it stops at the first file that failed.
+        // Files copied in the background may still fail, the position doesn't advance while some are in flight.
+        if(journal!=null && copied && index==journal.getPosition() && getState()!=INTERRUPTED && !hasBackgroundTransfers())
+            journal.setProcessed(index, file);
+
+        return copied;
+    }
+
+    /**
+     * Returns <code>true</code> if the destination of the given top-level file exists and matches it: a folder for a
+     * folder, a file of the same size for a regular file.
+     */
+    private boolean isCopied(AbstractFile file) {
+        try {
+            AbstractFile destFile = baseDestFolder.getDirectChild(newName==null?file.getName():newName);
+            if(!destFile.exists())
+                return false;
+
+            if(file.isDirectory())
+                return destFile.isDirectory();
+
+            return !destFile.isDirectory() && destFile.getSize()==file.getSize();
+        }
+        catch(IOException e) {
+            LOGGER.debug("Could not resolve the destination of "+file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Copies recursively the given file or folder, see {@link #processFile(AbstractFile, Object)}.
+     */
+    private boolean copyFileOrFolder(AbstractFile file, Object recurseParams) {
         // Stop if interrupted
         if(getState()==INTERRUPTED)
             return false;
@@ -116,9 +182,17 @@ public class CopyJob extends AbstractCopyJob {
         if(file.isSymlink())
             return true;
 
-        destFile = checkForCollision(file, destFolder, destFile, false);
-        if (destFile == null)
-            return false;
+        // The destination of a transfer that was interrupted is resumed from the journal's checkpoint, provided the
+        // destination still holds the bytes that were checkpointed
+        TransferJournal journal = getJournal();
+        if(journal!=null && !file.isDirectory() && journal.getResumeOffset(file, destFile)>0) {
+            append = false;
+        }
+        else {
+            destFile = checkForCollision(file, destFolder, destFile, false);
+            if (destFile == null)
+                return false;
+        }
 
         // Copy directory recursively
         if(file.isDirectory()) {
@@ -148,11 +222,22 @@ public class CopyJob extends AbstractCopyJob {
                 try {
                     // for each file in folder...
                     AbstractFile subFiles[] = file.ls();
+                    boolean copied = true;
 //filesDiscovered(subFiles);
                     for(int i=0; i<subFiles.length && getState()!=INTERRUPTED; i++) {
                         // Notify job that we're starting to process this file (needed for recursive calls to processFile)
                         nextFile(subFiles[i]);
-                        processFile(subFiles[i], destFile);
+                        if(!processFile(subFiles[i], destFile))
+                            copied = false;
+                    }
+
+                    // Wait for the folder's files that are being copied in the background, before changing the
+                    // folder's date
+                    if(!awaitBackgroundTransfers(file, errorDialogTitle)) {
+                        if(getState()==INTERRUPTED)
+                            return false;
+
+                        copied = false;
                     }
 
                     // Set currentDestFile back to the enclosing folder in case an overridden processFile method
@@ -170,7 +255,8 @@ public class CopyJob extends AbstractCopyJob {
                         }
                     }
 
-                    return true;
+                    // The folder has been copied only if all of its files have
+                    return copied;
                 }
                 catch(IOException e) {
                     // file.ls() failed
@@ -186,7 +272,12 @@ public class CopyJob extends AbstractCopyJob {
         // File is a regular file, copy it
         else  {
             // Copy the file
-            return tryCopyFile(file, destFile, append, errorDialogTitle);
+            if(!canCopyInBackground(file, destFile, append))
+                return tryCopyFile(file, destFile, append, errorDialogTitle);
+
+            // Copy small files several at a time
+            copyFileInBackground(file, destFile);
+            return true;
         }
     }
 
@@ -203,10 +294,41 @@ public class CopyJob extends AbstractCopyJob {
     // Overridden methods //
     ////////////////////////
 
+    @Override
+    protected void jobStarted() {
+        super.jobStarted();
+
+        // Checkpoint the job's progress, resuming from the journal of a previous run of the same job if there is one
+        if(resumable) {
+            try {
+                setJournal(TransferJournal.getJournal(files, baseDestFolder, newName));
+            }
+            catch(IOException e) {
+                LOGGER.info("Could not open transfer journal, transfers will not be resumable", e);
+            }
+        }
+    }
+
+    @Override
+    protected void jobStopped() {
+        super.jobStopped();
+
+        // Save the latest checkpoints so that the job can be resumed
+        if(getJournal()!=null && getState()==INTERRUPTED)
+            getJournal().flush();
+
+        // Cached listings of the destination folder and its subfolders are no longer accurate
+        FolderListingCache.invalidate(baseDestFolder);
+    }
+
     @Override
     protected void jobCompleted() {
         super.jobCompleted();
 
+        // The job will not need to be resumed
+        if(getJournal()!=null)
+            getJournal().delete();
+
         // If the destination files are located inside an archive, optimize the archive file
         AbstractArchiveFile archiveFile = baseDestFolder.getParentArchive();
         if(archiveFile!=null && archiveFile.isArchive() && archiveFile.isWritable())
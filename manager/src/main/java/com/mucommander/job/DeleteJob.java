@@ -20,10 +20,23 @@
 package com.mucommander.job;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mucommander.cache.FolderListingCache;
+import com.mucommander.cache.FolderSizeCache;
 import com.mucommander.commons.file.AbstractArchiveFile;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.AbstractRWArchiveFile;
@@ -43,6 +56,12 @@ import com.mucommander.ui.main.MainFrame;
  * folders are deleted recursively
  * </ul>
  *
+ * <p>When files are permanently deleted, the files of each folder are deleted in batches of up to
+ * {@link #DELETE_BATCH_SIZE} files with {@link AbstractFile#deleteChildren(AbstractFile[])}, which protocols such as S3
+ * and SFTP implement with a few requests per batch. Batches of files located on an FTP or SFTP server are split and
+ * deleted in parallel, each part using its own pooled connection. Files that could not be deleted in a batch are
+ * deleted once again one by one, so that the user is given the choice to skip the file, retry or cancel.</p>
+ *
  * @author Maxence Bernard
  */
 public class DeleteJob extends FileJob {
@@ -63,6 +82,18 @@ public class DeleteJob extends FileJob {
     /** True when an archive is being optimized */
     private boolean isOptimizingArchive;
 
+    /** Maximum number of files deleted in a batch */
+    public final static int DELETE_BATCH_SIZE = 1000;
+
+    /** Number of parts each batch is split into and deleted in parallel, 1 if batches are deleted at once */
+    private int nbParallelDeletions;
+
+    /** Deletes the parts of batches, created when the first batch is split */
+    private ThreadPoolExecutor deletionExecutor;
+
+    /** Number of folders being deleted recursively above the file being processed, 0 for the files passed to the job */
+    private int depth;
+
 
     /**
      * Creates a new DeleteJob without starting it.
@@ -81,6 +112,8 @@ public class DeleteJob extends FileJob {
         this.moveToTrash = moveToTrash;
         if(moveToTrash)
             trash = DesktopManager.getTrash();
+
+        this.nbParallelDeletions = Math.max(1, getMaxConnections(files.getBaseFolder()));
     }
 
     /**
@@ -97,6 +130,101 @@ public class DeleteJob extends FileJob {
             file.delete();
     }
 
+    /**
+     * Deletes the given file, giving the user the choice to skip the file, retry or cancel if it could not be
+     * deleted.
+     *
+     * @param file the file to delete
+     * @return <code>true</code> if the file has been deleted
+     */
+    private boolean tryDeleteFile(AbstractFile file) {
+        do {		// Loop for retry
+            try {
+                deleteFile(file);
+
+                return true;
+            }
+            catch(IOException e) {
+                LOGGER.debug("IOException caught", e);
+
+                int ret = showErrorDialog(errorDialogTitle,
+                                      Translator.get(file.isDirectory()?"cannot_delete_folder":"cannot_delete_file", file.getName())
+                                      );
+                // Retry loops
+                if(ret==RETRY_ACTION)
+                    continue;
+                // Cancel, skip or close dialog returns false
+                return false;
+            }
+        } while(true);
+    }
+
+    /**
+     * Permanently deletes the given files of a folder, which must not be directories (symbolic links are fine), and
+     * deletes the files that could not be deleted once again with {@link #tryDeleteFile(AbstractFile)}.
+     *
+     * @param folder the folder that contains the files
+     * @param batch the files to delete
+     */
+    private void deleteBatch(AbstractFile folder, List<AbstractFile> batch) {
+        AbstractFile failed[];
+        if(nbParallelDeletions>1 && batch.size()>1)
+            failed = deleteBatchInParallel(folder, batch);
+        else
+            failed = folder.deleteChildren(batch.toArray(new AbstractFile[batch.size()]));
+
+        for(int i=0; i<failed.length && getState()!=INTERRUPTED; i++) {
+            nextFile(failed[i]);
+            tryDeleteFile(failed[i]);
+        }
+    }
+
+    /**
+     * Splits the given batch into {@link #nbParallelDeletions} parts and deletes them at the same time.
+     *
+     * @param folder the folder that contains the files
+     * @param batch the files to delete
+     * @return the files that could not be deleted
+     */
+    private AbstractFile[] deleteBatchInParallel(final AbstractFile folder, List<AbstractFile> batch) {
+        if(deletionExecutor==null) {
+            deletionExecutor = new ThreadPoolExecutor(nbParallelDeletions, nbParallelDeletions, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new DeletionThreadFactory());
+            deletionExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        int nbParts = Math.min(nbParallelDeletions, batch.size());
+        int partSize = (batch.size()+nbParts-1)/nbParts;
+        List<AbstractFile[]> parts = new ArrayList<AbstractFile[]>();
+        List<Future<AbstractFile[]>> results = new ArrayList<Future<AbstractFile[]>>();
+        for(int i=0; i<batch.size(); i+=partSize) {
+            final AbstractFile part[] = batch.subList(i, Math.min(i+partSize, batch.size())).toArray(new AbstractFile[0]);
+            parts.add(part);
+            results.add(deletionExecutor.submit(new Callable<AbstractFile[]>() {
+                public AbstractFile[] call() {
+                    return folder.deleteChildren(part);
+                }
+            }));
+        }
+
+        List<AbstractFile> failed = new ArrayList<AbstractFile>();
+        for(int i=0; i<results.size(); i++) {
+            try {
+                failed.addAll(Arrays.asList(results.get(i).get()));
+            }
+            catch(InterruptedException e) {
+                // Consider the part as not deleted, its files are deleted once again
+                failed.addAll(Arrays.asList(parts.get(i)));
+            }
+            catch(ExecutionException e) {
+                LOGGER.debug("Exception caught", e.getCause());
+                failed.addAll(Arrays.asList(parts.get(i)));
+            }
+        }
+
+        return failed.toArray(new AbstractFile[failed.size()]);
+    }
+
 
     ////////////////////////////
     // FileJob implementation //
@@ -123,15 +251,39 @@ public class DeleteJob extends FileJob {
 
             // Important: symlinks must *not* be followed -- following symlinks could have disastrous effects.
             if(!file.isSymlink()) {
+                if(depth==0)
+                    file.prefetchTree();
+
                 do {		// Loop for retry
                     // Delete each file in this folder
                     try {
                         AbstractFile subFiles[] = file.ls();
+                        List<AbstractFile> batch = new ArrayList<AbstractFile>();
                         for(int i=0; i<subFiles.length && getState()!=INTERRUPTED; i++) {
                             // Notify job that we're starting to process this file (needed for recursive calls to processFile)
                             nextFile(subFiles[i]);
-                            processFile(subFiles[i], null);
+
+                            // Folders are deleted recursively, other files are deleted in batches
+                            if(subFiles[i].isDirectory() && !subFiles[i].isSymlink()) {
+                                depth++;
+                                try {
+                                    processFile(subFiles[i], null);
+                                }
+                                finally {
+                                    depth--;
+                                }
+                            }
+                            else {
+                                batch.add(subFiles[i]);
+                                if(batch.size()==DELETE_BATCH_SIZE) {
+                                    deleteBatch(file, batch);
+                                    batch.clear();
+                                }
+                            }
                         }
+
+                        if(!batch.isEmpty() && getState()!=INTERRUPTED)
+                            deleteBatch(file, batch);
                         break;
                     }
                     catch(IOException e) {
@@ -151,25 +303,7 @@ public class DeleteJob extends FileJob {
         if(getState()==INTERRUPTED)
             return false;
 
-        do {		// Loop for retry
-            try {
-                deleteFile(file);
-
-                return true;
-            }
-            catch(IOException e) {
-                LOGGER.debug("IOException caught", e);
-
-                ret = showErrorDialog(errorDialogTitle,
-                                      Translator.get(file.isDirectory()?"cannot_delete_folder":"cannot_delete_file", file.getName())
-                                      );
-                // Retry loops
-                if(ret==RETRY_ACTION)
-                    continue;
-                // Cancel, skip or close dialog returns false
-                return false;
-            }
-        } while(true);
+        return tryDeleteFile(file);
     }
 
     // This job modifies baseFolder and subfolders
@@ -189,6 +323,16 @@ public class DeleteJob extends FileJob {
 
         if(moveToTrash)
             trash.waitForPendingOperations();
+
+        if(deletionExecutor!=null)
+            deletionExecutor.shutdown();
+
+        // Cached listings of the deleted folders and of their parent folders are no longer accurate
+        for(AbstractFile file : files)
+            FolderListingCache.invalidate(file);
+
+        // So are the sizes computed for the base folder and its ancestors
+        FolderSizeCache.invalidate(getBaseSourceFolder());
     }
 
     @Override
@@ -227,4 +371,22 @@ public class DeleteJob extends FileJob {
 
         return Translator.get("delete.deleting_file", getCurrentFilename());
     }
+
+
+    ///////////////////
+    // Inner classes //
+    ///////////////////
+
+    /**
+     * Creates the daemon threads that delete the parts of batches.
+     */
+    private static class DeletionThreadFactory implements ThreadFactory {
+        private final static AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DeleteJob-"+threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -24,7 +24,10 @@ import java.util.WeakHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mucommander.cache.FolderSizeCache;
 import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileProtocols;
+import com.mucommander.commons.file.connection.ConnectionPool;
 import com.mucommander.commons.file.impl.CachedFile;
 import com.mucommander.commons.file.util.FileSet;
 import com.mucommander.job.progress.JobProgress;
@@ -530,6 +533,18 @@ public abstract class FileJob implements Runnable {
     }
 	
 
+    /**
+     * This method is called once all files have been processed, after the last call to
+     * {@link #processFile(AbstractFile,Object)} and before {@link #jobCompleted()}. It can be overriden by subclasses
+     * that process files in the background to wait for them: if the job is interrupted while waiting, it is not
+     * completed.
+     * This method implementation does nothing.
+     */
+    protected void allFilesProcessed() {
+        LOGGER.debug("called");
+    }
+
+
     /**
      * This method is called when this job has completed normal execution : all files have been processed without any interruption
      * (without any call to {@link #interrupt()}).
@@ -678,10 +693,15 @@ public abstract class FileJob implements Runnable {
     	FolderPanel activePanel = getMainFrame().getActivePanel();
     	FolderPanel inactivePanel = getMainFrame().getInactivePanel();
 
-        if(hasFolderChanged(inactivePanel.getCurrentFolder()))
+        if(hasFolderChanged(inactivePanel.getCurrentFolder())) {
+            // Sizes computed for the folder and its ancestors are no longer accurate
+            FolderSizeCache.invalidate(inactivePanel.getCurrentFolder());
         	inactivePanel.tryRefreshCurrentFolder();
+        }
 
         if(hasFolderChanged(activePanel.getCurrentFolder())) {
+            FolderSizeCache.invalidate(activePanel.getCurrentFolder());
+
             // Select file specified by selectFileWhenFinished (if any) only if the file exists in the active table's folder
             if(fileToSelect!=null && activePanel.getCurrentFolder().equalsCanonical(fileToSelect.getParent()) && fileToSelect.exists())
             	activePanel.tryRefreshCurrentFolder(fileToSelect);
@@ -779,6 +799,25 @@ public abstract class FileJob implements Runnable {
     protected AbstractFile getBaseSourceFolder() {
         return baseSourceFolder;
     }
+
+    /**
+     * Returns the maximum number of pooled connections to the given folder's server, <code>0</code> if the folder is
+     * not located on an FTP or SFTP server. Jobs may process up to this number of files at the same time, each using
+     * its own connection.
+     *
+     * @param folder a folder, may be <code>null</code>
+     * @return the maximum number of pooled connections to the folder's server, <code>0</code> if not applicable
+     */
+    protected static int getMaxConnections(AbstractFile folder) {
+        if(folder==null)
+            return 0;
+
+        String scheme = folder.getURL().getScheme();
+        if(FileProtocols.FTP.equals(scheme) || FileProtocols.SFTP.equals(scheme))
+            return ConnectionPool.getMaxConnections(scheme);
+
+        return 0;
+    }
 	
 	
     /////////////////////////////
@@ -822,6 +861,10 @@ public abstract class FileJob implements Runnable {
             // If last file was reached without any user interruption, all files have been processed with or
             // without errors, switch to FINISHED state and notify listeners
             if(i==nbFiles-1) {
+                allFilesProcessed();
+                if(getState()==INTERRUPTED)
+                    break;
+
                 currentFileIndex++;
                 stop();
                 jobCompleted();
@@ -25,6 +25,8 @@ import java.io.OutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mucommander.cache.FolderListingCache;
+import com.mucommander.cache.FolderSizeCache;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.FileFactory;
 import com.mucommander.commons.file.FileOperation;
@@ -212,6 +214,17 @@ public class MkdirJob extends FileJob {
     // Overridden methods //
     ////////////////////////
 
+    @Override
+    protected void jobStopped() {
+        super.jobStopped();
+
+        // The cached listing of the destination folder is no longer accurate
+        FolderListingCache.invalidate(destFolder);
+
+        // So are the sizes computed for the destination folder and its ancestors
+        FolderSizeCache.invalidate(destFolder);
+    }
+
     @Override
     public String getStatusString() {
         return Translator.get("creating_file", getCurrentFilename());
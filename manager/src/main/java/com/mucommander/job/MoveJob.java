@@ -20,15 +20,31 @@
 package com.mucommander.job;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mucommander.cache.FolderListingCache;
+import com.mucommander.cache.FolderSizeCache;
 import com.mucommander.commons.file.AbstractArchiveFile;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.AbstractRWArchiveFile;
 import com.mucommander.commons.file.FileFactory;
 import com.mucommander.commons.file.FileOperation;
+import com.mucommander.commons.file.FileProtocols;
 import com.mucommander.commons.file.util.FileSet;
 import com.mucommander.text.Translator;
 import com.mucommander.ui.dialog.file.ProgressDialog;
@@ -38,6 +54,16 @@ import com.mucommander.ui.main.MainFrame;
 /**
  * This job recursively moves a group of files.
  *
+ * <p>Files are renamed whenever possible. Files that cannot be renamed, for instance because they are moved to
+ * another volume or protocol, are copied to the destination and then deleted. Copies and deletions are pipelined:
+ * small files are copied several at a time (see {@link #copyFileInBackground(AbstractFile, AbstractFile)}), and
+ * each source file is queued for deletion as soon as its copy is complete, while the next files are being copied.
+ * Source files are deleted in the background in batches of up to {@link DeleteJob#DELETE_BATCH_SIZE} files with
+ * {@link AbstractFile#deleteChildren(AbstractFile[])}, one batch after the other. A source folder is queued once all
+ * of its files have been moved, after the batches that emptied it, so that folders are removed bottom-up. A source
+ * file is never deleted before its copy is complete. Files that could not be deleted in the background are deleted
+ * once again before the job completes, so that the user is given the choice to skip the file, retry or cancel.</p>
+ *
  * @author Maxence Bernard
  */
 public class MoveJob extends AbstractCopyJob {
@@ -46,6 +72,21 @@ public class MoveJob extends AbstractCopyJob {
     /** True if this job corresponds to a single file renaming */
     protected boolean renameMode = false;
 
+    /** Number of files copied at the same time when files are moved between local volumes */
+    public final static int NB_PARALLEL_LOCAL_TRANSFERS = 4;
+
+    /** Source files waiting to be deleted, by parent folder, guarded by itself */
+    private final Map<AbstractFile, DeletionBatch> pendingDeletions = new HashMap<AbstractFile, DeletionBatch>();
+
+    /** Deletes the source files in the background, created when the first batch is queued, guarded by deletionResults */
+    private ThreadPoolExecutor deletionExecutor;
+
+    /** Batches queued for deletion and not awaited yet, in the order they were queued, guarded by itself */
+    private final List<DeletionBatch> deletionBatches = new ArrayList<DeletionBatch>();
+
+    /** Results of {@link #deletionBatches}, in the same order, guarded by deletionBatches */
+    private final List<Future<AbstractFile[]>> deletionResults = new ArrayList<Future<AbstractFile[]>>();
+
     
     /**
      * Creates a new MoveJob without starting it.
@@ -63,6 +104,182 @@ public class MoveJob extends AbstractCopyJob {
 
         this.errorDialogTitle = Translator.get("move_dialog.error_title");
         this.renameMode = renameMode;
+
+        setNbParallelTransfers(getNbParallelMoves(files.getBaseFolder(), destFolder));
+    }
+
+    /**
+     * Returns the number of files that can be copied at the same time between the given folders, when they cannot
+     * be renamed. Files moved between local volumes are not limited by connections.
+     */
+    private static int getNbParallelMoves(AbstractFile sourceFolder, AbstractFile destFolder) {
+        if(sourceFolder!=null && FileProtocols.FILE.equals(sourceFolder.getURL().getScheme())
+                && FileProtocols.FILE.equals(destFolder.getURL().getScheme()))
+            return NB_PARALLEL_LOCAL_TRANSFERS;
+
+        return getNbParallelTransfers(sourceFolder, destFolder);
+    }
+
+
+    /**
+     * Queues the given source file or folder for deletion, once its copy is complete or, for a folder, once all its
+     * files have been moved. The batch of the file's parent folder is deleted in the background when it is full or
+     * when {@link #flushDeletions(AbstractFile)} is called. This method is thread-safe.
+     *
+     * @param file the source file or folder to delete
+     * @param isFolder true if the file is a folder
+     */
+    private void queueDeletion(AbstractFile file, boolean isFolder) {
+        // The source file is left in place if the job was interrupted
+        if(getState()==INTERRUPTED)
+            return;
+
+        AbstractFile folder = file.getParent();
+        DeletionBatch batch;
+        synchronized(pendingDeletions) {
+            batch = pendingDeletions.get(folder);
+            if(batch==null) {
+                batch = new DeletionBatch(folder);
+                pendingDeletions.put(folder, batch);
+            }
+
+            if(isFolder)
+                batch.folders.add(file);
+            else
+                batch.files.add(file);
+
+            if(batch.size()<DeleteJob.DELETE_BATCH_SIZE)
+                return;
+
+            pendingDeletions.remove(folder);
+        }
+
+        submitDeletion(batch);
+    }
+
+    /**
+     * Deletes in the background the files of the given folder that have been queued for deletion and not deleted
+     * yet. This method must be called once all the files of the folder have been processed, before the folder itself
+     * is queued for deletion.
+     *
+     * @param folder a source folder
+     */
+    private void flushDeletions(AbstractFile folder) {
+        DeletionBatch batch;
+        synchronized(pendingDeletions) {
+            batch = pendingDeletions.remove(folder);
+        }
+
+        if(batch!=null)
+            submitDeletion(batch);
+    }
+
+    /**
+     * Submits the given batch to the deletion thread, which deletes batches in the order they are submitted.
+     */
+    private void submitDeletion(DeletionBatch batch) {
+        synchronized(deletionBatches) {
+            if(deletionExecutor==null) {
+                deletionExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new DeletionThreadFactory());
+                deletionExecutor.allowCoreThreadTimeOut(true);
+            }
+            // The source files are left in place if the job was stopped
+            else if(deletionExecutor.isShutdown()) {
+                return;
+            }
+
+            deletionBatches.add(batch);
+            deletionResults.add(deletionExecutor.submit(batch));
+        }
+    }
+
+    /**
+     * Deletes the files that are still queued for deletion, waits for all the batches to be deleted, and deletes
+     * the files that could not be deleted in the background once again with {@link #tryDeleteFile(AbstractFile)}.
+     *
+     * @return true if all the source files have been deleted, false if at least one of them has not or if the job
+     * was interrupted
+     */
+    private boolean awaitDeletions() {
+        List<DeletionBatch> batches;
+        synchronized(pendingDeletions) {
+            batches = new ArrayList<DeletionBatch>(pendingDeletions.values());
+            pendingDeletions.clear();
+        }
+        for(DeletionBatch batch : batches)
+            submitDeletion(batch);
+
+        List<Future<AbstractFile[]>> results;
+        synchronized(deletionBatches) {
+            batches = new ArrayList<DeletionBatch>(deletionBatches);
+            results = new ArrayList<Future<AbstractFile[]>>(deletionResults);
+            deletionBatches.clear();
+            deletionResults.clear();
+        }
+
+        List<AbstractFile> failed = new ArrayList<AbstractFile>();
+        for(int i=0; i<results.size(); i++) {
+            try {
+                failed.addAll(Arrays.asList(results.get(i).get()));
+            }
+            catch(InterruptedException e) {
+                // Consider the batch as not deleted, its files are deleted once again
+                failed.addAll(batches.get(i).getAll());
+            }
+            catch(ExecutionException e) {
+                LOGGER.debug("Exception caught", e.getCause());
+                failed.addAll(batches.get(i).getAll());
+            }
+        }
+
+        // Folders come after their files, which were queued before them
+        List<AbstractFile> remaining = new ArrayList<AbstractFile>();
+        for(AbstractFile file : failed) {
+            if(getState()==INTERRUPTED)
+                return false;
+
+            // A folder cannot be deleted if some of its files are left
+            boolean isFolderEmpty = true;
+            for(AbstractFile remainingFile : remaining) {
+                if(file.isParentOf(remainingFile)) {
+                    isFolderEmpty = false;
+                    break;
+                }
+            }
+
+            nextFile(file);
+            if(!isFolderEmpty || !tryDeleteFile(file))
+                remaining.add(file);
+        }
+
+        return remaining.isEmpty();
+    }
+
+    /**
+     * Deletes the given source file or folder, giving the user the choice to skip the file, retry or cancel if it
+     * could not be deleted.
+     *
+     * @param file the file to delete
+     * @return <code>true</code> if the file has been deleted
+     */
+    private boolean tryDeleteFile(AbstractFile file) {
+        do {		// Loop for retry
+            try  {
+                file.delete();
+                return true;
+            }
+            catch(IOException e) {
+                LOGGER.debug("IOException caught", e);
+
+                int ret = showErrorDialog(errorDialogTitle, Translator.get(file.isDirectory()?"cannot_delete_folder":"cannot_delete_file", file.getAbsolutePath()));
+                // Retry loops
+                if(ret==RETRY_ACTION)
+                    continue;
+                // Cancel, skip or close dialog returns false
+                return false;
+            }
+        } while(true);
     }
 
 
@@ -71,12 +288,13 @@ public class MoveJob extends AbstractCopyJob {
     ////////////////////////////////////
 
     /**
-     * Moves recursively the given file or folder. 
+     * Moves recursively the given file or folder. Files that are copied are queued for deletion rather than deleted
+     * immediately, see {@link #queueDeletion(AbstractFile, boolean)}.
      *
      * @param file the file or folder to move
      * @param recurseParams destination folder where the given file will be moved (null for top level files)
-     * 
-     * @return <code>true</code> if the file has been moved completly (copied + deleted).
+     *
+     * @return <code>true</code> if the file has been moved completly (copied + queued for deletion).
      */
     @Override
     protected boolean processFile(AbstractFile file, Object recurseParams) {
@@ -185,6 +403,16 @@ public class MoveJob extends AbstractCopyJob {
                             isFolderEmpty = false;
                     }
 
+                    // Wait for the folder's files that are being copied in the background, and delete the files that
+                    // have been moved
+                    if(!awaitBackgroundTransfers(file, errorDialogTitle))
+                        isFolderEmpty = false;
+
+                    if(getState()==INTERRUPTED)
+                        return false;
+
+                    flushDeletions(file);
+
                     // Only when finished with folder, set destination folder's date to match the original folder one
                     if(destFile.isFileOperationSupported(FileOperation.CHANGE_DATE)) {
                         try {
@@ -216,52 +444,40 @@ public class MoveJob extends AbstractCopyJob {
             if(getState()==INTERRUPTED)
                 return false;
 
-            // finally, delete the empty folder
-            do {		// Loop for retry
-                try  {
-                    file.delete();
-                    return true;
-                }
-                catch(IOException e) {
-                    int ret = showErrorDialog(errorDialogTitle, Translator.get("cannot_delete_folder", file.getAbsolutePath()));
-                    // Retry loops
-                    if(ret==RETRY_ACTION)
-                        continue;
-                    // Cancel, skip or close dialog returns false
-                    return false;
-                }
-            } while(true);
+            // finally, delete the folder once its files have been deleted
+            queueDeletion(file, true);
+            return true;
         }
         // File is a regular file, move it by copying it to the destination and then deleting it
         else  {
 
             // if renameTo() was not supported or failed, or if it wasn't possible because of 'append',
             // try the hard way by copying the file first, and then deleting the source file.
-            if(tryCopyFile(file, destFile, append, errorDialogTitle) && getState()!=INTERRUPTED) {
-                // Delete the source file
-                do {		// Loop for retry
-                    try  {
-                        file.delete();
-                        // All OK
-                        return true;
-                    }
-                    catch(IOException e) {
-                        LOGGER.debug("IOException caught", e);
 
-                        int ret = showErrorDialog(errorDialogTitle, Translator.get("cannot_delete_file", file.getAbsolutePath()));
-                        // Retry loops
-                        if(ret==RETRY_ACTION)
-                            continue;
-                        // Cancel, skip or close dialog returns false
-                        return false;
-                    }
-                } while(true);
+            // Copy small files several at a time, the source file is queued for deletion once copied
+            if(canCopyInBackground(file, destFile, append)) {
+                copyFileInBackground(file, destFile);
+                return true;
+            }
+
+            if(tryCopyFile(file, destFile, append, errorDialogTitle) && getState()!=INTERRUPTED) {
+                // Delete the source file now that its copy is complete
+                queueDeletion(file, false);
+                return true;
             }
 
             return false;
         }
     }
 
+    /**
+     * Queues the source file for deletion now that its copy is complete.
+     */
+    @Override
+    protected void backgroundTransferCompleted(AbstractFile sourceFile, AbstractFile destFile) {
+        queueDeletion(sourceFile, false);
+    }
+
     // This job modifies baseDestFolder and its subfolders
     @Override
     protected boolean hasFolderChanged(AbstractFile folder) {
@@ -273,6 +489,36 @@ public class MoveJob extends AbstractCopyJob {
     // Overridden methods //
     ////////////////////////
 
+    @Override
+    protected void jobStopped() {
+        super.jobStopped();
+
+        // The batches that have been submitted are deleted, their files have been copied completely
+        synchronized(deletionBatches) {
+            if(deletionExecutor!=null)
+                deletionExecutor.shutdown();
+        }
+
+        // Cached listings of the source and destination folders are no longer accurate
+        for(AbstractFile file : files)
+            FolderListingCache.invalidate(file);
+        FolderListingCache.invalidate(baseDestFolder);
+
+        // So are the sizes computed for the source folder and its ancestors
+        FolderSizeCache.invalidate(getBaseSourceFolder());
+    }
+
+    /**
+     * Waits for the files that are being copied in the background, and for the source files to be deleted.
+     */
+    @Override
+    protected void allFilesProcessed() {
+        super.allFilesProcessed();
+
+        if(getState()!=INTERRUPTED)
+            awaitDeletions();
+    }
+
     @Override
     protected void jobCompleted() {
         super.jobCompleted();
@@ -308,4 +554,65 @@ public class MoveJob extends AbstractCopyJob {
 
         return Translator.get("move_dialog.moving_file", getCurrentFilename());
     }
+
+
+    /**
+     * Source files and folders of a same folder to be deleted in a single pass. The files are deleted with
+     * {@link AbstractFile#deleteChildren(AbstractFile[])}, then the folders are deleted one by one: their contents
+     * were queued in earlier batches.
+     */
+    private static class DeletionBatch implements Callable<AbstractFile[]> {
+
+        private final AbstractFile folder;
+        private final List<AbstractFile> files = new ArrayList<AbstractFile>();
+        private final List<AbstractFile> folders = new ArrayList<AbstractFile>();
+
+        private DeletionBatch(AbstractFile folder) {
+            this.folder = folder;
+        }
+
+        private int size() {
+            return files.size()+folders.size();
+        }
+
+        /**
+         * Returns the files and folders of this batch, folders last.
+         */
+        private List<AbstractFile> getAll() {
+            List<AbstractFile> all = new ArrayList<AbstractFile>(files);
+            all.addAll(folders);
+            return all;
+        }
+
+        public AbstractFile[] call() {
+            List<AbstractFile> failed = new ArrayList<AbstractFile>();
+            if(!files.isEmpty())
+                failed.addAll(Arrays.asList(folder.deleteChildren(files.toArray(new AbstractFile[files.size()]))));
+
+            for(AbstractFile subFolder : folders) {
+                try {
+                    subFolder.delete();
+                }
+                catch(IOException e) {
+                    LOGGER.debug("Failed to delete "+subFolder, e);
+                    failed.add(subFolder);
+                }
+            }
+
+            return failed.toArray(new AbstractFile[failed.size()]);
+        }
+    }
+
+    /**
+     * Creates the daemon thread that deletes source files in the background.
+     */
+    private static class DeletionThreadFactory implements ThreadFactory {
+        private final static AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MoveJob-"+threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
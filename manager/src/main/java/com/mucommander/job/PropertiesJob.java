@@ -19,17 +19,21 @@
 
 package com.mucommander.job;
 
+import com.mucommander.cache.FolderSize;
+import com.mucommander.cache.FolderSizeCalculator;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.util.FileSet;
 import com.mucommander.ui.main.MainFrame;
 
-import java.io.IOException;
-
 
 /**
  * This FileJob calculates the number of files contained in a list of file and folders and
  * computes their size.
  *
+ * <p>Folder sizes are computed by {@link FolderSizeCalculator}, which lists subfolders concurrently and stores the
+ * results in the shared {@link com.mucommander.cache.FolderSizeCache}, where they can be reused by the file tables
+ * and the status bar.</p>
+ *
  * @author Maxence Bernard
  */
 public class PropertiesJob extends FileJob {
@@ -42,6 +46,12 @@ public class PropertiesJob extends FileJob {
 	
     /** Combined size of all files encountered so far */
     private long totalBytes;
+
+    /** Folder size computation currently in progress, null if there is none */
+    private FolderSizeCalculator.Computation currentComputation;
+
+    /** Number of milliseconds to wait for a folder size computation before checking if the job was interrupted */
+    private final static int INTERRUPTION_CHECK_PERIOD = 200;
 	
 	
     public PropertiesJob(FileSet files, MainFrame mainFrame) {
@@ -52,22 +62,22 @@ public class PropertiesJob extends FileJob {
     /**
      * Returns the size in bytes of all the files seen so far.
      */
-    public long getTotalBytes() {
-        return totalBytes;
+    public synchronized long getTotalBytes() {
+        return totalBytes + (currentComputation==null?0:currentComputation.getBytes());
     }
 
     /**
      * Returns the number of folders counted so far.
      */
-    public int getNbFolders() {
-        return nbFolders;
+    public synchronized int getNbFolders() {
+        return nbFolders + (currentComputation==null?0:currentComputation.getNbFolders());
     }
  
     /**
      * Returns the number of files (folders excluded) counted so far.
      */
-    public int getNbFilesRecurse() {
-        return nbFilesRecurse;
+    public synchronized int getNbFilesRecurse() {
+        return nbFilesRecurse + (currentComputation==null?0:currentComputation.getNbFiles());
     }
  
 
@@ -85,28 +95,53 @@ public class PropertiesJob extends FileJob {
         if(getState()==INTERRUPTED)
             return false;
 
-        // If file is a directory, increase folder counter and recurse
+        // If file is a directory, increase folder counter and compute its size
         if (file.isDirectory() && !file.isSymlink()) {
-            nbFolders++;
+            FolderSizeCalculator.Computation computation = FolderSizeCalculator.calculate(file);
+            synchronized(this) {
+                nbFolders++;
+                currentComputation = computation;
+            }
 
             try {
-                AbstractFile subFiles[] = file.ls();
-                for(int i=0; i<subFiles.length && getState()!=INTERRUPTED; i++) {
-                    // Notify job that we're starting to process this file (needed for recursive calls to processFile)
-                    nextFile(subFiles[i]);
-                    processFile(subFiles[i], null);
+                while(!computation.waitFor(INTERRUPTION_CHECK_PERIOD)) {
+                    if(getState()==INTERRUPTED) {
+                        computation.cancel();
+                        break;
+                    }
                 }
             }
-            catch(IOException e) {
-                // Should we tell the user?
+            catch(InterruptedException e) {
+                computation.cancel();
             }
+
+            synchronized(this) {
+                FolderSize folderSize = computation.getResult();
+                if(folderSize!=null) {
+                    nbFolders += folderSize.getNbFolders();
+                    nbFilesRecurse += folderSize.getNbFiles();
+                    totalBytes += folderSize.getBytes();
+                }
+                else {
+                    // Cancelled, keep the partial totals
+                    nbFolders += computation.getNbFolders();
+                    nbFilesRecurse += computation.getNbFiles();
+                    totalBytes += computation.getBytes();
+                }
+                currentComputation = null;
+            }
+
+            if(getState()==INTERRUPTED)
+                return false;
         }
         // If not, increase file counter and bytes total
         else {
-            nbFilesRecurse++;
             long fileSize = file.getSize();
-            if(fileSize>0)		// Can be equal to -1 if size not available
-                totalBytes += fileSize;
+            synchronized(this) {
+                nbFilesRecurse++;
+                if(fileSize>0)		// Can be equal to -1 if size not available
+                    totalBytes += fileSize;
+            }
         }
 	
         return true;
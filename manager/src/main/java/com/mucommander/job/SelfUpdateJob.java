@@ -85,6 +85,11 @@ public class SelfUpdateJob extends CopyJob {
     private SelfUpdateJob(ProgressDialog progressDialog, MainFrame mainFrame, FileSet files, AbstractFile destJar, AbstractFile tempDestJar) {
         super(progressDialog, mainFrame, files, tempDestJar.getParent(), tempDestJar.getName(), CopyJob.DOWNLOAD_MODE, FileCollisionDialog.OVERWRITE_ACTION);
 
+        // The downloaded jar is used as soon as processFile returns
+        setNbParallelTransfers(1);
+        // The jar is downloaded to a new temporary file every time
+        setResumable(false);
+
         this.destJar = destJar;
         this.tempDestJar = tempDestJar;
         this.classLoader = getClass().getClassLoader();
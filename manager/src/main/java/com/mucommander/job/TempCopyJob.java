@@ -48,6 +48,11 @@ public class TempCopyJob extends CopyJob {
      */
     public TempCopyJob(ProgressDialog progressDialog, MainFrame mainFrame, AbstractFile fileToCopy) {
         super(progressDialog, mainFrame, new FileSet(fileToCopy.getParent(), fileToCopy), FileFactory.getTemporaryFolder(), getTemporaryFileName(fileToCopy), COPY_MODE, FileCollisionDialog.OVERWRITE_ACTION);
+
+        // Subclasses work on the copied files as soon as processFile returns
+        setNbParallelTransfers(1);
+        // Temporary copies are not resumed
+        setResumable(false);
     }
 
     /**
@@ -59,6 +64,11 @@ public class TempCopyJob extends CopyJob {
      */
     public TempCopyJob(ProgressDialog progressDialog, MainFrame mainFrame, FileSet filesToCopy) {
         super(progressDialog, mainFrame, filesToCopy, getTemporaryFolder(filesToCopy), null, COPY_MODE, FileCollisionDialog.OVERWRITE_ACTION);
+
+        // Subclasses work on the copied files as soon as processFile returns
+        setNbParallelTransfers(1);
+        // Temporary copies are not resumed
+        setResumable(false);
     }
 
 
@@ -21,8 +21,22 @@ package com.mucommander.job;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,15 +45,23 @@ import com.apple.eio.FileManager;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.FileOperation;
 import com.mucommander.commons.file.FilePermissions;
+import com.mucommander.commons.file.FileProtocols;
 import com.mucommander.commons.file.impl.local.LocalFile;
 import com.mucommander.commons.file.util.FileSet;
+import com.mucommander.commons.io.BufferPool;
 import com.mucommander.commons.io.ByteCounter;
 import com.mucommander.commons.io.ChecksumInputStream;
 import com.mucommander.commons.io.CounterInputStream;
+import com.mucommander.commons.io.DeltaOutputStream;
 import com.mucommander.commons.io.FileTransferException;
-import com.mucommander.commons.io.ThroughputLimitInputStream;
+import com.mucommander.commons.io.RandomAccessOutputStream;
+import com.mucommander.commons.io.StreamUtils;
+import com.mucommander.commons.io.TokenBucket;
 import com.mucommander.commons.io.security.MuProvider;
 import com.mucommander.commons.runtime.OsFamilies;
+import com.mucommander.conf.MuConfigurations;
+import com.mucommander.conf.MuPreference;
+import com.mucommander.conf.MuPreferences;
 import com.mucommander.text.Translator;
 import com.mucommander.ui.dialog.file.ProgressDialog;
 import com.mucommander.ui.main.MainFrame;
@@ -69,11 +91,14 @@ public abstract class TransferFileJob extends FileJob {
     private ByteCounter totalSkippedByteCounter;
 
     /** InputStream currently being processed, may be null */
-    private ThroughputLimitInputStream tlin;
+    private InputStream currentIn;
 
     /** ThroughputLimit in bytes per second, -1 initially (no limit) */
     private long throughputLimit = -1;
 
+    /** Limits the throughput of all the streams read by this job, blocks them while the job is paused */
+    private final TokenBucket jobBucket = new TokenBucket(-1);
+
     /** Has the file currently being processed been skipped ? */
     private boolean currentFileSkipped;
 
@@ -88,6 +113,48 @@ public abstract class TransferFileJob extends FileJob {
      * possible (to have the minimum impact on transfer speed) and does not need to have a good resitance to collision. */
     private final static String CHECKSUM_VERIFICATION_ALGORITHM = "Adler32";
 
+    /** Maximum size of the files that are copied in the background, see {@link #copyFileInBackground(AbstractFile, AbstractFile)} */
+    public final static long MAX_BACKGROUND_TRANSFER_SIZE = 1048576;
+
+    /** Maximum number of files copied at the same time, 1 if files are copied one at a time */
+    private int nbParallelTransfers = 1;
+
+    /** Copies files in the background, created when the first background transfer is started */
+    private ThreadPoolExecutor transferExecutor;
+
+    /** Bounds the number of background transfers in flight to {@link #nbParallelTransfers} */
+    private Semaphore transferPermits;
+
+    /** Background transfers that have been started and not awaited yet */
+    private final List<BackgroundTransfer> backgroundTransfers = new ArrayList<BackgroundTransfer>();
+
+    /** Threads performing a remote operation, interrupted if this job is stopped, see {@link #remoteOperationStarted()} */
+    private final Set<Thread> remoteOperationThreads = new HashSet<Thread>();
+
+    /** Minimum size of the files whose transfer is checkpointed in the journal, see {@link #setJournal(TransferJournal)} */
+    public final static long MIN_CHECKPOINTED_SIZE = 16*1048576;
+
+    /** Journal that checkpoints transfers, null if transfers are not checkpointed */
+    private TransferJournal journal;
+
+    /** If true, existing destination files are updated in place by writing only the blocks that differ */
+    private boolean deltaTransferEnabled;
+
+    /** Minimum size of the files that are transferred in delta mode, see {@link #setDeltaTransferEnabled(boolean)} */
+    public final static long MIN_DELTA_TRANSFER_SIZE = 1048576;
+
+    /** The checksum algorithm used for comparing the blocks of the source and destination files in delta mode */
+    private final static String DELTA_CHECKSUM_ALGORITHM = "MD5";
+
+    /** Minimum size of the blocks compared in delta mode */
+    private final static int MIN_DELTA_BLOCK_SIZE = 65536;
+
+    /** Maximum size of the blocks compared in delta mode, each block is held in memory while it is compared */
+    private final static int MAX_DELTA_BLOCK_SIZE = 4*1048576;
+
+    /** Number of blocks above which the block size is increased, to bound the number of checksums */
+    private final static int MAX_DELTA_BLOCKS = 16384;
+
 
     static {
         // Register additional MessageDigest implementations provided by the muCommander API
@@ -106,6 +173,8 @@ public abstract class TransferFileJob extends FileJob {
         // Account the current file's byte counter in the total byte counter
         this.totalByteCounter = new ByteCounter(currentFileByteCounter);
         this.totalSkippedByteCounter = new ByteCounter(currentFileSkippedByteCounter);
+
+        this.deltaTransferEnabled = MuConfigurations.getPreferences().getVariable(MuPreference.DELTA_TRANSFER, MuPreferences.DEFAULT_DELTA_TRANSFER);
     }
 
 	
@@ -128,8 +197,18 @@ public abstract class TransferFileJob extends FileJob {
         boolean copied = false;
         if(sourceFile.isFileOperationSupported(FileOperation.COPY_REMOTELY)) {
             try {
-                sourceFile.copyRemotelyTo(destFile);
+                copyRemotely(sourceFile, destFile);
                 copied = true;
+
+                // The file's contents haven't gone through this job, account for them in the progress
+                long size = sourceFile.getSize();
+                if(size>0)
+                    currentFileByteCounter.add(size);
+            }
+            catch(InterruptedIOException e) {
+                // The server may still be writing the destination, copying the file manually would corrupt it
+                LOGGER.debug("Remote copy of "+sourceFile+" was aborted", e);
+                throw new FileTransferException(FileTransferException.WRITING_DESTINATION);
             }
             catch(IOException e) {
                 // The file will be copied manually
@@ -143,10 +222,29 @@ public abstract class TransferFileJob extends FileJob {
             try {
                 long inLength = sourceFile.getSize();
 
+                // Checkpoint large transfers in the journal, resuming from the last checkpoint if there is one
+                boolean checkpointed = !append && isCheckpointable(destFile, inLength);
+                long offset = 0;
+
+                // Checksums of the destination's blocks if it is to be updated in place, null otherwise
+                String deltaChecksums[] = null;
+                int deltaBlockSize = getDeltaBlockSize(inLength);
+
                 // Try to open InputStream
                 try  {
                     long destFileSize = destFile.getSize();
-                    if(append && destFileSize!=-1) {
+                    if(checkpointed)
+                        offset = journal.getResumeOffset(sourceFile, destFile);
+
+                    if(offset>0) {
+                        in = sourceFile.getInputStream(offset);
+                        LOGGER.info("Resuming transfer of "+sourceFile+" at offset "+offset);
+
+                        inLength -= offset;
+                        currentFileByteCounter.add(offset);
+                        currentFileSkippedByteCounter.add(offset);
+                    }
+                    else if(append && destFileSize!=-1) {
                         in = sourceFile.getInputStream(destFileSize);
                         // Do not calculate checksum, as it needs to be calculated on the whole file
 
@@ -157,12 +255,20 @@ public abstract class TransferFileJob extends FileJob {
                         currentFileSkippedByteCounter.add(destFileSize);
                     }
                     else {
+                        // Calculate the checksums before opening the source, which is left idle in the meantime
+                        if(!append && isDeltaTransferable(destFile, inLength)) {
+                            deltaChecksums = getDeltaChecksums(destFile, deltaBlockSize);
+                            // The job may have been stopped while the checksums were calculated
+                            if(getState()==INTERRUPTED)
+                                throw new InterruptedIOException();
+                        }
+
                         in = sourceFile.getInputStream();
                         if(integrityCheckEnabled)
                             in = new ChecksumInputStream(in, MessageDigest.getInstance(CHECKSUM_VERIFICATION_ALGORITHM));
                     }
 
-                    setCurrentInputStream(in);
+                    setCurrentInputStream(in, sourceFile, destFile);
                 }
                 catch(Exception e) {
                     LOGGER.debug("IOException caught, throwing FileTransferException", e);
@@ -170,7 +276,19 @@ public abstract class TransferFileJob extends FileJob {
                 }
 
                 // Copy source stream to destination file
-                destFile.copyStream(tlin, append, inLength);
+                if(deltaChecksums!=null) {
+                    // The destination is not truncated: an interrupted update is resumed by comparing it again
+                    copyStreamDelta(destFile, deltaChecksums, deltaBlockSize);
+                    if(checkpointed)
+                        journal.clearCheckpoint();
+                }
+                else if(checkpointed) {
+                    copyStreamWithCheckpoints(sourceFile, destFile, offset);
+                    journal.clearCheckpoint();
+                }
+                else {
+                    destFile.copyStream(currentIn, append, inLength);
+                }
             }
             finally {
                 // This block will always be executed, even if an exception
@@ -181,43 +299,7 @@ public abstract class TransferFileJob extends FileJob {
             }
         }
 
-        // Preserve source file's date
-        if(destFile.isFileOperationSupported(FileOperation.CHANGE_DATE)) {
-            try {
-                destFile.changeDate(sourceFile.getDate());
-            }
-            catch (IOException e) {
-                LOGGER.debug("failed to change the date of "+destFile, e);
-                // Fail silently
-            }
-        }
-
-        // Preserve source file's permissions: preserve only the permissions bits that are supported by the source file
-        // and use default permissions for the rest of them.
-        if(destFile.isFileOperationSupported(FileOperation.CHANGE_PERMISSION)) {
-            try {
-                destFile.importPermissions(sourceFile, FilePermissions.DEFAULT_FILE_PERMISSIONS);  // use #importPermissions(AbstractFile, int) to avoid isDirectory test
-            }
-            catch(IOException e) {
-                LOGGER.debug("failed to import "+sourceFile+" permissions into "+destFile, e);
-                // Fail silently
-            }
-        }
-
-        // Under Mac OS X only, preserving the file type and creator
-        if(OsFamilies.MAC_OS_X.isCurrent()
-            && sourceFile.hasAncestor(LocalFile.class)
-            && destFile.hasAncestor(LocalFile.class)) {
-
-            String sourcePath = sourceFile.getAbsolutePath();
-            try {
-                FileManager.setFileTypeAndCreator(destFile.getAbsolutePath(), FileManager.getFileType(sourcePath), FileManager.getFileCreator(sourcePath));
-            }
-            catch(IOException e) {
-                // Swallow the exception and do not interrupt the transfer
-                LOGGER.debug("Error while setting Mac OS X file type and creator on destination", e);
-            }
-        }
+        preserveFileAttributes(sourceFile, destFile);
 
         // This block is executed only if integrity check has been enabled (disabled by default)
         if(integrityCheckEnabled) {
@@ -262,9 +344,290 @@ public abstract class TransferFileJob extends FileJob {
         }
     }
 
+    /**
+     * Returns <code>true</code> if the transfer of a file of the given size to the given destination is to be
+     * checkpointed in the journal: a journal must have been set, the file must be a large one, and the destination
+     * must allow a transfer to be resumed.
+     */
+    private boolean isCheckpointable(AbstractFile destFile, long size) {
+        return journal!=null
+            && size>=MIN_CHECKPOINTED_SIZE
+            && (destFile.isFileOperationSupported(FileOperation.APPEND_FILE)
+             || destFile.isFileOperationSupported(FileOperation.RANDOM_WRITE_FILE));
+    }
+
+    /**
+     * Copies the current input stream to the given destination file starting at the given offset, hashing the bytes
+     * block by block and saving a checkpoint in the journal every {@link TransferJournal#CHECKPOINT_PERIOD}
+     * milliseconds. The destination is appended to if the offset is equal to its size, and written at the offset
+     * otherwise.
+     */
+    private void copyStreamWithCheckpoints(AbstractFile sourceFile, AbstractFile destFile, long offset) throws FileTransferException {
+        OutputStream out;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(TransferJournal.BLOCK_HASH_ALGORITHM);
+
+            if(offset==0) {
+                out = destFile.getOutputStream();
+            }
+            else if(offset==destFile.getSize() && destFile.isFileOperationSupported(FileOperation.APPEND_FILE)) {
+                out = destFile.getAppendOutputStream();
+            }
+            else {
+                RandomAccessOutputStream raos = destFile.getRandomAccessOutputStream();
+                raos.seek(offset);
+                out = raos;
+            }
+        }
+        catch(Exception e) {
+            LOGGER.debug("Could not open "+destFile, e);
+            throw new FileTransferException(FileTransferException.OPENING_DESTINATION);
+        }
+
+        byte buffer[] = BufferPool.getByteArray();
+        long position = offset;
+        try {
+            while(true) {
+                int nbRead;
+                try {
+                    nbRead = currentIn.read(buffer);
+                }
+                catch(IOException e) {
+                    throw new FileTransferException(FileTransferException.READING_SOURCE);
+                }
+
+                if(nbRead==-1)
+                    break;
+
+                try {
+                    // Split the buffer at block boundaries
+                    int off = 0;
+                    while(off<nbRead) {
+                        int len = (int)Math.min(nbRead-off, TransferJournal.BLOCK_SIZE-position%TransferJournal.BLOCK_SIZE);
+                        out.write(buffer, off, len);
+                        digest.update(buffer, off, len);
+                        off += len;
+                        position += len;
+
+                        if(position%TransferJournal.BLOCK_SIZE==0) {
+                            byte blockHash[] = digest.digest();
+                            if(journal.isCheckpointDue()) {
+                                out.flush();
+                                journal.checkpoint(sourceFile, destFile, position, blockHash);
+                            }
+                        }
+                    }
+                }
+                catch(IOException e) {
+                    throw new FileTransferException(FileTransferException.WRITING_DESTINATION, position-offset);
+                }
+            }
+
+            // Truncate the bytes that were written past the checkpoint before the transfer was interrupted
+            if(out instanceof RandomAccessOutputStream) {
+                try {
+                    ((RandomAccessOutputStream)out).setLength(position);
+                }
+                catch(IOException e) {
+                    throw new FileTransferException(FileTransferException.WRITING_DESTINATION, position-offset);
+                }
+            }
+        }
+        finally {
+            BufferPool.releaseByteArray(buffer);
+
+            // Close stream even if the copy failed
+            try {
+                out.close();
+            }
+            catch(IOException e) {
+                throw new FileTransferException(FileTransferException.CLOSING_DESTINATION);
+            }
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if a file of the given size is to be transferred in delta mode to the given
+     * destination: delta mode must be enabled, the file must be a large one, and the destination must be an existing
+     * file that can be written at random offsets and whose checksums can be calculated without transferring its
+     * contents, that is a local file or an SFTP file.
+     */
+    private boolean isDeltaTransferable(AbstractFile destFile, long size) {
+        if(!deltaTransferEnabled || size<MIN_DELTA_TRANSFER_SIZE)
+            return false;
+
+        String scheme = destFile.getURL().getScheme();
+        return (FileProtocols.FILE.equals(scheme) || FileProtocols.SFTP.equals(scheme))
+            && destFile.exists() && !destFile.isDirectory() && destFile.getSize()>0
+            && destFile.isFileOperationSupported(FileOperation.RANDOM_WRITE_FILE);
+    }
+
+    /**
+     * Returns the size of the blocks compared in delta mode for a file of the given size.
+     */
+    private static int getDeltaBlockSize(long size) {
+        int blockSize = MIN_DELTA_BLOCK_SIZE;
+        while(size/blockSize>MAX_DELTA_BLOCKS && blockSize<MAX_DELTA_BLOCK_SIZE)
+            blockSize *= 2;
+
+        return blockSize;
+    }
+
+    /**
+     * Returns the checksums of the given destination file's blocks, <code>null</code> if they could not be
+     * calculated, in which case the file is copied in full.
+     */
+    private String[] getDeltaChecksums(AbstractFile destFile, int blockSize) {
+        try {
+            // The checksums may be calculated by the server, abort them if the job is stopped
+            remoteOperationStarted();
+            try {
+                return destFile.calculateBlockChecksums(DELTA_CHECKSUM_ALGORITHM, blockSize);
+            }
+            finally {
+                remoteOperationFinished();
+            }
+        }
+        catch(Exception e) {
+            LOGGER.info("Could not calculate the block checksums of "+destFile+", copying the file in full", e);
+            return null;
+        }
+    }
+
+    /**
+     * Copies the current input stream to the given destination file in delta mode: only the blocks whose checksum
+     * differs from the given checksums of the destination's blocks are written, and the destination is truncated to
+     * the size of the source. The number of bytes written and the time it took are logged, so that delta mode can be
+     * compared with full copies.
+     */
+    private void copyStreamDelta(AbstractFile destFile, String destChecksums[], int blockSize) throws FileTransferException {
+        long startTime = System.currentTimeMillis();
+
+        DeltaOutputStream out;
+        try {
+            out = new DeltaOutputStream(destFile.getRandomAccessOutputStream(), MessageDigest.getInstance(DELTA_CHECKSUM_ALGORITHM), destChecksums, blockSize);
+        }
+        catch(Exception e) {
+            LOGGER.debug("Could not open "+destFile, e);
+            throw new FileTransferException(FileTransferException.OPENING_DESTINATION);
+        }
+
+        long nbBytes;
+        try {
+            nbBytes = StreamUtils.copyStream(currentIn, out);
+        }
+        catch(FileTransferException e) {
+            // Close the destination without truncating it to the bytes copied so far: its existing blocks are still
+            // valid and will be compared again if the transfer is retried
+            try {
+                out.abort();
+            }
+            catch(IOException e2) {
+                LOGGER.debug("Could not close "+destFile, e2);
+            }
+
+            throw e;
+        }
+
+        // Write the last block and truncate the destination
+        try {
+            out.close();
+        }
+        catch(IOException e) {
+            throw new FileTransferException(FileTransferException.CLOSING_DESTINATION);
+        }
+
+        LOGGER.info("Updated "+destFile+" in delta mode: wrote "+out.getWrittenByteCount()+" of "+nbBytes
+                    +" bytes in "+(System.currentTimeMillis()-startTime)+" ms");
+    }
+
+    /**
+     * Copies the given file with {@link AbstractFile#copyRemotelyTo(AbstractFile)}. The calling thread is interrupted
+     * if this job is stopped in the meantime, so that the copy is aborted rather than waited for.
+     */
+    private void copyRemotely(AbstractFile sourceFile, AbstractFile destFile) throws IOException {
+        remoteOperationStarted();
+        try {
+            sourceFile.copyRemotelyTo(destFile);
+        }
+        finally {
+            remoteOperationFinished();
+        }
+    }
+
+    /**
+     * Registers the calling thread as performing a remote operation, which is interrupted if this job is stopped.
+     * {@link #remoteOperationFinished()} must be called once the operation is over.
+     *
+     * @throws InterruptedIOException if this job has already been interrupted
+     */
+    private void remoteOperationStarted() throws InterruptedIOException {
+        synchronized(remoteOperationThreads) {
+            if(getState()==INTERRUPTED)
+                throw new InterruptedIOException();
+
+            remoteOperationThreads.add(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Unregisters the calling thread registered by {@link #remoteOperationStarted()}.
+     */
+    private void remoteOperationFinished() {
+        synchronized(remoteOperationThreads) {
+            remoteOperationThreads.remove(Thread.currentThread());
+        }
+        // Clear the interrupted status, in case the job was stopped after the operation completed
+        Thread.interrupted();
+    }
+
+    /**
+     * Preserves the source file's date and permissions, as much as the destination file's protocol allows.
+     */
+    private void preserveFileAttributes(AbstractFile sourceFile, AbstractFile destFile) {
+        // Preserve source file's date
+        if(destFile.isFileOperationSupported(FileOperation.CHANGE_DATE)) {
+            try {
+                destFile.changeDate(sourceFile.getDate());
+            }
+            catch (IOException e) {
+                LOGGER.debug("failed to change the date of "+destFile, e);
+                // Fail silently
+            }
+        }
+
+        // Preserve source file's permissions: preserve only the permissions bits that are supported by the source file
+        // and use default permissions for the rest of them.
+        if(destFile.isFileOperationSupported(FileOperation.CHANGE_PERMISSION)) {
+            try {
+                destFile.importPermissions(sourceFile, FilePermissions.DEFAULT_FILE_PERMISSIONS);  // use #importPermissions(AbstractFile, int) to avoid isDirectory test
+            }
+            catch(IOException e) {
+                LOGGER.debug("failed to import "+sourceFile+" permissions into "+destFile, e);
+                // Fail silently
+            }
+        }
+
+        // Under Mac OS X only, preserving the file type and creator
+        if(OsFamilies.MAC_OS_X.isCurrent()
+            && sourceFile.hasAncestor(LocalFile.class)
+            && destFile.hasAncestor(LocalFile.class)) {
+
+            String sourcePath = sourceFile.getAbsolutePath();
+            try {
+                FileManager.setFileTypeAndCreator(destFile.getAbsolutePath(), FileManager.getFileType(sourcePath), FileManager.getFileCreator(sourcePath));
+            }
+            catch(IOException e) {
+                // Swallow the exception and do not interrupt the transfer
+                LOGGER.debug("Error while setting Mac OS X file type and creator on destination", e);
+            }
+        }
+    }
+
     private String calculateChecksum(AbstractFile file) throws IOException, NoSuchAlgorithmException {
         currentFileByteCounter.reset();
-        InputStream in = setCurrentInputStream(file.getInputStream());
+        InputStream in = setCurrentInputStream(file.getInputStream(), file, null);
         try {
             return AbstractFile.calculateChecksum(in, MessageDigest.getInstance(CHECKSUM_VERIFICATION_ALGORITHM));
         }
@@ -344,42 +707,232 @@ public abstract class TransferFileJob extends FileJob {
     }
 
 
+    /**
+     * Returns <code>true</code> if the given file can be copied in the background with
+     * {@link #copyFileInBackground(AbstractFile, AbstractFile)}: several files must be allowed to be copied at the same
+     * time, and the file must be a small one that is neither resumed nor verified.
+     *
+     * @param sourceFile the file to copy
+     * @param destFile the destination file
+     * @param append <code>true</code> if the transfer is to be resumed
+     * @return true if the given file can be copied in the background
+     */
+    protected boolean canCopyInBackground(AbstractFile sourceFile, AbstractFile destFile, boolean append) {
+        if(nbParallelTransfers<=1 || append || integrityCheckEnabled)
+            return false;
+
+        long size = sourceFile.getSize();
+        return size>=0 && size<=MAX_BACKGROUND_TRANSFER_SIZE && !sourceFile.equalsCanonical(destFile);
+    }
+
+    /**
+     * Copies the given source file to the specified destination file in the background, allowing up to
+     * {@link #getNbParallelTransfers()} files to be in flight at the same time. This method blocks if as many files
+     * are already being copied, and returns as soon as the transfer has started.
+     *
+     * <p>This pays off for many small files on remote servers, for which the time spent opening each transfer
+     * outweighs the time spent transferring the file's contents: each transfer uses its own connection from the
+     * connection pool. Failed transfers are not reported until {@link #awaitBackgroundTransfers(String)} is called.</p>
+     *
+     * @param sourceFile the file to copy
+     * @param destFile the destination file
+     * @see #canCopyInBackground(AbstractFile, AbstractFile, boolean)
+     */
+    protected void copyFileInBackground(AbstractFile sourceFile, AbstractFile destFile) {
+        if(transferExecutor==null) {
+            transferExecutor = new ThreadPoolExecutor(nbParallelTransfers, nbParallelTransfers, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new TransferThreadFactory());
+            transferExecutor.allowCoreThreadTimeOut(true);
+            transferPermits = new Semaphore(nbParallelTransfers);
+        }
+
+        // Wait for a transfer to complete if as many transfers as allowed are in flight
+        transferPermits.acquireUninterruptibly();
+
+        BackgroundTransfer transfer = new BackgroundTransfer(sourceFile, destFile);
+        synchronized(backgroundTransfers) {
+            backgroundTransfers.add(transfer);
+        }
+
+        transferExecutor.execute(transfer);
+    }
+
+    /**
+     * Waits for all the background transfers started by {@link #copyFileInBackground(AbstractFile, AbstractFile)} to
+     * complete, and copies the files that failed to be transferred once again, this time with
+     * {@link #tryCopyFile(AbstractFile, AbstractFile, boolean, String)} so that the user is given the choice to skip the
+     * file, retry or cancel.
+     *
+     * @param errorDialogTitle the title of the error dialogs
+     * @return true if all the files have been copied, false if at least one of them has not or if the job was
+     * interrupted
+     */
+    protected boolean awaitBackgroundTransfers(String errorDialogTitle) {
+        return awaitBackgroundTransfers(null, errorDialogTitle);
+    }
+
+    /**
+     * Waits for the background transfers of the files located in the given folder to complete, like
+     * {@link #awaitBackgroundTransfers(String)}. The transfers of the files of other folders are left in flight.
+     *
+     * @param folder the folder whose files are awaited, <code>null</code> to wait for all the background transfers
+     * @param errorDialogTitle the title of the error dialogs
+     * @return true if the folder's files have been copied, false if at least one of them has not or if the job was
+     * interrupted
+     */
+    protected boolean awaitBackgroundTransfers(AbstractFile folder, String errorDialogTitle) {
+        List<BackgroundTransfer> transfers = new ArrayList<BackgroundTransfer>();
+        synchronized(backgroundTransfers) {
+            for(Iterator<BackgroundTransfer> i = backgroundTransfers.iterator(); i.hasNext(); ) {
+                BackgroundTransfer transfer = i.next();
+                if(folder==null || folder.equals(transfer.sourceFile.getParent())) {
+                    transfers.add(transfer);
+                    i.remove();
+                }
+            }
+        }
+
+        boolean success = true;
+        for(BackgroundTransfer transfer : transfers) {
+            transfer.await();
+
+            if(getState()==INTERRUPTED)
+                return false;
+
+            if(transfer.failed) {
+                nextFile(transfer.sourceFile);
+                // The server may still be writing the destination of an aborted remote copy, don't copy it again
+                if(transfer.remoteCopyAborted) {
+                    showErrorDialog(errorDialogTitle, Translator.get("error_while_transferring", transfer.sourceFile.getName()),
+                                    new String[]{SKIP_TEXT, SKIP_ALL_TEXT, CANCEL_TEXT},
+                                    new int[]{SKIP_ACTION, SKIP_ALL_ACTION, CANCEL_ACTION});
+                    success = false;
+                }
+                else if(tryCopyFile(transfer.sourceFile, transfer.destFile, false, errorDialogTitle))
+                    backgroundTransferCompleted(transfer.sourceFile, transfer.destFile);
+                else
+                    success = false;
+
+                if(getState()==INTERRUPTED)
+                    return false;
+            }
+        }
+
+        return success;
+    }
+
+    /**
+     * Called when a file passed to {@link #copyFileInBackground(AbstractFile, AbstractFile)} has been copied
+     * completely, either in the background or once again by {@link #awaitBackgroundTransfers(String)}. This method
+     * is called before the transfer is reported as complete to {@link #awaitBackgroundTransfers(String)}, possibly
+     * from a background thread: implementations must be thread-safe. This implementation does nothing.
+     *
+     * @param sourceFile the file that has been copied
+     * @param destFile the destination file
+     */
+    protected void backgroundTransferCompleted(AbstractFile sourceFile, AbstractFile destFile) {
+    }
+
+    /**
+     * Sets the maximum number of files that this job copies at the same time, see
+     * {@link #copyFileInBackground(AbstractFile, AbstractFile)}. By default, files are copied one at a time.
+     * This method must be called before the job is started.
+     *
+     * @param nbParallelTransfers maximum number of files copied at the same time, 1 to copy files one at a time
+     */
+    public void setNbParallelTransfers(int nbParallelTransfers) {
+        this.nbParallelTransfers = Math.max(1, nbParallelTransfers);
+    }
+
+    /**
+     * Returns the maximum number of files that this job copies at the same time.
+     *
+     * @return the maximum number of files that this job copies at the same time
+     */
+    public int getNbParallelTransfers() {
+        return nbParallelTransfers;
+    }
+
+
     /**
      * Registers the given InputStream as currently in use, in order to:
      * <ul>
      * <li>count the number of bytes that have been read from it (see {@link #getCurrentFileByteCounter()})
      * <li>block read methods calls when the job is paused
-     * <li>limit the throughput if a limit has been specified (see {@link #setThroughputLimit(long)})
+     * <li>limit the throughput if a limit has been specified (see {@link #setThroughputLimit(long)}), and share
+     * the global and host limits with the other jobs (see {@link BandwidthScheduler})
      * <li>close the InputStream when the job is stopped
      * </ul>
      *
      * <p>This method should be called by subclasses when creating a new InputStream, before the InputStream is used.
+     * The stream is assumed to be read from the current file, see {@link #setCurrentInputStream(InputStream, AbstractFile, AbstractFile)}
+     * to specify the files being transferred.
      *
      * @param in the InputStream to be used
      * @return the 'augmented' InputStream using the given stream as the underlying InputStream
      */
-    protected synchronized InputStream setCurrentInputStream(InputStream in) {
-        if(tlin==null) {
-            tlin = new ThroughputLimitInputStream(new CounterInputStream(in, currentFileByteCounter), throughputLimit);
-        }
-        else {
-            tlin.setUnderlyingInputStream(new CounterInputStream(in, currentFileByteCounter));
-        }
+    protected InputStream setCurrentInputStream(InputStream in) {
+        return setCurrentInputStream(in, getCurrentFile(), null);
+    }
+
+    /**
+     * Registers the given InputStream as currently in use, like {@link #setCurrentInputStream(InputStream)}.
+     * The given files determine the host limits and whether the global limit applies.
+     *
+     * @param in the InputStream to be used
+     * @param sourceFile the file the stream is read from, <code>null</code> if unknown
+     * @param destFile the file the stream is written to, <code>null</code> if unknown or none
+     * @return the 'augmented' InputStream using the given stream as the underlying InputStream
+     */
+    protected synchronized InputStream setCurrentInputStream(InputStream in, AbstractFile sourceFile, AbstractFile destFile) {
+        currentIn = BandwidthScheduler.getInputStream(new CounterInputStream(in, currentFileByteCounter), jobBucket, sourceFile, destFile);
 
-        return tlin;
+        return currentIn;
     }
 
     /**
      * Closes the currently registered source InputStream.
      */
     protected synchronized void closeCurrentInputStream() {
-        if(tlin !=null) {
-            try { tlin.close(); }
+        if(currentIn!=null) {
+            try { currentIn.close(); }
             catch(IOException e) {}
         }
     }
 
 
+    /**
+     * Sets the journal that checkpoints the transfers of large files, so that they can be resumed after the job has
+     * been interrupted, see {@link TransferJournal}. By default, transfers are not checkpointed.
+     *
+     * @param journal the journal to checkpoint transfers in, <code>null</code> to not checkpoint transfers
+     */
+    protected void setJournal(TransferJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the journal that checkpoints the transfers of large files, <code>null</code> if transfers are not
+     * checkpointed.
+     *
+     * @return the journal that checkpoints the transfers of large files, null if there is none
+     */
+    protected TransferJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Returns <code>true</code> if some of the files copied in the background have not been awaited yet, see
+     * {@link #awaitBackgroundTransfers(String)}.
+     *
+     * @return true if some of the files copied in the background have not been awaited yet
+     */
+    protected boolean hasBackgroundTransfers() {
+        synchronized(backgroundTransfers) {
+            return !backgroundTransfers.isEmpty();
+        }
+    }
+
     /**
      * Returns <code>true</code> if file transfers need to be checked for data integrity. In this case, the checksum of
      * the source and destination files are both calculated and compared to verify they match.
@@ -400,6 +953,28 @@ public abstract class TransferFileJob extends FileJob {
         this.integrityCheckEnabled = integrityCheckEnabled;
     }
 
+    /**
+     * Returns <code>true</code> if existing destination files are updated in place by writing only the blocks that
+     * differ from the source file's, instead of being overwritten in full.
+     *
+     * @return true if existing destination files are updated in delta mode
+     */
+    public boolean isDeltaTransferEnabled() {
+        return deltaTransferEnabled;
+    }
+
+    /**
+     * Specifies if existing destination files are updated in place by writing only the blocks that differ from the
+     * source file's, instead of being overwritten in full. Delta mode applies to files larger than
+     * {@link #MIN_DELTA_TRANSFER_SIZE} that are copied to local or SFTP files. It is disabled by default unless
+     * enabled in the preferences.
+     *
+     * @param deltaTransferEnabled true if existing destination files are to be updated in delta mode
+     */
+    public void setDeltaTransferEnabled(boolean deltaTransferEnabled) {
+        this.deltaTransferEnabled = deltaTransferEnabled;
+    }
+
     /**
      * Returns <code>true</code> if the integrity of the current file is being verified.
      *
@@ -414,8 +989,8 @@ public abstract class TransferFileJob extends FileJob {
      * Interrupts the current file transfer and advance to the next one.
      */
     public synchronized void skipCurrentFile() {
-        if(tlin !=null) {
-            LOGGER.debug("skipping current file, closing "+ tlin);
+        if(currentIn!=null) {
+            LOGGER.debug("skipping current file, closing "+currentIn);
 
             // Prevents an error from being reported when the current InputStream is closed
             currentFileSkipped = true;
@@ -507,19 +1082,20 @@ public abstract class TransferFileJob extends FileJob {
      *
      * <p>Specifying 0 or -1 disables any throughput limit, the transfer will be carried out at full speed.
      *
-     * <p>If this job is paused, the new limit will be effective after the job has been resumed.
-     * If not, it will be effective immediately.
+     * <p>This limit applies on top of the global and host limits, see {@link BandwidthScheduler}. If this job is
+     * paused, the new limit will be effective after the job has been resumed. If not, it will be effective immediately,
+     * including on the files being copied in the background.
      *
      * @param bytesPerSecond new throughput limit in bytes per second, 0 or -1 to disable the limit
      */
     public void setThroughputLimit(long bytesPerSecond) {
-        // Note: ThroughputInputStream interprets 0 as a complete pause (blocks reads) which is different
+        // Note: TokenBucket interprets 0 as a complete pause (blocks reads) which is different
         // from what a user would expect when specifying 0 as a limit
         this.throughputLimit = bytesPerSecond<=0?-1:bytesPerSecond;
 
         synchronized(this) {
-            if(getState()!=PAUSED && tlin !=null)
-                tlin.setThroughputLimit(throughputLimit);
+            if(getState()!=PAUSED)
+                jobBucket.setRate(throughputLimit);
         }
     }
 
@@ -546,33 +1122,48 @@ public abstract class TransferFileJob extends FileJob {
         super.jobStopped();
 
         synchronized(this) {
-            if(tlin !=null) {
-                LOGGER.debug("closing current InputStream "+ tlin);
+            if(currentIn!=null) {
+                LOGGER.debug("closing current InputStream "+currentIn);
 
                 closeCurrentInputStream();
             }
         }
+
+        // Abort the remote operations that are in progress
+        synchronized(remoteOperationThreads) {
+            for(Thread thread : remoteOperationThreads)
+                thread.interrupt();
+        }
+
+        // Interrupt the background transfers that are still in flight, if the job was interrupted
+        if(transferExecutor!=null) {
+            synchronized(backgroundTransfers) {
+                for(BackgroundTransfer transfer : backgroundTransfers)
+                    transfer.close();
+            }
+
+            transferExecutor.shutdown();
+        }
     }
 
 
     /**
      * Overrides {@link FileJob#jobPaused()} to pause any file processing
-     * by having the source InputStream's read methods lock.
+     * by having the source InputStreams' read methods lock.
      */
     @Override
     protected void jobPaused() {
         super.jobPaused();
 
         synchronized(this) {
-            if(tlin !=null)
-                tlin.setThroughputLimit(0);
+            jobBucket.setRate(0);
         }
     }
 
 
     /**
      * Overrides {@link FileJob#jobResumed()} to resume any file processing by releasing
-     * the lock on the source InputStream's read methods.
+     * the lock on the source InputStreams' read methods.
      */
     @Override
     protected void jobResumed() {
@@ -580,8 +1171,7 @@ public abstract class TransferFileJob extends FileJob {
 
         synchronized(this) {
             // Restore previous throughput limit (if any, -1 by default)
-            if(tlin !=null)
-                tlin.setThroughputLimit(throughputLimit);
+            jobBucket.setRate(throughputLimit);
         }
     }
 
@@ -633,6 +1223,138 @@ public abstract class TransferFileJob extends FileJob {
         return super.getStatusString();
     }
 
+    /**
+     * Copies a file in the background, see {@link TransferFileJob#copyFileInBackground(AbstractFile, AbstractFile)}.
+     * Unlike files copied by the job's thread, the file's bytes are accounted in the total byte counter only once the
+     * file has been copied.
+     */
+    private class BackgroundTransfer implements Runnable {
+
+        private final AbstractFile sourceFile;
+        private final AbstractFile destFile;
+
+        /** Stream being read, guarded by this */
+        private InputStream in;
+
+        /** True if the file could not be copied */
+        private volatile boolean failed;
+
+        /** True if the file's remote copy was aborted, the destination may still be written to by the server */
+        private volatile boolean remoteCopyAborted;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private BackgroundTransfer(AbstractFile sourceFile, AbstractFile destFile) {
+            this.sourceFile = sourceFile;
+            this.destFile = destFile;
+        }
+
+        public void run() {
+            try {
+                if(copy())
+                    backgroundTransferCompleted(sourceFile, destFile);
+            }
+            finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Copies the file, returns <code>true</code> if it has been copied completely.
+         */
+        private boolean copy() {
+            try {
+                if(getState()==INTERRUPTED)
+                    return false;
+
+                ByteCounter byteCounter = new ByteCounter();
+                boolean copied = false;
+                if(sourceFile.isFileOperationSupported(FileOperation.COPY_REMOTELY)) {
+                    try {
+                        copyRemotely(sourceFile, destFile);
+                        byteCounter.add(sourceFile.getSize());
+                        copied = true;
+                    }
+                    catch(InterruptedIOException e) {
+                        remoteCopyAborted = true;
+                        throw e;
+                    }
+                    catch(IOException e) {
+                        // The file will be copied manually
+                    }
+                }
+
+                if(!copied) {
+                    synchronized(this) {
+                        in = BandwidthScheduler.getInputStream(new CounterInputStream(sourceFile.getInputStream(), byteCounter),
+                                jobBucket, sourceFile, destFile);
+                    }
+
+                    try {
+                        destFile.copyStream(in, false, sourceFile.getSize());
+                    }
+                    finally {
+                        close();
+                    }
+                }
+
+                preserveFileAttributes(sourceFile, destFile);
+                totalByteCounter.add(byteCounter.getByteCount());
+
+                return true;
+            }
+            catch(Exception e) {
+                LOGGER.debug("Background transfer of "+sourceFile+" failed", e);
+                failed = true;
+
+                return false;
+            }
+            finally {
+                transferPermits.release();
+            }
+        }
+
+        /**
+         * Closes the stream being read, interrupting the transfer.
+         */
+        private synchronized void close() {
+            if(in!=null) {
+                try { in.close(); }
+                catch(IOException e) {}
+            }
+        }
+
+        /**
+         * Waits for this transfer to complete.
+         */
+        private void await() {
+            while(true) {
+                try {
+                    done.await();
+                    return;
+                }
+                catch(InterruptedException e) {
+                    // Loop one more time
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Creates the daemon threads that copy files in the background.
+     */
+    private static class TransferThreadFactory implements ThreadFactory {
+        private final static AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TransferFileJob-"+threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+
 //    /**
 //     * Method overridden to return a more accurate percentage of job processed so far by taking
 //     * into account the current file's processed percentage.
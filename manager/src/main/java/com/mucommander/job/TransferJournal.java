@@ -0,0 +1,508 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.job;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mucommander.PlatformManager;
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileOperation;
+import com.mucommander.commons.file.util.FileSet;
+import com.mucommander.commons.io.BufferPool;
+import com.mucommander.commons.io.ByteUtils;
+import com.mucommander.io.backup.BackupInputStream;
+import com.mucommander.io.backup.BackupOutputStream;
+
+/**
+ * TransferJournal persists the progress of a transfer job, so that an interrupted job can resume where it stopped,
+ * even after the application has been restarted. A job is identified by its source files and destination: starting
+ * the same transfer again picks up the journal that was left by the interrupted one.
+ *
+ * <p>The journal holds two kinds of checkpoints, both saved periodically rather than continuously:
+ * <ul>
+ *   <li>the position of the job in its list of top-level files: files before that position have been processed. The
+ *   size and date each of them had when it was processed are recorded, so that a file that has changed since then
+ *   is processed again</li>
+ *   <li>the progress of the file being copied: the number of bytes that have been written to the destination, and
+ *   the hash of the last {@link #BLOCK_SIZE} bytes written</li>
+ * </ul>
+ * Before a file transfer is resumed, the hash of the destination's bytes preceding the checkpoint is compared with
+ * the hash in the journal: the transfer is resumed only if they match and the source file hasn't changed in the
+ * meantime, and is started over otherwise.</p>
+ *
+ * <p>Journals are stored in the {@link #JOURNAL_FOLDER} folder of the preferences folder. They are deleted when the
+ * job completes, and after {@link #MAX_AGE} milliseconds if the job is never resumed.</p>
+ */
+public class TransferJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransferJournal.class);
+
+    /** Name of the folder that holds the journals, inside the preferences folder */
+    public final static String JOURNAL_FOLDER = "transfers";
+
+    /** Size of the blocks that are hashed, checkpoints are always located at a block boundary */
+    public final static int BLOCK_SIZE = 1048576;
+
+    /** Minimum number of milliseconds between two checkpoints */
+    public final static long CHECKPOINT_PERIOD = 2000;
+
+    /** Number of milliseconds after which a journal that has not been updated is deleted */
+    public final static long MAX_AGE = 30*24*60*60*1000L;
+
+    /** Algorithm used to hash blocks */
+    final static String BLOCK_HASH_ALGORITHM = "MD5";
+
+    private final static String KEY = "key";
+    private final static String POSITION = "position";
+    private final static String SOURCE = "source";
+    private final static String DESTINATION = "destination";
+    private final static String SOURCE_SIZE = "source_size";
+    private final static String SOURCE_DATE = "source_date";
+    private final static String OFFSET = "offset";
+    private final static String BLOCK_HASH = "block_hash";
+    private final static String ENTRY_SIZE = "entry_size.";
+    private final static String ENTRY_DATE = "entry_date.";
+
+    /** File the journal is saved to */
+    private final AbstractFile journalFile;
+
+    /** Identifies the job, guards against name collisions between journals */
+    private final String key;
+
+    /** Index of the first top-level file that has not been processed */
+    private int position;
+
+    /** Size and date of the processed top-level files, indexed by their position */
+    private final Map<Integer, Long> entrySizes = new HashMap<Integer, Long>();
+    private final Map<Integer, Long> entryDates = new HashMap<Integer, Long>();
+
+    /** URL of the file being copied, null if there is no checkpoint */
+    private String source;
+    private String destination;
+    private long sourceSize;
+    private long sourceDate;
+
+    /** Number of bytes of the file that have been written to the destination */
+    private long offset;
+
+    /** Hash of the block that ends at offset */
+    private String blockHash;
+
+    /** True if the destination's bytes preceding the checkpoint have been verified, see {@link #getResumeOffset(AbstractFile, AbstractFile)} */
+    private boolean verified;
+
+    /** True if the journal has changed since it was last saved */
+    private boolean modified;
+
+    /** Time at which the journal was last saved */
+    private long lastSaveTime;
+
+
+    private TransferJournal(AbstractFile journalFile, String key) {
+        this.journalFile = journalFile;
+        this.key = key;
+    }
+
+    /**
+     * Returns the journal of the job that transfers the given files to the given destination, loading the checkpoints
+     * left by a previous run of the same job if there are any.
+     *
+     * @param files the files transferred by the job
+     * @param destFolder the folder the files are transferred to
+     * @param newName the new name of the file in the destination folder, <code>null</code> if files keep their name
+     * @return the job's journal
+     * @throws IOException if the journal folder could not be accessed
+     */
+    public static TransferJournal getJournal(FileSet files, AbstractFile destFolder, String newName) throws IOException {
+        StringBuilder key = new StringBuilder();
+        key.append(destFolder.getURL().toString(false)).append('\n').append(newName);
+        for(AbstractFile file : files)
+            key.append('\n').append(file.getURL().toString(false));
+
+        AbstractFile journalFolder = getJournalFolder();
+        deleteExpiredJournals(journalFolder);
+
+        TransferJournal journal = new TransferJournal(journalFolder.getChild(hash(key.toString())+".properties"), key.toString());
+        if(journal.journalFile.exists()) {
+            try {
+                journal.load();
+            }
+            catch(Exception e) {
+                LOGGER.info("Ignoring unreadable transfer journal "+journal.journalFile, e);
+                journal.position = 0;
+                journal.entrySizes.clear();
+                journal.entryDates.clear();
+                journal.clearCheckpoint();
+            }
+        }
+
+        return journal;
+    }
+
+    /**
+     * Returns the folder that holds the journals, creating it if necessary.
+     */
+    private static AbstractFile getJournalFolder() throws IOException {
+        AbstractFile folder = PlatformManager.getPreferencesFolder().getChild(JOURNAL_FOLDER);
+        if(!folder.exists())
+            folder.mkdir();
+
+        return folder;
+    }
+
+    /**
+     * Deletes the journals that have not been updated for more than {@link #MAX_AGE} milliseconds.
+     */
+    private static void deleteExpiredJournals(AbstractFile journalFolder) {
+        try {
+            long now = System.currentTimeMillis();
+            for(AbstractFile file : journalFolder.ls()) {
+                if(now-file.getDate()>MAX_AGE)
+                    file.delete();
+            }
+        }
+        catch(IOException e) {
+            LOGGER.debug("Could not delete expired transfer journals", e);
+        }
+    }
+
+    /**
+     * Returns the hexadecimal MD5 hash of the given string.
+     */
+    private static String hash(String s) {
+        try {
+            return ByteUtils.toHexString(MessageDigest.getInstance(BLOCK_HASH_ALGORITHM).digest(s.getBytes("UTF-8")));
+        }
+        catch(NoSuchAlgorithmException e) {
+            // MD5 is available on all platforms
+            throw new IllegalStateException(e);
+        }
+        catch(UnsupportedEncodingException e) {
+            // UTF-8 is available on all platforms
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Returns the index of the first top-level file that has not been processed by the job.
+     *
+     * @return the index of the first top-level file that has not been processed
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Records that the top-level files before the given index have been processed.
+     *
+     * @param position the index of the first top-level file that has not been processed
+     */
+    public void setPosition(int position) {
+        if(position==this.position)
+            return;
+
+        this.position = position;
+        modified = true;
+        saveIfDue();
+    }
+
+    /**
+     * Records that the given top-level file has been processed, along with its current size and date, and advances
+     * the position past it.
+     *
+     * @param index the index of the file in the job's list of top-level files
+     * @param file the file that has been processed
+     */
+    public void setProcessed(int index, AbstractFile file) {
+        entrySizes.put(index, file.getSize());
+        entryDates.put(index, file.getDate());
+        modified = true;
+        setPosition(Math.max(position, index+1));
+    }
+
+    /**
+     * Returns <code>true</code> if the given top-level file is before the position and has the size and date it had
+     * when it was processed. Files processed by a journal that recorded neither are considered changed.
+     *
+     * @param index the index of the file in the job's list of top-level files
+     * @param file the file to test
+     * @return true if the file has been processed and hasn't changed since
+     */
+    public boolean isProcessed(int index, AbstractFile file) {
+        if(index>=position)
+            return false;
+
+        Long size = entrySizes.get(index);
+        Long date = entryDates.get(index);
+        return size!=null && date!=null && size==file.getSize() && date==file.getDate();
+    }
+
+    /**
+     * Returns <code>true</code> if enough time has elapsed since the journal was last saved for a new checkpoint to
+     * be saved, see {@link #CHECKPOINT_PERIOD}.
+     *
+     * @return true if a checkpoint is due
+     */
+    public boolean isCheckpointDue() {
+        return System.currentTimeMillis()-lastSaveTime>=CHECKPOINT_PERIOD;
+    }
+
+    /**
+     * Records and saves the progress of the given file transfer. The given number of bytes must have been written to
+     * the destination and flushed.
+     *
+     * @param sourceFile the file being copied
+     * @param destFile the file being written
+     * @param offset the number of bytes written to the destination, a multiple of {@link #BLOCK_SIZE}
+     * @param blockHash the hash of the block that ends at <code>offset</code>
+     */
+    public void checkpoint(AbstractFile sourceFile, AbstractFile destFile, long offset, byte blockHash[]) {
+        this.source = sourceFile.getURL().toString(false);
+        this.destination = destFile.getURL().toString(false);
+        this.sourceSize = sourceFile.getSize();
+        this.sourceDate = sourceFile.getDate();
+        this.offset = offset;
+        this.blockHash = ByteUtils.toHexString(blockHash);
+        this.verified = false;
+
+        modified = true;
+        save();
+    }
+
+    /**
+     * Returns <code>true</code> if the journal holds a checkpoint of the transfer of the given file to the given
+     * destination.
+     *
+     * @param sourceFile the file being copied
+     * @param destFile the file being written
+     * @return true if the journal holds a checkpoint of the transfer
+     */
+    public boolean hasCheckpoint(AbstractFile sourceFile, AbstractFile destFile) {
+        return offset>0
+            && sourceFile.getURL().toString(false).equals(source)
+            && destFile.getURL().toString(false).equals(destination);
+    }
+
+    /**
+     * Returns the offset at which the transfer of the given file can be resumed, <code>0</code> if it must be started
+     * over: either the journal holds no checkpoint for this transfer, the source file has changed, or the
+     * destination's bytes preceding the checkpoint do not match the hash in the journal.
+     *
+     * <p>The destination is verified only once: the offset is returned without reading the destination again until
+     * a new checkpoint is saved, so that the transfer resumes at the offset that was verified.</p>
+     *
+     * <p>If the returned offset is equal to the destination's size, the destination supports
+     * {@link FileOperation#APPEND_FILE} or {@link FileOperation#RANDOM_WRITE_FILE}. If it is smaller, it supports
+     * {@link FileOperation#RANDOM_WRITE_FILE}.</p>
+     *
+     * @param sourceFile the file being copied
+     * @param destFile the file being written
+     * @return the offset at which the transfer can be resumed, 0 if it must be started over
+     */
+    public long getResumeOffset(AbstractFile sourceFile, AbstractFile destFile) {
+        if(!hasCheckpoint(sourceFile, destFile) || sourceFile.getSize()!=sourceSize || sourceFile.getDate()!=sourceDate)
+            return 0;
+
+        if(verified)
+            return offset;
+
+        long destSize = destFile.getSize();
+        if(destSize<offset)
+            return 0;
+
+        if(!destFile.isFileOperationSupported(FileOperation.RANDOM_WRITE_FILE)
+                && !(destSize==offset && destFile.isFileOperationSupported(FileOperation.APPEND_FILE)))
+            return 0;
+
+        // Verify that the destination holds the bytes that were written before the checkpoint
+        try {
+            if(!blockHash.equals(hashBlock(destFile, offset-BLOCK_SIZE))) {
+                LOGGER.info("Tail block of "+destFile+" does not match the transfer journal, starting over");
+                return 0;
+            }
+        }
+        catch(Exception e) {
+            LOGGER.debug("Could not verify the tail block of "+destFile, e);
+            return 0;
+        }
+
+        verified = true;
+        return offset;
+    }
+
+    /**
+     * Returns the hexadecimal hash of the {@link #BLOCK_SIZE} bytes of the given file that start at the given offset.
+     */
+    private static String hashBlock(AbstractFile file, long blockOffset) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(BLOCK_HASH_ALGORITHM);
+        byte buffer[] = BufferPool.getByteArray();
+        InputStream in = file.getInputStream(blockOffset);
+        try {
+            int remaining = BLOCK_SIZE;
+            while(remaining>0) {
+                int nbRead = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if(nbRead==-1)
+                    throw new IOException("Unexpected end of file");
+
+                digest.update(buffer, 0, nbRead);
+                remaining -= nbRead;
+            }
+        }
+        finally {
+            BufferPool.releaseByteArray(buffer);
+            in.close();
+        }
+
+        return ByteUtils.toHexString(digest.digest());
+    }
+
+    /**
+     * Removes the checkpoint of the file transfer, after the file has been copied.
+     */
+    public void clearCheckpoint() {
+        if(source==null)
+            return;
+
+        source = null;
+        destination = null;
+        sourceSize = 0;
+        sourceDate = 0;
+        offset = 0;
+        blockHash = null;
+        verified = false;
+
+        modified = true;
+        saveIfDue();
+    }
+
+    /**
+     * Saves the journal if it has been modified.
+     */
+    public void flush() {
+        if(modified)
+            save();
+    }
+
+    /**
+     * Deletes the journal, after the job has completed.
+     */
+    public void delete() {
+        modified = false;
+        try {
+            if(journalFile.exists())
+                journalFile.delete();
+        }
+        catch(IOException e) {
+            LOGGER.debug("Could not delete transfer journal "+journalFile, e);
+        }
+    }
+
+    /**
+     * Saves the journal if it has been modified and it was last saved more than {@link #CHECKPOINT_PERIOD}
+     * milliseconds ago.
+     */
+    private void saveIfDue() {
+        if(isCheckpointDue())
+            save();
+    }
+
+    /**
+     * Saves the journal. Errors are logged but not reported: a transfer can proceed without its journal.
+     */
+    private void save() {
+        Properties properties = new Properties();
+        properties.setProperty(KEY, key);
+        properties.setProperty(POSITION, Integer.toString(position));
+        for(Map.Entry<Integer, Long> entry : entrySizes.entrySet()) {
+            properties.setProperty(ENTRY_SIZE+entry.getKey(), entry.getValue().toString());
+            properties.setProperty(ENTRY_DATE+entry.getKey(), entryDates.get(entry.getKey()).toString());
+        }
+        if(source!=null) {
+            properties.setProperty(SOURCE, source);
+            properties.setProperty(DESTINATION, destination);
+            properties.setProperty(SOURCE_SIZE, Long.toString(sourceSize));
+            properties.setProperty(SOURCE_DATE, Long.toString(sourceDate));
+            properties.setProperty(OFFSET, Long.toString(offset));
+            properties.setProperty(BLOCK_HASH, blockHash);
+        }
+
+        try {
+            OutputStream out = new BackupOutputStream(journalFile);
+            try {
+                properties.store(out, null);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch(IOException e) {
+            LOGGER.info("Could not save transfer journal "+journalFile, e);
+        }
+
+        modified = false;
+        lastSaveTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Loads the journal from its file.
+     */
+    private void load() throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new BackupInputStream(journalFile);
+        try {
+            properties.load(in);
+        }
+        finally {
+            in.close();
+        }
+
+        // Different jobs whose journals have the same name
+        if(!key.equals(properties.getProperty(KEY)))
+            return;
+
+        position = Integer.parseInt(properties.getProperty(POSITION, "0"));
+        for(int i=0; i<position; i++) {
+            String size = properties.getProperty(ENTRY_SIZE+i);
+            String date = properties.getProperty(ENTRY_DATE+i);
+            if(size!=null && date!=null) {
+                entrySizes.put(i, Long.parseLong(size));
+                entryDates.put(i, Long.parseLong(date));
+            }
+        }
+        source = properties.getProperty(SOURCE);
+        if(source!=null) {
+            destination = properties.getProperty(DESTINATION);
+            sourceSize = Long.parseLong(properties.getProperty(SOURCE_SIZE));
+            sourceDate = Long.parseLong(properties.getProperty(SOURCE_DATE));
+            offset = Long.parseLong(properties.getProperty(OFFSET));
+            blockHash = properties.getProperty(BLOCK_HASH);
+        }
+    }
+}
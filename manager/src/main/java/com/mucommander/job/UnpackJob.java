@@ -35,9 +35,9 @@ import java.util.List;
 
 
 /**
- * This job unpacks a set of archive files to a base destination folder. Archive entries are extracted in their natural
- * order using {@link com.mucommander.commons.file.AbstractArchiveFile#getEntryIterator()}, to traverse the archive only once
- * and achieve optimal performance.
+ * This job unpacks a set of archive files to a base destination folder. Archive entries are extracted in the order
+ * chosen by {@link com.mucommander.commons.file.AbstractArchiveFile#extractEntries(ArchiveEntryFilter)}, which lets
+ * the archive implementation traverse the archive only once and achieve optimal performance.
  *
  * @author Maxence Bernard
  */
@@ -172,7 +172,7 @@ public class UnpackJob extends AbstractCopyJob {
 
         // 'Cast' the file as an archive file
         AbstractArchiveFile archiveFile = file.getAncestor(AbstractArchiveFile.class);
-        ArchiveEntryIterator iterator = null;
+        ArchiveEntryExtraction extraction = null;
 
         ArchiveEntry entry;
         String entryPath;
@@ -181,42 +181,15 @@ public class UnpackJob extends AbstractCopyJob {
         String destSeparator = destFolder.getSeparator();
         String relDestPath;
 
-        // Unpack the archive, copying entries one by one, in the iterator's order
+        // Unpack the archive, copying entries one by one, in the order they are extracted
         try {
-            iterator = archiveFile.getEntryIterator();
-            while((entry = iterator.nextEntry())!=null && getState()!=INTERRUPTED) {
-                entryPath = entry.getPath();
-
-                boolean processEntry = false;
-                if(selectedEntries ==null) {    // Entries are processed
-                    processEntry = true;
-                }
-                else {                          // We need to determine if the entry should be processed or not
-                    // Process this entry if the selectedEntries set contains this entry, or a parent of this entry
-                    int nbSelectedEntries = selectedEntries.size();
-                    for(int i=0; i<nbSelectedEntries; i++) {
-                        ArchiveEntry selectedEntry = selectedEntries.get(i);
-                        // Note: paths of directory entries must end with '/', so this compares whether
-                        // selectedEntry is a parent of the current entry.
-                        if(selectedEntry.isDirectory()) {
-                            if(entryPath.startsWith(selectedEntry.getPath())) {
-                                processEntry = true;
-                                break;
-                                // Note: we can't remove selectedEntryPath from the set, we still need it
-                            }
-                        }
-                        else if(entryPath.equals(selectedEntry.getPath())) {
-                            // If the (regular file) entry is in the set, remove it as we no longer need it (will speed up
-                            // subsequent searches)
-                            processEntry = true;
-                            selectedEntries.remove(i);
-                            break;
-                        }
-                    }
+            extraction = archiveFile.extractEntries(new ArchiveEntryFilter() {
+                public boolean accept(ArchiveEntry entry) {
+                    return isSelected(entry);
                 }
-
-                if(!processEntry)
-                    continue;
+            });
+            while((entry = extraction.nextEntry())!=null && getState()!=INTERRUPTED) {
+                entryPath = entry.getPath();
 
                 // Resolve the entry file
                 entryFile = archiveFile.getArchiveEntryFile(entryPath);
@@ -287,9 +260,10 @@ public class UnpackJob extends AbstractCopyJob {
                     }
 
                     // The entry is wrapped in a ProxyFile to override #getInputStream() and delegate it to
-                    // ArchiveFile#getEntryInputStream in order to take advantage of the ArchiveEntryIterator, which for
-                    // some archive file implementations (such as TAR) can speed things by an order of magnitude.
-                    if(!tryCopyFile(new ProxiedEntryFile(entryFile, entry, archiveFile, iterator), destFile, append, errorDialogTitle))
+                    // ArchiveEntryExtraction#getEntryInputStream, which reads the entry from the current position of
+                    // the extraction rather than looking it up in the archive. For some archive file implementations
+                    // (such as TAR or 7z) this can speed things by an order of magnitude.
+                    if(!tryCopyFile(new ProxiedEntryFile(entryFile, extraction), destFile, append, errorDialogTitle))
                        return false;
                 }
             }
@@ -300,9 +274,9 @@ public class UnpackJob extends AbstractCopyJob {
             showErrorDialog(errorDialogTitle, Translator.get("cannot_read_file", archiveFile.getName()));
         }
         finally {
-            // The ArchiveEntryIterator must be closed when finished
-            if(iterator!=null) {
-                try { iterator.close(); }
+            // The ArchiveEntryExtraction must be closed when finished
+            if(extraction!=null) {
+                try { extraction.close(); }
                 catch(IOException e) {
                     // Not much we can do about it
                 }
@@ -312,6 +286,41 @@ public class UnpackJob extends AbstractCopyJob {
         return false;
     }
 
+    /**
+     * Returns <code>true</code> if the given entry is to be unpacked, i.e. if all entries are to be unpacked or if the
+     * selected entries contain the entry or one of its parents.
+     *
+     * @param entry an entry of the archive being unpacked
+     * @return <code>true</code> if the given entry is to be unpacked
+     */
+    private boolean isSelected(ArchiveEntry entry) {
+        if(selectedEntries==null)       // All entries are processed
+            return true;
+
+        // Process this entry if the selectedEntries set contains this entry, or a parent of this entry
+        String entryPath = entry.getPath();
+        int nbSelectedEntries = selectedEntries.size();
+        for(int i=0; i<nbSelectedEntries; i++) {
+            ArchiveEntry selectedEntry = selectedEntries.get(i);
+            // Note: paths of directory entries must end with '/', so this compares whether
+            // selectedEntry is a parent of the current entry.
+            if(selectedEntry.isDirectory()) {
+                if(entryPath.startsWith(selectedEntry.getPath())) {
+                    return true;
+                    // Note: we can't remove selectedEntryPath from the set, we still need it
+                }
+            }
+            else if(entryPath.equals(selectedEntry.getPath())) {
+                // If the (regular file) entry is in the set, remove it as we no longer need it (will speed up
+                // subsequent searches)
+                selectedEntries.remove(i);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     // This job modifies the base destination folder and its subfolders
     @Override
     protected boolean hasFolderChanged(AbstractFile folder) {
@@ -356,21 +365,17 @@ public class UnpackJob extends AbstractCopyJob {
 
     private static class ProxiedEntryFile extends ProxyFile {
 
-        private ArchiveEntry entry;
-        private AbstractArchiveFile archiveFile;
-        private ArchiveEntryIterator iterator;
+        private ArchiveEntryExtraction extraction;
 
-        public ProxiedEntryFile(AbstractFile entryFile, ArchiveEntry entry, AbstractArchiveFile archiveFile, ArchiveEntryIterator iterator) {
+        public ProxiedEntryFile(AbstractFile entryFile, ArchiveEntryExtraction extraction) {
             super(entryFile);
 
-            this.entry = entry;
-            this.archiveFile = archiveFile;
-            this.iterator = iterator;
+            this.extraction = extraction;
         }
 
         @Override
         public InputStream getInputStream() throws IOException {
-            return archiveFile.getEntryInputStream(entry, iterator);
+            return extraction.getEntryInputStream();
         }
     }
 }
@@ -0,0 +1,159 @@
+package com.mucommander.search;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.io.BinaryDetector;
+import com.mucommander.commons.io.BufferPool;
+import com.mucommander.commons.io.EncodingDetector;
+import com.mucommander.commons.io.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Extracts the text of files for content indexing, and the lines that match a query from the extracted text.
+ *
+ * <p>Only the first {@link #MAX_CONTENT_BYTES} bytes of a file are indexed. Files that look like binary data are
+ * skipped, and the encoding of the others is guessed with {@link EncodingDetector}, falling back to UTF-8.
+ * Archive entries are read like any other file, through their archive.</p>
+ */
+class ContentExtractor {
+
+    /** Maximum number of bytes indexed per file */
+    static final int MAX_CONTENT_BYTES = 1024 * 1024;
+
+    /** Maximum number of characters of a line shown in a snippet */
+    private static final int MAX_SNIPPET_LENGTH = 160;
+
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    private ContentExtractor() {
+    }
+
+    /**
+     * Returns the text of the given file, <code>null</code> if it looks like a binary file or could not be read.
+     *
+     * @param file a regular file or archive entry
+     * @return the text of the file, truncated to {@link #MAX_CONTENT_BYTES}, or <code>null</code>
+     */
+    static String extract(AbstractFile file) {
+        if (file.getSize() == 0) {
+            return null;
+        }
+        byte[] buffer = BufferPool.getByteArray(MAX_CONTENT_BYTES);
+        InputStream in = null;
+        try {
+            in = file.getInputStream();
+            int length = StreamUtils.readUpTo(in, buffer);
+            if (length <= 0 || BinaryDetector.guessBinary(buffer, 0, Math.min(length, BinaryDetector.RECOMMENDED_BYTE_SIZE))) {
+                return null;
+            }
+            return new String(buffer, 0, length, detectCharset(buffer, 0, length));
+        } catch (IOException e) {
+            return null;
+        } finally {
+            BufferPool.releaseByteArray(buffer);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Guesses the charset of the given text with {@link EncodingDetector}, falling back to UTF-8 if the guess is
+     * uncertain or not supported by the runtime.
+     *
+     * @param bytes the beginning of a text file
+     * @param off position of the text in the array
+     * @param len length of the text
+     * @return the charset of the text
+     */
+    static Charset detectCharset(byte[] bytes, int off, int len) {
+        // Detection gets slower but no more accurate past this many bytes
+        String encoding = EncodingDetector.detectEncoding(bytes, off, Math.min(len, EncodingDetector.MAX_RECOMMENDED_BYTE_SIZE));
+        try {
+            if (encoding != null && Charset.isSupported(encoding)) {
+                return Charset.forName(encoding);
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a legal charset name
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * Returns the words of a query, lower-cased and without operators, as they may appear in the matching text.
+     *
+     * @param query a query on the contents field
+     * @return the words of the query
+     */
+    static Set<String> getQueryTerms(String query) {
+        Set<String> terms = new LinkedHashSet<String>();
+        for (String word : query.split("[^\\p{L}\\p{N}_.\\-]+")) {
+            if (word.length() == 0 || word.equals("AND") || word.equals("OR") || word.equals("NOT")) {
+                continue;
+            }
+            terms.add(word.toLowerCase(Locale.ENGLISH));
+        }
+        return terms;
+    }
+
+    /**
+     * Returns the lines of the given text that contain one of the given terms, prefixed with their line number.
+     *
+     * @param contents text of a file
+     * @param terms lower-cased terms to look for
+     * @param maxSnippets maximum number of lines to return
+     * @return matching lines, in the order they appear in the text
+     */
+    static List<String> getSnippets(String contents, Collection<String> terms, int maxSnippets) {
+        List<String> snippets = new ArrayList<String>();
+        if (contents == null || terms.isEmpty()) {
+            return snippets;
+        }
+        int lineNumber = 0;
+        int start = 0;
+        int length = contents.length();
+        while (start < length && snippets.size() < maxSnippets) {
+            int end = contents.indexOf('\n', start);
+            if (end == -1) {
+                end = length;
+            }
+            lineNumber++;
+            String line = contents.substring(start, end);
+            String lowerCaseLine = line.toLowerCase(Locale.ENGLISH);
+            for (String term : terms) {
+                if (lowerCaseLine.contains(term)) {
+                    snippets.add(formatSnippet(lineNumber, line));
+                    break;
+                }
+            }
+            start = end + 1;
+        }
+        return snippets;
+    }
+
+    /**
+     * Formats a matching line for display, shortening it if needed.
+     *
+     * @param lineNumber number of the line in its file, starting at 1
+     * @param line text of the line
+     * @return the snippet to display
+     */
+    static String formatSnippet(int lineNumber, String line) {
+        line = line.trim();
+        if (line.length() > MAX_SNIPPET_LENGTH) {
+            line = line.substring(0, MAX_SNIPPET_LENGTH) + "...";
+        }
+        return lineNumber + ": " + line;
+    }
+}
@@ -0,0 +1,373 @@
+package com.mucommander.search;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Finds the lines of a file that match a text or a regular expression, working on the raw bytes of the file.
+ *
+ * <p>Literal text is encoded in the charset of the file and looked for directly in the bytes, without decoding them:
+ * with Boyer-Moore-Horspool for a single word, with Aho-Corasick for several alternative words, in a single pass.
+ * Only matching lines are ever decoded. Case-insensitive matching folds ASCII letters byte by byte; other letters
+ * can't be folded that way, so words that contain some are looked for like regular expressions. Regular expressions
+ * can't work on bytes, so they are applied to the decoded text.</p>
+ *
+ * <p>Matchers are immutable and can be shared by threads scanning different files.</p>
+ */
+abstract class ContentMatcher {
+
+    /** Maps each byte to itself */
+    private static final byte[] IDENTITY = new byte[256];
+    /** Maps ASCII upper case letters to lower case, any other byte to itself */
+    private static final byte[] ASCII_LOWER_CASE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            IDENTITY[i] = (byte) i;
+            ASCII_LOWER_CASE[i] = (byte) (i >= 'A' && i <= 'Z' ? i + 'a' - 'A' : i);
+        }
+    }
+
+    /** Separates alternative words in literal text */
+    private static final String ALTERNATIVE_SEPARATOR = "|";
+
+    /**
+     * Creates a matcher for the given text.
+     *
+     * @param text the text to look for, either a regular expression or words separated by <code>|</code> that each
+     * match on their own
+     * @param regex <code>true</code> if the text is a regular expression
+     * @param caseSensitive <code>true</code> to match the case of letters
+     * @return a matcher for the given text
+     * @throws PatternSyntaxException if the text is not a valid regular expression
+     */
+    static ContentMatcher compile(String text, boolean regex, boolean caseSensitive) throws PatternSyntaxException {
+        int flags = caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        if (regex) {
+            return new RegexMatcher(Pattern.compile(text, flags));
+        }
+
+        Set<String> words = new LinkedHashSet<String>();
+        boolean asciiOnly = true;
+        for (String word : text.split(Pattern.quote(ALTERNATIVE_SEPARATOR))) {
+            if (word.length() > 0) {
+                words.add(word);
+                for (int i = 0; i < word.length() && asciiOnly; i++) {
+                    asciiOnly = word.charAt(i) < 128;
+                }
+            }
+        }
+        if (words.isEmpty()) {
+            words.add(text);
+        }
+        if (caseSensitive || asciiOnly) {
+            return new LiteralMatcher(words, caseSensitive);
+        }
+        StringBuilder alternatives = new StringBuilder();
+        for (String word : words) {
+            if (alternatives.length() > 0) {
+                alternatives.append(ALTERNATIVE_SEPARATOR);
+            }
+            alternatives.append(Pattern.quote(word));
+        }
+        return new RegexMatcher(Pattern.compile(alternatives.toString(), flags));
+    }
+
+    /**
+     * Looks for the lines that match in <code>buffer[offset, offset+length)</code>, which holds whole lines of a file,
+     * and adds them to the given list as snippets, until <code>maxSnippets</code> are collected.
+     *
+     * @param buffer bytes of the file
+     * @param offset position of the first line in the buffer
+     * @param length number of bytes to look at
+     * @param charset charset of the file
+     * @param firstLine number of the first line, starting at 1
+     * @param snippets list the matching lines are added to
+     * @param maxSnippets size at which the list is full
+     * @return the number of line separators in the region, valid only if the list isn't full
+     */
+    abstract int findLines(byte[] buffer, int offset, int length, Charset charset, int firstLine, List<String> snippets, int maxSnippets);
+
+    /**
+     * Returns the number of occurrences of <code>'\n'</code> in <code>buffer[from, to)</code>.
+     */
+    static int countLines(byte[] buffer, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the position of the first <code>'\n'</code> in <code>buffer[from, to)</code>, <code>to</code> if there is
+     * none.
+     */
+    private static int lineEnd(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * Finds byte sequences in a buffer.
+     */
+    private interface ByteMatcher {
+        /**
+         * Returns the position of the first match that starts in <code>buffer[from, to)</code> and ends before
+         * <code>to</code>, <code>-1</code> if there is none.
+         */
+        int indexOf(byte[] buffer, int from, int to);
+    }
+
+    /**
+     * Looks for literal words in the bytes of a file.
+     */
+    private static class LiteralMatcher extends ContentMatcher {
+        private final Set<String> words;
+        private final byte[] fold;
+        /** Byte matchers for the charsets encountered so far */
+        private final ConcurrentMap<Charset, ByteMatcher> byteMatchers = new ConcurrentHashMap<Charset, ByteMatcher>();
+
+        /**
+         * @param words the words to look for, which must be ASCII-only unless <code>caseSensitive</code> is set
+         * @param caseSensitive <code>true</code> to match the case of letters
+         */
+        private LiteralMatcher(Set<String> words, boolean caseSensitive) {
+            this.words = words;
+            this.fold = caseSensitive ? IDENTITY : ASCII_LOWER_CASE;
+        }
+
+        private ByteMatcher getByteMatcher(Charset charset) {
+            ByteMatcher byteMatcher = byteMatchers.get(charset);
+            if (byteMatcher == null) {
+                List<byte[]> patterns = new ArrayList<byte[]>();
+                for (String word : words) {
+                    byte[] pattern = word.getBytes(charset);
+                    for (int i = 0; i < pattern.length; i++) {
+                        pattern[i] = fold[pattern[i] & 0xff];
+                    }
+                    boolean duplicate = false;
+                    for (byte[] other : patterns) {
+                        duplicate |= Arrays.equals(pattern, other);
+                    }
+                    if (!duplicate) {
+                        patterns.add(pattern);
+                    }
+                }
+                byteMatcher = patterns.size() == 1 ? new BoyerMooreMatcher(patterns.get(0), fold) : new AhoCorasickMatcher(patterns, fold);
+                byteMatchers.putIfAbsent(charset, byteMatcher);
+            }
+            return byteMatcher;
+        }
+
+        @Override
+        int findLines(byte[] buffer, int offset, int length, Charset charset, int firstLine, List<String> snippets, int maxSnippets) {
+            ByteMatcher byteMatcher = getByteMatcher(charset);
+            int end = offset + length;
+            int lineStart = offset;
+            int lineNumber = firstLine;
+            while (lineStart < end && snippets.size() < maxSnippets) {
+                int match = byteMatcher.indexOf(buffer, lineStart, end);
+                if (match == -1) {
+                    break;
+                }
+                // Skip to the line of the match
+                for (int i = lineStart; i < match; i++) {
+                    if (buffer[i] == '\n') {
+                        lineNumber++;
+                        lineStart = i + 1;
+                    }
+                }
+                int lineEnd = lineEnd(buffer, match, end);
+                snippets.add(ContentExtractor.formatSnippet(lineNumber, new String(buffer, lineStart, lineEnd - lineStart, charset)));
+                if (lineEnd < end) {
+                    lineNumber++;
+                }
+                lineStart = lineEnd + 1;
+            }
+            if (lineStart < end) {
+                lineNumber += countLines(buffer, lineStart, end);
+            }
+            return lineNumber - firstLine;
+        }
+    }
+
+    /**
+     * Boyer-Moore-Horspool search of a single byte sequence: the longer the sequence, the more bytes are skipped
+     * without being looked at.
+     */
+    private static class BoyerMooreMatcher implements ByteMatcher {
+        private final byte[] pattern;
+        private final byte[] fold;
+        private final int[] shifts = new int[256];
+
+        private BoyerMooreMatcher(byte[] pattern, byte[] fold) {
+            this.pattern = pattern;
+            this.fold = fold;
+            int last = pattern.length - 1;
+            Arrays.fill(shifts, pattern.length);
+            for (int i = 0; i < last; i++) {
+                shifts[pattern[i] & 0xff] = last - i;
+            }
+        }
+
+        @Override
+        public int indexOf(byte[] buffer, int from, int to) {
+            int last = pattern.length - 1;
+            if (last < 0) {
+                return from < to ? from : -1;
+            }
+            int i = from;
+            while (i + last < to) {
+                int j = last;
+                while (fold[buffer[i + j] & 0xff] == pattern[j]) {
+                    if (j == 0) {
+                        return i;
+                    }
+                    j--;
+                }
+                i += shifts[fold[buffer[i + last] & 0xff] & 0xff];
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Aho-Corasick search of several byte sequences in a single pass, the automaton being fully expanded so that each
+     * byte costs a single table lookup.
+     */
+    private static class AhoCorasickMatcher implements ByteMatcher {
+        private final byte[] fold;
+        /** state * 256 + byte -> next state */
+        private final int[] transitions;
+        /** state -> length of a sequence ending at that state, 0 if none does */
+        private final int[] matchLengths;
+
+        private AhoCorasickMatcher(List<byte[]> patterns, byte[] fold) {
+            this.fold = fold;
+            int maxStates = 1;
+            for (byte[] pattern : patterns) {
+                maxStates += pattern.length;
+            }
+            int[] goTo = new int[maxStates * 256];
+            Arrays.fill(goTo, -1);
+            int[] lengths = new int[maxStates];
+            int nbStates = 1;
+            for (byte[] pattern : patterns) {
+                int state = 0;
+                for (byte b : pattern) {
+                    int index = state * 256 + (b & 0xff);
+                    if (goTo[index] == -1) {
+                        goTo[index] = nbStates++;
+                    }
+                    state = goTo[index];
+                }
+                if (lengths[state] == 0) {
+                    lengths[state] = pattern.length;
+                }
+            }
+
+            // Breadth-first traversal computing failure links and filling in missing transitions
+            int[] failures = new int[nbStates];
+            LinkedList<Integer> queue = new LinkedList<Integer>();
+            for (int c = 0; c < 256; c++) {
+                int next = goTo[c];
+                if (next == -1) {
+                    goTo[c] = 0;
+                } else {
+                    failures[next] = 0;
+                    queue.add(next);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.removeFirst();
+                if (lengths[state] == 0) {
+                    lengths[state] = lengths[failures[state]];
+                }
+                for (int c = 0; c < 256; c++) {
+                    int index = state * 256 + c;
+                    int next = goTo[index];
+                    int fallback = goTo[failures[state] * 256 + c];
+                    if (next == -1) {
+                        goTo[index] = fallback;
+                    } else {
+                        failures[next] = fallback;
+                        queue.add(next);
+                    }
+                }
+            }
+            transitions = goTo;
+            matchLengths = lengths;
+        }
+
+        @Override
+        public int indexOf(byte[] buffer, int from, int to) {
+            int state = 0;
+            for (int i = from; i < to; i++) {
+                state = transitions[state * 256 + (fold[buffer[i] & 0xff] & 0xff)];
+                int length = matchLengths[state];
+                if (length != 0) {
+                    return i - length + 1;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Applies a regular expression to the decoded text of a file.
+     */
+    private static class RegexMatcher extends ContentMatcher {
+        private final Pattern pattern;
+
+        private RegexMatcher(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        int findLines(byte[] buffer, int offset, int length, Charset charset, int firstLine, List<String> snippets, int maxSnippets) {
+            String text = new String(buffer, offset, length, charset);
+            Matcher matcher = pattern.matcher(text);
+            int lineStart = 0;
+            int lineNumber = firstLine;
+            while (lineStart < text.length() && snippets.size() < maxSnippets && matcher.find(lineStart)) {
+                int match = matcher.start();
+                for (int newLine = text.indexOf('\n', lineStart); newLine != -1 && newLine < match; newLine = text.indexOf('\n', lineStart)) {
+                    lineNumber++;
+                    lineStart = newLine + 1;
+                }
+                int lineEnd = text.indexOf('\n', match);
+                if (lineEnd == -1) {
+                    lineEnd = text.length();
+                }
+                snippets.add(ContentExtractor.formatSnippet(lineNumber, text.substring(lineStart, lineEnd)));
+                if (lineEnd < text.length()) {
+                    lineNumber++;
+                }
+                lineStart = lineEnd + 1;
+            }
+            for (int i = lineStart; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') {
+                    lineNumber++;
+                }
+            }
+            return lineNumber - firstLine;
+        }
+    }
+}
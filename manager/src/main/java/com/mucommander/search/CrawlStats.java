@@ -0,0 +1,100 @@
+package com.mucommander.search;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics gathered by {@link IndexCrawler} during a crawl: number of files and folders visited, throughput and
+ * a histogram of the time it took to list folders.
+ */
+public class CrawlStats {
+
+    /** Upper bounds (exclusive, in milliseconds) of the directory latency histogram buckets, the last bucket is unbounded */
+    private static final long[] LATENCY_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+    private final AtomicLong nbFiles = new AtomicLong();
+    private final AtomicLong nbDirectories = new AtomicLong();
+    private final AtomicLong nbListedDirectories = new AtomicLong();
+    private final AtomicLong nbIndexOperations = new AtomicLong();
+    private final AtomicIntegerArray latencyHistogram = new AtomicIntegerArray(LATENCY_BUCKETS.length + 1);
+    private final long startTime = System.currentTimeMillis();
+    private volatile long endTime;
+
+    void fileVisited() {
+        nbFiles.incrementAndGet();
+    }
+
+    void directoryVisited() {
+        nbDirectories.incrementAndGet();
+    }
+
+    void directoryListed(long latency) {
+        nbListedDirectories.incrementAndGet();
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && latency >= LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        latencyHistogram.incrementAndGet(bucket);
+    }
+
+    void indexOperationsApplied(int nbOperations) {
+        nbIndexOperations.addAndGet(nbOperations);
+    }
+
+    void finished() {
+        endTime = System.currentTimeMillis();
+    }
+
+    public long getNbFiles() {
+        return nbFiles.get();
+    }
+
+    public long getNbDirectories() {
+        return nbDirectories.get();
+    }
+
+    /**
+     * Returns the number of folders that were actually listed, i.e. that had changed since they were last indexed.
+     */
+    public long getNbListedDirectories() {
+        return nbListedDirectories.get();
+    }
+
+    public long getNbIndexOperations() {
+        return nbIndexOperations.get();
+    }
+
+    /**
+     * Returns the duration of the crawl in milliseconds, up to now if it is still running.
+     */
+    public long getDuration() {
+        return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    /**
+     * Returns the number of files and folders visited per second.
+     */
+    public double getFilesPerSecond() {
+        long duration = getDuration();
+        return duration == 0 ? 0 : (nbFiles.get() + nbDirectories.get()) * 1000d / duration;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(nbFiles.get()).append(" files, ").append(nbDirectories.get()).append(" folders (")
+                .append(nbListedDirectories.get()).append(" listed), ").append(nbIndexOperations.get())
+                .append(" index operations in ").append(getDuration()).append("ms, ")
+                .append(String.format("%.1f", getFilesPerSecond())).append(" files/s; listing latency:");
+        for (int i = 0; i <= LATENCY_BUCKETS.length; i++) {
+            int count = latencyHistogram.get(i);
+            if (count == 0) {
+                continue;
+            }
+            sb.append(' ');
+            sb.append(i == LATENCY_BUCKETS.length ? ">=" + LATENCY_BUCKETS[i - 1] : "<" + LATENCY_BUCKETS[i]);
+            sb.append("ms=").append(count);
+        }
+        return sb.toString();
+    }
+}
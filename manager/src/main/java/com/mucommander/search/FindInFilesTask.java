@@ -0,0 +1,300 @@
+package com.mucommander.search;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.filter.FileFilter;
+import com.mucommander.commons.file.filter.PassThroughFileFilter;
+import com.mucommander.commons.file.filter.RegexpFilenameFilter;
+import com.mucommander.commons.io.BinaryDetector;
+import com.mucommander.commons.io.BufferPool;
+import com.mucommander.commons.io.StreamUtils;
+import com.mucommander.utils.Callback;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the files of a folder that contain a text, by reading them rather than looking them up in the index
+ * ("find in files"). This works with any protocol, archive entries included, and doesn't require the folder to have
+ * been indexed, at the cost of reading every file each time.
+ *
+ * <p>The folder is walked by the task's thread, while the files it finds are read concurrently by a shared pool of
+ * {@link #NB_THREADS} threads. Each file is read in large chunks into a buffer from the {@link BufferPool}, and the
+ * chunks are scanned in place by a {@link ContentMatcher}, only the matching lines being decoded. Files are published
+ * as soon as they have been scanned, with up to {@link #MAX_SNIPPETS} of their matching lines.</p>
+ *
+ * <p>Matching is line-oriented: a match must fit in a line, and lines longer than the buffer are split.</p>
+ */
+public class FindInFilesTask extends SwingWorker<Boolean, SearchResult> {
+
+    /** Number of threads reading files */
+    private static final int NB_THREADS = 8;
+
+    /** Maximum number of files waiting to be read, bounds the memory used by a task that lists faster than it reads */
+    private static final int MAX_PENDING_FILES = NB_THREADS * 4;
+
+    /** Size of the buffer files are read into, a file is scanned in chunks of up to this size */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /** Maximum number of matching lines returned per file, a file isn't read any further once they are found */
+    private static final int MAX_SNIPPETS = 5;
+
+    /** Reads files for all tasks */
+    private static final ExecutorService executor;
+
+    static {
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(NB_THREADS, NB_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "FindInFilesTask-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        // Release idle threads, searches are not run all the time
+        threadPool.allowCoreThreadTimeOut(true);
+        executor = threadPool;
+    }
+
+    private final String targetFolder;
+    private final String searchString;
+    private final String text;
+    private final DefaultListModel listModel;
+    private final Callback finishCallBack;
+
+    private boolean regex;
+    private boolean caseSensitive;
+
+    private final Semaphore pendingFiles = new Semaphore(MAX_PENDING_FILES);
+
+    /**
+     * @param targetFolder path of the folder to search
+     * @param searchString wildcard pattern the names of the files to read must match, <code>null</code> or empty to
+     * read all files
+     * @param text text that found files must contain, a regular expression or words separated by <code>|</code>
+     * @param defaultListModel list the results are added to
+     * @param callback called on the event dispatch thread once the search is over
+     */
+    public FindInFilesTask(String targetFolder, String searchString, String text, DefaultListModel defaultListModel, Callback callback) {
+        this.targetFolder = targetFolder;
+        this.searchString = searchString;
+        this.text = text;
+        this.listModel = defaultListModel;
+        this.finishCallBack = callback;
+    }
+
+    /**
+     * Sets whether the text is a regular expression, <code>false</code> by default.
+     */
+    public void setRegex(boolean regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * Sets whether the case of letters must match, <code>false</code> by default.
+     */
+    public void setCaseSensitive(boolean caseSensitive) {
+        this.caseSensitive = caseSensitive;
+    }
+
+    @Override
+    protected Boolean doInBackground() throws Exception {
+        if (text == null || text.length() == 0) {
+            return false;
+        }
+        AbstractFile folder = FileFactory.getFile(targetFolder);
+        if (folder == null) {
+            return false;
+        }
+        ContentMatcher matcher = ContentMatcher.compile(text, regex, caseSensitive);
+        FileFilter filter = searchString == null || searchString.length() == 0 ? new PassThroughFileFilter()
+                : new RegexpFilenameFilter(wildcardToRegex(searchString), false);
+        try {
+            walk(folder, filter, matcher);
+        } finally {
+            // Wait for the files being read
+            pendingFiles.acquireUninterruptibly(MAX_PENDING_FILES);
+        }
+        return !isCancelled();
+    }
+
+    @Override
+    protected void process(List<SearchResult> chunks) {
+        for (SearchResult foundFile : chunks) {
+            listModel.addElement(foundFile);
+        }
+    }
+
+    @Override
+    protected void done() {
+        finishCallBack.call();
+    }
+
+    /**
+     * Lists the given folder and its subfolders, and submits the files that match the filter to be read.
+     */
+    private void walk(AbstractFile root, FileFilter filter, ContentMatcher matcher) throws InterruptedException {
+        root.prefetchTree();
+
+        LinkedList<AbstractFile> folders = new LinkedList<AbstractFile>();
+        folders.add(root);
+        while (!folders.isEmpty() && !isCancelled()) {
+            AbstractFile folder = folders.removeFirst();
+            AbstractFile[] children;
+            try {
+                children = folder.ls();
+            } catch (NullPointerException e) {
+                //com.github.junrar.Archive setFile
+                //exception in archive constructor maybe file is encrypted or currupt
+                continue;
+            } catch (IOException e) {
+                //broken channel or archive error can occur
+                continue;
+            }
+            for (AbstractFile child : children) {
+                //{@link com.mucommander.commons.file.AbstractArchiveFile#ls} may return itself!
+                if (folder.equals(child)) {
+                    continue;
+                }
+                if (child.isBrowsable()) {
+                    // Archives are searched through their entries
+                    if (!child.isHidden() && !child.isSymlink()) {
+                        folders.add(child);
+                    }
+                } else if (filter.accept(child)) {
+                    pendingFiles.acquire();
+                    executor.execute(new FileScan(child, matcher));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the lines of the given file that match, an empty list if it looks like a binary file or can't be read.
+     */
+    private List<String> scan(AbstractFile file, ContentMatcher matcher) {
+        List<String> snippets = new ArrayList<String>(MAX_SNIPPETS);
+        byte[] buffer = BufferPool.getByteArray(BUFFER_SIZE);
+        InputStream in = null;
+        try {
+            in = file.getInputStream();
+            Charset charset = null;
+            int filled = 0;
+            int lineNumber = 1;
+            boolean eof = false;
+            while (!eof && snippets.size() < MAX_SNIPPETS && !isCancelled()) {
+                int read = StreamUtils.readUpTo(in, buffer, filled, buffer.length - filled);
+                eof = filled + read < buffer.length;
+                filled += read;
+                if (charset == null) {
+                    if (filled == 0 || BinaryDetector.guessBinary(buffer, 0, Math.min(filled, BinaryDetector.RECOMMENDED_BYTE_SIZE))) {
+                        break;
+                    }
+                    charset = ContentExtractor.detectCharset(buffer, 0, filled);
+                }
+
+                // Scan whole lines, the last one is completed by the next chunk
+                int scanned = eof ? filled : lastLineEnd(buffer, filled);
+                if (scanned == 0) {
+                    // Line longer than the buffer
+                    scanned = filled;
+                }
+                lineNumber += matcher.findLines(buffer, 0, scanned, charset, lineNumber, snippets, MAX_SNIPPETS);
+                System.arraycopy(buffer, scanned, buffer, 0, filled - scanned);
+                filled -= scanned;
+            }
+        } catch (IOException e) {
+            // Unreadable files are not matches
+        } finally {
+            BufferPool.releaseByteArray(buffer);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return snippets;
+    }
+
+    /**
+     * Returns the position that follows the last <code>'\n'</code> of <code>buffer[0, length)</code>, 0 if there is
+     * none.
+     */
+    private static int lastLineEnd(byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Converts a wildcard pattern, where <code>*</code> matches any characters and <code>?</code> a single one, to a
+     * regular expression.
+     */
+    private static String wildcardToRegex(String wildcard) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < wildcard.length(); i++) {
+            char c = wildcard.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(wildcard.substring(start, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < wildcard.length()) {
+            regex.append(Pattern.quote(wildcard.substring(start)));
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Reads a file and publishes it if it matches.
+     */
+    private class FileScan implements Runnable {
+        private final AbstractFile file;
+        private final ContentMatcher matcher;
+
+        private FileScan(AbstractFile file, ContentMatcher matcher) {
+            this.file = file;
+            this.matcher = matcher;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (isCancelled()) {
+                    return;
+                }
+                List<String> snippets = scan(file, matcher);
+                if (!snippets.isEmpty()) {
+                    publish(new SearchResult(file.getAbsolutePath(), snippets));
+                }
+            } finally {
+                pendingFiles.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package com.mucommander.search;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.FileProtocols;
+import com.mucommander.commons.file.FileURL;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes the index for a folder and everything below it, see {@link SearchIndexer} for how changes are detected.
+ *
+ * <p>Folders are listed concurrently by {@link #NB_WORKERS} workers. Folders waiting to be listed are put in a bounded
+ * queue shared by all workers; when it is full, a worker keeps the overflow to itself and hands it back to the shared
+ * queue as soon as there is room, so that idle workers can pick it up. The number of concurrent listings is further
+ * bounded per host, so as not to flood remote servers with requests.</p>
+ *
+ * <p>Workers don't touch the index themselves: they queue index operations that are drained in batches and applied by
+ * a single writer stage, which runs on the thread that called {@link #crawl(AbstractFile)}. The operations of a folder
+ * are queued in order, the folder's own document coming last, so that a folder is never recorded as up to date before
+ * its children are.</p>
+ *
+ * <p>When indexing contents, the text of regular files and archive entries is extracted by the workers with
+ * {@link ContentExtractor}. Files whose contents were indexed are flagged with {@link SearchFields#CONTENTS_INDEXED},
+ * and so are folders whose children all were, so that a content crawl lists again the folders that were last
+ * refreshed without contents, even if they haven't changed.</p>
+ */
+class IndexCrawler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexCrawler.class);
+
+    /** Number of threads listing folders */
+    static final int NB_WORKERS = 8;
+
+    /** Maximum number of concurrent listings on the local filesystem */
+    private static final int LOCAL_CONCURRENCY = NB_WORKERS;
+
+    /** Maximum number of concurrent listings on a remote host */
+    private static final int REMOTE_CONCURRENCY = 4;
+
+    private static final int SHARED_QUEUE_CAPACITY = 256;
+    private static final int OPERATION_QUEUE_CAPACITY = 10000;
+
+    /** Maximum number of index operations applied in one batch */
+    private static final int BATCH_SIZE = 1000;
+
+    /** Number of index operations between two intermediate commits */
+    private static final int COMMIT_INTERVAL = 100000;
+
+    /** Number of milliseconds to wait for work before checking if the crawl is over */
+    private static final int POLL_PERIOD = 50;
+
+    /** Fields needed to reconcile indexed entries, loading the stored contents would be a waste */
+    private static final Set<String> ENTRY_FIELDS = new HashSet<String>(Arrays.asList(SearchFields.PATH,
+            SearchFields.SIZE, SearchFields.DATE, SearchFields.DIRECTORY, SearchFields.LISTED_DATE,
+            SearchFields.CONTENTS_INDEXED));
+
+    /** scheme://host -> permits bounding the number of concurrent listings */
+    private static final Map<String, Semaphore> listingPermits = new HashMap<String, Semaphore>();
+
+    private final IndexWriter writer;
+    private final IndexSearcher searcher;
+    private final Executor executor;
+    private final boolean indexContents;
+
+    private final BlockingQueue<PendingFolder> sharedQueue = new ArrayBlockingQueue<PendingFolder>(SHARED_QUEUE_CAPACITY);
+    private final BlockingQueue<IndexOperation> operations = new ArrayBlockingQueue<IndexOperation>(OPERATION_QUEUE_CAPACITY);
+    /** Number of folders queued or being refreshed */
+    private final AtomicInteger pendingFolders = new AtomicInteger();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final CrawlStats stats = new CrawlStats();
+    private volatile boolean cancelled;
+    /** Set if a worker could not read the index */
+    private volatile IOException failure;
+
+    /**
+     * @param writer the writer to apply changes with
+     * @param searcher a searcher on the index as it was before the crawl
+     * @param executor executor able to run {@link #NB_WORKERS} tasks concurrently
+     * @param indexContents <code>true</code> to index the contents of files as well
+     */
+    IndexCrawler(IndexWriter writer, IndexSearcher searcher, Executor executor, boolean indexContents) {
+        this.writer = writer;
+        this.searcher = searcher;
+        this.executor = executor;
+        this.indexContents = indexContents;
+    }
+
+    /**
+     * Refreshes the given folder and everything below it, and commits the changes. Returns early, after committing
+     * what has been done so far, if the calling thread is interrupted.
+     *
+     * @param root the folder to refresh
+     * @return statistics about the crawl
+     * @throws IOException if the index could not be read or written
+     */
+    CrawlStats crawl(AbstractFile root) throws IOException {
+        root.prefetchTree();
+
+        String rootPath = root.getAbsolutePath();
+        IndexedEntry rootEntry = collect(new TermQuery(new Term(SearchFields.PATH, rootPath))).get(rootPath);
+        AbstractFile rootParent = root.getParent();
+        pendingFolders.set(1);
+        sharedQueue.add(new PendingFolder(root, rootParent == null ? null : rootParent.getAbsolutePath(),
+                rootEntry == null ? null : rootEntry.listedDate, rootEntry != null && rootEntry.contentsIndexed));
+
+        activeWorkers.set(NB_WORKERS);
+        for (int i = 0; i < NB_WORKERS; i++) {
+            executor.execute(new Worker());
+        }
+
+        boolean completed = false;
+        try {
+            List<IndexOperation> batch = new ArrayList<IndexOperation>(BATCH_SIZE);
+            int sinceCommit = 0;
+            while (true) {
+                IndexOperation operation = operations.poll(POLL_PERIOD, TimeUnit.MILLISECONDS);
+                if (operation == null) {
+                    if (activeWorkers.get() == 0 && operations.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(operation);
+                operations.drainTo(batch, BATCH_SIZE - 1);
+                for (IndexOperation op : batch) {
+                    op.apply(writer);
+                }
+                stats.indexOperationsApplied(batch.size());
+                sinceCommit += batch.size();
+                batch.clear();
+                if (sinceCommit >= COMMIT_INTERVAL) {
+                    writer.commit();
+                    sinceCommit = 0;
+                }
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            // Interrupted, commit what has been done so far
+            Thread.currentThread().interrupt();
+            completed = true;
+        } finally {
+            // Stop the workers if the crawl failed or was interrupted
+            cancelled = true;
+            stats.finished();
+            if (completed) {
+                writer.commit();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return stats;
+    }
+
+    private void putOperation(IndexOperation operation) throws InterruptedException {
+        while (!cancelled) {
+            if (operations.offer(operation, POLL_PERIOD, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+        throw new InterruptedException();
+    }
+
+    private static Semaphore getPermits(AbstractFile folder) {
+        FileURL url = folder.getURL();
+        String scheme = url.getScheme();
+        String key = scheme + "://" + url.getHost();
+        synchronized (listingPermits) {
+            Semaphore permits = listingPermits.get(key);
+            if (permits == null) {
+                permits = new Semaphore(FileProtocols.FILE.equals(scheme) ? LOCAL_CONCURRENCY : REMOTE_CONCURRENCY, true);
+                listingPermits.put(key, permits);
+            }
+            return permits;
+        }
+    }
+
+    /**
+     * Reconciles the indexed children of the given folder with its actual contents, and queues its subfolders.
+     */
+    private void refreshFolder(PendingFolder pending, Worker worker) throws IOException, InterruptedException {
+        AbstractFile folder = pending.folder;
+        String path = folder.getAbsolutePath();
+        long date = folder.getDate();
+        Map<String, IndexedEntry> indexed = collect(new TermQuery(new Term(SearchFields.PARENT, path)));
+        stats.directoryVisited();
+
+        if (pending.listedDate != null && pending.listedDate == date && (!indexContents || pending.contentsIndexed)) {
+            // Folder unchanged since its children were indexed, only its subfolders may have changed
+            for (IndexedEntry entry : indexed.values()) {
+                if (entry.directory) {
+                    AbstractFile subfolder = FileFactory.getFile(entry.path);
+                    if (subfolder != null) {
+                        worker.enqueue(new PendingFolder(subfolder, path, entry.listedDate, entry.contentsIndexed));
+                    }
+                }
+            }
+            return;
+        }
+
+        AbstractFile[] children;
+        long listingStart = System.currentTimeMillis();
+        Semaphore permits = getPermits(folder);
+        permits.acquire();
+        try {
+            children = folder.ls();
+        } catch (NullPointerException e) {
+            //com.github.junrar.Archive setFile
+            //exception in archive constructor maybe file is encrypted or currupt
+            return;
+        } catch (IOException e) {
+            //broken channel or archive error can occur
+            return;
+        } finally {
+            permits.release();
+        }
+        stats.directoryListed(System.currentTimeMillis() - listingStart);
+
+        for (AbstractFile child : children) {
+            //{@link com.mucommander.commons.file.AbstractArchiveFile#ls} may return itself!
+            if (folder.equals(child)) {
+                continue;
+            }
+            String childPath = child.getAbsolutePath();
+            boolean browse = child.isBrowsable() && !child.isHidden() && !child.isSymlink();
+            IndexedEntry entry = indexed.remove(childPath);
+            Long childListedDate = entry == null ? null : entry.listedDate;
+            boolean childContentsIndexed = entry != null && entry.contentsIndexed;
+            boolean changed = entry == null || entry.directory != browse || entry.date != child.getDate() || entry.size != child.getSize();
+            if (browse) {
+                if (changed) {
+                    putOperation(IndexOperation.update(childPath,
+                            createDocument(child, path, true, childListedDate, childContentsIndexed, null)));
+                }
+                worker.enqueue(new PendingFolder(child, path, childListedDate, childContentsIndexed));
+            } else {
+                if (indexContents && (changed || !childContentsIndexed)) {
+                    String contents = extractContents(child);
+                    putOperation(IndexOperation.update(childPath, createDocument(child, path, false, null, true, contents)));
+                } else if (changed) {
+                    putOperation(IndexOperation.update(childPath, createDocument(child, path, false, null, false, null)));
+                }
+                stats.fileVisited();
+            }
+        }
+
+        // Whatever is left no longer exists
+        String separator = folder.getSeparator();
+        for (IndexedEntry entry : indexed.values()) {
+            putOperation(IndexOperation.delete(new Term(SearchFields.PATH, entry.path)));
+            if (entry.directory) {
+                putOperation(IndexOperation.delete(new PrefixQuery(new Term(SearchFields.PATH, entry.path + separator))));
+            }
+        }
+
+        // Record that the folder's children are up to date
+        putOperation(IndexOperation.update(path, createDocument(folder, pending.parentPath, true, date, indexContents, null)));
+    }
+
+    /**
+     * Extracts the text of the given file, holding a listing permit so that remote hosts are not flooded with reads.
+     */
+    private String extractContents(AbstractFile file) throws InterruptedException {
+        Semaphore permits = getPermits(file);
+        permits.acquire();
+        try {
+            return ContentExtractor.extract(file);
+        } finally {
+            permits.release();
+        }
+    }
+
+    static Document createDocument(AbstractFile file, String parentPath, boolean directory, Long listedDate,
+                                   boolean contentsIndexed, String contents) {
+        Document doc = new Document();
+        // Use fields that are indexed (i.e. searchable), but don't tokenize them into separate words
+        // and don't index term frequency or positional information
+        doc.add(new StringField(SearchFields.PATH, file.getAbsolutePath(), Field.Store.YES));
+        doc.add(new StringField(SearchFields.FILE_NAME, file.getName(), Field.Store.YES));
+        if (parentPath != null) {
+            doc.add(new StringField(SearchFields.PARENT, parentPath, Field.Store.NO));
+        }
+        String extension = file.getExtension();
+        if (extension != null) {
+            doc.add(new StringField(SearchFields.EXTENSION, extension.toLowerCase(), Field.Store.YES));
+        }
+        // Numeric fields can be efficiently filtered with NumericRangeQuery
+        doc.add(new LongField(SearchFields.SIZE, file.getSize(), Field.Store.YES));
+        doc.add(new LongField(SearchFields.DATE, file.getDate(), Field.Store.YES));
+        doc.add(new StringField(SearchFields.DIRECTORY, directory ? SearchFields.TRUE : SearchFields.FALSE, Field.Store.YES));
+        if (listedDate != null) {
+            doc.add(new LongField(SearchFields.LISTED_DATE, listedDate, Field.Store.YES));
+        }
+        doc.add(new StringField(SearchFields.CONTENTS_INDEXED, contentsIndexed ? SearchFields.TRUE : SearchFields.FALSE, Field.Store.YES));
+        if (contents != null) {
+            // Tokenized for full-text queries, and stored so that matching lines can be shown without reading the file
+            doc.add(new TextField(SearchFields.CONTENTS, contents, Field.Store.YES));
+        }
+        return doc;
+    }
+
+    /**
+     * Returns all the documents matching the given query, without scoring nor limiting the number of hits.
+     */
+    private Map<String, IndexedEntry> collect(TermQuery query) throws IOException {
+        final Map<String, IndexedEntry> entries = new HashMap<String, IndexedEntry>();
+        searcher.search(query, new Collector() {
+            private AtomicReader reader;
+
+            @Override
+            public void setScorer(Scorer scorer) {
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                IndexedEntry entry = new IndexedEntry(reader.document(doc, ENTRY_FIELDS));
+                entries.put(entry.path, entry);
+            }
+
+            @Override
+            public void setNextReader(AtomicReaderContext context) {
+                reader = context.reader();
+            }
+
+            @Override
+            public boolean acceptsDocsOutOfOrder() {
+                return true;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Lists folders until there are none left or the crawl is cancelled.
+     */
+    private class Worker implements Runnable {
+        /** Folders that did not fit in the shared queue, handed back to it as soon as there is room */
+        private final LinkedList<PendingFolder> overflow = new LinkedList<PendingFolder>();
+
+        @Override
+        public void run() {
+            boolean completed = false;
+            try {
+                while (!cancelled) {
+                    // Share the overflow with idle workers
+                    while (!overflow.isEmpty() && sharedQueue.offer(overflow.peekFirst())) {
+                        overflow.pollFirst();
+                    }
+                    PendingFolder next = overflow.pollLast();
+                    if (next == null) {
+                        next = sharedQueue.poll(POLL_PERIOD, TimeUnit.MILLISECONDS);
+                        if (next == null) {
+                            if (pendingFolders.get() == 0) {
+                                break;
+                            }
+                            continue;
+                        }
+                    }
+                    try {
+                        refreshFolder(next, this);
+                    } catch (RuntimeException e) {
+                        // A file or protocol failed unexpectedly, skip the folder
+                        LOGGER.warn("Failed to refresh " + next.folder.getAbsolutePath(), e);
+                    } finally {
+                        pendingFolders.decrementAndGet();
+                    }
+                }
+                completed = true;
+            } catch (InterruptedException e) {
+                cancelled = true;
+            } catch (IOException e) {
+                // The index could not be read, give up
+                failure = e;
+                cancelled = true;
+            } finally {
+                // The folders left in the overflow are still pending, the crawl would never end without this worker
+                if (!completed) {
+                    cancelled = true;
+                }
+                activeWorkers.decrementAndGet();
+            }
+        }
+
+        private void enqueue(PendingFolder folder) {
+            pendingFolders.incrementAndGet();
+            if (!sharedQueue.offer(folder)) {
+                overflow.add(folder);
+            }
+        }
+    }
+
+    /**
+     * A change to be applied to the index by the writer stage.
+     */
+    private static class IndexOperation {
+        private final Term term;
+        private final Document document;
+        private final Query query;
+
+        private IndexOperation(Term term, Document document, Query query) {
+            this.term = term;
+            this.document = document;
+            this.query = query;
+        }
+
+        static IndexOperation update(String path, Document document) {
+            return new IndexOperation(new Term(SearchFields.PATH, path), document, null);
+        }
+
+        static IndexOperation delete(Term term) {
+            return new IndexOperation(term, null, null);
+        }
+
+        static IndexOperation delete(Query query) {
+            return new IndexOperation(null, null, query);
+        }
+
+        void apply(IndexWriter writer) throws IOException {
+            if (document != null) {
+                writer.updateDocument(term, document);
+            } else if (term != null) {
+                writer.deleteDocuments(term);
+            } else {
+                writer.deleteDocuments(query);
+            }
+        }
+    }
+
+    /**
+     * A folder waiting to be refreshed.
+     */
+    private static class PendingFolder {
+        private final AbstractFile folder;
+        private final String parentPath;
+        private final Long listedDate;
+        private final boolean contentsIndexed;
+
+        private PendingFolder(AbstractFile folder, String parentPath, Long listedDate, boolean contentsIndexed) {
+            this.folder = folder;
+            this.parentPath = parentPath;
+            this.listedDate = listedDate;
+            this.contentsIndexed = contentsIndexed;
+        }
+    }
+
+    /**
+     * The indexed attributes of a file.
+     */
+    private static class IndexedEntry {
+        private final String path;
+        private final long size;
+        private final long date;
+        private final boolean directory;
+        private final Long listedDate;
+        private final boolean contentsIndexed;
+
+        private IndexedEntry(Document doc) {
+            path = doc.get(SearchFields.PATH);
+            size = getLong(doc, SearchFields.SIZE, -1);
+            date = getLong(doc, SearchFields.DATE, -1);
+            directory = SearchFields.TRUE.equals(doc.get(SearchFields.DIRECTORY));
+            listedDate = doc.getField(SearchFields.LISTED_DATE) == null ? null : getLong(doc, SearchFields.LISTED_DATE, -1);
+            contentsIndexed = SearchFields.TRUE.equals(doc.get(SearchFields.CONTENTS_INDEXED));
+        }
+
+        private static long getLong(Document doc, String name, long defaultValue) {
+            IndexableField field = doc.getField(name);
+            if (field == null || field.numericValue() == null) {
+                return defaultValue;
+            }
+            return field.numericValue().longValue();
+        }
+    }
+}
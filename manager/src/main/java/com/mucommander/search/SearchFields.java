@@ -8,4 +8,23 @@ package com.mucommander.search;
 public class SearchFields {
     public static final String PATH = "path";
     public static final String FILE_NAME = "file_name";
+    /** Absolute path of the parent folder, used to reconcile a folder's indexed children with its actual contents */
+    public static final String PARENT = "parent";
+    /** Lower-cased file extension, absent for files without an extension */
+    public static final String EXTENSION = "extension";
+    /** File size in bytes, indexed as a long for range queries */
+    public static final String SIZE = "size";
+    /** Last modification date in milliseconds, indexed as a long for range queries */
+    public static final String DATE = "date";
+    /** {@link #TRUE} for folders and archives whose children are indexed, {@link #FALSE} for other files */
+    public static final String DIRECTORY = "directory";
+    /** Date of a folder when its children were last indexed, absent if they never were */
+    public static final String LISTED_DATE = "listed_date";
+    /** Text extracted from the file, tokenized and stored so that snippets can be shown without rereading the file */
+    public static final String CONTENTS = "contents";
+    /** {@link #TRUE} if the file's contents (for a folder: its children's contents) have been indexed */
+    public static final String CONTENTS_INDEXED = "contents_indexed";
+
+    public static final String TRUE = "true";
+    public static final String FALSE = "false";
 }
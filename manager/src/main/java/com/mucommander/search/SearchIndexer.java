@@ -0,0 +1,236 @@
+package com.mucommander.search;
+
+import com.mucommander.PlatformManager;
+import com.mucommander.commons.file.AbstractFile;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background service that maintains the search index stored under the preferences folder.
+ *
+ * <p>A single {@link IndexWriter} is kept open for the lifetime of the application, and searches are served by
+ * near-real-time searchers obtained from it, so that a search can be answered from the existing index right away,
+ * while the searched folder is being refreshed.</p>
+ *
+ * <p>Refreshes are incremental: each indexed folder records the date it had when its children were last indexed
+ * ({@link SearchFields#LISTED_DATE}). A folder whose date hasn't changed since is not listed again, only its indexed
+ * subfolders are visited. A folder that has changed is listed and its children are reconciled with the index: new and
+ * modified files are (re)indexed, and files that no longer exist are removed along with everything indexed below them.
+ * Note that a folder's date only changes when entries are added, removed or renamed in it, so the size and date of
+ * files that were modified in place are updated the next time their folder changes.</p>
+ *
+ * <p>Refreshes may optionally index the contents of text files, including files inside archives, so that they can be
+ * searched with queries on {@link SearchFields#CONTENTS}. Only the beginning of large files is indexed, see
+ * {@link ContentExtractor}.</p>
+ *
+ * <p>Refreshes run one at a time on a dedicated thread, each of them listing folders concurrently with an
+ * {@link IndexCrawler}.</p>
+ */
+public class SearchIndexer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchIndexer.class);
+
+    private static final File INDEX_PATH = new File(PlatformManager.getPreferencesFolder().getAbsolutePath(), "index");
+    private static final Version VERSION = Version.LUCENE_43;
+
+    /** Size of the writer's RAM buffer: a large buffer makes for fewer, larger segments when crawling big trees */
+    private static final double RAM_BUFFER_SIZE_MB = 64;
+
+    private static SearchIndexer instance;
+
+    private final Directory dir;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final ExecutorService executor;
+    private final ExecutorService crawlerExecutor;
+    private final Map<String, Future<Void>> pendingRefreshes = new HashMap<String, Future<Void>>();
+
+    /**
+     * Returns the shared instance, opening the index the first time this method is called.
+     *
+     * @return the shared instance
+     * @throws IOException if the index could not be opened
+     */
+    public static synchronized SearchIndexer getInstance() throws IOException {
+        if (instance == null) {
+            instance = new SearchIndexer();
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the shared instance if it has been opened, interrupting any refresh in progress.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    private SearchIndexer() throws IOException {
+        if (!INDEX_PATH.exists()) {
+            INDEX_PATH.mkdirs();
+        }
+        dir = FSDirectory.open(INDEX_PATH);
+        IndexWriterConfig iwc = new IndexWriterConfig(VERSION, new StandardAnalyzer(VERSION));
+        iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        iwc.setRAMBufferSizeMB(RAM_BUFFER_SIZE_MB);
+        // Crawls mostly add and replace small documents: merge less often, but more segments at once
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(20);
+        mergePolicy.setMaxMergeAtOnce(20);
+        iwc.setMergePolicy(mergePolicy);
+        writer = new IndexWriter(dir, iwc);
+        searcherManager = new SearcherManager(writer, true, new SearcherFactory());
+        executor = Executors.newSingleThreadExecutor(new IndexerThreadFactory("SearchIndexer"));
+        crawlerExecutor = Executors.newFixedThreadPool(IndexCrawler.NB_WORKERS, new IndexerThreadFactory("SearchIndexer crawler"));
+    }
+
+    /**
+     * Schedules an incremental refresh of the given folder and everything below it, without indexing file contents.
+     *
+     * @param folder the folder to refresh
+     * @return a future that completes when the folder has been refreshed and the changes committed
+     * @see #refresh(AbstractFile, boolean)
+     */
+    public Future<Void> refresh(AbstractFile folder) {
+        return refresh(folder, false);
+    }
+
+    /**
+     * Schedules an incremental refresh of the given folder and everything below it. If a refresh of the same folder is
+     * already pending, it is returned instead of scheduling a new one.
+     *
+     * @param folder the folder to refresh
+     * @param indexContents <code>true</code> to index the contents of files as well as their attributes
+     * @return a future that completes when the folder has been refreshed and the changes committed
+     */
+    public synchronized Future<Void> refresh(final AbstractFile folder, final boolean indexContents) {
+        String key = folder.getAbsolutePath() + (indexContents ? "#contents" : "");
+        Future<Void> pending = pendingRefreshes.get(key);
+        if (pending != null && !pending.isDone()) {
+            return pending;
+        }
+
+        Future<Void> future = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                refreshFolder(folder, indexContents);
+                return null;
+            }
+        });
+        pendingRefreshes.put(key, future);
+        return future;
+    }
+
+    /**
+     * Returns a searcher reflecting the latest changes made to the index, including those of a refresh in progress.
+     * The searcher must be released with {@link #releaseSearcher(IndexSearcher)}.
+     *
+     * @return a searcher on the index
+     * @throws IOException if the searcher could not be refreshed
+     */
+    public IndexSearcher acquireSearcher() throws IOException {
+        searcherManager.maybeRefresh();
+        return searcherManager.acquire();
+    }
+
+    /**
+     * Releases a searcher obtained from {@link #acquireSearcher()}.
+     *
+     * @param searcher the searcher to release
+     * @throws IOException if the searcher could not be released
+     */
+    public void releaseSearcher(IndexSearcher searcher) throws IOException {
+        searcherManager.release(searcher);
+    }
+
+    /**
+     * Removes the given paths, and everything indexed below them, from the index.
+     *
+     * @param paths absolute paths of files that no longer exist
+     * @param separator path separator used by the files
+     * @throws IOException if the index could not be updated
+     */
+    public void delete(Collection<String> paths, String separator) throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        for (String path : paths) {
+            writer.deleteDocuments(new Term(SearchFields.PATH, path));
+            writer.deleteDocuments(new PrefixQuery(new Term(SearchFields.PATH, path + separator)));
+        }
+        writer.commit();
+        searcherManager.maybeRefresh();
+    }
+
+    private void close() {
+        executor.shutdownNow();
+        crawlerExecutor.shutdownNow();
+        try {
+            // Crawler workers may still be writing documents, the writer cannot be closed before they are done
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+            crawlerExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+        }
+        try {
+            searcherManager.close();
+            writer.close();
+            dir.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close search index", e);
+        }
+    }
+
+    private void refreshFolder(AbstractFile root, boolean indexContents) throws IOException {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            CrawlStats stats = new IndexCrawler(writer, searcher, crawlerExecutor, indexContents).crawl(root);
+            LOGGER.info("Refreshed index for " + root.getAbsolutePath() + ": " + stats);
+        } finally {
+            searcherManager.release(searcher);
+        }
+        searcherManager.maybeRefresh();
+    }
+
+    private static class IndexerThreadFactory implements ThreadFactory {
+        private final String name;
+        private int threadNumber;
+
+        private IndexerThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + " " + (++threadNumber));
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.mucommander.search;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A file found by {@link SearchTask}, along with the lines that matched when searching file contents.
+ */
+public class SearchResult {
+    private final String path;
+    private final List<String> snippets;
+
+    public SearchResult(String path) {
+        this(path, Collections.<String>emptyList());
+    }
+
+    public SearchResult(String path, List<String> snippets) {
+        this.path = path;
+        this.snippets = snippets;
+    }
+
+    /**
+     * Returns the absolute path of the file that was found.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the matching lines of the file, prefixed with their line number, empty if the search did not look at
+     * file contents.
+     */
+    public List<String> getSnippets() {
+        return snippets;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SearchResult && path.equals(((SearchResult) o).path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        if (snippets.isEmpty()) {
+            return path;
+        }
+        return path + "    " + snippets.get(0);
+    }
+}
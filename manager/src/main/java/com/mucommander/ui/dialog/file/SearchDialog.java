@@ -1,10 +1,13 @@
 package com.mucommander.ui.dialog.file;
 
 import com.mucommander.commons.file.util.FileSet;
+import com.mucommander.search.FindInFilesTask;
+import com.mucommander.search.SearchResult;
 import com.mucommander.search.SearchTask;
 import com.mucommander.text.Translator;
 import com.mucommander.ui.action.ActionProperties;
 import com.mucommander.ui.action.impl.SearchFilesAction;
+import com.mucommander.ui.chooser.SizeChooser;
 import com.mucommander.ui.dialog.DialogToolkit;
 import com.mucommander.ui.dialog.FocusDialog;
 import com.mucommander.ui.dialog.InformationDialog;
@@ -45,6 +48,41 @@ public class SearchDialog extends FocusDialog implements ActionListener, KeyList
      */
     private JTextField searchStringInputField;
 
+    /**
+     * Text field used for input of the text that found files must contain.
+     */
+    private JTextField contentInputField;
+
+    /**
+     * Whether to read files rather than look them up in the index.
+     */
+    private JCheckBox scanFilesCheckBox;
+
+    /**
+     * Whether the text to find is a regular expression, when scanning files.
+     */
+    private JCheckBox regexCheckBox;
+
+    /**
+     * Whether the case of letters must match, when scanning files.
+     */
+    private JCheckBox caseSensitiveCheckBox;
+
+    /**
+     * Minimum size of found files, none if zero, when using the index.
+     */
+    private SizeChooser minSizeChooser;
+
+    /**
+     * Maximum size of found files, none if zero, when using the index.
+     */
+    private SizeChooser maxSizeChooser;
+
+    /**
+     * Number of days within which found files must have been modified, none if zero, when using the index.
+     */
+    private JSpinner modifiedDaysSpinner;
+
     /**
      * Run/stop button.
      */
@@ -72,7 +110,12 @@ public class SearchDialog extends FocusDialog implements ActionListener, KeyList
      */
     private final static Dimension MINIMUM_DIALOG_DIMENSION = new Dimension(600, 400);
 
-    private SearchTask currentProcess;
+    /**
+     * Number of milliseconds in a day.
+     */
+    private final static long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    private SwingWorker<Boolean, SearchResult> currentProcess;
     private DefaultListModel listModel;
 
     public SearchDialog(MainFrame mainFrame) {
@@ -121,6 +164,32 @@ public class SearchDialog extends FocusDialog implements ActionListener, KeyList
         mainPanel.add(new JLabel(Translator.get("search_dialog.file_label")));
         mainPanel.add(searchStringInputField = new JTextField());
         searchStringInputField.setEnabled(true);
+        mainPanel.add(new JLabel(Translator.get("search_dialog.content_label")));
+        mainPanel.add(contentInputField = new JTextField());
+        contentInputField.setEnabled(true);
+
+        XBoxPanel optionsPanel = new XBoxPanel();
+        optionsPanel.add(scanFilesCheckBox = new JCheckBox(Translator.get("search_dialog.scan_files")));
+        scanFilesCheckBox.addActionListener(this);
+        optionsPanel.add(regexCheckBox = new JCheckBox(Translator.get("search_dialog.regex")));
+        regexCheckBox.setEnabled(false);
+        optionsPanel.add(caseSensitiveCheckBox = new JCheckBox(Translator.get("search_dialog.case_sensitive")));
+        caseSensitiveCheckBox.setEnabled(false);
+        optionsPanel.add(Box.createHorizontalGlue());
+        mainPanel.add(optionsPanel);
+
+        // Size and date ranges are looked up in the index, they do not apply to files being scanned
+        XBoxPanel rangesPanel = new XBoxPanel();
+        rangesPanel.add(new JLabel(Translator.get("search_dialog.min_size")));
+        rangesPanel.add(minSizeChooser = new SizeChooser(false));
+        rangesPanel.addSpace(10);
+        rangesPanel.add(new JLabel(Translator.get("search_dialog.max_size")));
+        rangesPanel.add(maxSizeChooser = new SizeChooser(false));
+        rangesPanel.addSpace(10);
+        rangesPanel.add(new JLabel(Translator.get("search_dialog.modified_days")));
+        rangesPanel.add(modifiedDaysSpinner = new JSpinner(new SpinnerNumberModel(0, 0, Integer.MAX_VALUE, 1)));
+        rangesPanel.add(Box.createHorizontalGlue());
+        mainPanel.add(rangesPanel);
 
         // Adds a textual description of the shell output area.
         mainPanel.addSpace(10);
@@ -189,7 +258,14 @@ public class SearchDialog extends FocusDialog implements ActionListener, KeyList
     public void actionPerformed(ActionEvent e) {
         Object source = e.getSource();
         if (source == runStopButton) {
-            runSearchTask(folderInputField.getText(), searchStringInputField.getText());
+            runSearchTask(folderInputField.getText(), searchStringInputField.getText(), contentInputField.getText());
+        } else if (source == scanFilesCheckBox) {
+            // Regular expressions and case sensitivity only apply to files being scanned
+            regexCheckBox.setEnabled(scanFilesCheckBox.isSelected());
+            caseSensitiveCheckBox.setEnabled(scanFilesCheckBox.isSelected());
+            minSizeChooser.setEnabled(!scanFilesCheckBox.isSelected());
+            maxSizeChooser.setEnabled(!scanFilesCheckBox.isSelected());
+            modifiedDaysSpinner.setEnabled(!scanFilesCheckBox.isSelected());
         } else if (source == cancelButton) {
             if (currentProcess != null) {
                 currentProcess.cancel(true);
@@ -199,7 +275,7 @@ public class SearchDialog extends FocusDialog implements ActionListener, KeyList
         }
     }
 
-    private void runSearchTask(String targetFolder, String searchString) {
+    private void runSearchTask(String targetFolder, String searchString, String contentQuery) {
         // Starts the spinning dial.
         dial.setAnimated(true);
         // Resets the process output area.
@@ -209,7 +285,8 @@ public class SearchDialog extends FocusDialog implements ActionListener, KeyList
         // No new command can be entered while a process is running.
         folderInputField.setEnabled(false);
         searchStringInputField.setEnabled(false);
-        currentProcess = new SearchTask(targetFolder, searchString, listModel, new Callback() {
+        contentInputField.setEnabled(false);
+        Callback callback = new Callback() {
             @Override
             public void call() {
                 dial.setAnimated(false);
@@ -218,6 +295,7 @@ public class SearchDialog extends FocusDialog implements ActionListener, KeyList
                 // No new command can be entered while a process is running.
                 folderInputField.setEnabled(true);
                 searchStringInputField.setEnabled(true);
+                contentInputField.setEnabled(true);
                 try {
                     currentProcess.get();
                 } catch (ExecutionException e) {
@@ -226,7 +304,22 @@ public class SearchDialog extends FocusDialog implements ActionListener, KeyList
                     //interrupted should be here
                 }
             }
-        });
+        };
+        if (scanFilesCheckBox.isSelected() && contentQuery.length() > 0) {
+            FindInFilesTask findInFilesTask = new FindInFilesTask(targetFolder, searchString, contentQuery, listModel, callback);
+            findInFilesTask.setRegex(regexCheckBox.isSelected());
+            findInFilesTask.setCaseSensitive(caseSensitiveCheckBox.isSelected());
+            currentProcess = findInFilesTask;
+        } else {
+            SearchTask searchTask = new SearchTask(targetFolder, searchString, listModel, callback);
+            searchTask.setContentQuery(contentQuery);
+            long minSize = minSizeChooser.getValue();
+            long maxSize = maxSizeChooser.getValue();
+            searchTask.setSizeRange(minSize > 0 ? minSize : null, maxSize > 0 ? maxSize : null);
+            int modifiedDays = (Integer) modifiedDaysSpinner.getValue();
+            searchTask.setDateRange(modifiedDays > 0 ? System.currentTimeMillis() - modifiedDays * DAY_MILLIS : null, null);
+            currentProcess = searchTask;
+        }
         currentProcess.execute();
     }
 
@@ -248,9 +341,9 @@ public class SearchDialog extends FocusDialog implements ActionListener, KeyList
             e.consume();
             int index = outputTextArea.locationToIndex(e.getPoint());
             if (index >= 0) {
-                Object o = outputTextArea.getModel().getElementAt(index);
+                SearchResult result = (SearchResult) outputTextArea.getModel().getElementAt(index);
                 FolderPanel folderPanel = this.mainFrame.getActivePanel();
-                File file = new File(o.toString());
+                File file = new File(result.getPath());
                 folderPanel.tryChangeCurrentFolder(file.isDirectory() ? file.getAbsolutePath() : file.getParent());
                 this.dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
             }
@@ -19,12 +19,17 @@
 package com.mucommander.ui.event;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.WeakHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mucommander.cache.FolderListingCache;
 import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileListListener;
 import com.mucommander.commons.file.FileURL;
 import com.mucommander.commons.file.UnsupportedFileOperationException;
 import com.mucommander.core.FolderChangeMonitor;
@@ -75,8 +80,24 @@ public class LocationManager {
      */
     public void setCurrentFolder(AbstractFile folder, AbstractFile fileToSelect, boolean changeLockedTab) throws UnsupportedFileOperationException, IOException {
     	LOGGER.trace("calling ls()");
-    	AbstractFile[] children = folder.ls(configurableFolderFilter);
+    	AbstractFile[] children = folder.ls();
+    	FolderListingCache.put(folder, children);
 
+    	setCurrentFolder(folder, filterChildren(children), fileToSelect, changeLockedTab);
+    }
+
+    /**
+     * Set the given {@link AbstractFile} as the folder presented in the {@link FolderPanel}, with the given children.
+     * The children may only be the first ones of the folder, in which case the others are added to the
+     * {@link com.mucommander.ui.main.table.FileTable} as they are listed by {@link #listFolder(AbstractFile, FileListListener)}.
+     *
+     * @param folder the {@link AbstractFile} that is going to be presented in the {@link FolderPanel}
+     * @param children the children of the folder, filtered by the folder filter
+     * @param fileToSelect the file to select, <code>null</code> for the default selection
+     * @param changeLockedTab flag that indicates whether to change the presented folder in the currently selected tab
+     * although it's locked
+     */
+    public void setCurrentFolder(AbstractFile folder, AbstractFile children[], AbstractFile fileToSelect, boolean changeLockedTab) {
     	folderPanel.setCurrentFolder(folder, children, fileToSelect, changeLockedTab);
 
     	this.currentFolder = folder;
@@ -89,6 +110,39 @@ public class LocationManager {
     		folderChangeMonitor = new FolderChangeMonitor(folderPanel);
     }
 
+    /**
+     * Lists the given folder and passes its children that are not filtered out by the folder filter to the given
+     * listener, as they are listed.
+     *
+     * @param folder the folder to list
+     * @param listener the listener that receives the children of the folder
+     * @throws IOException if the folder could not be listed
+     * @throws UnsupportedFileOperationException if the folder cannot be listed
+     */
+    public void listFolder(AbstractFile folder, FileListListener listener) throws UnsupportedFileOperationException, IOException {
+    	LOGGER.trace("calling ls()");
+    	if(!FolderListingCache.isCacheable(folder)) {
+    		folder.ls(configurableFolderFilter, listener);
+    		return;
+    	}
+
+    	// List the folder unfiltered to store its complete listing in the cache, unless the listing was stopped
+    	CachingListener cachingListener = new CachingListener(listener);
+    	folder.ls(null, cachingListener);
+    	if(!cachingListener.stopped)
+    		FolderListingCache.put(folder, cachingListener.children.toArray(new AbstractFile[cachingListener.children.size()]));
+    }
+
+    /**
+     * Filters out the given children that are unwanted when displaying a folder, based on user preferences.
+     *
+     * @param children the unfiltered children of a folder
+     * @return the children that are not filtered out
+     */
+    public AbstractFile[] filterChildren(AbstractFile children[]) {
+    	return configurableFolderFilter.filter(children);
+    }
+
     /**
      * Return the folder presented in the {@link FolderPanel}
      * 
@@ -166,4 +220,29 @@ public class LocationManager {
         for(LocationListener listener : locationListeners.keySet())
             listener.locationFailed(new LocationEvent(folderPanel, folderURL));
     }
+
+    /**
+     * Records all the children listed by {@link #listFolder(AbstractFile, FileListListener)} and passes those that are
+     * not filtered out to the given listener.
+     */
+    private class CachingListener implements FileListListener {
+    	private final FileListListener listener;
+    	private final List<AbstractFile> children = new ArrayList<AbstractFile>();
+    	private boolean stopped;
+
+    	private CachingListener(FileListListener listener) {
+    		this.listener = listener;
+    	}
+
+    	public boolean filesListed(AbstractFile files[]) {
+    		children.addAll(Arrays.asList(files));
+
+    		files = configurableFolderFilter.filter(files);
+    		if(files.length==0)
+    			return true;
+
+    		stopped = !listener.filesListed(files);
+    		return !stopped;
+    	}
+    }
 }
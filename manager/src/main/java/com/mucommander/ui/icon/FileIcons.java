@@ -18,13 +18,17 @@
 
 package com.mucommander.ui.icon;
 
+import com.mucommander.commons.file.AbstractArchiveEntryFile;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.FileFactory;
 import com.mucommander.commons.file.icon.FileIconProvider;
+import com.mucommander.commons.file.impl.local.LocalFile;
 import com.mucommander.commons.runtime.OsFamilies;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * <code>FileIcons</code> provides several methods to retrieve file icons for a given file:
@@ -45,6 +49,13 @@ import java.awt.*;
  * icons. Non-supported platforms may return no icon (<code>null</code> values), or icons that do not resemble the
  * system ones.</p>
  *
+ * <p>Icons of the current dimension returned by {@link #getFileIcon(AbstractFile)} are kept in a cache of at most
+ * {@link #ICON_CACHE_CAPACITY} icons, from which the least recently used ones are evicted. Most icons only depend on
+ * the file's extension and on whether it is a directory and/or a symlink, and are cached under that key; icons that are
+ * specific to a file (system icons of local files, root folders) are cached under the file itself. Code that must not
+ * wait for an icon to be resolved, like the file table's renderer, can use {@link #getCachedFileIcon(AbstractFile)}
+ * and {@link #getPlaceholderIcon(AbstractFile)} in the meantime.</p>
+ *
  * @author Maxence Bernard
  */
 public class FileIcons {
@@ -80,6 +91,17 @@ public class FileIcons {
     /** Current dimension of returned file icons */
     private static Dimension iconDimension = new Dimension((int)(BASE_ICON_DIMENSION * DEFAULT_SCALE_FACTOR), (int)(BASE_ICON_DIMENSION * DEFAULT_SCALE_FACTOR));
 
+    /** Maximum number of icons kept in the icon cache */
+    public final static int ICON_CACHE_CAPACITY = 1000;
+
+    /** Icons of the current dimension, in access order. Cleared when the scale factor or the policy changes. */
+    private final static Map<Object, Icon> iconCache = new LinkedHashMap<Object, Icon>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Icon> eldest) {
+            return size()>ICON_CACHE_CAPACITY;
+        }
+    };
+
 
     /**
      * Initializes the system and custom file icon providers.
@@ -92,14 +114,101 @@ public class FileIcons {
 
     /**
      * Shorthand for {@link #getFileIcon(com.mucommander.commons.file.AbstractFile, java.awt.Dimension)} called with the
-     * icon dimension returned by {@link #getIconDimension()}.
+     * icon dimension returned by {@link #getIconDimension()}. The icon is looked up in the icon cache first, and
+     * added to it once resolved.
      *
      * @param file the AbstractFile instance for which an icon will be returned
      * @return an icon for the given file
      * @see #getSystemIconsPolicy()
      */
     public static Icon getFileIcon(AbstractFile file) {
-        return getFileIcon(file, iconDimension);
+        Object key = getIconCacheKey(file);
+        Icon icon;
+        synchronized(iconCache) {
+            icon = iconCache.get(key);
+        }
+        if(icon!=null)
+            return icon;
+
+        icon = getFileIcon(file, iconDimension);
+        synchronized(iconCache) {
+            iconCache.put(key, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Returns the icon that {@link #getFileIcon(AbstractFile)} would return for the given file if it is in the icon
+     * cache, <code>null</code> otherwise. This method never resolves icons and is therefore cheap enough to be called
+     * from the event dispatch thread.
+     *
+     * @param file the file for which an icon will be returned
+     * @return the cached icon for the given file, <code>null</code> if it hasn't been resolved yet
+     */
+    public static Icon getCachedFileIcon(AbstractFile file) {
+        Object key = getIconCacheKey(file);
+        synchronized(iconCache) {
+            return iconCache.get(key);
+        }
+    }
+
+    /**
+     * Returns a generic folder or file icon of the current dimension, to be displayed while the actual icon of the
+     * given file is being resolved.
+     *
+     * @param file the file for which a placeholder icon will be returned
+     * @return a generic icon for the given file
+     */
+    public static Icon getPlaceholderIcon(AbstractFile file) {
+        return IconManager.getIcon(IconManager.FILE_ICON_SET,
+                file.isDirectory()?CustomFileIconProvider.FOLDER_ICON_NAME:CustomFileIconProvider.FILE_ICON_NAME,
+                scaleFactor);
+    }
+
+    /**
+     * Returns the key under which the icon of the given file is cached. Icons of local files that are displayed with
+     * a system icon, and icons of root folders, are specific to the file. Other icons only depend on the file's
+     * extension and kind, those of the link's target for symlinks, which are displayed with their target's icon.
+     *
+     * @param file the file for which to return a cache key
+     * @return the key under which the icon of the given file is cached
+     */
+    private static Object getIconCacheKey(AbstractFile file) {
+        if(file.isRoot())
+            return file;
+
+        if(usesSystemIcon(file) && file.getTopAncestor() instanceof LocalFile && !file.hasAncestor(AbstractArchiveEntryFile.class))
+            return file;
+
+        boolean isSymlink = file.isSymlink();
+        AbstractFile target = isSymlink?file.getCanonicalFile():file;
+        String extension = target.getExtension();
+        return new IconKey(extension==null?null:extension.toLowerCase(), target.isDirectory(), isSymlink);
+    }
+
+    /**
+     * Returns <code>true</code> if the current policy calls for a system icon for the given file.
+     *
+     * @param file the file to test
+     * @return <code>true</code> if the current policy calls for a system icon for the given file
+     */
+    private static boolean usesSystemIcon(AbstractFile file) {
+        if(USE_SYSTEM_ICONS_ALWAYS.equals(systemIconsPolicy))
+            return true;
+
+        if(USE_SYSTEM_ICONS_APPLICATIONS.equals(systemIconsPolicy))
+            return com.mucommander.desktop.DesktopManager.isApplication(file);
+
+        return false;
+    }
+
+    /**
+     * Empties the icon cache, called whenever the icons it contains are no longer those that would be resolved.
+     */
+    private static void clearIconCache() {
+        synchronized(iconCache) {
+            iconCache.clear();
+        }
     }
 
     /**
@@ -116,15 +225,7 @@ public class FileIcons {
      * @see #getSystemIconsPolicy()
      */
     public static Icon getFileIcon(AbstractFile file, Dimension iconDimension) {
-        boolean systemIcon = false;
-
-        if(USE_SYSTEM_ICONS_ALWAYS.equals(systemIconsPolicy))
-            systemIcon = true;
-
-        if(USE_SYSTEM_ICONS_APPLICATIONS.equals(systemIconsPolicy))
-            systemIcon = com.mucommander.desktop.DesktopManager.isApplication(file);
-
-        if(systemIcon) {
+        if(usesSystemIcon(file)) {
             Icon icon = getSystemFileIcon(file, iconDimension);
             if(icon!=null)
                 return icon;
@@ -225,6 +326,7 @@ public class FileIcons {
      */
     public static void setCustomFileIconProvider(FileIconProvider fip) {
         customFileIconProvider = fip;
+        clearIconCache();
     }
 
     /**
@@ -243,6 +345,7 @@ public class FileIcons {
      */
     public static void setSystemFileIconProvider(FileIconProvider fip) {
         systemFileIconProvider = fip;
+        clearIconCache();
     }
 
 
@@ -278,6 +381,7 @@ public class FileIcons {
 
         scaleFactor = factor;
         iconDimension = new Dimension((int)(BASE_ICON_DIMENSION *scaleFactor), (int)(BASE_ICON_DIMENSION*scaleFactor));
+        clearIconCache();
     }
 
 
@@ -301,6 +405,7 @@ public class FileIcons {
      */
     public static void setSystemIconsPolicy(String policy) {
         systemIconsPolicy = policy;
+        clearIconCache();
     }
 
 
@@ -316,4 +421,35 @@ public class FileIcons {
     public static boolean hasProperSystemIcons() {
         return OsFamilies.MAC_OS_X.isCurrent() || OsFamilies.WINDOWS.isCurrent();
     }
+
+
+    /**
+     * Cache key of the icons that only depend on the file's extension and kind.
+     */
+    private static class IconKey {
+        private final String extension;
+        private final boolean directory;
+        private final boolean symlink;
+
+        private IconKey(String extension, boolean directory, boolean symlink) {
+            this.extension = extension;
+            this.directory = directory;
+            this.symlink = symlink;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof IconKey))
+                return false;
+
+            IconKey key = (IconKey)o;
+            return directory==key.directory && symlink==key.symlink
+                && (extension==null?key.extension==null:extension.equals(key.extension));
+        }
+
+        @Override
+        public int hashCode() {
+            return (extension==null?0:extension.hashCode())*4 + (directory?2:0) + (symlink?1:0);
+        }
+    }
 }
@@ -26,7 +26,7 @@ import java.awt.event.ComponentListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.image.BufferedImage;
-import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -36,17 +36,16 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.mucommander.cache.FastLRUCache;
-import com.mucommander.cache.LRUCache;
+import com.mucommander.cache.VolumeInfoCache;
+import com.mucommander.cache.VolumeInfoListener;
 import com.mucommander.commons.conf.ConfigurationEvent;
 import com.mucommander.commons.conf.ConfigurationListener;
 import com.mucommander.commons.file.AbstractFile;
-import com.mucommander.commons.file.impl.local.LocalFile;
-import com.mucommander.commons.runtime.JavaVersions;
 import com.mucommander.conf.MuConfigurations;
 import com.mucommander.conf.MuPreference;
 import com.mucommander.conf.MuPreferences;
@@ -82,12 +81,13 @@ import com.mucommander.ui.theme.ThemeManager;
  * selected files and volume info, and display the waiting message when the folder is changing. Quick search info
  * is set by FileTable.QuickSearch.
  *
- * <p>When StatusBar is visible, a Thread runs in the background to periodically update free/total space volume info.
- * This thread stops when the StatusBar is hidden.
+ * <p>When StatusBar is visible, a task is scheduled to periodically update free/total space volume info. Volume info
+ * is retrieved in the background and cached by {@link VolumeInfoCache}, which is shared by the status bars of all
+ * MainFrames. The task is cancelled when the StatusBar is hidden.
  *
  * @author Maxence Bernard
  */
-public class StatusBar extends JPanel implements Runnable, MouseListener, ActivePanelListener, TableSelectionListener, LocationListener, ComponentListener, ThemeListener {
+public class StatusBar extends JPanel implements VolumeInfoListener, MouseListener, ActivePanelListener, TableSelectionListener, LocationListener, ComponentListener, ThemeListener {
 	private static final Logger LOGGER = LoggerFactory.getLogger(StatusBar.class);
 	
     private MainFrame mainFrame;
@@ -101,21 +101,14 @@ public class StatusBar extends JPanel implements Runnable, MouseListener, Active
     /** Label that displays info about current volume (free/total space) */
     private VolumeSpaceLabel volumeSpaceLabel;
 
-    /** Thread which auto updates volume info */
-    private Thread autoUpdateThread;
+    /** Task which auto updates volume info, null when the status bar is hidden */
+    private ScheduledFuture<?> autoUpdateTask;
 
-    /** Number of volume info strings that can be temporarily cached */
-    private final static int VOLUME_INFO_CACHE_CAPACITY = 50;
+    /** Path of the volume whose info is displayed */
+    private volatile String volumePath;
 
-    /** Number of milliseconds before cached volume info strings expire */
-    private final static int VOLUME_INFO_TIME_TO_LIVE = 60000;
-
-    /** Number of milliseconds between each volume info update by auto-update thread */
+    /** Number of milliseconds between each volume info update by auto-update task */
     private final static int AUTO_UPDATE_PERIOD = 6000;
-
-    /** Caches volume info strings (free/total space) for a while, since this information is expensive to retrieve
-     * (I/O bound). This map uses folders' volume path as its key. */
-    private static LRUCache<String, Long[]> volumeInfoCache = new FastLRUCache<String, Long[]>(VOLUME_INFO_CACHE_CAPACITY);
 	
     /** Icon that is displayed when folder is changing */
     public final static String WAITING_ICON = "waiting.png";
@@ -300,58 +293,20 @@ public class StatusBar extends JPanel implements Runnable, MouseListener, Active
         if(!isVisible())
             return;
 
-        final AbstractFile currentFolder = mainFrame.getActivePanel().getCurrentFolder();
+        AbstractFile currentFolder = mainFrame.getActivePanel().getCurrentFolder();
         // Resolve the current folder's volume and use its path as a key for the volume info cache
-        final String volumePath = currentFolder.getVolume().getAbsolutePath(true);
+        volumePath = currentFolder.getVolume().getAbsolutePath(true);
 
-        Long cachedVolumeInfo[] = volumeInfoCache.get(volumePath);
+        long cachedVolumeInfo[] = VolumeInfoCache.get(volumePath);
         if(cachedVolumeInfo!=null) {
             LOGGER.debug("Cache hit!");
             volumeSpaceLabel.setVolumeSpace(cachedVolumeInfo[0], cachedVolumeInfo[1]);
         }
         else {
-            // Retrieves free and total volume space.
-            // Perform volume info retrieval in a separate thread as this method may be called
-            // by the event thread and it can take a while, we want to return as soon as possible
-            new Thread("StatusBar.updateVolumeInfo") {
-                @Override
-                public void run() {
-                    // Free space on current volume, -1 if this information is not available 
-                    long volumeFree;
-                    // Total space on current volume, -1 if this information is not available 
-                    long volumeTotal;
-
-                    // Folder is a local file and Java version is 1.5: call getVolumeInfo() instead of
-                    // separate calls to getFreeSpace() and getTotalSpace() as it is twice as fast.
-                    if(currentFolder instanceof LocalFile && JavaVersions.JAVA_1_5.isCurrentOrLower()) {
-                        try {
-                            long volumeInfo[] = ((LocalFile)currentFolder).getVolumeInfo();
-                            volumeTotal = volumeInfo[0];
-                            volumeFree = volumeInfo[1];
-                        }
-                        catch(IOException e) {
-                            volumeTotal = -1;
-                            volumeFree = -1;
-                        }
-                    }
-                    // Java 1.6 and up or any other file type
-                    else {
-                        try { volumeFree = currentFolder.getFreeSpace(); }
-                        catch(IOException e) { volumeFree = -1; }
-
-                        try { volumeTotal = currentFolder.getTotalSpace(); }
-                        catch(IOException e) { volumeTotal = -1; }
-                    }
-
-// For testing the free space indicator 
-//volumeFree = (long)(volumeTotal * Math.random());
-                    
-                    volumeSpaceLabel.setVolumeSpace(volumeTotal, volumeFree);
-
-                    LOGGER.debug("Adding to cache");
-                    volumeInfoCache.add(volumePath, new Long[]{volumeTotal, volumeFree}, VOLUME_INFO_TIME_TO_LIVE);
-                }
-            }.start();
+            // Retrieves free and total volume space in the background as this method may be called by the event
+            // thread and it can take a while, we want to return as soon as possible.
+            // The label is updated by volumeInfoRetrieved().
+            VolumeInfoCache.retrieve(currentFolder, volumePath, this);
         }
     }
 
@@ -395,15 +350,29 @@ public class StatusBar extends JPanel implements Runnable, MouseListener, Active
 	
 
     /**
-     * Starts a volume info auto-update thread, only if there isn't already one running.
+     * Schedules the volume info auto-update task, only if it isn't already scheduled.
      */    
     private synchronized void startAutoUpdate() {
-        if(autoUpdateThread==null) {
-            // Start volume info auto-update thread
-            autoUpdateThread = new Thread(this, "StatusBar autoUpdateThread");
-            // Set the thread as a daemon thread
-            autoUpdateThread.setDaemon(true);
-            autoUpdateThread.start();
+        if(autoUpdateTask==null) {
+            autoUpdateTask = VolumeInfoCache.scheduleAutoUpdate(new Runnable() {
+                public void run() {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            autoUpdateVolumeInfo();
+                        }
+                    });
+                }
+            }, AUTO_UPDATE_PERIOD);
+        }
+    }
+
+    /**
+     * Cancels the volume info auto-update task, if it is scheduled.
+     */
+    private synchronized void stopAutoUpdate() {
+        if(autoUpdateTask!=null) {
+            autoUpdateTask.cancel(false);
+            autoUpdateTask = null;
         }
     }
 
@@ -414,42 +383,52 @@ public class StatusBar extends JPanel implements Runnable, MouseListener, Active
     @Override
     public void setVisible(boolean visible) {
         if(visible) {
-            // Start auto-update thread
+            // Schedule auto-update task
             startAutoUpdate();
             super.setVisible(true);
             // Update status bar info
             updateStatusInfo();
         }
         else {
-            // Stop auto-update thread
-            this.autoUpdateThread = null;
+            // Cancel auto-update task
+            stopAutoUpdate();
             super.setVisible(false);
         }
     }
     
     
-    //////////////////////
-    // Runnable methods //
-    //////////////////////
-
     /**
-     * Periodically updates volume info (free / total space).
+     * Called periodically by the auto-update task to update volume info (free / total space).
      */
-    public void run() {
-        do {
-            // Sleep for a while
-            try { Thread.sleep(AUTO_UPDATE_PERIOD); }
-            catch (InterruptedException e) {}
-            
-            // Update volume info if:
-            // - status bar is visible
-            // - MainFrame isn't changing folders
-            // - MainFrame is active and in the foreground
-            // Volume info update will potentially hit the LRU cache and not actually update volume info
-            if(isVisible() && !mainFrame.getNoEventsMode() && mainFrame.isForegroundActive())
-                updateVolumeInfo();
+    private void autoUpdateVolumeInfo() {
+        // Stop when MainFrame is disposed
+        if(!mainFrame.isVisible()) {
+            stopAutoUpdate();
+            return;
         }
-        while(autoUpdateThread!=null && mainFrame.isVisible());   // Stop when MainFrame is disposed
+
+        // Update volume info if:
+        // - status bar is visible
+        // - MainFrame isn't changing folders
+        // - MainFrame is active and in the foreground
+        // Volume info update will potentially hit the cache and not actually update volume info
+        if(isVisible() && !mainFrame.getNoEventsMode() && mainFrame.isForegroundActive())
+            updateVolumeInfo();
+    }
+
+
+    ///////////////////////////////////////
+    // VolumeInfoListener implementation //
+    ///////////////////////////////////////
+
+    public void volumeInfoRetrieved(final String volumePath, final long totalSpace, final long freeSpace) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                // Discard the info if the current volume has changed in the meantime
+                if(volumePath.equals(StatusBar.this.volumePath))
+                    volumeSpaceLabel.setVolumeSpace(totalSpace, freeSpace);
+            }
+        });
     }
     
 
@@ -0,0 +1,189 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.ui.main.table;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.ui.icon.FileIcons;
+
+/**
+ * Resolves the icons of a {@link FileTable}'s files in the background, so that slow icon providers (system icons,
+ * symlinks...) don't hold up the event dispatch thread while the table is painted.
+ *
+ * <p>The table's renderer displays a placeholder icon and calls {@link #request(int, AbstractFile)} for files whose
+ * icon isn't in the {@link FileIcons} cache. Requests are served by a pool of {@link #NB_THREADS} threads shared by
+ * all tables, most recent first and only as long as their row is still visible: requests for rows that have been
+ * scrolled away are dropped, they are made again if the rows are painted again. Once an icon has been resolved, only
+ * the cell of the row that requested it is repainted, provided that the row still displays the same file.</p>
+ */
+class FileIconLoader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileIconLoader.class);
+
+    /** Maximum number of icons resolved at the same time */
+    public final static int NB_THREADS = 2;
+
+    /** Resolves icons for all tables */
+    private final static ExecutorService executor;
+
+    static {
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(NB_THREADS, NB_THREADS, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "FileIconLoader-"+threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        // Release idle threads, icons are only resolved when new files are displayed
+        threadPool.allowCoreThreadTimeOut(true);
+        executor = threadPool;
+    }
+
+    /** The table whose icons are resolved */
+    private final FileTable table;
+
+    /** Pending requests: file to display at each row, in the order the rows were requested */
+    private final LinkedHashMap<Integer, AbstractFile> pendingRequests = new LinkedHashMap<Integer, AbstractFile>();
+
+    /** First row visible when the last request was made */
+    private int firstVisibleRow;
+    /** Last row visible when the last request was made */
+    private int lastVisibleRow;
+
+    FileIconLoader(FileTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Requests the icon of the file displayed at the given row to be resolved, and the row's icon cell to be
+     * repainted when it is. This method must be called from the event dispatch thread.
+     *
+     * @param row the row that displays the file
+     * @param file the file whose icon is requested
+     */
+    void request(int row, AbstractFile file) {
+        Rectangle visibleRect = table.getVisibleRect();
+        int firstRow = table.rowAtPoint(visibleRect.getLocation());
+        int lastRow = table.rowAtPoint(new Point(visibleRect.x, visibleRect.y+visibleRect.height-1));
+
+        synchronized(this) {
+            firstVisibleRow = firstRow==-1?0:firstRow;
+            lastVisibleRow = lastRow==-1?Integer.MAX_VALUE:lastRow;
+
+            // Move the row to the end of the queue: the most recently painted rows are served first
+            AbstractFile previousFile = pendingRequests.remove(row);
+            pendingRequests.put(row, file);
+            if(previousFile!=null)
+                return;     // The task that was scheduled for the previous request serves this one
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                resolveNext();
+            }
+        });
+    }
+
+    /**
+     * Removes the most recent request whose row is still visible from the queue and returns it, <code>null</code> if
+     * there is none. Requests for rows that are no longer visible are dropped.
+     *
+     * @return the request to serve next, <code>null</code> if there is none
+     */
+    private synchronized Map.Entry<Integer, AbstractFile> nextRequest() {
+        Map.Entry<Integer, AbstractFile> next = null;
+        for(Map.Entry<Integer, AbstractFile> request : pendingRequests.entrySet()) {
+            int row = request.getKey();
+            if(row>=firstVisibleRow && row<=lastVisibleRow)
+                next = request;
+        }
+
+        if(next==null) {
+            pendingRequests.clear();
+            return null;
+        }
+
+        // Copy the entry as it becomes invalid once removed
+        Map.Entry<Integer, AbstractFile> request = new AbstractMap.SimpleImmutableEntry<Integer, AbstractFile>(next);
+        pendingRequests.remove(next.getKey());
+        return request;
+    }
+
+    /**
+     * Resolves the icon of the next request and repaints its cell. Called by the thread pool, once per request.
+     */
+    private void resolveNext() {
+        Map.Entry<Integer, AbstractFile> request = nextRequest();
+        if(request==null)
+            return;
+
+        final int row = request.getKey();
+        final AbstractFile file = request.getValue();
+        try {
+            // Adds the icon to the cache, where the renderer will find it
+            FileIcons.getFileIcon(file);
+        }
+        catch(RuntimeException e) {
+            LOGGER.debug("Could not resolve the icon of "+file, e);
+            return;
+        }
+
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                repaintIcon(row, file);
+            }
+        });
+    }
+
+    /**
+     * Repaints the icon cell of the given row if it still displays the given file.
+     *
+     * @param row the row to repaint
+     * @param file the file whose icon was resolved
+     */
+    private void repaintIcon(int row, AbstractFile file) {
+        FileTableModel tableModel = table.getFileTableModel();
+        if(row>=tableModel.getRowCount() || tableModel.getCachedFileAtRow(row)!=file)
+            return;
+
+        int column = table.convertColumnIndexToView(Column.EXTENSION.ordinal());
+        if(column==-1)
+            return;     // The icon column is hidden
+
+        table.repaint(table.getCellRect(row, column, false));
+    }
+}
@@ -53,6 +53,9 @@ import javax.swing.table.TableColumnModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mucommander.cache.FolderSize;
+import com.mucommander.cache.FolderSizeCache;
+import com.mucommander.cache.FolderSizeListener;
 import com.mucommander.commons.collections.Enumerator;
 import com.mucommander.commons.conf.ConfigurationEvent;
 import com.mucommander.commons.conf.ConfigurationListener;
@@ -98,7 +101,7 @@ import com.mucommander.ui.theme.ThemeManager;
  * @author Maxence Bernard, Nicolas Rinaudo
  */
 public class FileTable extends JTable implements MouseListener, MouseMotionListener, KeyListener,
-                                                 ActivePanelListener, ConfigurationListener, ThemeListener {
+                                                 ActivePanelListener, ConfigurationListener, ThemeListener, FolderSizeListener {
 	private static final Logger LOGGER = LoggerFactory.getLogger(FileTable.class);
 	
     // - Column sizes --------------------------------------------------------------------
@@ -147,6 +150,11 @@ public class FileTable extends JTable implements MouseListener, MouseMotionListe
     /** Timestamp of last row selection change */
     private long selectionChangedTimestamp;
 
+    /** File to select once it has been listed, if it wasn't listed yet when the current folder was set */
+    private AbstractFile fileToSelectWhenListed;
+    /** Timestamp of the selection change made while the current folder is being listed, to detect user selection changes */
+    private long listingSelectionTimestamp;
+
     /** Timestamp of last double click */
     private long lastDoubleClickTimestamp;
 
@@ -217,6 +225,7 @@ public class FileTable extends JTable implements MouseListener, MouseMotionListe
         addKeyListener(this);
         mainFrame.addActivePanelListener(this);
         MuConfigurations.addPreferencesListener(this);
+        FolderSizeCache.addFolderSizeListener(this);
 
         // Mac OS X 10.5 (Leopard) and up uses JTableHeader properties to render sort indicators on table headers
         // instead of a custom header renderer.
@@ -523,6 +532,51 @@ public class FileTable extends JTable implements MouseListener, MouseMotionListe
         }
     }
 
+    /**
+     * Adds the given files to the current folder's files while the folder is still being listed, and refreshes the
+     * table to reflect them. The table remains sorted: the files are inserted at their sorted position. The selected
+     * file, marked files and the file being renamed (if any) are preserved. The file to select that was passed to
+     * {@link #setCurrentFolder(AbstractFile, AbstractFile[], AbstractFile)} is selected if it is one of the given
+     * files, unless the selection has been changed by the user in the meantime.
+     *
+     * <p>This method must be called from the event dispatch thread, once the current folder has been set.</p>
+     *
+     * @param files the children of the current folder that have been listed since the folder was set
+     */
+    public void addFiles(AbstractFile files[]) {
+        AbstractFile selectedFile = tableModel.getFileAtRow(currentRow);
+        AbstractFile editedFile = isEditing()?tableModel.getFileAtRow(getEditingRow()):null;
+
+        tableModel.addFiles(files);
+
+        // The user hasn't changed the selection since it was last set by this table: select the requested file if
+        // it has now been listed
+        if(fileToSelectWhenListed!=null && selectionChangedTimestamp==listingSelectionTimestamp) {
+            int row = tableModel.getFileRow(fileToSelectWhenListed);
+            if(row!=-1) {
+                selectedFile = fileToSelectWhenListed;
+                fileToSelectWhenListed = null;
+            }
+        }
+        else {
+            fileToSelectWhenListed = null;
+        }
+
+        // Rows after the inserted files have moved, follow the selected file
+        if(selectedFile!=null)
+            selectFile(selectedFile);
+        listingSelectionTimestamp = selectionChangedTimestamp;
+
+        if(editedFile!=null) {
+            int row = tableModel.getFileRow(editedFile);
+            setEditingRow(row);
+            filenameEditor.editingRow = row;
+            getEditorComponent().setBounds(getCellRect(row, getEditingColumn(), false));
+        }
+
+        resizeAndRepaint();
+    }
+
     /**
      * Sets row height based on current cell's font and border, revalidates and repaints this JTable.
      */
@@ -1506,6 +1560,28 @@ public class FileTable extends JTable implements MouseListener, MouseMotionListe
             repaint();
     }
 
+
+    ////////////////////////////////
+    // FolderSizeListener methods //
+    ////////////////////////////////
+
+    /**
+     * Displays the size of the given folder if it is one of the current folder's children.
+     */
+    public void folderSizeComputed(AbstractFile folder, FolderSize size) {
+        if(!tableModel.folderSizeComputed(folder, size))
+            return;
+
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                repaint();
+                // Marked folders may now be accounted for in the combined size of marked files
+                if(isActiveTable())
+                    mainFrame.getStatusBar().updateSelectedFilesInfo();
+            }
+        });
+    }
+
     /**
      * <p>A Custom CellEditor which provides the following functionalities:
      * <ul>
@@ -1858,12 +1934,14 @@ public class FileTable extends JTable implements MouseListener, MouseMotionListe
 
                 // Computes the index of the new row selection.
                 int rowToSelect;
+                fileToSelectWhenListed = null;
                 if(selectedFile!=null) {
                     // Tries to find the index of the file to select. If it cannot be found (the file might not
-                    // exist anymore, for example), use the closest possible row.
+                    // exist anymore, or not be listed yet, for example), use the closest possible row.
                     if((rowToSelect = tableModel.getFileRow(selectedFile)) == -1) {
                         int rowCount = tableModel.getRowCount();
                         rowToSelect = currentRow < rowCount ? currentRow : rowCount - 1;
+                        fileToSelectWhenListed = selectedFile;
                     }
                 }
                 // If no file was marked as needing to be selected, selects the first line.
@@ -1873,6 +1951,7 @@ public class FileTable extends JTable implements MouseListener, MouseMotionListe
 
                 selectRow(currentRow = rowToSelect);
                 fireSelectedFileChangedEvent();
+                listingSelectionTimestamp = selectionChangedTimestamp;
 
                 // Restore previously marked files (if any / current folder hasn't changed)
                 if(markedFiles != null) {
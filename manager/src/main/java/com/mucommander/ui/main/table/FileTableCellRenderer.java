@@ -22,6 +22,7 @@ package com.mucommander.ui.main.table;
 import java.awt.Component;
 import java.awt.Font;
 
+import javax.swing.Icon;
 import javax.swing.JTable;
 import javax.swing.table.TableCellRenderer;
 
@@ -69,10 +70,14 @@ public class FileTableCellRenderer implements TableCellRenderer, ThemeListener {
     /** Custom JLabel that render specific column cells */
     private CellLabel[] cellLabels = new CellLabel[Column.values().length];
 
+    /** Resolves the icons that are not in the icon cache yet */
+    private FileIconLoader iconLoader;
+
 
     public FileTableCellRenderer(FileTable table) {
     	this.table = table;
         this.tableModel = table.getFileTableModel();
+        this.iconLoader = new FileIconLoader(table);
 
         // Create a label for each column
         for(Column c : Column.values())
@@ -196,9 +201,17 @@ public class FileTableCellRenderer implements TableCellRenderer, ThemeListener {
         // Extension/icon column: return ImageIcon instance
         if(column == Column.EXTENSION) {
             // Set file icon (parent folder icon if '..' file)
-            label.setIcon(rowIndex ==0 && tableModel.hasParentFolder()
-                    ?IconManager.getIcon(IconManager.FILE_ICON_SET, CustomFileIconProvider.PARENT_FOLDER_ICON_NAME, FileIcons.getScaleFactor())
-                    :FileIcons.getFileIcon(file));
+            if(rowIndex ==0 && tableModel.hasParentFolder())
+                label.setIcon(IconManager.getIcon(IconManager.FILE_ICON_SET, CustomFileIconProvider.PARENT_FOLDER_ICON_NAME, FileIcons.getScaleFactor()));
+            else {
+                // Icons that are not in the cache yet are resolved in the background, display a placeholder until then
+                Icon icon = FileIcons.getCachedFileIcon(file);
+                if(icon==null) {
+                    icon = FileIcons.getPlaceholderIcon(file);
+                    iconLoader.request(rowIndex, file);
+                }
+                label.setIcon(icon);
+            }
         }
         // Any other column (name, date or size)
         else {
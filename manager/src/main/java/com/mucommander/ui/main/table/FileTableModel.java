@@ -22,6 +22,8 @@ import java.util.Date;
 
 import javax.swing.table.AbstractTableModel;
 
+import com.mucommander.cache.FolderSize;
+import com.mucommander.cache.FolderSizeCache;
 import com.mucommander.commons.file.AbstractFile;
 import com.mucommander.commons.file.filter.FileFilter;
 import com.mucommander.commons.file.impl.CachedFile;
@@ -61,6 +63,9 @@ public class FileTableModel extends AbstractTableModel {
 
     /** Marked rows array */
     private boolean rowMarked[];
+
+    /** Size that was added to the marked total when each row was marked, as folder sizes may become known later */
+    private long rowMarkedSize[];
 	
     /** Combined size of files currently marked */
     private long markedTotalSize;
@@ -112,6 +117,7 @@ public class FileTableModel extends AbstractTableModel {
         fileArrayIndex = new int[0];
         cellValuesCache = new Object[0][Column.values().length-1];
         rowMarked = new boolean[0];
+        rowMarkedSize = new long[0];
     }
 
     /**
@@ -205,6 +211,7 @@ public class FileTableModel extends AbstractTableModel {
         // Reset marked files
         int nbRows = getRowCount();
         this.rowMarked = new boolean[nbRows];
+        this.rowMarkedSize = new long[nbRows];
         this.markedTotalSize = 0;
         this.nbRowsMarked = 0;
 
@@ -214,6 +221,65 @@ public class FileTableModel extends AbstractTableModel {
         fillCellCache();
     }
 
+    /**
+     * Adds the given files to the current folder's children, while the current folder is still being listed. The files
+     * are inserted at the rows that keep the table sorted, marked files remain marked.
+     *
+     * @param files the children of the current folder that have been listed since the folder was set
+     */
+    synchronized void addFiles(AbstractFile files[]) {
+        int nbOldFiles = cachedFiles.length;
+        int nbNewFiles = files.length;
+        int nbFiles = nbOldFiles + nbNewFiles;
+        int parentOffset = parent==null?0:1;
+
+        // Grow the arrays that are indexed by file, existing files keep their index
+        AbstractFile newCachedFiles[] = new AbstractFile[nbFiles];
+        System.arraycopy(cachedFiles, 0, newCachedFiles, 0, nbOldFiles);
+        boolean newRowMarked[] = new boolean[nbFiles+parentOffset];
+        System.arraycopy(rowMarked, 0, newRowMarked, 0, rowMarked.length);
+        long newRowMarkedSize[] = new long[nbFiles+parentOffset];
+        System.arraycopy(rowMarkedSize, 0, newRowMarkedSize, 0, rowMarkedSize.length);
+        Object newCellValuesCache[][] = new Object[nbFiles+parentOffset][];
+        System.arraycopy(cellValuesCache, 0, newCellValuesCache, 0, cellValuesCache.length);
+
+        int newFileIndexes[] = new int[nbNewFiles];
+        AbstractFile file;
+        for(int i=0; i<nbNewFiles; i++) {
+            file = new CachedFile(files[i], true);
+
+            // Pre-fetch the attributes that are used by the table renderer and some actions.
+            prefetchCachedFileAttributes(file);
+
+            newCachedFiles[nbOldFiles+i] = file;
+            newCellValuesCache[nbOldFiles+i+parentOffset] = new Object[Column.values().length-1];
+            fillCellCache(newCellValuesCache[nbOldFiles+i+parentOffset], file);
+            newFileIndexes[i] = nbOldFiles+i;
+        }
+
+        this.cachedFiles = newCachedFiles;
+        this.rowMarked = newRowMarked;
+        this.rowMarkedSize = newRowMarkedSize;
+        this.cellValuesCache = newCellValuesCache;
+
+        // Sort the new files, then merge them with the files that are already sorted
+        FileComparator fc = getFileComparator(sortInfo);
+        int oldFileIndexes[] = fileArrayIndex;
+        this.fileArrayIndex = newFileIndexes;
+        sort(fc, 0, nbNewFiles-1);
+
+        int mergedFileIndexes[] = new int[nbFiles];
+        int oldPos = 0;
+        int newPos = 0;
+        for(int i=0; i<nbFiles; i++) {
+            if(newPos==nbNewFiles || (oldPos<nbOldFiles && fc.compare(cachedFiles[oldFileIndexes[oldPos]], cachedFiles[newFileIndexes[newPos]])<=0))
+                mergedFileIndexes[i] = oldFileIndexes[oldPos++];
+            else
+                mergedFileIndexes[i] = newFileIndexes[newPos++];
+        }
+        this.fileArrayIndex = mergedFileIndexes;
+    }
+
     /**
      * Pre-fetch the attributes that are used by the table renderer and some actions from the given CachedFile.
      * By doing so, the attributes will be available when the associated getters are called and thus the methods won't
@@ -261,16 +327,41 @@ public class FileTableModel extends AbstractTableModel {
         for(int i=parent==null?0:1; i<len; i++) {
             file = getCachedFileAtRow(i);
             int cellIndex = fileArrayIndex[fileIndex]+(parent==null?0:1);
-            cellValuesCache[cellIndex][Column.NAME.ordinal()-1] = file.getName();
-            cellValuesCache[cellIndex][Column.SIZE.ordinal()-1] = file.isDirectory()?DIRECTORY_SIZE_STRING:SizeFormat.format(file.getSize(), sizeFormat);
-            cellValuesCache[cellIndex][Column.DATE.ordinal()-1] = CustomDateFormat.format(new Date(file.getDate()));
-            cellValuesCache[cellIndex][Column.PERMISSIONS.ordinal()-1] = file.getPermissionsString();
-            cellValuesCache[cellIndex][Column.OWNER.ordinal()-1] = file.getOwner();
-            cellValuesCache[cellIndex][Column.GROUP.ordinal()-1] = file.getGroup();
+            fillCellCache(cellValuesCache[cellIndex], file);
 
             fileIndex++;
         }
     }
+
+    /**
+     * Retrieves the cell values of the given file and stores them in the given row of the cell values cache.
+     *
+     * @param cellValues the row of the cell values cache to fill
+     * @param file the file displayed in the row
+     */
+    private static void fillCellCache(Object cellValues[], AbstractFile file) {
+        cellValues[Column.NAME.ordinal()-1] = file.getName();
+        cellValues[Column.SIZE.ordinal()-1] = file.isDirectory()?getDirectorySizeString(file):SizeFormat.format(file.getSize(), sizeFormat);
+        cellValues[Column.DATE.ordinal()-1] = CustomDateFormat.format(new Date(file.getDate()));
+        cellValues[Column.PERMISSIONS.ordinal()-1] = file.getPermissionsString();
+        cellValues[Column.OWNER.ordinal()-1] = file.getOwner();
+        cellValues[Column.GROUP.ordinal()-1] = file.getGroup();
+    }
+
+    /**
+     * Returns the string displayed in the size column for the given directory: its recursive size if it is
+     * available in the {@link FolderSizeCache}, {@link #DIRECTORY_SIZE_STRING} otherwise.
+     *
+     * @param directory a directory
+     * @return the string displayed in the size column for the given directory
+     */
+    private static String getDirectorySizeString(AbstractFile directory) {
+        if(directory.isSymlink())
+            return DIRECTORY_SIZE_STRING;
+
+        FolderSize folderSize = FolderSizeCache.get(directory);
+        return folderSize==null?DIRECTORY_SIZE_STRING:SizeFormat.format(folderSize.getBytes(), sizeFormat);
+    }
 	
 	
     /**
@@ -449,24 +540,25 @@ public class FileTableModel extends AbstractTableModel {
 
         AbstractFile file = getCachedFileAtRow(row);
 
-        // Do not call getSize() on directories, it's unnecessary and the value is most likely not cached by CachedFile yet
-        long fileSize = file.isDirectory()?0:file.getSize();
-
         // Update :
         // - Combined size of marked files
         // - marked files FileSet 
         if(marked) {
+            long fileSize = getMarkableSize(file);
             // File size can equal -1 if not available, do not count that in total
             if(fileSize>0)
                 markedTotalSize += fileSize;
 
+            rowMarkedSize[fileArrayIndex[rowIndex]] = fileSize;
             nbRowsMarked++;
         }
         else {
-            // File size can equal -1 if not available, do not count that in total
+            // Subtract the size that was counted when the row was marked, as folder sizes may have changed since
+            long fileSize = rowMarkedSize[fileArrayIndex[rowIndex]];
             if(fileSize>0)
                 markedTotalSize -= fileSize;
 
+            rowMarkedSize[fileArrayIndex[rowIndex]] = 0;
             nbRowsMarked--;
         }
 
@@ -474,6 +566,71 @@ public class FileTableModel extends AbstractTableModel {
     }
 
 
+    /**
+     * Returns the size that a file contributes to the combined size of marked files. Directories contribute their
+     * recursive size if it is available in the {@link FolderSizeCache}, nothing otherwise.
+     *
+     * @param file the file that is being marked
+     * @return the file's size, <code>-1</code> or <code>0</code> if not available
+     */
+    private static long getMarkableSize(AbstractFile file) {
+        // Do not call getSize() on directories, it's unnecessary and the value is most likely not cached by CachedFile yet
+        if(file.isDirectory()) {
+            if(file.isSymlink())
+                return 0;
+
+            FolderSize folderSize = FolderSizeCache.get(file);
+            return folderSize==null?0:folderSize.getBytes();
+        }
+
+        return file.getSize();
+    }
+
+    /**
+     * Updates the size column and the combined size of marked files after the size of the given folder has been
+     * computed. Does nothing if the folder is not one of the current folder's children.
+     *
+     * @param folder the folder whose size has been computed
+     * @param folderSize the folder's size
+     * @return <code>true</code> if the folder is displayed by this model and the table needs to be repainted
+     */
+    boolean folderSizeComputed(AbstractFile folder, FolderSize folderSize) {
+        // Resolve the parent outside of the lock, this may be I/O bound
+        AbstractFile folderParent = folder.getParent();
+        if(folderParent==null)
+            return false;
+
+        synchronized(this) {
+            return folderSizeComputed(folderParent, folder, folderSize);
+        }
+    }
+
+    private boolean folderSizeComputed(AbstractFile folderParent, AbstractFile folder, FolderSize folderSize) {
+        if(currentFolder==null || !currentFolder.equals(folderParent))
+            return false;
+
+        int nbFiles = cachedFiles.length;
+        for(int i=0; i<nbFiles; i++) {
+            if(!cachedFiles[i].equals(folder))
+                continue;
+
+            int cellIndex = i+(parent==null?0:1);
+            cellValuesCache[cellIndex][Column.SIZE.ordinal()-1] = SizeFormat.format(folderSize.getBytes(), sizeFormat);
+
+            if(rowMarked[i]) {
+                if(rowMarkedSize[i]>0)
+                    markedTotalSize -= rowMarkedSize[i];
+                rowMarkedSize[i] = folderSize.getBytes();
+                markedTotalSize += folderSize.getBytes();
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+
     /**
      * Marks/unmarks the given row range, delimited by the provided start row index and end row index (inclusive).
      * End row may be less, greater or equal to the start row.
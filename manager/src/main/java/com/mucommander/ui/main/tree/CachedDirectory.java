@@ -46,13 +46,25 @@ public class CachedDirectory extends ProxyFile {
     private static final ImageIcon NOT_ACCESSIBLE_ICON = IconManager.getIcon(IconManager.FILE_ICON_SET, CustomFileIconProvider.NOT_ACCESSIBLE_FILE);
 
     /** an array of cached children */
-    private AbstractFile[] cachedChildren = null;
+    private volatile AbstractFile[] cachedChildren = null;
     
+    /** a minimum time between two checks of the modification time of a cached directory [ms] */
+    public final static long REVALIDATION_PERIOD = 3000;
+
     /** a flag indicating that a thread is running, caching children */
-    private boolean readingChildren = false;
+    private volatile boolean readingChildren = false;
+
+    /** the task that reads or revalidates children, null if none is pending or running */
+    private ReadTask readTask;
     
     /** a timestamp of last modification time of this directory */
     private long lsTimeStamp = -1;
+
+    /** the time the cached children were last checked against the modification time of this directory */
+    private long validationTime;
+
+    /** the weight of this directory accounted by the cache, guarded by the cache's lock */
+    int cacheWeight;
     
     /** a cache in which this object is stored */
     private DirectoryCache cache;
@@ -73,26 +85,87 @@ public class CachedDirectory extends ProxyFile {
 
     /**
      * Checks if this directory is already cached. If it isn't cached then a new
-     * cache thread is started.
+     * caching task is queued with the given priority, or the priority of the
+     * queued task is raised. If it is cached but hasn't been validated for
+     * {@link #REVALIDATION_PERIOD} ms, a task that checks its modification time
+     * is queued, the cached children being used in the meantime.
+     * @param priority the priority of the caching task, see {@link TreeIOTask}
      * @return true if directory is cached, false otherwise
      */
-    public synchronized boolean isCached() {
-        // check if caching thread is running
+    public synchronized boolean isCached(int priority) {
+        // check if caching task is pending or running
         if (isReadingChildren()) {
+            if (readTask != null)
+                TreeIOThreadManager.getInstance().raisePriority(readTask, priority);
+            cache.recordLookup(false);
             return false;
         }
-        // check if directory contents changed
-        if (lsTimeStamp != file.getDate()) {
-            setReadingChildren(true);
-            // read children in caching thread
-            TreeIOThreadManager.getInstance().addTask(new Runnable() {
+        if (cachedChildren != null) {
+            // check in the background if directory contents changed
+            if (readTask == null && System.currentTimeMillis() - validationTime >= REVALIDATION_PERIOD) {
+                readTask = new ReadTask(TreeIOTask.PRIORITY_REVALIDATE, true);
+                TreeIOThreadManager.getInstance().addTask(readTask);
+            }
+            cache.recordLookup(true);
+            return true;
+        }
+        setReadingChildren(true);
+        // read children in caching thread
+        readTask = new ReadTask(priority, false);
+        TreeIOThreadManager.getInstance().addTask(readTask);
+        cache.recordLookup(false);
+        return false;
+    }
+
+    /**
+     * Called when the caching task has been cancelled before it started: clears the reading flag
+     * in swing thread, so that the directory is read again the next time it is needed.
+     * @param task the cancelled task
+     */
+    private void readCancelled(final ReadTask task) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                synchronized (CachedDirectory.this) {
+                    if (readTask != task)
+                        return;
+                    readTask = null;
+                    if (!task.revalidation)
+                        setReadingChildren(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks if the modification time of this directory has changed since its
+     * children have been read, and reads them again if it has. This method is
+     * executed in caching thread.
+     */
+    private void revalidateAsync() {
+        final long date = file.getDate();
+        synchronized (this) {
+            if (date == lsTimeStamp) {
+                validationTime = System.currentTimeMillis();
+                readTask = null;
+                return;
+            }
+        }
+
+        final AbstractFile[] children = readChildren();
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
                 public void run() {
-                    lsAsync();
+                    // the children are displayed again, as when they are read for the first time
+                    synchronized (CachedDirectory.this) {
+                        setReadingChildren(true);
+                    }
+                    setLsCache(children, date);
                 }
             });
-            return false;
+        } catch (Exception e) {
+            LOGGER.debug("Caught exception", e);
         }
-        return true;
+        cache.childrenChanged(this);
     }
 
     /**
@@ -100,6 +173,29 @@ public class CachedDirectory extends ProxyFile {
      * method is executed in caching thread.
      */
     private void lsAsync() {
+        final long date = file.getDate();
+        final AbstractFile[] children = readChildren();
+        try {
+            /*
+             * Set cache to new value. This is invoked in swing thread
+             * so event listeners are called from right thread. 
+             */
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    setLsCache(children, date);
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.debug("Caught exception", e);
+        }
+        cache.childrenChanged(this);
+    }
+
+    /**
+     * Lists, filters and sorts the children of current directory, and caches their icons.
+     * @return the children of current directory
+     */
+    private AbstractFile[] readChildren() {
         if (getCachedIcon() == null || getCachedIcon() == NOT_ACCESSIBLE_ICON) {
             setCachedIcon(FileIcons.getFileIcon(getProxiedFile()));
         }
@@ -124,21 +220,7 @@ public class CachedDirectory extends ProxyFile {
                 cachedChild.setCachedIcon(icons[i]);
             }
         }
-        
-        final AbstractFile[] children2 = children;
-        try {
-            /*
-             * Set cache to new value. This is invoked in swing thread
-             * so event listeners are called from right thread. 
-             */
-            SwingUtilities.invokeAndWait(new Runnable() {
-                public void run() {
-                    setLsCache(children2, file.getDate());
-                }
-            });
-        } catch (Exception e) {
-            LOGGER.debug("Caught exception", e);
-        }
+        return children;
     }
 
     /**
@@ -149,13 +231,15 @@ public class CachedDirectory extends ProxyFile {
     private synchronized void setLsCache(AbstractFile[] children, long lsTimeStamp) {
         this.lsTimeStamp = lsTimeStamp;
         this.cachedChildren = children;
+        validationTime = System.currentTimeMillis();
+        readTask = null;
         setReadingChildren(false);
     }
 
     /**
      * Returns true if caching thread is running.
      */
-    public synchronized boolean isReadingChildren() {
+    public boolean isReadingChildren() {
         return readingChildren;
     }
 
@@ -173,7 +257,7 @@ public class CachedDirectory extends ProxyFile {
      * Gets cached children.
      * @return cached children.
      */
-    public synchronized AbstractFile[] get() {
+    public AbstractFile[] get() {
         return cachedChildren;
     }
     
@@ -193,4 +277,28 @@ public class CachedDirectory extends ProxyFile {
         this.cachedIcon = cachedIcon;
     }
 
+    /**
+     * A task that reads the children of this directory, or checks that the cached ones are still valid.
+     */
+    private class ReadTask extends TreeIOTask {
+        /** true if cached children are revalidated rather than read */
+        private final boolean revalidation;
+
+        private ReadTask(int priority, boolean revalidation) {
+            super(file, cache, priority);
+            this.revalidation = revalidation;
+        }
+
+        public void run() {
+            if (revalidation)
+                revalidateAsync();
+            else
+                lsAsync();
+        }
+
+        @Override
+        protected void cancelled() {
+            readCancelled(this);
+        }
+    }
 }
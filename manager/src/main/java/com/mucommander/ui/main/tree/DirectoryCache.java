@@ -15,7 +15,6 @@
  * You should have received a copy of the GNU General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package com.mucommander.ui.main.tree;
 
 import com.mucommander.commons.file.AbstractFile;
@@ -23,19 +22,44 @@ import com.mucommander.commons.file.filter.FileFilter;
 import com.mucommander.commons.file.util.FileComparator;
 
 import javax.swing.event.EventListenerList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This class holds cached directories. 
  * It maps AbstractFiles to DirectoryCache instances.
+ *
+ * <p>The cache is bounded by weight: each directory weighs 1 plus the number of its cached children.
+ * When the total weight exceeds the maximum weight, the least recently used directories are evicted.
+ * Expanded directories and their children, which are displayed by the tree, are pinned: they are not
+ * evicted, even if this makes the cache exceed its maximum weight. An evicted directory is read again
+ * the next time it is needed.</p>
  * @author Mariusz Jakubowski
  *
  */
 public class DirectoryCache {
+
+    /** default maximum weight of the cache */
+    public final static int DEFAULT_MAX_WEIGHT = 50000;
     
-    /** a map that holds cached folders */
-    private Map<AbstractFile, CachedDirectory> cache;
+    /** a map that holds cached folders, in access order */
+    private LinkedHashMap<AbstractFile, CachedDirectory> cache;
+
+    /** expanded folders */
+    private Set<AbstractFile> pinned = new HashSet<AbstractFile>();
+
+    /** maximum weight of the cache */
+    private int maxWeight;
+
+    /** current weight of the cache */
+    private long weight;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
     
     /** Comparator used to sort folders */
     private FileComparator sort;
@@ -48,15 +72,25 @@ public class DirectoryCache {
 
 
     /**
-     * Creates a new directory cache.
+     * Creates a new directory cache with the default maximum weight.
      * @param filter filter used to filter children directories.
      * @param sort a comparator used to sort children
      */
     public DirectoryCache(FileFilter filter, FileComparator sort) {
-        //this.cache = Collections.synchronizedMap(new HashMap());
-        this.cache = new HashMap<AbstractFile, CachedDirectory>();
+        this(filter, sort, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * Creates a new directory cache.
+     * @param filter filter used to filter children directories.
+     * @param sort a comparator used to sort children
+     * @param maxWeight maximum weight of the cache
+     */
+    public DirectoryCache(FileFilter filter, FileComparator sort, int maxWeight) {
+        this.cache = new LinkedHashMap<AbstractFile, CachedDirectory>(16, 0.75f, true);
         this.filter = filter;
         this.sort = sort;
+        this.maxWeight = maxWeight;
     }
 
     /**
@@ -100,7 +134,10 @@ public class DirectoryCache {
     }
 
     public synchronized void clear() {
+        TreeIOThreadManager.getInstance().cancelTasks(this, null);
         cache.clear();
+        pinned.clear();
+        weight = 0;
     }
 
     public synchronized CachedDirectory get(AbstractFile key) {
@@ -108,25 +145,44 @@ public class DirectoryCache {
     }
 
     public synchronized void put(AbstractFile key, CachedDirectory value) {
-        cache.put(key, value);
+        CachedDirectory previous = cache.put(key, value);
+        if (previous != null)
+            weight -= previous.cacheWeight;
+        value.cacheWeight = getWeight(value);
+        weight += value.cacheWeight;
+        evict();
     }
     
     /**
-     * Deletes entry and all children from the cache.
+     * Deletes entry and all children from the cache, and cancels their pending reads.
      */
     public synchronized void removeWithChildren(AbstractFile key) {
-        CachedDirectory cachedDir = cache.get(key);
+        cancelReads(key);
+        removeCachedWithChildren(key);
+    }
+
+    private void removeCachedWithChildren(AbstractFile key) {
+        CachedDirectory cachedDir = cache.remove(key);
         if (cachedDir != null) {
-            cache.remove(key);
+            weight -= cachedDir.cacheWeight;
             AbstractFile[] children = cachedDir.get();
             if (children != null) {
                 for (AbstractFile child : children) {
-                    removeWithChildren(child);
+                    removeCachedWithChildren(child);
                 }
             }
         }
     }
     
+    /**
+     * Cancels the pending reads of a folder and of its subfolders, for instance
+     * when the folder is collapsed. Reads that have already started complete normally.
+     * @param folder a folder
+     */
+    public void cancelReads(AbstractFile folder) {
+        TreeIOThreadManager.getInstance().cancelTasks(this, folder);
+    }
+
     /**
      * Gets a cached instance of a file. If the cached instance
      * of the file doesn't exists it's added to the cache.
@@ -137,10 +193,142 @@ public class DirectoryCache {
         CachedDirectory cachedDir = cache.get(key);
         if (cachedDir == null) {
             cachedDir = new CachedDirectory(key, this);
-            cache.put(key, cachedDir);
+            put(key, cachedDir);
         }
         return cachedDir;
     }
-   
+
+    /**
+     * Pins a folder and its children, so that they are not evicted.
+     * @param folder an expanded folder
+     */
+    public synchronized void pin(AbstractFile folder) {
+        pinned.add(folder);
+    }
+
+    /**
+     * Unpins a folder and its children, which may then be evicted.
+     * @param folder a collapsed folder
+     */
+    public synchronized void unpin(AbstractFile folder) {
+        pinned.remove(folder);
+        evict();
+    }
+
+    /**
+     * Updates the weight of a directory after its children have been read.
+     * @param cachedDir a directory whose children have changed
+     */
+    synchronized void childrenChanged(CachedDirectory cachedDir) {
+        // ignores directories that have been evicted or replaced in the meantime
+        if (cache.get(cachedDir.getProxiedFile()) != cachedDir)
+            return;
+        int newWeight = getWeight(cachedDir);
+        weight += newWeight - cachedDir.cacheWeight;
+        cachedDir.cacheWeight = newWeight;
+        evict();
+    }
+
+    /**
+     * Records whether the children of a directory could be served from the cache.
+     * @param hit true if the children were cached
+     */
+    synchronized void recordLookup(boolean hit) {
+        if (hit)
+            hitCount++;
+        else
+            missCount++;
+    }
+
+    /**
+     * Returns the weight of a directory: 1 plus the number of its children.
+     */
+    private static int getWeight(CachedDirectory cachedDir) {
+        AbstractFile[] children = cachedDir.get();
+        return 1 + (children == null ? 0 : children.length);
+    }
+
+    /**
+     * Evicts the least recently used directories until the weight of the cache
+     * is back under the maximum weight. Pinned directories and directories being
+     * read are not evicted.
+     */
+    private void evict() {
+        if (weight <= maxWeight)
+            return;
+        for (Iterator<Map.Entry<AbstractFile, CachedDirectory>> i = cache.entrySet().iterator(); i.hasNext() && weight > maxWeight; ) {
+            Map.Entry<AbstractFile, CachedDirectory> entry = i.next();
+            CachedDirectory cachedDir = entry.getValue();
+            if (isPinned(entry.getKey()) || cachedDir.isReadingChildren())
+                continue;
+            i.remove();
+            weight -= cachedDir.cacheWeight;
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Returns true if the folder is expanded or is the child of an expanded folder.
+     */
+    private boolean isPinned(AbstractFile folder) {
+        if (pinned.contains(folder))
+            return true;
+        AbstractFile parent = folder.getParent();
+        return parent != null && pinned.contains(parent);
+    }
+
+
+    // - Statistics ------------------------------------------------------------
+    // -------------------------------------------------------------------------
+
+    /**
+     * Returns the number of cached directories.
+     */
+    public synchronized int getEntryCount() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the current weight of the cache.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the maximum weight of the cache.
+     */
+    public int getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Returns the number of times the children of a directory were served from the cache.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times the children of a directory had to be read.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the ratio of lookups served from the cache, 0 if there was no lookup.
+     */
+    public synchronized float getHitRatio() {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 0 : hitCount / (float) lookups;
+    }
+
+    /**
+     * Returns the number of directories that have been evicted.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
 
 }
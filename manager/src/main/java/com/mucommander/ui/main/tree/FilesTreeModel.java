@@ -79,6 +79,7 @@ public class FilesTreeModel implements TreeModel, CachedDirectoryListener {
                 root = cachedRoot.getProxiedFile();
                 cache.clear();
                 cache.put(root, cachedRoot);
+                cache.pin(root);
                 TreePath path = new TreePath(root);
                 fireTreeStructureChanged(this, path);
             }
@@ -97,7 +98,7 @@ public class FilesTreeModel implements TreeModel, CachedDirectoryListener {
      */
     private AbstractFile[] getChildren(AbstractFile parent) {
         CachedDirectory cachedDir = cache.getOrAdd(parent);
-        if (cachedDir.isCached())
+        if (cachedDir.isCached(TreeIOTask.PRIORITY_EXPANDED))
             return cachedDir.get();
         else
             return null;
@@ -204,7 +205,7 @@ public class FilesTreeModel implements TreeModel, CachedDirectoryListener {
                 retNodes = getPathToRoot(aNode.getParent(), depth);
             }
             retNodes[retNodes.length - depth] = aNode;
-            cache.getOrAdd(aNode).isCached();       // ensures that a path is in cache
+            cache.getOrAdd(aNode).isCached(TreeIOTask.PRIORITY_PATH);       // ensures that a path is in cache
         }
         return retNodes;
     }
@@ -224,7 +225,7 @@ public class FilesTreeModel implements TreeModel, CachedDirectoryListener {
     public void refresh(TreePath path) {
         AbstractFile folder = (AbstractFile) path.getLastPathComponent();
         CachedDirectory cached = cache.get(folder);
-        Icon cachedIcon = cached.getCachedIcon();        
+        Icon cachedIcon = cached == null ? null : cached.getCachedIcon();
         cache.removeWithChildren(folder);
         cached = cache.getOrAdd(folder);
         cached.setCachedIcon(cachedIcon);
@@ -243,8 +244,37 @@ public class FilesTreeModel implements TreeModel, CachedDirectoryListener {
         if (cachingNum == 0) {
             spinningIcon.setAnimated(false);
         }
-        TreePath path = new TreePath(getPathToRoot(parent));
-        fireTreeStructureChanged(this, path);
+        // the directory may no longer be part of the tree, e.g. if the root has changed
+        AbstractFile[] path = getPathToRoot(parent);
+        if (path != null && path[0] == root)
+            fireTreeStructureChanged(this, new TreePath(path));
+    }
+
+    /**
+     * Pins an expanded folder and its children in the cache.
+     * @param folder an expanded folder
+     */
+    public void folderExpanded(AbstractFile folder) {
+        cache.pin(folder);
+    }
+
+    /**
+     * Cancels the pending reads of a collapsed folder and of its subfolders,
+     * and lets the cache evict them.
+     * @param folder a collapsed folder
+     */
+    public void folderCollapsed(AbstractFile folder) {
+        cache.cancelReads(folder);
+        if (folder != root)
+            cache.unpin(folder);
+    }
+
+    /**
+     * Returns the cache of directories of this model.
+     * @return the cache of directories of this model
+     */
+    public DirectoryCache getCache() {
+        return cache;
     }
     
     /**
@@ -261,7 +291,9 @@ public class FilesTreeModel implements TreeModel, CachedDirectoryListener {
             }
             return cached.getCachedIcon();
         }
-        return spinningIcon;
+        // the directory has been evicted from the cache
+        Icon icon = FileIcons.getCachedFileIcon(file);
+        return icon == null ? FileIcons.getPlaceholderIcon(file) : icon;
     }
 
 
@@ -34,6 +34,8 @@ import javax.swing.JScrollPane;
 import javax.swing.JTree;
 import javax.swing.SwingUtilities;
 import javax.swing.Timer;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeExpansionListener;
 import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
 import javax.swing.event.TreeSelectionEvent;
@@ -88,10 +90,6 @@ public class FoldersTreePanel extends JPanel implements TreeSelectionListener,
     /** A timer that fires a directory change */
     private ChangeTimer changeTimer = new ChangeTimer();
 
-    static {
-        TreeIOThreadManager.getInstance().start();
-    }
-
    
     /**
      * Creates a panel with directory tree attached to a specified folder panel.
@@ -135,6 +133,17 @@ public class FoldersTreePanel extends JPanel implements TreeSelectionListener,
         tree.addTreeSelectionListener(this);
         tree.addFocusListener(this);
 
+        // expanded folders are kept in the cache, reads of collapsed folders are no longer needed
+        tree.addTreeExpansionListener(new TreeExpansionListener() {
+            public void treeExpanded(TreeExpansionEvent event) {
+                model.folderExpanded((AbstractFile) event.getPath().getLastPathComponent());
+            }
+
+            public void treeCollapsed(TreeExpansionEvent event) {
+                model.folderCollapsed((AbstractFile) event.getPath().getLastPathComponent());
+            }
+        });
+
         // add a popup menu
         final JPopupMenu popup = new JPopupMenu();
         // refresh action
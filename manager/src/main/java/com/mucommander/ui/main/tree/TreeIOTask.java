@@ -0,0 +1,107 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.ui.main.tree;
+
+import com.mucommander.commons.file.AbstractFile;
+
+/**
+ * An i/o operation on a folder of the tree, executed by the {@link TreeIOThreadManager}.
+ * Tasks are executed by priority, and the most recently added first among tasks of the same priority.
+ * A task that is cancelled before it has started is never executed, its {@link #cancelled()} method is
+ * called instead.
+ */
+public abstract class TreeIOTask implements Runnable {
+
+    /** Priority of tasks that revalidate folders whose children are already displayed */
+    public final static int PRIORITY_REVALIDATE = 0;
+    /** Priority of tasks that read the folders on the path to the current folder */
+    public final static int PRIORITY_PATH = 1;
+    /** Priority of tasks that read the children of a folder expanded by the user */
+    public final static int PRIORITY_EXPANDED = 2;
+
+    /** the folder the task operates on */
+    private final AbstractFile folder;
+
+    /** the object that added the task, used to cancel its tasks */
+    private final Object owner;
+
+    /** the priority of this task */
+    volatile int priority;
+
+    /** the order in which tasks have been queued, used to execute the most recent first */
+    long sequence;
+
+    /** the key of the queue this task was added to */
+    String queueKey;
+
+    /** the time this task was started at, 0 if it hasn't started yet */
+    long startTime;
+
+    /** true once this task has been reported as blocked */
+    boolean blocked;
+
+
+    /**
+     * Creates a new task.
+     * @param folder the folder the task operates on
+     * @param owner the object that adds the task
+     * @param priority the priority of the task, see constant fields
+     */
+    protected TreeIOTask(AbstractFile folder, Object owner, int priority) {
+        this.folder = folder;
+        this.owner = owner;
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the folder this task operates on.
+     * @return the folder this task operates on
+     */
+    public AbstractFile getFolder() {
+        return folder;
+    }
+
+    /**
+     * Returns the object that added this task.
+     * @return the object that added this task
+     */
+    public Object getOwner() {
+        return owner;
+    }
+
+    /**
+     * Returns the current priority of this task.
+     * @return the current priority of this task
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Called instead of {@link #run()} when this task is cancelled before it has started.
+     * This method is called from the thread that cancelled the task, it does nothing by default.
+     */
+    protected void cancelled() {
+    }
+
+    @Override
+    public String toString() {
+        return folder.getAbsolutePath()+" (priority="+priority+")";
+    }
+}
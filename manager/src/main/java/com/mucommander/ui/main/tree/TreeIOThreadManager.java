@@ -18,22 +18,412 @@
 
 package com.mucommander.ui.main.tree;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileProtocols;
+import com.mucommander.commons.file.FileURL;
+import com.mucommander.commons.file.impl.local.LocalFile;
+
 /**
- * Monitors thread that reads children and icons for the tree.
+ * Executes the i/o operations of the folders tree (reading children and icons) in the background.
+ *
+ * <p>Tasks are queued per volume for local files, and per host for remote files. At most
+ * {@link #MAX_TASKS_PER_VOLUME} tasks of the same queue run at the same time, and at most {@link #NB_THREADS}
+ * tasks overall, so that a slow volume (e.g. an unresponsive network mount) only delays the folders it contains.
+ * A task that has been running for more than {@link #BLOCK_THRESHOLD} milliseconds is considered blocked and no longer
+ * counts towards the overall limit: another thread is used to execute the tasks of the other volumes.</p>
+ *
+ * <p>Within the queues, tasks are executed by {@link TreeIOTask#getPriority() priority}, the most recently added first.
+ * Pending tasks can be cancelled, for instance when the folder they read is collapsed.</p>
+ *
  * @author Mariusz Jakubowski
  *
  */
-public class TreeIOThreadManager extends AbstractIOThreadManager {
+public class TreeIOThreadManager {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TreeIOThreadManager.class);
+
+    /** maximum number of tasks running at the same time, blocked tasks excepted */
+    public final static int NB_THREADS = 4;
+
+    /** maximum number of tasks of the same volume or host running at the same time */
+    public final static int MAX_TASKS_PER_VOLUME = 2;
+
+    /** a time after an i/o task is marked as blocked [ms] */
+    public final static long BLOCK_THRESHOLD = 5000;
+
+    /** a time after which the list of local volumes is refreshed [ms] */
+    private final static long VOLUMES_REFRESH_PERIOD = 60000;
+
+    private final static TreeIOThreadManager instance = new TreeIOThreadManager();
+
+    /** orders tasks by decreasing priority, then from the most recently added */
+    private final static Comparator<TreeIOTask> TASK_COMPARATOR = new Comparator<TreeIOTask>() {
+        public int compare(TreeIOTask task1, TreeIOTask task2) {
+            if (task1.priority != task2.priority)
+                return task1.priority > task2.priority ? -1 : 1;
+            return task1.sequence > task2.sequence ? -1 : (task1.sequence == task2.sequence ? 0 : 1);
+        }
+    };
+
+    /** threads that execute tasks, their number is limited by {@link #dispatch()} */
+    private final ThreadPoolExecutor executor;
+
+    /** marks the tasks that are still running after {@link #BLOCK_THRESHOLD} ms as blocked */
+    private final ScheduledExecutorService blockTimer;
+
+    /** pending tasks, per volume or host */
+    private final Map<String, VolumeQueue> queues = new HashMap<String, VolumeQueue>();
+
+    /** tasks being executed */
+    private final List<TreeIOTask> runningTasks = new ArrayList<TreeIOTask>();
+
+    /** paths of the local volumes, longest first */
+    private List<String> volumePaths = new ArrayList<String>();
+
+    /** the time the list of local volumes was last refreshed */
+    private long volumesTimeStamp;
+
+    /** a counter used to order tasks */
+    private long sequence;
+
+    private long completedTaskCount;
+    private long cancelledTaskCount;
+    private long blockedTaskCount;
+
+    private boolean shutdown;
+
 
-    public final static TreeIOThreadManager instance = new TreeIOThreadManager();
-    
     private TreeIOThreadManager() {
-        super("TreeIOThreadManager", 5000);
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "TreeIOThread-"+threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        blockTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TreeIOBlockTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
-    
+
     public static TreeIOThreadManager getInstance() {
         return instance;
     }
-    
-    
+
+    /**
+     * Adds new task to execute.
+     * A proper exception handling within the task have to be implemented.
+     * If this task rises an exception, this exception is logged.
+     * @param task a task to be executed
+     */
+    public synchronized void addTask(TreeIOTask task) {
+        if (shutdown)
+            return;
+
+        task.sequence = sequence++;
+        task.queueKey = getQueueKey(task.getFolder());
+        VolumeQueue queue = queues.get(task.queueKey);
+        if (queue == null) {
+            queue = new VolumeQueue();
+            queues.put(task.queueKey, queue);
+        }
+        queue.pending.add(task);
+        dispatch();
+    }
+
+    /**
+     * Raises the priority of a pending task, and makes it the most recent task of its priority.
+     * Does nothing if the task has already started or if its priority is higher than the given one.
+     * @param task a pending task
+     * @param priority the new priority of the task
+     */
+    public synchronized void raisePriority(TreeIOTask task, int priority) {
+        if (task.priority > priority)
+            return;
+        VolumeQueue queue = queues.get(task.queueKey);
+        if (queue == null || !queue.pending.remove(task))
+            return;
+        task.priority = priority;
+        task.sequence = sequence++;
+        queue.pending.add(task);
+    }
+
+    /**
+     * Cancels the pending tasks added by the given owner for the given folder and its subfolders.
+     * Tasks that have already started are not interrupted.
+     * @param owner the object that added the tasks
+     * @param folder the folder whose tasks are cancelled, <code>null</code> to cancel all the tasks of the owner
+     */
+    public void cancelTasks(Object owner, AbstractFile folder) {
+        String folderPath = folder == null ? null : folder.getAbsolutePath(true);
+        List<TreeIOTask> cancelledTasks = new ArrayList<TreeIOTask>();
+        synchronized (this) {
+            for (Iterator<VolumeQueue> queueIterator = queues.values().iterator(); queueIterator.hasNext(); ) {
+                VolumeQueue queue = queueIterator.next();
+                for (Iterator<TreeIOTask> i = queue.pending.iterator(); i.hasNext(); ) {
+                    TreeIOTask task = i.next();
+                    if (task.getOwner() == owner
+                            && (folderPath == null || task.getFolder().getAbsolutePath(true).startsWith(folderPath))) {
+                        i.remove();
+                        cancelledTasks.add(task);
+                    }
+                }
+                if (queue.nbRunning == 0 && queue.pending.isEmpty())
+                    queueIterator.remove();
+            }
+            cancelledTaskCount += cancelledTasks.size();
+        }
+
+        // Notify the tasks without holding the lock
+        for (TreeIOTask task : cancelledTasks)
+            task.cancelled();
+    }
+
+    /**
+     * Cancels all pending tasks and stops executing new ones. Tasks that are running are interrupted.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            queues.clear();
+        }
+        executor.shutdownNow();
+        blockTimer.shutdownNow();
+    }
+
+    /**
+     * Starts pending tasks, as long as the limits on running tasks allow it.
+     */
+    private synchronized void dispatch() {
+        if (shutdown)
+            return;
+
+        long now = System.currentTimeMillis();
+        int activeTasks = 0;
+        for (TreeIOTask task : runningTasks) {
+            if (!task.blocked)
+                activeTasks++;
+        }
+
+        while (activeTasks < NB_THREADS) {
+            // Start the most important task among the queues that can run more tasks
+            VolumeQueue nextQueue = null;
+            for (VolumeQueue queue : queues.values()) {
+                if (queue.nbRunning < MAX_TASKS_PER_VOLUME && !queue.pending.isEmpty()
+                        && (nextQueue == null || TASK_COMPARATOR.compare(queue.pending.peek(), nextQueue.pending.peek()) < 0))
+                    nextQueue = queue;
+            }
+            if (nextQueue == null)
+                break;
+
+            final TreeIOTask task = nextQueue.pending.poll();
+            nextQueue.nbRunning++;
+            task.startTime = now;
+            runningTasks.add(task);
+            activeTasks++;
+
+            executor.execute(new Runnable() {
+                public void run() {
+                    execute(task);
+                }
+            });
+            blockTimer.schedule(new Runnable() {
+                public void run() {
+                    taskBlocked(task);
+                }
+            }, BLOCK_THRESHOLD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Marks a task as blocked if it is still running, and starts the pending tasks that it was holding back.
+     * @param task a task that was started {@link #BLOCK_THRESHOLD} ms ago
+     */
+    private synchronized void taskBlocked(TreeIOTask task) {
+        if (task.blocked || !runningTasks.contains(task))
+            return;
+
+        task.blocked = true;
+        blockedTaskCount++;
+        LOGGER.debug("Task blocked: " + task);
+        dispatch();
+    }
+
+    /**
+     * Executes a task and starts the next pending ones.
+     * @param task the task to execute
+     */
+    private void execute(TreeIOTask task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            LOGGER.debug("Caught exception", e);
+        }
+
+        synchronized (this) {
+            runningTasks.remove(task);
+            completedTaskCount++;
+            VolumeQueue queue = queues.get(task.queueKey);
+            if (queue != null) {
+                queue.nbRunning--;
+                if (queue.nbRunning == 0 && queue.pending.isEmpty())
+                    queues.remove(task.queueKey);
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * Returns the key of the queue of the given folder: the local volume that contains it for local files,
+     * and the host for remote files.
+     * @param folder a folder
+     * @return the key of the queue of the given folder
+     */
+    private String getQueueKey(AbstractFile folder) {
+        FileURL url = folder.getURL();
+        if (!FileProtocols.FILE.equals(url.getScheme()))
+            return url.getScheme() + "://" + url.getHost() + (url.getPort() == -1 ? "" : ":" + url.getPort());
+
+        refreshVolumes();
+        String path = folder.getAbsolutePath(true);
+        for (String volumePath : volumePaths) {
+            if (path.startsWith(volumePath))
+                return FileProtocols.FILE + "://" + volumePath;
+        }
+        return FileProtocols.FILE + "://";
+    }
+
+    /**
+     * Refreshes the list of local volumes in the background, if it is out of date.
+     */
+    private void refreshVolumes() {
+        long now = System.currentTimeMillis();
+        if (now - volumesTimeStamp < VOLUMES_REFRESH_PERIOD)
+            return;
+        volumesTimeStamp = now;
+
+        executor.execute(new Runnable() {
+            public void run() {
+                List<String> paths = new ArrayList<String>();
+                try {
+                    for (AbstractFile volume : LocalFile.getVolumes())
+                        paths.add(volume.getAbsolutePath(true));
+                } catch (Exception e) {
+                    LOGGER.debug("Caught exception", e);
+                }
+                // Longest paths first, so that the innermost volume of a file is found first
+                Collections.sort(paths, new Comparator<String>() {
+                    public int compare(String path1, String path2) {
+                        return path2.length() - path1.length();
+                    }
+                });
+
+                synchronized (TreeIOThreadManager.this) {
+                    volumePaths = paths;
+                }
+            }
+        });
+    }
+
+
+    // - Metrics ---------------------------------------------------------------
+    // -------------------------------------------------------------------------
+
+    /**
+     * Returns the number of tasks waiting to be executed.
+     */
+    public synchronized int getPendingTaskCount() {
+        int count = 0;
+        for (VolumeQueue queue : queues.values())
+            count += queue.pending.size();
+        return count;
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed, per volume or host.
+     */
+    public synchronized Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<String, Integer>();
+        for (Map.Entry<String, VolumeQueue> entry : queues.entrySet())
+            depths.put(entry.getKey(), entry.getValue().pending.size());
+        return depths;
+    }
+
+    /**
+     * Returns the number of tasks being executed, including blocked ones.
+     */
+    public synchronized int getRunningTaskCount() {
+        return runningTasks.size();
+    }
+
+    /**
+     * Returns the number of running tasks that have been running for more than {@link #BLOCK_THRESHOLD} ms.
+     */
+    public synchronized int getBlockedTaskCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (TreeIOTask task : runningTasks) {
+            if (now - task.startTime >= BLOCK_THRESHOLD)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total number of tasks that have been reported as blocked.
+     */
+    public synchronized long getTotalBlockedTaskCount() {
+        return blockedTaskCount;
+    }
+
+    /**
+     * Returns the total number of tasks that have been executed.
+     */
+    public synchronized long getCompletedTaskCount() {
+        return completedTaskCount;
+    }
+
+    /**
+     * Returns the total number of tasks that have been cancelled before they started.
+     */
+    public synchronized long getCancelledTaskCount() {
+        return cancelledTaskCount;
+    }
+
+
+    /**
+     * The pending tasks of a volume or host.
+     */
+    private static class VolumeQueue {
+        /** tasks waiting to be executed */
+        private final PriorityQueue<TreeIOTask> pending = new PriorityQueue<TreeIOTask>(11, TASK_COMPARATOR);
+
+        /** number of tasks of this queue being executed */
+        private int nbRunning;
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+import java.io.File;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.FileProtocols;
+
+/**
+ * A test case for {@link FolderListingCache}. Local folders are not cached by default, the tests enable caching
+ * for the local filesystem so as not to depend on a remote server.
+ */
+public class FolderListingCacheTest {
+
+    private final AbstractFile baseFolder = FileFactory.getFile(System.getProperty("java.io.tmpdir"));
+
+    @BeforeMethod
+    public void setUp() {
+        FolderListingCache.setTimeToLive(FileProtocols.FILE, 60000);
+        FolderListingCache.clearAll();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        FolderListingCache.setTimeToLive(FileProtocols.FILE, 0);
+        FolderListingCache.clearAll();
+    }
+
+    /**
+     * Asserts that a stored listing is returned and accounted for as a hit, and that a missing one is accounted for
+     * as a miss.
+     */
+    @Test
+    public void testGet() {
+        AbstractFile folder = getFolder("a");
+        AbstractFile children[] = new AbstractFile[] {getFolder("a/1"), getFolder("a/2")};
+        long hitCount = FolderListingCache.getHitCount();
+        long missCount = FolderListingCache.getMissCount();
+
+        assert FolderListingCache.get(folder) == null;
+        FolderListingCache.put(folder, children);
+        AbstractFile cachedChildren[] = FolderListingCache.get(folder);
+
+        assert cachedChildren != null;
+        assert cachedChildren.length == 2;
+        assert cachedChildren[0].equals(children[0]);
+        assert FolderListingCache.getWeight() == 3;
+        assert FolderListingCache.getHitCount() == hitCount+1;
+        assert FolderListingCache.getMissCount() == missCount+1;
+    }
+
+    /**
+     * Asserts that listings are not returned once they have expired, and that folders whose scheme has no
+     * time-to-live are not cached.
+     */
+    @Test
+    public void testTimeToLive() throws InterruptedException {
+        AbstractFile folder = getFolder("a");
+
+        FolderListingCache.setTimeToLive(FileProtocols.FILE, 1);
+        FolderListingCache.put(folder, new AbstractFile[0]);
+        Thread.sleep(10);
+        assert FolderListingCache.get(folder) == null;
+
+        FolderListingCache.setTimeToLive(FileProtocols.FILE, 0);
+        FolderListingCache.put(folder, new AbstractFile[0]);
+        assert FolderListingCache.size() == 0;
+    }
+
+    /**
+     * Asserts that invalidating a folder discards its listing, and those of its ancestors and subfolders only.
+     */
+    @Test
+    public void testInvalidate() {
+        AbstractFile parent = getFolder("a");
+        AbstractFile folder = getFolder("a/b");
+        AbstractFile subfolder = getFolder("a/b/c");
+        AbstractFile sibling = getFolder("a/bc");
+
+        FolderListingCache.put(parent, new AbstractFile[] {folder, sibling});
+        FolderListingCache.put(folder, new AbstractFile[] {subfolder});
+        FolderListingCache.put(subfolder, new AbstractFile[0]);
+        FolderListingCache.put(sibling, new AbstractFile[0]);
+
+        FolderListingCache.invalidate(folder);
+
+        assert FolderListingCache.get(parent) == null;
+        assert FolderListingCache.get(folder) == null;
+        assert FolderListingCache.get(subfolder) == null;
+        assert FolderListingCache.get(sibling) != null;
+        assert FolderListingCache.getWeight() == 1;
+    }
+
+    /**
+     * Asserts that listings that differ by their files are detected.
+     */
+    @Test
+    public void testIsSameListing() {
+        AbstractFile a = getFolder("a");
+        AbstractFile b = getFolder("b");
+
+        assert FolderListingCache.isSameListing(new AbstractFile[] {a, b}, new AbstractFile[] {b, a});
+        assert !FolderListingCache.isSameListing(new AbstractFile[] {a, b}, new AbstractFile[] {a});
+        assert !FolderListingCache.isSameListing(new AbstractFile[] {a}, new AbstractFile[] {b});
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private AbstractFile getFolder(String path) {
+        return FileFactory.getFile(baseFolder.getAbsolutePath(true) + path.replace('/', File.separatorChar));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.impl.ProxyFile;
+
+/**
+ * A test case for {@link VolumeInfoCache}, using the volume of the temporary folder.
+ */
+public class VolumeInfoCacheTest {
+
+    private final AbstractFile folder = FileFactory.getFile(System.getProperty("java.io.tmpdir"));
+
+    @BeforeMethod
+    public void setUp() {
+        VolumeInfoCache.clearAll();
+    }
+
+    /**
+     * Asserts that concurrent requests for a volume are all notified, and that the retrieved information is then
+     * returned by the cache.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void testRetrieve() throws InterruptedException {
+        String volumePath = folder.getVolume().getAbsolutePath(true);
+        final long retrieved[][] = new long[2][];
+        final CountDownLatch latch = new CountDownLatch(2);
+
+        assert VolumeInfoCache.get(volumePath) == null;
+
+        for(int i=0; i<2; i++) {
+            final int index = i;
+            VolumeInfoCache.retrieve(folder, volumePath, new VolumeInfoListener() {
+                public void volumeInfoRetrieved(String volumePath, long totalSpace, long freeSpace) {
+                    retrieved[index] = new long[]{totalSpace, freeSpace};
+                    latch.countDown();
+                }
+            });
+        }
+
+        assert latch.await(VolumeInfoCache.LOCAL_TIMEOUT*2, TimeUnit.MILLISECONDS);
+        assert retrieved[0][0] == retrieved[1][0];
+
+        long cachedVolumeInfo[] = VolumeInfoCache.get(volumePath);
+        assert cachedVolumeInfo != null;
+        assert cachedVolumeInfo[0] == retrieved[0][0];
+    }
+
+    /**
+     * Asserts that requesters are notified right away when a retrieval fails unexpectedly, and that the volume is
+     * queried again by the next request rather than being left pending.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void testRetrievalFailure() throws InterruptedException {
+        final AtomicInteger nbQueries = new AtomicInteger();
+        AbstractFile failingFolder = new ProxyFile(folder) {
+            @Override
+            public long getFreeSpace() {
+                nbQueries.incrementAndGet();
+                throw new IllegalStateException();
+            }
+        };
+
+        for(int i=1; i<=2; i++) {
+            final long retrieved[][] = new long[1][];
+            final CountDownLatch latch = new CountDownLatch(1);
+            VolumeInfoCache.retrieve(failingFolder, "failing", new VolumeInfoListener() {
+                public void volumeInfoRetrieved(String volumePath, long totalSpace, long freeSpace) {
+                    retrieved[0] = new long[]{totalSpace, freeSpace};
+                    latch.countDown();
+                }
+            });
+
+            // Notified before the retrieval times out
+            assert latch.await(VolumeInfoCache.LOCAL_TIMEOUT/2, TimeUnit.MILLISECONDS);
+            assert retrieved[0][1] == -1;
+            assert nbQueries.get() == i;
+        }
+
+        assert VolumeInfoCache.get("failing") == null;
+    }
+}
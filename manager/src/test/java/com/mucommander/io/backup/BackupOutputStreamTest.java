@@ -0,0 +1,121 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.io.backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.io.StreamUtils;
+
+/**
+ * A test case for {@link BackupOutputStream} and {@link BackupInputStream}.
+ */
+public class BackupOutputStreamTest {
+
+    private AbstractFile tempFolder;
+    private AbstractFile file;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        tempFolder = FileFactory.getTemporaryFile(getClass().getName(), true);
+        tempFolder.mkdir();
+        file = tempFolder.getDirectChild("file.xml");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        tempFolder.deleteRecursively();
+    }
+
+    /**
+     * Asserts that a local file is replaced by the saved content, and that no temporary or backup file is left.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testSave() throws IOException {
+        save(new byte[]{1, 2, 3}, true);
+        assert Arrays.equals(read(), new byte[]{1, 2, 3});
+
+        save(new byte[]{4, 5}, true);
+        assert Arrays.equals(read(), new byte[]{4, 5});
+
+        assert tempFolder.ls().length == 1;
+    }
+
+    /**
+     * Asserts that the file is left untouched if the stream is closed without replacing it, and that a backup file
+     * left by a previous save is not read once the file has been replaced.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testNoReplace() throws IOException {
+        save(new byte[]{1, 2, 3}, true);
+        save(new byte[]{4, 5, 6, 7}, false);
+        assert Arrays.equals(read(), new byte[]{1, 2, 3});
+        assert tempFolder.ls().length == 1;
+
+        // A bigger backup file is read instead of the file
+        AbstractFile oldBackup = tempFolder.getDirectChild(file.getName() + BackupConstants.BACKUP_SUFFIX);
+        OutputStream out = oldBackup.getOutputStream();
+        try {
+            out.write(new byte[]{8, 9, 10, 11});
+        }
+        finally {
+            out.close();
+        }
+        assert Arrays.equals(read(), new byte[]{8, 9, 10, 11});
+
+        save(new byte[]{4, 5}, true);
+        assert !oldBackup.exists();
+        assert Arrays.equals(read(), new byte[]{4, 5});
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private void save(byte bytes[], boolean replace) throws IOException {
+        BackupOutputStream out = new BackupOutputStream(file);
+        out.write(bytes);
+        out.close(replace);
+    }
+
+    private byte[] read() throws IOException {
+        InputStream in = new BackupInputStream(file);
+        try {
+            byte bytes[] = new byte[16];
+            int length = StreamUtils.readUpTo(in, bytes);
+            return Arrays.copyOf(bytes, length);
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.job;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.impl.ProxyFile;
+import com.mucommander.commons.file.util.FileSet;
+import com.mucommander.commons.io.StreamUtils;
+import com.mucommander.text.Translator;
+import com.mucommander.ui.dialog.file.FileCollisionDialog;
+
+/**
+ * A test case for the files that {@link TransferFileJob} copies in the background: they must all have been copied
+ * once they have been awaited, those that failed to be copied in the background being copied once again. Files are
+ * copied between local folders by a {@link CopyJob}.
+ */
+public class BackgroundTransferTest {
+
+    private final static int NB_FILES = 20;
+    private final static int NB_PARALLEL_TRANSFERS = 4;
+
+    private AbstractFile tempFolder;
+    private AbstractFile sourceFolder;
+    private AbstractFile destFolder;
+    private byte contents[][];
+
+    static {
+        // Jobs use localized strings
+        try { Translator.loadDictionaryFile(); }
+        catch(Exception e) { throw new RuntimeException(e); }
+    }
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        tempFolder = FileFactory.getTemporaryFile(getClass().getName(), true);
+        sourceFolder = tempFolder.getDirectChild("source");
+        sourceFolder.mkdirs();
+        destFolder = tempFolder.getDirectChild("destination");
+        destFolder.mkdir();
+
+        Random random = new Random();
+        contents = new byte[NB_FILES][];
+        for(int i=0; i<NB_FILES; i++) {
+            contents[i] = new byte[random.nextInt(10000)];
+            random.nextBytes(contents[i]);
+
+            OutputStream out = sourceFolder.getDirectChild(getFileName(i)).getOutputStream();
+            try {
+                out.write(contents[i]);
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        tempFolder.deleteRecursively();
+    }
+
+    /**
+     * Asserts that the files of a folder are all copied once the folder has been processed.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testFolder() throws IOException {
+        TestCopyJob job = new TestCopyJob(new FileSet(tempFolder, sourceFolder), destFolder);
+        assert job.processFile(job.files.elementAt(0), null);
+        assert !job.hasBackgroundTransfers();
+
+        assertCopied(destFolder.getDirectChild(sourceFolder.getName()));
+        assert job.errors.isEmpty();
+    }
+
+    /**
+     * Asserts that top-level files are copied in the background, and that they have all been copied once all files
+     * have been processed.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testTopLevelFiles() throws IOException {
+        FileSet files = new FileSet(sourceFolder);
+        for(int i=0; i<NB_FILES; i++)
+            files.add(sourceFolder.getDirectChild(getFileName(i)));
+
+        TestCopyJob job = process(files);
+
+        assertCopied(destFolder);
+        assert job.errors.isEmpty();
+    }
+
+    /**
+     * Asserts that files that could not be copied in the background are copied once again, without reporting an
+     * error.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testRetry() throws IOException {
+        FileSet files = new FileSet(sourceFolder);
+        List<FailingFile> failingFiles = new ArrayList<FailingFile>();
+        for(int i=0; i<NB_FILES; i++) {
+            FailingFile file = new FailingFile(sourceFolder.getDirectChild(getFileName(i)), 1);
+            failingFiles.add(file);
+            files.add(file);
+        }
+
+        TestCopyJob job = process(files);
+
+        assertCopied(destFolder);
+        assert job.errors.isEmpty();
+        for(FailingFile file : failingFiles)
+            assert file.nbFailures.get() == 0;
+    }
+
+    /**
+     * Asserts that files that could not be copied either in the background or once again are reported.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void testFailure() throws IOException {
+        FileSet files = new FileSet(sourceFolder);
+        for(int i=0; i<NB_FILES; i++)
+            files.add(new FailingFile(sourceFolder.getDirectChild(getFileName(i)), 2));
+
+        TestCopyJob job = process(files);
+
+        assert job.errors.size() == NB_FILES;
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private static String getFileName(int index) {
+        return "file"+index;
+    }
+
+    /**
+     * Processes the given top-level files, as {@link FileJob#run()} does, and returns the job.
+     */
+    private TestCopyJob process(FileSet files) {
+        TestCopyJob job = new TestCopyJob(files, destFolder);
+        for(AbstractFile file : job.files)
+            job.processFile(file, null);
+
+        job.allFilesProcessed();
+        assert !job.hasBackgroundTransfers();
+
+        return job;
+    }
+
+    /**
+     * Asserts that the given folder contains a copy of each source file.
+     */
+    private void assertCopied(AbstractFile folder) throws IOException {
+        for(int i=0; i<NB_FILES; i++) {
+            InputStream in = folder.getDirectChild(getFileName(i)).getInputStream();
+            try {
+                byte bytes[] = new byte[contents[i].length];
+                StreamUtils.readFully(in, bytes);
+                assert Arrays.equals(contents[i], bytes);
+                assert in.read() == -1;
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+
+
+    /**
+     * A CopyJob that copies small files in the background and records the errors it reports instead of displaying
+     * them, skipping the files.
+     */
+    private static class TestCopyJob extends CopyJob {
+
+        /** Messages of the errors that have been reported */
+        private final List<String> errors = new ArrayList<String>();
+
+        private TestCopyJob(FileSet files, AbstractFile destFolder) {
+            super(null, null, files, destFolder, null, COPY_MODE, FileCollisionDialog.OVERWRITE_ACTION);
+            setNbParallelTransfers(NB_PARALLEL_TRANSFERS);
+            setResumable(false);
+        }
+
+        @Override
+        protected int showErrorDialog(String title, String message, String actionTexts[], int actionValues[]) {
+            synchronized(errors) {
+                errors.add(message);
+            }
+            return SKIP_ACTION;
+        }
+    }
+
+
+    /**
+     * A file whose first input streams cannot be opened.
+     */
+    private static class FailingFile extends ProxyFile {
+
+        /** Number of times opening an input stream is still going to fail */
+        private final AtomicInteger nbFailures;
+
+        private FailingFile(AbstractFile file, int nbFailures) {
+            super(file);
+            this.nbFailures = new AtomicInteger(nbFailures);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if(nbFailures.getAndDecrement()>0)
+                throw new IOException();
+
+            nbFailures.set(0);
+            return super.getInputStream();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.job;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mucommander.PlatformManager;
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.util.FileSet;
+import com.mucommander.commons.io.RandomAccessOutputStream;
+
+/**
+ * A test case for {@link TransferJournal}. Journals are stored in a temporary preferences folder.
+ */
+public class TransferJournalTest {
+
+    private AbstractFile tempFolder;
+    private AbstractFile sourceFile;
+    private AbstractFile destFile;
+    private FileSet files;
+    private byte sourceBytes[];
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        tempFolder = FileFactory.getTemporaryFile(getClass().getName(), true);
+        tempFolder.mkdir();
+        PlatformManager.setPreferencesFolder(tempFolder.getDirectChild("preferences"));
+
+        sourceFile = tempFolder.getDirectChild("source");
+        destFile = tempFolder.getDirectChild("destination");
+        files = new FileSet(tempFolder, sourceFile);
+
+        sourceBytes = new byte[3*TransferJournal.BLOCK_SIZE];
+        new Random().nextBytes(sourceBytes);
+        write(sourceFile, sourceBytes, sourceBytes.length);
+        write(destFile, sourceBytes, 2*TransferJournal.BLOCK_SIZE);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        tempFolder.deleteRecursively();
+    }
+
+    /**
+     * Asserts that the position and checkpoints of a journal are found by the next run of the same job, and that
+     * a journal is not found by a different job.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testReload() throws Exception {
+        TransferJournal journal = getJournal();
+        assert journal.getPosition() == 0;
+        assert !journal.hasCheckpoint(sourceFile, destFile);
+
+        journal.setPosition(1);
+        checkpoint(journal, 2*TransferJournal.BLOCK_SIZE);
+
+        journal = getJournal();
+        assert journal.getPosition() == 1;
+        assert journal.hasCheckpoint(sourceFile, destFile);
+        assert !journal.hasCheckpoint(destFile, sourceFile);
+
+        // The same files copied elsewhere are a different job
+        journal = TransferJournal.getJournal(files, tempFolder, "other");
+        assert journal.getPosition() == 0;
+        assert !journal.hasCheckpoint(sourceFile, destFile);
+
+        getJournal().delete();
+        assert getJournal().getPosition() == 0;
+    }
+
+    /**
+     * Asserts that a processed top-level file is reported as such by the next run of the same job only if its size
+     * and date haven't changed.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testProcessed() throws Exception {
+        TransferJournal journal = getJournal();
+        assert !journal.isProcessed(0, sourceFile);
+
+        journal.setProcessed(0, sourceFile);
+        journal.flush();
+        journal = getJournal();
+        assert journal.getPosition() == 1;
+        assert journal.isProcessed(0, sourceFile);
+        assert !journal.isProcessed(1, sourceFile);
+
+        // The source has been modified since it was processed
+        sourceFile.changeDate(sourceFile.getDate()-10000);
+        assert !getJournal().isProcessed(0, sourceFile);
+
+        // The position was saved without the file's size and date
+        journal = getJournal();
+        journal.delete();
+        journal = getJournal();
+        journal.setPosition(1);
+        journal.flush();
+        assert !getJournal().isProcessed(0, sourceFile);
+    }
+
+    /**
+     * Asserts that a transfer is resumed at the checkpoint only if the destination's tail block matches the journal.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void testResumeOffset() throws Exception {
+        checkpoint(getJournal(), 2*TransferJournal.BLOCK_SIZE);
+        assert getJournal().getResumeOffset(sourceFile, destFile) == 2*TransferJournal.BLOCK_SIZE;
+
+        // The destination is shorter than the checkpoint
+        checkpoint(getJournal(), 3*TransferJournal.BLOCK_SIZE);
+        assert getJournal().getResumeOffset(sourceFile, destFile) == 0;
+
+        // The destination's tail block has been modified
+        checkpoint(getJournal(), 2*TransferJournal.BLOCK_SIZE);
+        RandomAccessOutputStream out = destFile.getRandomAccessOutputStream();
+        try {
+            out.seek(2*TransferJournal.BLOCK_SIZE-1);
+            out.write(~sourceBytes[2*TransferJournal.BLOCK_SIZE-1]);
+        }
+        finally {
+            out.close();
+        }
+        assert getJournal().getResumeOffset(sourceFile, destFile) == 0;
+
+        // The journal holds no checkpoint
+        TransferJournal journal = getJournal();
+        journal.clearCheckpoint();
+        journal.flush();
+        assert getJournal().getResumeOffset(sourceFile, destFile) == 0;
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private TransferJournal getJournal() throws IOException {
+        return TransferJournal.getJournal(files, tempFolder, null);
+    }
+
+    /**
+     * Saves a checkpoint at the given offset, with the hash of the source file's block that ends at the offset.
+     */
+    private void checkpoint(TransferJournal journal, int offset) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(TransferJournal.BLOCK_HASH_ALGORITHM);
+        digest.update(sourceBytes, offset-TransferJournal.BLOCK_SIZE, TransferJournal.BLOCK_SIZE);
+
+        journal.checkpoint(sourceFile, destFile, offset, digest.digest());
+    }
+
+    private static void write(AbstractFile file, byte bytes[], int length) throws IOException {
+        OutputStream out = file.getOutputStream();
+        try {
+            out.write(bytes, 0, length);
+        }
+        finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.mucommander.search;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Runs tests on the {@link ContentMatcher} class.
+ */
+public class ContentMatcherTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String TEXT = "first line\nsecond Host line\nthird line\nhost: example.org\nПривет мир\n";
+
+    private List<String> findLines(ContentMatcher matcher, String text, int maxSnippets) {
+        byte[] bytes = text.getBytes(UTF_8);
+        List<String> snippets = new ArrayList<String>();
+        matcher.findLines(bytes, 0, bytes.length, UTF_8, 1, snippets, maxSnippets);
+        return snippets;
+    }
+
+    @Test
+    public void testCaseSensitiveLiteral() {
+        assertEquals(findLines(ContentMatcher.compile("host", false, true), TEXT, 10),
+                Arrays.asList("4: host: example.org"));
+    }
+
+    @Test
+    public void testCaseInsensitiveLiteral() {
+        assertEquals(findLines(ContentMatcher.compile("HOST", false, false), TEXT, 10),
+                Arrays.asList("2: second Host line", "4: host: example.org"));
+    }
+
+    @Test
+    public void testAlternativeLiterals() {
+        assertEquals(findLines(ContentMatcher.compile("third|EXAMPLE", false, false), TEXT, 10),
+                Arrays.asList("3: third line", "4: host: example.org"));
+        assertEquals(findLines(ContentMatcher.compile("third|EXAMPLE", false, true), TEXT, 10),
+                Arrays.asList("3: third line"));
+    }
+
+    @Test
+    public void testNonAsciiLiteral() {
+        assertEquals(findLines(ContentMatcher.compile("привет", false, false), TEXT, 10),
+                Arrays.asList("5: Привет мир"));
+        assertEquals(findLines(ContentMatcher.compile("привет", false, true), TEXT, 10),
+                new ArrayList<String>());
+    }
+
+    @Test
+    public void testRegex() {
+        assertEquals(findLines(ContentMatcher.compile("(first|third) line", true, true), TEXT, 10),
+                Arrays.asList("1: first line", "3: third line"));
+        assertEquals(findLines(ContentMatcher.compile("example\\.ORG", true, false), TEXT, 10),
+                Arrays.asList("4: host: example.org"));
+    }
+
+    @Test
+    public void testMaxSnippets() {
+        assertEquals(findLines(ContentMatcher.compile("line", false, true), TEXT, 2),
+                Arrays.asList("1: first line", "2: second Host line"));
+    }
+
+    @Test
+    public void testLineCount() {
+        byte[] bytes = TEXT.getBytes(UTF_8);
+        List<String> snippets = new ArrayList<String>();
+        assertEquals(ContentMatcher.compile("nowhere", false, true).findLines(bytes, 0, bytes.length, UTF_8, 1, snippets, 10), 5);
+        assertEquals(ContentMatcher.compile("line", false, true).findLines(bytes, 0, bytes.length, UTF_8, 1, snippets, 10), 5);
+        assertEquals(ContentMatcher.compile("line", true, true).findLines(bytes, 0, bytes.length, UTF_8, 1, snippets, 10), 5);
+    }
+}
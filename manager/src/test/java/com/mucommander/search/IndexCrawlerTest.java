@@ -0,0 +1,103 @@
+package com.mucommander.search;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.impl.ProxyFile;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Runs tests on the {@link IndexCrawler} class.
+ */
+public class IndexCrawlerTest {
+    private AbstractFile tempFolder;
+    private RAMDirectory dir;
+    private IndexWriter writer;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        tempFolder = FileFactory.getTemporaryFile(getClass().getName(), true);
+        tempFolder.mkdir();
+        tempFolder.getDirectChild("good").mkdir();
+        tempFolder.getDirectChild("good").getDirectChild("file").mkfile();
+        tempFolder.getDirectChild("bad").mkdir();
+        tempFolder.getDirectChild("bad").getDirectChild("file").mkfile();
+
+        dir = new RAMDirectory();
+        writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_43, new StandardAnalyzer(Version.LUCENE_43)));
+        executor = Executors.newFixedThreadPool(IndexCrawler.NB_WORKERS);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        writer.close();
+        dir.close();
+        tempFolder.deleteRecursively();
+    }
+
+    /**
+     * Asserts that a folder whose listing fails unexpectedly is skipped, and that the crawl still completes.
+     */
+    @Test(timeOut = 10000)
+    public void testListingFailure() throws IOException {
+        IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(writer, true));
+        new IndexCrawler(writer, searcher, executor, false).crawl(new FailingListingFolder(tempFolder));
+
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            searcher = new IndexSearcher(reader);
+            assertEquals(count(searcher, tempFolder.getDirectChild("good").getDirectChild("file")), 1);
+            assertEquals(count(searcher, tempFolder.getDirectChild("bad")), 1);
+            assertEquals(count(searcher, tempFolder.getDirectChild("bad").getDirectChild("file")), 0);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int count(IndexSearcher searcher, AbstractFile file) throws IOException {
+        return searcher.search(new TermQuery(new Term(SearchFields.PATH, file.getAbsolutePath())), 10).totalHits;
+    }
+
+    /**
+     * A folder whose "bad" child cannot be listed.
+     */
+    private static class FailingListingFolder extends ProxyFile {
+        private FailingListingFolder(AbstractFile folder) {
+            super(folder);
+        }
+
+        @Override
+        public AbstractFile[] ls() throws IOException {
+            AbstractFile[] children = super.ls();
+            for (int i = 0; i < children.length; i++) {
+                if (children[i].getName().equals("bad")) {
+                    children[i] = new ProxyFile(children[i]) {
+                        @Override
+                        public AbstractFile[] ls() {
+                            throw new IllegalStateException();
+                        }
+                    };
+                }
+            }
+            return children;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.ui.main.tree;
+
+import org.testng.annotations.Test;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+import com.mucommander.commons.file.filter.AttributeFileFilter;
+import com.mucommander.commons.file.util.FileComparator;
+
+/**
+ * A test case for {@link DirectoryCache}.
+ */
+public class DirectoryCacheTest {
+
+    private final AbstractFile baseFolder = FileFactory.getFile(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * Asserts that the least recently used directories are evicted once the cache exceeds its maximum weight.
+     */
+    @Test
+    public void testEviction() {
+        DirectoryCache cache = createCache(3);
+        AbstractFile a = getFolder("a");
+        AbstractFile b = getFolder("b");
+        AbstractFile c = getFolder("c");
+        AbstractFile d = getFolder("d");
+
+        cache.getOrAdd(a);
+        cache.getOrAdd(b);
+        cache.getOrAdd(c);
+        // uses a, so that b becomes the least recently used directory
+        cache.get(a);
+        cache.getOrAdd(d);
+
+        assert cache.getEntryCount() == 3;
+        assert cache.getWeight() == 3;
+        assert cache.getEvictionCount() == 1;
+        assert cache.get(a) != null;
+        assert cache.get(b) == null;
+    }
+
+    /**
+     * Asserts that pinned folders and their children are not evicted, and can be evicted once unpinned.
+     */
+    @Test
+    public void testPinning() {
+        DirectoryCache cache = createCache(2);
+        AbstractFile pinned = getFolder("pinned");
+        AbstractFile child1 = getFolder("pinned/child1");
+        AbstractFile child2 = getFolder("pinned/child2");
+
+        cache.pin(pinned);
+        cache.getOrAdd(pinned);
+        cache.getOrAdd(child1);
+        cache.getOrAdd(child2);
+        cache.getOrAdd(getFolder("other"));
+
+        assert cache.get(pinned) != null;
+        assert cache.get(child1) != null;
+        assert cache.get(child2) != null;
+        assert cache.getEntryCount() == 3;
+
+        cache.unpin(pinned);
+        assert cache.getEntryCount() == 2;
+        assert cache.getWeight() == 2;
+    }
+
+    /**
+     * Asserts that the hit ratio reflects the recorded lookups.
+     */
+    @Test
+    public void testStatistics() {
+        DirectoryCache cache = createCache(DirectoryCache.DEFAULT_MAX_WEIGHT);
+        assert cache.getHitRatio() == 0;
+
+        cache.recordLookup(true);
+        cache.recordLookup(true);
+        cache.recordLookup(true);
+        cache.recordLookup(false);
+
+        assert cache.getHitCount() == 3;
+        assert cache.getMissCount() == 1;
+        assert cache.getHitRatio() == 0.75f;
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    private DirectoryCache createCache(int maxWeight) {
+        return new DirectoryCache(new AttributeFileFilter(AttributeFileFilter.DIRECTORY),
+                new FileComparator(FileComparator.NAME_CRITERION, true, true), maxWeight);
+    }
+
+    private AbstractFile getFolder(String path) {
+        return FileFactory.getFile(baseFolder.getAbsolutePath(true) + path.replace('/', java.io.File.separatorChar));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2012 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.ui.main.tree;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.mucommander.commons.file.AbstractFile;
+import com.mucommander.commons.file.FileFactory;
+
+/**
+ * A test case for {@link TreeIOThreadManager}.
+ */
+public class TreeIOThreadManagerTest {
+
+    private final static long TIMEOUT = 5000;
+
+    private final TreeIOThreadManager manager = TreeIOThreadManager.getInstance();
+
+    /** a folder, the tasks of the tests operate on its subfolders so that they share the same queue */
+    private AbstractFile baseFolder;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        baseFolder = FileFactory.getFile(System.getProperty("java.io.tmpdir"));
+
+        // The list of volumes is loaded by the first task, wait for it so that all tasks use the same queue
+        CountDownLatch done = new CountDownLatch(1);
+        manager.addTask(new RecordingTask("warmup", TreeIOTask.PRIORITY_PATH, new Object(), null, done));
+        assert done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        Thread.sleep(500);
+    }
+
+    /**
+     * Asserts that a pending task of higher priority is executed before one of lower priority added earlier.
+     */
+    @Test
+    public void testPriority() throws Exception {
+        Object owner = new Object();
+        List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(2);
+
+        // Occupy all the slots of the queue
+        BlockingTask[] blockers = occupyQueue(owner);
+
+        manager.addTask(new RecordingTask("low", TreeIOTask.PRIORITY_REVALIDATE, owner, executed, done));
+        manager.addTask(new RecordingTask("high", TreeIOTask.PRIORITY_EXPANDED, owner, executed, done));
+
+        // Free a single slot: tasks are executed one after the other
+        blockers[0].release();
+        assert done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        for (int i = 1; i < blockers.length; i++)
+            blockers[i].release();
+
+        assert executed.size() == 2;
+        assert executed.get(0).equals("high");
+        assert executed.get(1).equals("low");
+    }
+
+    /**
+     * Asserts that cancelling a folder cancels the pending tasks of the folder and of its subfolders only.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        Object owner = new Object();
+        List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(1);
+
+        BlockingTask[] blockers = occupyQueue(owner);
+
+        RecordingTask folder = new RecordingTask("a", TreeIOTask.PRIORITY_EXPANDED, owner, executed, null);
+        RecordingTask subfolder = new RecordingTask("a/b", TreeIOTask.PRIORITY_EXPANDED, owner, executed, null);
+        RecordingTask otherFolder = new RecordingTask("c", TreeIOTask.PRIORITY_EXPANDED, owner, executed, done);
+        RecordingTask otherOwner = new RecordingTask("a", TreeIOTask.PRIORITY_EXPANDED, new Object(), executed, null);
+        manager.addTask(folder);
+        manager.addTask(subfolder);
+        manager.addTask(otherFolder);
+        manager.addTask(otherOwner);
+
+        manager.cancelTasks(owner, folder.getFolder());
+        assert folder.cancelled;
+        assert subfolder.cancelled;
+        assert !otherFolder.cancelled;
+        assert !otherOwner.cancelled;
+
+        for (BlockingTask blocker : blockers)
+            blocker.release();
+        assert done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        assert !executed.contains("a/b");
+    }
+
+
+    /////////////////////
+    // Support methods //
+    /////////////////////
+
+    /**
+     * Adds tasks that block until they are released, as many as tasks of the same queue can run at the same time.
+     */
+    private BlockingTask[] occupyQueue(Object owner) throws InterruptedException {
+        BlockingTask[] blockers = new BlockingTask[TreeIOThreadManager.MAX_TASKS_PER_VOLUME];
+        for (int i = 0; i < blockers.length; i++) {
+            blockers[i] = new BlockingTask(owner);
+            manager.addTask(blockers[i]);
+        }
+        for (BlockingTask blocker : blockers)
+            assert blocker.started.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        return blockers;
+    }
+
+    private AbstractFile getTestFolder(String path) {
+        return FileFactory.getFile(baseFolder.getAbsolutePath(true) + path.replace('/', File.separatorChar));
+    }
+
+    private class BlockingTask extends TreeIOTask {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        private BlockingTask(Object owner) {
+            super(baseFolder, owner, PRIORITY_EXPANDED);
+        }
+
+        public void run() {
+            started.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                // Stop blocking
+            }
+        }
+
+        private void release() {
+            released.countDown();
+        }
+    }
+
+    private class RecordingTask extends TreeIOTask {
+        private final String name;
+        private final List<String> executed;
+        private final CountDownLatch done;
+        private volatile boolean cancelled;
+
+        private RecordingTask(String name, int priority, Object owner, List<String> executed, CountDownLatch done) {
+            super(getTestFolder(name), owner, priority);
+            this.name = name;
+            this.executed = executed;
+            this.done = done;
+        }
+
+        public void run() {
+            if (executed != null)
+                executed.add(name);
+            if (done != null)
+                done.countDown();
+        }
+
+        @Override
+        protected void cancelled() {
+            cancelled = true;
+        }
+    }
+}
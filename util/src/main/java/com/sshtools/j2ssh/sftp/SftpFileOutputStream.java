@@ -24,6 +24,14 @@ public class SftpFileOutputStream extends OutputStream {
         this.position = new UnsignedInteger64("" + paramLong);
     }
 
+    public long getPosition() {
+        return this.position.longValue();
+    }
+
+    public void setPosition(long paramLong) {
+        this.position = new UnsignedInteger64("" + paramLong);
+    }
+
     public void write(byte[] paramArrayOfByte, int paramInt1, int paramInt2)
             throws IOException {
         int i = 0;